@@ -23,6 +23,7 @@
 package fr.gouv.ans.psc.example.esante.proxy.config;
 
 import fr.gouv.ans.psc.example.esante.proxy.service.Backend;
+import fr.gouv.ans.psc.example.esante.proxy.service.BackendIndex;
 import java.util.List;
 import org.slf4j.LoggerFactory;
 import org.springframework.boot.context.properties.ConfigurationProperties;
@@ -33,12 +34,18 @@ import org.springframework.boot.context.properties.ConfigurationProperties;
 @ConfigurationProperties("spring.cloud.gateway")
 public class BackendAuthenticationConfig {
   private List<Backend> routes;
+  private BackendIndex index;
   public BackendAuthenticationConfig (List<Backend> routes){
     this.routes = routes;
+    this.index = new BackendIndex(routes);
     LoggerFactory.getLogger(BackendAuthenticationConfig.class).debug("{} backends définis.",routes.size());
   }
   
   public List<Backend> routes() {
     return List.copyOf(routes);
   }
+
+  public BackendIndex index() {
+    return index;
+  }
 }
@@ -25,10 +25,12 @@ package fr.gouv.ans.psc.example.esante.proxy.config;
 import fr.gouv.ans.psc.example.esante.proxy.service.Credential;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.time.Duration;
 import java.util.Map;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
 
 /**
  * Configuration des échanges avec ProSantéConnect.
@@ -41,10 +43,24 @@ public class PSCConfiguration {
 
   private URI discoveryURL;
   private Map<String,Credential> clients;
+  private Duration metadataTtl;
+  private Duration credentialWatchPeriod;
 
-  public PSCConfiguration(String discoveryURL, Map<String,Credential> clients) throws URISyntaxException {
+  /**
+   * @param credentialWatchPeriod période de vérification des fichiers de certificats clients.
+   */
+  public PSCConfiguration(
+      String discoveryURL,
+      Map<String,Credential> clients,
+      @DefaultValue("PT1H") Duration metadataTtl,
+      @DefaultValue("PT30S") Duration credentialWatchPeriod) throws URISyntaxException {
+    if (!credentialWatchPeriod.isPositive()) {
+      throw new InvalidConfigurationException("psc.credential-watch-period must be positive");
+    }
     this.discoveryURL = new URI(discoveryURL);
     this.clients = clients;
+    this.metadataTtl = metadataTtl;
+    this.credentialWatchPeriod = credentialWatchPeriod;
     LOGGER.debug("Proxy configuration loaded");
   }
 
@@ -52,6 +68,21 @@ public class PSCConfiguration {
     return discoveryURL;
   }
   
+  /**
+   * @return durée de vie des métadonnées de découverte PSC, si la réponse ne porte pas de
+   *     <code>Cache-Control: max-age</code>.
+   */
+  public Duration getMetadataTtl() {
+    return metadataTtl;
+  }
+
+  /**
+   * @return période de vérification des fichiers de certificats clients, rechargés s'ils ont changé.
+   */
+  public Duration getCredentialWatchPeriod() {
+    return credentialWatchPeriod;
+  }
+
   public Credential getSecret(String clientId) {
     return this.clients.get(clientId);
   }
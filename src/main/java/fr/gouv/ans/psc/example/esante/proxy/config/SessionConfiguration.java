@@ -22,26 +22,33 @@
  */
 package fr.gouv.ans.psc.example.esante.proxy.config;
 
-import java.util.HashMap;
-
+import fr.gouv.ans.psc.example.esante.proxy.service.TokenRefreshService;
+import fr.gouv.ans.psc.example.esante.proxy.service.session.RemoteSessionRepository;
+import fr.gouv.ans.psc.example.esante.proxy.service.session.SessionCodec;
+import fr.gouv.ans.psc.example.esante.proxy.service.session.ShardedSessionRepository;
+import java.time.Duration;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.autoconfigure.session.SessionProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
-import org.springframework.session.ReactiveMapSessionRepository;
-import org.springframework.session.ReactiveSessionRepository;
-import org.springframework.session.Session;
 import org.springframework.session.config.annotation.web.server.EnableSpringWebSession;
 import org.springframework.web.server.session.CookieWebSessionIdResolver;
 import org.springframework.web.server.session.WebSessionIdResolver;
 
 /**
  * Configuration de la gestion de session du proxy.
+ * Les sessions sont gardées en mémoire, sauf si un stockage partagé est configuré
+ * (<code>proxy.session-store.uri</code>) : il est alors le seul stockage des sessions web, et la
+ * persistance locale des sessions ne peut pas être activée en même temps.
  * @author edegenetais
  */
 @Configuration
 @EnableSpringWebSession
 public class SessionConfiguration {
   private static final String SESSION_COOKIE_NAME = "proxy_session_id";
+  private static final int SESSION_SHARDS = 64;
+  private static final Duration EXPIRY_TICK = Duration.ofSeconds(1);
   
 
   private SessionProperties sessionProperties;
@@ -52,10 +59,30 @@ public class SessionConfiguration {
   }
   
   @Bean
-  public ReactiveSessionRepository<? extends Session> getSessionRepository(){
-    final ReactiveMapSessionRepository reactiveMapSessionRepository = new ReactiveMapSessionRepository(new HashMap<>());
-    reactiveMapSessionRepository.setDefaultMaxInactiveInterval(sessionProperties.getTimeout());
-    return reactiveMapSessionRepository;
+  @ConditionalOnExpression(SessionStoreConfig.ABSENT)
+  public ShardedSessionRepository getSessionRepository(){
+    final ShardedSessionRepository sessionRepository =
+        new ShardedSessionRepository(SESSION_SHARDS, EXPIRY_TICK);
+    sessionRepository.setDefaultMaxInactiveInterval(sessionProperties.getTimeout());
+    return sessionRepository;
+  }
+
+  @Bean
+  @ConditionalOnProperty("proxy.session-store.uri")
+  public RemoteSessionRepository getRemoteSessionRepository(
+      SessionStoreConfig storeCfg,
+      SessionPersistenceConfig persistenceCfg,
+      SessionCodec codec,
+      TokenRefreshService refreshService) {
+    if (persistenceCfg.enabled()) {
+      throw new InvalidConfigurationException(
+          "proxy.session-persistence.directory cannot be used with proxy.session-store.uri");
+    }
+    final RemoteSessionRepository sessionRepository =
+        new RemoteSessionRepository(storeCfg, codec, refreshService);
+    sessionRepository.setDefaultMaxInactiveInterval(sessionProperties.getTimeout());
+    refreshService.setCoordinator(sessionRepository);
+    return sessionRepository;
   }
   
   @Bean
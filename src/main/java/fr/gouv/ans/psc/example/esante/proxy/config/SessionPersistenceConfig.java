@@ -0,0 +1,78 @@
+/*
+ * The MIT License
+ * Copyright © 2024-2025 Agence du Numérique en Santé (ANS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.gouv.ans.psc.example.esante.proxy.config;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+/**
+ * Paramètres de la persistance locale des sessions. Sans répertoire, elle est désactivée et les
+ * sessions sont perdues au redémarrage du proxy.
+ * Les fichiers contiennent les jetons des sessions en clair : le répertoire et les fichiers sont
+ * réservés au propriétaire du processus, ce qui exige un système de fichiers POSIX sauf
+ * autorisation explicite.
+ *
+ * @author edegenetais
+ */
+@ConfigurationProperties("proxy.session-persistence")
+public class SessionPersistenceConfig {
+  private final Path directory;
+  private final Duration snapshotInterval;
+  private final boolean allowNonPosix;
+
+  /**
+   * @param directory répertoire de l'instantané et du journal des sessions.
+   * @param snapshotInterval période des instantanés, chacun remettant le journal à zéro.
+   * @param allowNonPosix accepte un système de fichiers dont les droits ne peuvent être restreints.
+   */
+  public SessionPersistenceConfig(
+      Path directory,
+      @DefaultValue("1m") Duration snapshotInterval,
+      @DefaultValue("false") boolean allowNonPosix) {
+    if (!snapshotInterval.isPositive()) {
+      throw new InvalidConfigurationException(
+          "proxy.session-persistence.snapshot-interval must be positive");
+    }
+    this.directory = directory;
+    this.snapshotInterval = snapshotInterval;
+    this.allowNonPosix = allowNonPosix;
+  }
+
+  public boolean enabled() {
+    return directory != null;
+  }
+
+  public Path directory() {
+    return directory;
+  }
+
+  public Duration snapshotInterval() {
+    return snapshotInterval;
+  }
+
+  public boolean allowNonPosix() {
+    return allowNonPosix;
+  }
+}
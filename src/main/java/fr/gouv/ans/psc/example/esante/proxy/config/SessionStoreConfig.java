@@ -0,0 +1,104 @@
+/*
+ * The MIT License
+ * Copyright © 2024-2025 Agence du Numérique en Santé (ANS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.gouv.ans.psc.example.esante.proxy.config;
+
+import java.time.Duration;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+/**
+ * Paramètres du stockage partagé des sessions entre instances du proxy (protocole Redis). Sans
+ * URI, il est désactivé et chaque session ne vit que dans l'instance qui l'a ouverte.
+ *
+ * @author edegenetais
+ */
+@ConfigurationProperties("proxy.session-store")
+public class SessionStoreConfig {
+  /**
+   * Condition des composants propres au stockage des sessions en mémoire (expiration locale,
+   * persistance sur disque), absents quand un stockage partagé est configuré.
+   */
+  public static final String ABSENT = "'${proxy.session-store.uri:}'.isEmpty()";
+
+  private final String uri;
+  private final String keyPrefix;
+  private final int nearCacheSize;
+  private final Duration touchInterval;
+  private final Duration timeout;
+
+  /**
+   * @param uri URI du serveur, par exemple <code>redis://:secret@sessions:6379/0</code>.
+   * @param keyPrefix préfixe des clés et du canal d'invalidation, propre à un déploiement.
+   * @param nearCacheSize nombre maximal de sessions gardées en cache local par instance.
+   * @param touchInterval période de report vers le serveur des prolongations de session.
+   * @param timeout délai maximal d'une commande.
+   */
+  public SessionStoreConfig(
+      String uri,
+      @DefaultValue("psc-proxy:") String keyPrefix,
+      @DefaultValue("10000") int nearCacheSize,
+      @DefaultValue("1s") Duration touchInterval,
+      @DefaultValue("2s") Duration timeout) {
+    if (uri != null && !uri.startsWith("redis://") && !uri.startsWith("rediss://")) {
+      throw new InvalidConfigurationException(
+          "proxy.session-store.uri must be a redis:// or rediss:// URI");
+    }
+    if (nearCacheSize <= 0) {
+      throw new InvalidConfigurationException(
+          "proxy.session-store.near-cache-size must be positive");
+    }
+    if (!touchInterval.isPositive() || !timeout.isPositive()) {
+      throw new InvalidConfigurationException(
+          "proxy.session-store.touch-interval and timeout must be positive");
+    }
+    this.uri = uri;
+    this.keyPrefix = keyPrefix;
+    this.nearCacheSize = nearCacheSize;
+    this.touchInterval = touchInterval;
+    this.timeout = timeout;
+  }
+
+  public boolean enabled() {
+    return uri != null;
+  }
+
+  public String uri() {
+    return uri;
+  }
+
+  public String keyPrefix() {
+    return keyPrefix;
+  }
+
+  public int nearCacheSize() {
+    return nearCacheSize;
+  }
+
+  public Duration touchInterval() {
+    return touchInterval;
+  }
+
+  public Duration timeout() {
+    return timeout;
+  }
+}
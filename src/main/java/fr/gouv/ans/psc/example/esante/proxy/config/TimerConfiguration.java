@@ -0,0 +1,45 @@
+/*
+ * The MIT License
+ * Copyright © 2024-2025 Agence du Numérique en Santé (ANS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.gouv.ans.psc.example.esante.proxy.config;
+
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * Horloge des attentes du proxy, comme les intervalles de polling CIBA. Elle est injectée plutôt
+ * que prise implicitement par <code>Mono.delay</code>, pour que les tests puissent la remplacer
+ * par un temps virtuel.
+ *
+ * @author edegenetais
+ */
+@Configuration
+public class TimerConfiguration {
+
+  /** Le scheduler partagé <code>parallel</code> n'appartient pas au contexte : il n'est pas fermé. */
+  @Bean(destroyMethod = "")
+  public Scheduler timer() {
+    return Schedulers.parallel();
+  }
+}
@@ -0,0 +1,72 @@
+/*
+ * The MIT License
+ * Copyright © 2024-2025 Agence du Numérique en Santé (ANS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.gouv.ans.psc.example.esante.proxy.config;
+
+import java.time.Duration;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+/**
+ * Paramètres des échanges de token auprès des IDP backend lors du <code>/connect</code>.
+ *
+ * @author edegenetais
+ */
+@ConfigurationProperties("proxy.token-exchange")
+public class TokenExchangeConfig {
+  private final int parallelism;
+  private final Duration timeout;
+  private final Duration refreshMargin;
+
+  /**
+   * @param parallelism nombre maximal d'échanges de token menés en parallèle pour une session.
+   * @param timeout délai maximal accordé à chaque échange, et à la connexion et à la lecture de ses
+   *     appels HTTP.
+   * @param refreshMargin avance prise sur l'expiration pour rafraîchir les tokens en tâche de fond.
+   */
+  public TokenExchangeConfig(
+      @DefaultValue("8") int parallelism,
+      @DefaultValue("PT10S") Duration timeout,
+      @DefaultValue("PT60S") Duration refreshMargin) {
+    if (parallelism < 1) {
+      throw new InvalidConfigurationException("proxy.token-exchange.parallelism must be at least 1");
+    }
+    this.parallelism = parallelism;
+    this.timeout = timeout;
+    this.refreshMargin = refreshMargin;
+    LoggerFactory.getLogger(TokenExchangeConfig.class)
+        .debug("Token exchange parallelism {}, timeout {}", parallelism, timeout);
+  }
+
+  public int parallelism() {
+    return parallelism;
+  }
+
+  public Duration timeout() {
+    return timeout;
+  }
+
+  public Duration refreshMargin() {
+    return refreshMargin;
+  }
+}
@@ -0,0 +1,85 @@
+/*
+ * The MIT License
+ * Copyright © 2024-2025 Agence du Numérique en Santé (ANS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.gouv.ans.psc.example.esante.proxy.config;
+
+import java.time.Duration;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+/**
+ * Paramètres de la révocation des tokens à la déconnexion et à l'expiration des sessions.
+ *
+ * @author edegenetais
+ */
+@ConfigurationProperties("proxy.token-revocation")
+public class TokenRevocationConfig {
+  private final int parallelism;
+  private final int maxAttempts;
+  private final Duration retryBackoff;
+  private final int queueCapacity;
+  private final Duration timeout;
+
+  /**
+   * @param parallelism nombre maximal d'appels menés en parallèle vers un même serveur d'identité.
+   * @param maxAttempts nombre maximal de tentatives de chaque appel en cas d'échec transitoire.
+   * @param retryBackoff délai avant la première nouvelle tentative, doublé à chaque échec.
+   * @param queueCapacity nombre maximal d'appels en attente.
+   * @param timeout délai de connexion et de lecture HTTP de chaque appel au serveur d'identité.
+   */
+  public TokenRevocationConfig(
+      @DefaultValue("4") int parallelism,
+      @DefaultValue("3") int maxAttempts,
+      @DefaultValue("PT1S") Duration retryBackoff,
+      @DefaultValue("10000") int queueCapacity,
+      @DefaultValue("PT10S") Duration timeout) {
+    if (parallelism < 1 || maxAttempts < 1 || queueCapacity < 1) {
+      throw new InvalidConfigurationException(
+          "proxy.token-revocation.parallelism, max-attempts and queue-capacity must be at least 1");
+    }
+    this.parallelism = parallelism;
+    this.maxAttempts = maxAttempts;
+    this.retryBackoff = retryBackoff;
+    this.queueCapacity = queueCapacity;
+    this.timeout = timeout;
+  }
+
+  public int parallelism() {
+    return parallelism;
+  }
+
+  public int maxAttempts() {
+    return maxAttempts;
+  }
+
+  public Duration retryBackoff() {
+    return retryBackoff;
+  }
+
+  public int queueCapacity() {
+    return queueCapacity;
+  }
+
+  public Duration timeout() {
+    return timeout;
+  }
+}
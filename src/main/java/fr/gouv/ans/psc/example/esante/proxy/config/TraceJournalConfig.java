@@ -0,0 +1,103 @@
+/*
+ * The MIT License
+ * Copyright © 2024-2025 Agence du Numérique en Santé (ANS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.gouv.ans.psc.example.esante.proxy.config;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+import org.springframework.util.unit.DataSize;
+
+/**
+ * Paramètres du journal persistant des traces. Sans répertoire, le journal est désactivé et les
+ * traces ne sont conservées qu'en mémoire.
+ *
+ * @author edegenetais
+ */
+@ConfigurationProperties("proxy.traces.journal")
+public class TraceJournalConfig {
+  private final Path directory;
+  private final DataSize segmentSize;
+  private final int maxSegments;
+  private final Duration maxAge;
+  private final int maxPending;
+
+  /**
+   * @param directory répertoire des fichiers du journal.
+   * @param segmentSize taille fixe de chaque fichier segment du journal.
+   * @param maxSegments nombre de segments conservés, les plus anciens étant supprimés à la rotation.
+   * @param maxAge âge au-delà duquel un segment dont toutes les traces sont plus anciennes est
+   *     supprimé.
+   * @param maxPending nombre maximal de traces en attente d'écriture ; au-delà, les traces sont
+   *     écartées du journal plutôt que d'accumuler un retard sans limite sur le tas.
+   */
+  public TraceJournalConfig(
+      Path directory,
+      @DefaultValue("64MB") DataSize segmentSize,
+      @DefaultValue("64") int maxSegments,
+      @DefaultValue("30d") Duration maxAge,
+      @DefaultValue("65536") int maxPending) {
+    if (segmentSize.toBytes() < 4096 || segmentSize.toBytes() > Integer.MAX_VALUE) {
+      throw new InvalidConfigurationException(
+          "proxy.traces.journal.segment-size must be between 4KB and 2GB");
+    }
+    if (maxSegments < 1) {
+      throw new InvalidConfigurationException("proxy.traces.journal.max-segments must be at least 1");
+    }
+    if (!maxAge.isPositive()) {
+      throw new InvalidConfigurationException("proxy.traces.journal.max-age must be positive");
+    }
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+    this.maxSegments = maxSegments;
+    if (maxPending < 1) {
+      throw new InvalidConfigurationException("proxy.traces.journal.max-pending must be at least 1");
+    }
+    this.maxAge = maxAge;
+    this.maxPending = maxPending;
+  }
+
+  public boolean enabled() {
+    return directory != null;
+  }
+
+  public Path directory() {
+    return directory;
+  }
+
+  public DataSize segmentSize() {
+    return segmentSize;
+  }
+
+  public int maxSegments() {
+    return maxSegments;
+  }
+
+  public Duration maxAge() {
+    return maxAge;
+  }
+
+  public int maxPending() {
+    return maxPending;
+  }
+}
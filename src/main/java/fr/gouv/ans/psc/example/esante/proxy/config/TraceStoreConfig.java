@@ -0,0 +1,177 @@
+/*
+ * The MIT License
+ * Copyright © 2024-2025 Agence du Numérique en Santé (ANS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.gouv.ans.psc.example.esante.proxy.config;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+import org.springframework.util.unit.DataSize;
+
+/**
+ * Paramètres du stockage des traces.
+ *
+ * @author edegenetais
+ */
+@ConfigurationProperties("proxy.traces")
+public class TraceStoreConfig {
+
+  /** Conduite à tenir quand le stockage des traces atteint sa capacité. */
+  public enum OverflowPolicy {
+    /** Les traces les plus anciennes sont abandonnées (et comptées). */
+    DROP_OLDEST,
+    /** Les traces les plus anciennes sont déversées sur disque au format NDJSON. */
+    SPILL
+  }
+
+  /** Conduite à tenir quand la chaîne d'enregistrement des traces est pleine. */
+  public enum PipelineOverflowPolicy {
+    /** La trace est abandonnée (et comptée) : le thread de requête n'attend jamais. */
+    DROP,
+    /**
+     * Le thread de requête attend au plus <code>pipeline-overflow-wait</code> qu'une place se
+     * libère, puis abandonne la trace : moins de pertes sur un pic, au prix de la latence.
+     */
+    BLOCK_BRIEFLY
+  }
+
+  private final long capacity;
+  private final DataSize maxSize;
+  private final int segmentSize;
+  private final OverflowPolicy overflow;
+  private final Path spillDirectory;
+  private final int pipelineCapacity;
+  private final PipelineOverflowPolicy pipelineOverflow;
+  private final Duration pipelineOverflowWait;
+  private final Duration maxAge;
+  private final Duration compactAfter;
+  private final Duration retentionInterval;
+
+  /**
+   * @param capacity nombre maximal de traces conservées en mémoire.
+   * @param maxSize volume mémoire maximal (estimé) des traces conservées.
+   * @param segmentSize nombre de traces par segment, unité d'éviction.
+   * @param overflow politique de débordement.
+   * @param spillDirectory répertoire de déversement, obligatoire avec la politique SPILL.
+   * @param pipelineCapacity nombre d'événements en attente d'enregistrement, puissance de deux ; au-delà,
+   *     les traces sont abandonnées (comptées sur /check/trace-pipeline).
+   * @param pipelineOverflow politique de débordement de la chaîne d'enregistrement.
+   * @param pipelineOverflowWait attente maximale d'une place avec la politique BLOCK_BRIEFLY.
+   * @param maxAge âge au-delà duquel les traces sont abandonnées (ou déversées), par tranche entière.
+   * @param compactAfter âge au-delà duquel les segments sont compactés.
+   * @param retentionInterval période de la tâche de rétention et de compaction.
+   */
+  public TraceStoreConfig(
+      @DefaultValue("1000000") long capacity,
+      @DefaultValue("256MB") DataSize maxSize,
+      @DefaultValue("4096") int segmentSize,
+      @DefaultValue("DROP_OLDEST") OverflowPolicy overflow,
+      Path spillDirectory,
+      @DefaultValue("65536") int pipelineCapacity,
+      @DefaultValue("DROP") PipelineOverflowPolicy pipelineOverflow,
+      @DefaultValue("5ms") Duration pipelineOverflowWait,
+      @DefaultValue("7d") Duration maxAge,
+      @DefaultValue("10m") Duration compactAfter,
+      @DefaultValue("30s") Duration retentionInterval) {
+    if (segmentSize < 1 || capacity < segmentSize) {
+      throw new InvalidConfigurationException(
+          "proxy.traces.segment-size must be at least 1 and at most proxy.traces.capacity");
+    }
+    if (overflow == OverflowPolicy.SPILL && spillDirectory == null) {
+      throw new InvalidConfigurationException(
+          "proxy.traces.spill-directory is mandatory with the SPILL overflow policy");
+    }
+    if (Integer.bitCount(pipelineCapacity) != 1) {
+      throw new InvalidConfigurationException(
+          "proxy.traces.pipeline-capacity must be a power of two");
+    }
+    if (pipelineOverflow == PipelineOverflowPolicy.BLOCK_BRIEFLY
+        && !pipelineOverflowWait.isPositive()) {
+      throw new InvalidConfigurationException(
+          "proxy.traces.pipeline-overflow-wait must be positive with the BLOCK_BRIEFLY policy");
+    }
+    if (!maxAge.isPositive() || compactAfter.isNegative() || !retentionInterval.isPositive()) {
+      throw new InvalidConfigurationException(
+          "proxy.traces.max-age and proxy.traces.retention-interval must be positive, "
+              + "proxy.traces.compact-after must not be negative");
+    }
+    this.capacity = capacity;
+    this.maxSize = maxSize;
+    this.segmentSize = segmentSize;
+    this.overflow = overflow;
+    this.spillDirectory = spillDirectory;
+    this.pipelineCapacity = pipelineCapacity;
+    this.pipelineOverflow = pipelineOverflow;
+    this.pipelineOverflowWait = pipelineOverflowWait;
+    this.maxAge = maxAge;
+    this.compactAfter = compactAfter;
+    this.retentionInterval = retentionInterval;
+    LoggerFactory.getLogger(TraceStoreConfig.class)
+        .debug("Trace store capacity {} traces / {}, overflow policy {}", capacity, maxSize, overflow);
+  }
+
+  public long capacity() {
+    return capacity;
+  }
+
+  public DataSize maxSize() {
+    return maxSize;
+  }
+
+  public int segmentSize() {
+    return segmentSize;
+  }
+
+  public OverflowPolicy overflow() {
+    return overflow;
+  }
+
+  public Path spillDirectory() {
+    return spillDirectory;
+  }
+
+  public int pipelineCapacity() {
+    return pipelineCapacity;
+  }
+
+  public PipelineOverflowPolicy pipelineOverflow() {
+    return pipelineOverflow;
+  }
+
+  public Duration pipelineOverflowWait() {
+    return pipelineOverflowWait;
+  }
+
+  public Duration maxAge() {
+    return maxAge;
+  }
+
+  public Duration compactAfter() {
+    return compactAfter;
+  }
+
+  public Duration retentionInterval() {
+    return retentionInterval;
+  }
+}
@@ -22,6 +22,21 @@
  */
 package fr.gouv.ans.psc.example.esante.proxy.controller;
 
+import fr.gouv.ans.psc.example.esante.proxy.service.PSCMetadataCache;
+import fr.gouv.ans.psc.example.esante.proxy.service.TokenRevocationService;
+import fr.gouv.ans.psc.example.esante.proxy.service.TokenRevocationStats;
+import fr.gouv.ans.psc.example.esante.proxy.service.TraceService;
+import fr.gouv.ans.psc.example.esante.proxy.service.session.RemoteSessionRepository;
+import fr.gouv.ans.psc.example.esante.proxy.service.session.RemoteSessionStoreStats;
+import fr.gouv.ans.psc.example.esante.proxy.service.session.SessionPersistence;
+import fr.gouv.ans.psc.example.esante.proxy.service.session.SessionPersistenceStats;
+import fr.gouv.ans.psc.example.esante.proxy.service.session.SessionStoreStats;
+import fr.gouv.ans.psc.example.esante.proxy.service.session.ShardedSessionRepository;
+import fr.gouv.ans.psc.example.esante.proxy.service.trace.TraceJournalStats;
+import fr.gouv.ans.psc.example.esante.proxy.service.trace.TracePipelineStats;
+import fr.gouv.ans.psc.example.esante.proxy.service.trace.TraceStoreStats;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
@@ -34,8 +49,73 @@ import reactor.core.publisher.Mono;
 @RestController
 @RequestMapping("/check")
 public class CheckController {
+  private final PSCMetadataCache pscMetadataCache;
+  private final TraceService traceSrv;
+  private final ObjectProvider<ShardedSessionRepository> sessionRepository;
+  private final TokenRevocationService revocationService;
+  private final ObjectProvider<SessionPersistence> sessionPersistence;
+  private final ObjectProvider<RemoteSessionRepository> remoteSessionRepository;
+
+  public CheckController(
+      @Autowired PSCMetadataCache pscMetadataCache,
+      @Autowired TraceService traceSrv,
+      @Autowired ObjectProvider<ShardedSessionRepository> sessionRepository,
+      @Autowired TokenRevocationService revocationService,
+      @Autowired ObjectProvider<SessionPersistence> sessionPersistence,
+      @Autowired ObjectProvider<RemoteSessionRepository> remoteSessionRepository) {
+    this.pscMetadataCache = pscMetadataCache;
+    this.traceSrv = traceSrv;
+    this.sessionRepository = sessionRepository;
+    this.revocationService = revocationService;
+    this.sessionPersistence = sessionPersistence;
+    this.remoteSessionRepository = remoteSessionRepository;
+  }
+
   @GetMapping("/alive")
   public Mono<String> alive() {
     return Mono.just("OK");
   }
+
+  @GetMapping("/psc-metadata")
+  public Mono<PSCMetadataCache.Stats> pscMetadata() {
+    return Mono.just(pscMetadataCache.stats());
+  }
+
+  @GetMapping("/traces")
+  public Mono<TraceStoreStats> traces() {
+    return Mono.just(traceSrv.stats());
+  }
+
+  @GetMapping("/trace-pipeline")
+  public Mono<TracePipelineStats> tracePipeline() {
+    return Mono.just(traceSrv.pipelineStats());
+  }
+
+  @GetMapping("/trace-journal")
+  public Mono<TraceJournalStats> traceJournal() {
+    return Mono.justOrEmpty(traceSrv.journalStats());
+  }
+
+  @GetMapping("/sessions")
+  public Mono<SessionStoreStats> sessions() {
+    return Mono.justOrEmpty(sessionRepository.getIfAvailable())
+        .map(ShardedSessionRepository::stats);
+  }
+
+  @GetMapping("/session-persistence")
+  public Mono<SessionPersistenceStats> sessionPersistence() {
+    return Mono.justOrEmpty(sessionPersistence.getIfAvailable())
+        .flatMap(persistence -> Mono.justOrEmpty(persistence.stats()));
+  }
+
+  @GetMapping("/session-store")
+  public Mono<RemoteSessionStoreStats> sessionStore() {
+    return Mono.justOrEmpty(remoteSessionRepository.getIfAvailable())
+        .map(RemoteSessionRepository::stats);
+  }
+
+  @GetMapping("/token-revocation")
+  public Mono<TokenRevocationStats> tokenRevocation() {
+    return Mono.just(revocationService.stats());
+  }
 }
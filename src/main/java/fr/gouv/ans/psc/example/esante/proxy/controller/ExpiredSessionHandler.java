@@ -0,0 +1,69 @@
+/*
+ * The MIT License
+ * Copyright © 2024-2025 Agence du Numérique en Santé (ANS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.gouv.ans.psc.example.esante.proxy.controller;
+
+import fr.gouv.ans.psc.example.esante.proxy.service.BackendAuthentication;
+import fr.gouv.ans.psc.example.esante.proxy.service.BackendAuthenticationService;
+import fr.gouv.ans.psc.example.esante.proxy.service.TokenRevocationService;
+import fr.gouv.ans.psc.example.esante.proxy.service.session.SessionExpiryNotifier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.session.MapSession;
+import org.springframework.stereotype.Component;
+
+/**
+ * Nettoyage des sessions expirées : comme à la déconnexion, les tokens sont révoqués auprès des
+ * serveurs d'identité, puis oubliés et leur rafraîchissement arrêté. Les sessions expirent en
+ * mémoire, ou sur le stockage partagé s'il est configuré.
+ *
+ * @author edegenetais
+ */
+@Component
+public class ExpiredSessionHandler {
+  private static final Logger LOGGER = LoggerFactory.getLogger(ExpiredSessionHandler.class);
+
+  private final BackendAuthenticationService backendAuthService;
+  private final TokenRevocationService revocationService;
+
+  public ExpiredSessionHandler(
+      @Autowired SessionExpiryNotifier sessionRepository,
+      @Autowired BackendAuthenticationService backendAuthService,
+      @Autowired TokenRevocationService revocationService) {
+    this.backendAuthService = backendAuthService;
+    this.revocationService = revocationService;
+    sessionRepository.addExpiryListener(this::expired);
+  }
+
+  void expired(MapSession session) {
+    final BackendAuthentication backendAuth = session.getAttribute(SessionAttributes.BACKEND_AUTH_ATTR);
+    if (backendAuth != null) {
+      revocationService.revoke(
+          session.getAttribute(SessionAttributes.CLIENT_ID),
+          session.getAttribute(SessionAttributes.CIBA_SESSION),
+          backendAuth);
+      backendAuthService.wipe(backendAuth);
+      LOGGER.debug("Tokens de la session expirée {} révoqués et oubliés.", session.getId());
+    }
+  }
+}
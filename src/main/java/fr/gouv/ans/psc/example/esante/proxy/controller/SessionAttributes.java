@@ -34,5 +34,6 @@ public final class SessionAttributes {
   public static final String CLIENT_ID = "client_id";
   public static final String NATIONAL_ID = "national_id";
   public static final String PROXY_API_SESSION = "proxy_api_session";
+  public static final String TRACE_IDENTITY = "trace_identity";
   private SessionAttributes(){}
 }
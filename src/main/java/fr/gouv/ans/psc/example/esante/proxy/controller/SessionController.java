@@ -29,10 +29,11 @@ import fr.gouv.ans.psc.example.esante.proxy.service.BackendAuthentication;
 import fr.gouv.ans.psc.example.esante.proxy.service.BackendAuthenticationService;
 import fr.gouv.ans.psc.example.esante.proxy.service.BaseTraceData;
 import fr.gouv.ans.psc.example.esante.proxy.service.CIBASession;
+import fr.gouv.ans.psc.example.esante.proxy.service.CredentialMaterialCache;
 import fr.gouv.ans.psc.example.esante.proxy.service.PSCSessionService;
+import fr.gouv.ans.psc.example.esante.proxy.service.SessionTraceData;
+import fr.gouv.ans.psc.example.esante.proxy.service.TokenRevocationService;
 import fr.gouv.ans.psc.example.esante.proxy.service.TraceService;
-import java.util.concurrent.Callable;
-
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -54,17 +55,23 @@ public class SessionController {
   private final PSCSessionService cibaService;
   private final BackendAuthenticationService backendAuthService;
   private final TraceService traceSrv;
+  private final TokenRevocationService revocationService;
+  private final CredentialMaterialCache materials;
   
   private static final Logger LOGGER = LoggerFactory.getLogger(SessionController.class);
   
   public SessionController(
       @Autowired PSCSessionService cibaService,
       @Autowired BackendAuthenticationService backendAuthService,
-      @Autowired TraceService traceSrv
+      @Autowired TraceService traceSrv,
+      @Autowired TokenRevocationService revocationService,
+      @Autowired CredentialMaterialCache materials
   ) {
     this.cibaService = cibaService;
     this.backendAuthService = backendAuthService;
     this.traceSrv = traceSrv;
+    this.revocationService = revocationService;
+    this.materials = materials;
   }
 
   @PostMapping("/connect")
@@ -76,53 +83,59 @@ public class SessionController {
     if(webSession!=null && webSession.isStarted()) {
       traceSrv.record(
           TraceType.CONNECT_REPLAY,
-          TraceHelper.getSessionTraceData(webSession),
+          TraceHelper.getSessionTraceData(webSession, materials),
           baseTraceData,
           null);
       throw new Reconnect();
     }
-    Callable<Session> sessionSupplier =
-        () -> {
-          try {
-            String sessionId = webSession.getId();
-            webSession.getAttributes().put(SessionAttributes.CLIENT_ID, connection.clientId());
-            webSession.getAttributes().put(SessionAttributes.NATIONAL_ID, connection.nationalId());
-            CIBASession cibaSession =
-                this.cibaService.cibaAuthentication(
-                    connection.bindingMessage(),
-                    connection.nationalId(),
-                    connection.clientId(),
-                    connection.channel());
-            webSession.getAttributes().put(SessionAttributes.CIBA_SESSION, cibaSession);
-
-            BackendAuthentication backendAuth =
-                this.backendAuthService.authenticate(cibaSession, connection.clientId());
-            webSession.getAttributes().put(SessionAttributes.BACKEND_AUTH_ATTR, backendAuth);
+    webSession.getAttributes().put(SessionAttributes.CLIENT_ID, connection.clientId());
+    webSession.getAttributes().put(SessionAttributes.NATIONAL_ID, connection.nationalId());
+    return this.cibaService
+        .cibaAuthentication(
+            connection.bindingMessage(),
+            connection.nationalId(),
+            connection.clientId(),
+            connection.channel())
+        .flatMap(
+            cibaSession -> {
+              webSession.getAttributes().put(SessionAttributes.CIBA_SESSION, cibaSession);
+              return this.backendAuthService
+                  .authenticate(cibaSession, connection.clientId())
+                  .map(backendAuth -> openSession(webSession, cibaSession, backendAuth, baseTraceData));
+            })
+        .onErrorResume(
+            RuntimeException.class,
+            re -> {
+              Mono<Void> sessionEnd = webSession.invalidate();
+              this.traceSrv.record(
+                  TraceType.CONNECT_FAILURE, 
+                  TraceHelper.getSessionTraceData(webSession, materials),
+                  baseTraceData,
+                  null);
+              return sessionEnd.then(Mono.error(re));
+            });
+  }
 
-            webSession.start();
-            LOGGER.debug("MaxIdleTime in seconds : {}",webSession.getMaxIdleTime().getSeconds());
-            final Session session = new Session(sessionId, cibaSession.sessionState());
-            webSession.getAttributes().put(SessionAttributes.PROXY_API_SESSION, session);
-            this.traceSrv.record(
-                TraceType.CONNECT_SUCCESS,
-                TraceHelper.getSessionTraceData(webSession),
-                baseTraceData,
-                null);
-            return session;
-          } catch (RuntimeException re) {
-            if (webSession != null) {
-              webSession.invalidate();
-            }
-            this.traceSrv.record(
-                TraceType.CONNECT_FAILURE, 
-                TraceHelper.getSessionTraceData(webSession),
-                baseTraceData,
-                null);
-            throw re;
-          }
-        };
+  private Session openSession(
+      WebSession webSession,
+      CIBASession cibaSession,
+      BackendAuthentication backendAuth,
+      BaseTraceData baseTraceData) {
+    webSession.getAttributes().put(SessionAttributes.BACKEND_AUTH_ATTR, backendAuth);
 
-    return Mono.fromCallable(sessionSupplier);
+    webSession.start();
+    LOGGER.debug("MaxIdleTime in seconds : {}",webSession.getMaxIdleTime().getSeconds());
+    final Session session = new Session(webSession.getId(), cibaSession.sessionState());
+    webSession.getAttributes().put(SessionAttributes.PROXY_API_SESSION, session);
+    final SessionTraceData traceIdentity = TraceHelper.buildSessionTraceData(webSession, materials);
+    webSession.getAttributes().put(SessionAttributes.TRACE_IDENTITY, traceIdentity);
+    LOGGER.debug("Session {} ouverte, empreinte du certificat client : {}", webSession.getId(), traceIdentity.certThumbprint());
+    this.traceSrv.record(
+        TraceType.CONNECT_SUCCESS,
+        traceIdentity,
+        baseTraceData,
+        null);
+    return session;
   }
 
   @DeleteMapping("/disconnect")
@@ -135,22 +148,16 @@ public class SessionController {
     } else {
       this.traceSrv.record(
           TraceType.DISCONNECT,
-          TraceHelper.getSessionTraceData(webSession),
+          TraceHelper.getSessionTraceData(webSession, materials),
           baseTraceData,
           null);
-      Callable<Void> sessionDestroyer = () -> {
-        Mono<Void> sessionEnd = webSession.invalidate();
-        String clientId = webSession.getAttribute(SessionAttributes.CLIENT_ID);
-        CIBASession cibaSession = webSession.getAttribute(SessionAttributes.CIBA_SESSION);
-      
-        this.cibaService.logout(cibaSession, clientId);
-        
-        BackendAuthentication backendAuth = webSession.getAttribute(SessionAttributes.BACKEND_AUTH_ATTR);
-        this.backendAuthService.wipe(backendAuth);
-        
-        return sessionEnd.block();
-      };
-      return Mono.fromCallable(sessionDestroyer);
+      String clientId = webSession.getAttribute(SessionAttributes.CLIENT_ID);
+      BackendAuthentication backendAuth = webSession.getAttribute(SessionAttributes.BACKEND_AUTH_ATTR);
+      // Déconnexion PSC et révocations en tâche de fond : la réponse n'attend pas les IDP.
+      this.revocationService.revoke(
+          clientId, webSession.getAttribute(SessionAttributes.CIBA_SESSION), backendAuth);
+      this.backendAuthService.wipe(backendAuth);
+      return webSession.invalidate();
     }
   }
 }
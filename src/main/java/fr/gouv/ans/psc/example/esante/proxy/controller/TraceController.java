@@ -24,14 +24,27 @@ package fr.gouv.ans.psc.example.esante.proxy.controller;
 
 import fr.gouv.ans.psc.example.esante.proxy.model.Trace;
 import fr.gouv.ans.psc.example.esante.proxy.service.TraceService;
+import fr.gouv.ans.psc.example.esante.proxy.service.trace.TraceCursor;
+import fr.gouv.ans.psc.example.esante.proxy.service.trace.TracePage;
+import fr.gouv.ans.psc.example.esante.proxy.service.trace.TraceQuery;
+import fr.gouv.ans.psc.example.esante.proxy.service.trace.TraceRollup;
+import fr.gouv.ans.psc.example.esante.proxy.service.trace.TraceRollups;
+import java.nio.ByteBuffer;
 import java.time.OffsetDateTime;
-import java.util.List;
+import java.util.Arrays;
 import java.util.Objects;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.server.reactive.ServerHttpResponse;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.ModelAttribute;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ServerWebExchange;
 import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 
 /**
  * Ce contrôleur propose le service getTrace défini par la spécification.
@@ -40,6 +53,11 @@ import reactor.core.publisher.Flux;
  */
 @RestController
 public class TraceController {
+  /** En-tête de réponse portant la position de la page suivante d'une lecture paginée. */
+  public static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+  static final int DEFAULT_PAGE_SIZE = 1000;
+  static final int MAX_PAGE_SIZE = 10_000;
+
   private TraceService traceSrv;
 
   public TraceController(@Autowired TraceService traceSrv) {
@@ -47,14 +65,120 @@ public class TraceController {
   }
   
 
+  /**
+   * Les paramètres optionnels <code>clientId</code>, <code>IdRPPS</code>, <code>type</code>,
+   * <code>nomApiPsc</code> et <code>proxy_id_session</code> restreignent le résultat aux traces qui
+   * portent ces valeurs ; ils sont appliqués par les index du stockage.
+   * Sans <code>limit</code> ni <code>cursor</code>, toutes les traces de l'intervalle sont
+   * restituées. Sinon, la réponse est limitée à une page, et l'en-tête {@value #NEXT_CURSOR_HEADER}
+   * donne, s'il reste des traces, le <code>cursor</code> à passer pour obtenir la page suivante.
+   */
   @GetMapping("/traces")
-  public Flux<Trace> gettraces(@RequestParam("start") OffsetDateTime startDate, @RequestParam(required = false, name = "end") OffsetDateTime end) {
-    final List<Trace> traceStoreList = traceSrv.getTraces();
+  public Flux<Trace> gettraces(
+      @RequestParam("start") OffsetDateTime startDate,
+      @RequestParam(required = false, name = "end") OffsetDateTime end,
+      @RequestParam(required = false, name = "limit") Integer limit,
+      @RequestParam(required = false, name = "cursor") String cursor,
+      @ModelAttribute TraceQuery query,
+      ServerWebExchange exchange) {
+    final OffsetDateTime effectiveEnd = Objects.requireNonNullElse(end, OffsetDateTime.now());
+    if (limit == null && cursor == null) {
+      return Flux.fromStream(() -> traceSrv.getTraces(startDate, effectiveEnd, query))
+          .subscribeOn(Schedulers.boundedElastic());
+    }
+    final int pageSize = pageSize(limit);
+    final TraceCursor from = cursor == null ? null : TraceCursor.decode(cursor);
+    return Mono.fromCallable(() -> traceSrv.getTracePage(startDate, effectiveEnd, query, from, pageSize))
+        .subscribeOn(Schedulers.boundedElastic())
+        .flatMapMany(
+            page -> {
+              setNextCursor(exchange.getResponse(), page);
+              return Flux.fromIterable(page.traces());
+            });
+  }
+
+  /**
+   * Variante en flux NDJSON : chaque trace est écrite au fil de la lecture du stockage, sans
+   * constituer la liste complète du résultat. La réponse est compressée en gzip si le client
+   * l'accepte. La pagination fonctionne comme pour la restitution JSON.
+   */
+  @GetMapping(value = "/traces", produces = MediaType.APPLICATION_NDJSON_VALUE)
+  public Mono<Void> streamTraces(
+      @RequestParam("start") OffsetDateTime startDate,
+      @RequestParam(required = false, name = "end") OffsetDateTime end,
+      @RequestParam(required = false, name = "limit") Integer limit,
+      @RequestParam(required = false, name = "cursor") String cursor,
+      @ModelAttribute TraceQuery query,
+      ServerWebExchange exchange) {
+    final OffsetDateTime effectiveEnd = Objects.requireNonNullElse(end, OffsetDateTime.now());
+    final ServerHttpResponse response = exchange.getResponse();
+    final Flux<ByteBuffer> traces;
+    if (limit == null && cursor == null) {
+      traces =
+          Flux.fromStream(() -> traceSrv.getTracesAsJson(startDate, effectiveEnd, query))
+              .subscribeOn(Schedulers.boundedElastic());
+    } else {
+      final int pageSize = pageSize(limit);
+      final TraceCursor from = cursor == null ? null : TraceCursor.decode(cursor);
+      traces =
+          Mono.fromCallable(
+                  () -> traceSrv.getTracePageAsJson(startDate, effectiveEnd, query, from, pageSize))
+              .subscribeOn(Schedulers.boundedElastic())
+              .flatMapMany(
+                  page -> {
+                    setNextCursor(response, page);
+                    return Flux.fromIterable(page.traces());
+                  });
+    }
+    final HttpHeaders headers = response.getHeaders();
+    headers.setContentType(MediaType.APPLICATION_NDJSON);
+    headers.add(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+    if (acceptsGzip(exchange.getRequest().getHeaders())) {
+      headers.set(HttpHeaders.CONTENT_ENCODING, "gzip");
+      return response.writeWith(TraceNdjsonWriter.gzip(traces, response.bufferFactory()));
+    }
+    return response.writeWith(TraceNdjsonWriter.plain(traces, response.bufferFactory()));
+  }
+
+  /**
+   * Décomptes par minute et par type des traces de l'intervalle, ventilés par client LPS
+   * (<code>by=clientId</code>, par défaut) ou par API appelée (<code>by=nomApiPsc</code>).
+   */
+  @GetMapping("/traces/stats")
+  public Flux<TraceRollup> traceStats(
+      @RequestParam("start") OffsetDateTime startDate,
+      @RequestParam(required = false, name = "end") OffsetDateTime end,
+      @RequestParam(required = false, name = "by", defaultValue = "clientId") String by) {
     final OffsetDateTime effectiveEnd = Objects.requireNonNullElse(end, OffsetDateTime.now());
-    return Flux.fromStream(
-        traceStoreList.stream()
-            .filter(t -> startDate.isBefore(t.timestamp()))
-            .filter(t -> effectiveEnd.isAfter(t.timestamp())));
+    final TraceRollups.Dimension dimension =
+        TraceRollups.Dimension.of(by)
+            .orElseThrow(
+                () -> new ValidationException("by must be clientId or nomApiPsc", null, null));
+    return Mono.fromCallable(() -> traceSrv.getTraceRollups(startDate, effectiveEnd, dimension))
+        .subscribeOn(Schedulers.boundedElastic())
+        .flatMapMany(Flux::fromIterable);
+  }
+
+  private static int pageSize(Integer limit) {
+    final int pageSize = Objects.requireNonNullElse(limit, DEFAULT_PAGE_SIZE);
+    if (pageSize < 1 || pageSize > MAX_PAGE_SIZE) {
+      throw new ValidationException(
+          "limit must be between 1 and " + MAX_PAGE_SIZE, null, null);
+    }
+    return pageSize;
+  }
+
+  private static void setNextCursor(ServerHttpResponse response, TracePage<?> page) {
+    if (page.next() != null) {
+      response.getHeaders().set(NEXT_CURSOR_HEADER, page.next().encode());
+    }
+  }
+
+  private static boolean acceptsGzip(HttpHeaders headers) {
+    return headers.getOrEmpty(HttpHeaders.ACCEPT_ENCODING).stream()
+        .flatMap(value -> Arrays.stream(value.split(",")))
+        .map(coding -> coding.split(";")[0].trim())
+        .anyMatch("gzip"::equalsIgnoreCase);
   }
 
 }
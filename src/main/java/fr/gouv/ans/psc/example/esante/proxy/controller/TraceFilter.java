@@ -23,7 +23,6 @@
 package fr.gouv.ans.psc.example.esante.proxy.controller;
 
 import fr.gouv.ans.psc.example.esante.proxy.service.BaseTraceData;
-import java.util.concurrent.ExecutionException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.core.annotation.Order;
@@ -44,39 +43,24 @@ public class TraceFilter implements WebFilter {
   public static final String REQUEST = "REQUEST";
   @Override
   public Mono<Void> filter(ServerWebExchange exchange, WebFilterChain chain) {
-    LOGGER.trace("TraceFilter applied in query {} for session {}.",
-            exchange.getRequest().getId(),
-            new SessionIdRetriever(exchange));
     BaseTraceData baseTraceData = TraceHelper.getBaseTraceData(exchange);
     
     exchange
             .getAttributes()
             .put(TraceHelper.BASE_TRACE_DATA_ATTR, baseTraceData);
+    if (LOGGER.isTraceEnabled()) {
+      return exchange
+          .getSession()
+          .doOnNext(
+              session ->
+                  LOGGER.trace(
+                      "TraceFilter applied in query {} for session {}.",
+                      exchange.getRequest().getId(),
+                      session.getId()))
+          .then(chain.filter(exchange));
+    }
     return chain.filter(
         exchange);
   }
-
-  private static class SessionIdRetriever extends Object {
-
-    private final ServerWebExchange exchange;
-
-    public SessionIdRetriever(ServerWebExchange exchange) {
-      this.exchange = exchange;
-    }
-
-    @Override
-    public String toString() {
-      try {
-        if (exchange.getSession().toFuture().get() != null) {
-          return exchange.getSession().toFuture().get().getId();
-        } else {
-          return null;
-        }
-      } catch (InterruptedException | ExecutionException e) {
-        LOGGER.warn("Session retrieval interrupted during TraceFilter trace attempt.",e);
-        return null;
-      }
-    }
-  }
  
 }
@@ -25,6 +25,7 @@ package fr.gouv.ans.psc.example.esante.proxy.controller;
 import fr.gouv.ans.psc.example.esante.proxy.model.Session;
 import fr.gouv.ans.psc.example.esante.proxy.service.BackendAuthentication;
 import fr.gouv.ans.psc.example.esante.proxy.service.BaseTraceData;
+import fr.gouv.ans.psc.example.esante.proxy.service.CredentialMaterialCache;
 import fr.gouv.ans.psc.example.esante.proxy.service.SessionTraceData;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
@@ -65,7 +66,24 @@ public class TraceHelper {
       return new BaseTraceData(sourcePorts, sourceAddress, requestMethod);
   }
   
-  public static final SessionTraceData getSessionTraceData(WebSession session) {
+  /**
+   * Identité de session pour les traces : celle calculée à la fin du <code>/connect</code> si elle existe, 
+   * sinon (connexion en cours ou en échec) elle est reconstituée depuis les attributs disponibles.
+   */
+  public static final SessionTraceData getSessionTraceData(
+      WebSession session, CredentialMaterialCache materials) {
+    final SessionTraceData identity = session.getAttribute(SessionAttributes.TRACE_IDENTITY);
+    if(identity!=null) {
+      return identity;
+    }
+    return buildSessionTraceData(session, materials);
+  }
+  
+  /**
+   * Calcule l'identité de session à partir des attributs de la session.
+   */
+  public static final SessionTraceData buildSessionTraceData(
+      WebSession session, CredentialMaterialCache materials) {
     final String clientId = session.getAttribute(SessionAttributes.CLIENT_ID);
     final String nationalId = session.getAttribute(SessionAttributes.NATIONAL_ID);
     final BackendAuthentication backendAuth = session.getAttribute(SessionAttributes.BACKEND_AUTH_ATTR);
@@ -75,7 +93,7 @@ public class TraceHelper {
     if(backendAuth==null) {
       crt=Optional.empty();
     } else {
-      crt = backendAuth.credential.getClientCert();
+      crt = backendAuth.credential.getClientCert(materials);
     }
     final String sessionState;
     final String proxySessionId;
@@ -87,6 +105,6 @@ public class TraceHelper {
       proxySessionId = proxySession.proxySessionId();
     }
     
-    return new SessionTraceData(crt,clientId,nationalId, sessionState, proxySessionId);
+    return SessionTraceData.of(crt,clientId,nationalId, sessionState, proxySessionId);
   }
 }
@@ -0,0 +1,119 @@
+/*
+ * The MIT License
+ * Copyright © 2024-2025 Agence du Numérique en Santé (ANS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.gouv.ans.psc.example.esante.proxy.controller;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Mise en forme NDJSON, éventuellement compressée en gzip, d'un flux de traces déjà sérialisées en
+ * JSON. Les traces sont regroupées par lots de {@value #BATCH_SIZE} : seul le lot en cours est
+ * en mémoire, et la demande du client se propage jusqu'au curseur du stockage.
+ *
+ * @author edegenetais
+ */
+final class TraceNdjsonWriter {
+  private static final int BATCH_SIZE = 256;
+  private static final int GZIP_BUFFER_SIZE = 64 * 1024;
+  private static final byte NEWLINE = '\n';
+
+  private TraceNdjsonWriter() {}
+
+  static Flux<DataBuffer> plain(Flux<ByteBuffer> traces, DataBufferFactory factory) {
+    return traces.buffer(BATCH_SIZE).map(batch -> join(batch, factory));
+  }
+
+  static Flux<DataBuffer> gzip(Flux<ByteBuffer> traces, DataBufferFactory factory) {
+    return Flux.defer(
+        () -> {
+          final GzipChunks gzip = new GzipChunks();
+          return traces
+              .buffer(BATCH_SIZE)
+              .map(batch -> factory.wrap(gzip.compress(batch)))
+              .concatWith(Mono.fromCallable(() -> factory.wrap(gzip.finish())));
+        });
+  }
+
+  private static DataBuffer join(List<ByteBuffer> batch, DataBufferFactory factory) {
+    int size = 0;
+    for (ByteBuffer trace : batch) {
+      size += trace.remaining() + 1;
+    }
+    final DataBuffer buffer = factory.allocateBuffer(size);
+    for (ByteBuffer trace : batch) {
+      buffer.write(trace.duplicate());
+      buffer.write(NEWLINE);
+    }
+    return buffer;
+  }
+
+  /** Compression gzip d'un flux en morceaux, chaque morceau étant décodable dès sa réception. */
+  private static final class GzipChunks {
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream(GZIP_BUFFER_SIZE);
+    private final GZIPOutputStream gzip;
+    private final WritableByteChannel channel;
+
+    GzipChunks() {
+      try {
+        gzip = new GZIPOutputStream(out, GZIP_BUFFER_SIZE, true);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      channel = Channels.newChannel(gzip);
+    }
+
+    byte[] compress(List<ByteBuffer> batch) {
+      try {
+        for (ByteBuffer trace : batch) {
+          channel.write(trace.duplicate());
+          gzip.write(NEWLINE);
+        }
+        gzip.flush();
+        return drain();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    byte[] finish() throws IOException {
+      gzip.finish();
+      return drain();
+    }
+
+    private byte[] drain() {
+      final byte[] chunk = out.toByteArray();
+      out.reset();
+      return chunk;
+    }
+  }
+}
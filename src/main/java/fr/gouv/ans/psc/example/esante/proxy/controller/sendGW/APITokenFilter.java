@@ -22,13 +22,9 @@
  */
 package fr.gouv.ans.psc.example.esante.proxy.controller.sendGW;
 
-import fr.gouv.ans.psc.example.esante.proxy.controller.UnauthorizedException;
-import fr.gouv.ans.psc.example.esante.proxy.controller.SessionAttributes;
-import fr.gouv.ans.psc.example.esante.proxy.service.BackendAccess;
-import fr.gouv.ans.psc.example.esante.proxy.service.BackendAuthentication;
-import fr.gouv.ans.psc.example.esante.proxy.service.TechnicalFailure;
-import java.util.concurrent.ExecutionException;
+import fr.gouv.ans.psc.example.esante.proxy.service.BackendAuthenticationService;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.cloud.gateway.filter.GatewayFilterChain;
 import org.springframework.cloud.gateway.filter.GlobalFilter;
 import org.springframework.cloud.gateway.route.Route;
@@ -37,7 +33,6 @@ import org.springframework.core.annotation.Order;
 import org.springframework.http.server.reactive.ServerHttpRequest;
 import org.springframework.stereotype.Component;
 import org.springframework.web.server.ServerWebExchange;
-import org.springframework.web.server.WebSession;
 import reactor.core.publisher.Mono;
 
 /**
@@ -47,30 +42,27 @@ import reactor.core.publisher.Mono;
  * @author edegenetais
  */
 @Component
-@Order(Integer.MIN_VALUE)
+@Order(Integer.MIN_VALUE + 1)
 public class APITokenFilter implements GlobalFilter {
+  private final BackendAuthenticationService backendAuthService;
+
+  public APITokenFilter(@Autowired BackendAuthenticationService backendAuthService) {
+    this.backendAuthService = backendAuthService;
+  }
 
   @Override
   public Mono<Void> filter(ServerWebExchange exchange, GatewayFilterChain chain) {
-    try {
-      
-      WebSession session = exchange.getSession().toFuture().get();
-      if(session==null || !session.isStarted()) {
-        throw new UnauthorizedException("No session found.");
-      }
-      BackendAuthentication backendAuth = session.getAttribute(SessionAttributes.BACKEND_AUTH_ATTR);
-      Route route = exchange.getAttribute(ServerWebExchangeUtils.GATEWAY_ROUTE_ATTR);
-      String backendId = route.getId();
-      BackendAccess access = backendAuth.findBackendToken(backendId);
-      ServerHttpRequest req = exchange.getRequest().mutate().header("Authorization", access.authorizationHeader()).build();
-      LoggerFactory.getLogger(APITokenFilter.class).debug("API Token filter applied for backend {}, session {}",backendId,session.getId());
-      return chain.filter(exchange.mutate().request(req).build());
-    } catch (InterruptedException ex) {
-      Thread.currentThread().interrupt();
-      throw new TechnicalFailure("Failed to associate token",ex);
-    } catch (ExecutionException ex) {
-      throw new TechnicalFailure("Failed to associate token",ex.getCause());
-    }
+    SendContext ctx = SendContext.of(exchange);
+    Route route = exchange.getAttribute(ServerWebExchangeUtils.GATEWAY_ROUTE_ATTR);
+    String backendId = route.getId();
+    return backendAuthService
+        .backendAccess(ctx.backendAuthentication(), backendId)
+        .flatMap(
+            access -> {
+              ServerHttpRequest req = exchange.getRequest().mutate().header("Authorization", access.authorizationHeader()).build();
+              LoggerFactory.getLogger(APITokenFilter.class).debug("API Token filter applied for backend {}, session {}",backendId,ctx.sessionId());
+              return chain.filter(exchange.mutate().request(req).build());
+            });
   }
   
 }
@@ -0,0 +1,57 @@
+/*
+ * The MIT License
+ * Copyright © 2024-2025 Agence du Numérique en Santé (ANS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.gouv.ans.psc.example.esante.proxy.controller.sendGW;
+
+import fr.gouv.ans.psc.example.esante.proxy.controller.UnauthorizedException;
+import fr.gouv.ans.psc.example.esante.proxy.service.BackendAuthentication;
+import fr.gouv.ans.psc.example.esante.proxy.service.SessionTraceData;
+import org.springframework.web.server.ServerWebExchange;
+
+/**
+ * Données de session nécessaires aux filtres de la méthode <code>/send</code>, résolues une seule fois
+ * par requête par {@link SendSessionFilter}.
+ *
+ * @author edegenetais
+ */
+public record SendContext(
+    String sessionId,
+    String clientId,
+    BackendAuthentication backendAuthentication,
+    SessionTraceData traceIdentity) {
+
+  public static final String SEND_CONTEXT_ATTR = SendContext.class.getName();
+
+  /**
+   * Relit le contexte déposé par {@link SendSessionFilter} sur l'échange.
+   *
+   * @param exchange échange en cours.
+   * @return le contexte de la session.
+   */
+  public static SendContext of(ServerWebExchange exchange) {
+    SendContext ctx = exchange.getAttribute(SEND_CONTEXT_ATTR);
+    if (ctx == null) {
+      throw new UnauthorizedException("No session found.");
+    }
+    return ctx;
+  }
+}
@@ -0,0 +1,249 @@
+/*
+ * The MIT License
+ * Copyright © 2024-2025 Agence du Numérique en Santé (ANS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.gouv.ans.psc.example.esante.proxy.controller.sendGW;
+
+import fr.gouv.ans.psc.example.esante.proxy.config.SendGatewayClientConfig;
+import fr.gouv.ans.psc.example.esante.proxy.service.Credential;
+import fr.gouv.ans.psc.example.esante.proxy.service.CredentialMaterialCache;
+import fr.gouv.ans.psc.example.esante.proxy.service.TechnicalFailure;
+import fr.gouv.ans.psc.example.esante.proxy.service.UnavailableBackend;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.ChannelOption;
+import io.netty.handler.ssl.ApplicationProtocolNegotiator;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.resolver.dns.DnsNameResolverException;
+import java.net.ConnectException;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSessionContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.autoconfigure.web.ServerProperties;
+import org.springframework.cloud.gateway.config.HttpClientCustomizer;
+import org.springframework.cloud.gateway.config.HttpClientFactory;
+import org.springframework.cloud.gateway.config.HttpClientProperties;
+import org.springframework.cloud.gateway.route.Route;
+import org.springframework.cloud.gateway.support.RouteMetadataUtils;
+import org.springframework.stereotype.Component;
+import reactor.netty.http.client.HttpClient;
+
+/**
+ * Registre des clients HTTP sortants de la méthode <code>/send</code>.
+ * Un client (avec son propre pool de connexions et son contexte SSL) est construit une seule fois
+ * pour chaque couple (client LPS, route), puis réutilisé par toutes les sessions de ce client :
+ * les connexions keep-alive et les sessions TLS vers le backend survivent ainsi d'un appel à l'autre.
+ *
+ * @author edegenetais
+ */
+@Component
+public class SendHttpClientRegistry implements DisposableBean {
+  private static final Logger LOGGER = LoggerFactory.getLogger(SendHttpClientRegistry.class);
+
+  private static final List<Class<? extends Throwable>> HANDLED_CLIENT_EX = List.of(
+      ConnectException.class,
+      DnsNameResolverException.class
+  );
+
+  private final SendGatewayClientConfig cfg;
+  private final HttpClientProperties properties;
+  private final ServerProperties serverProperties;
+  private final List<HttpClientCustomizer> customizers;
+  private final CredentialMaterialCache materials;
+  private final Map<ClientRouteKey, ClientEntry> clients = new ConcurrentHashMap<>();
+
+  public SendHttpClientRegistry(
+      SendGatewayClientConfig cfg,
+      HttpClientProperties properties,
+      ServerProperties serverProperties,
+      ObjectProvider<HttpClientCustomizer> customizers,
+      CredentialMaterialCache materials) {
+    this.cfg = cfg;
+    this.properties = properties;
+    this.serverProperties = serverProperties;
+    this.customizers = customizers.orderedStream().toList();
+    this.materials = materials;
+  }
+
+  /**
+   * Fournit le client HTTP associé au client LPS pour cette route, en le construisant au premier appel.
+   * Il est reconstruit si le matériel cryptographique du client LPS a été rechargé depuis.
+   *
+   * @param route route gateway visée.
+   * @param clientId identifiant du client LPS porteur de la session.
+   * @param credential identifiants de ce client LPS.
+   * @return le client HTTP partagé pour ce couple.
+   */
+  public HttpClient clientFor(Route route, String clientId, Credential credential) {
+    final ClientRouteKey key = new ClientRouteKey(clientId, route.getId());
+    final KeyManagerFactory kmf = credential.buildKeyManagerFactory(materials);
+    ClientEntry entry = clients.get(key);
+    if (entry == null || entry.kmf() != kmf) {
+      entry = clients.compute(key, (k, previous) -> {
+        if (previous != null && previous.kmf() == kmf) {
+          return previous;
+        }
+        if (previous != null) {
+          LOGGER.info("Matériel cryptographique rechargé, nouveau client HTTP pour {}", k);
+          previous.client().configuration().connectionProvider().disposeLater().subscribe();
+        }
+        return new ClientEntry(buildClient(k, route, credential, kmf), kmf);
+      });
+    }
+    return entry.client();
+  }
+
+  private HttpClient buildClient(
+      ClientRouteKey key, Route route, Credential credential, KeyManagerFactory kmf) {
+    try {
+      SslContextBuilder sslBuilder = SslContextBuilder.forClient();
+      if (cfg.useInsecureTrustManager()) {
+        sslBuilder = sslBuilder.trustManager(new InsecureX509TrustManager());
+      }
+      LOGGER.debug("Provided kmf : {} for credential {}", kmf, credential);
+      final SslContext theCtx = sslBuilder.keyManager(kmf).build();
+
+      HttpClient client =
+          new ClientRouteHttpClientFactory(
+                  properties, serverProperties, customizers, new SslContextSpy(theCtx, key))
+              .createClient()
+              .doOnRequestError(
+                  (c, e) -> {
+                    Optional<Class<? extends Throwable>> matchingCause =
+                        HANDLED_CLIENT_EX.stream()
+                            .filter(exClass -> exClass.isInstance(e.getCause()))
+                            .findFirst();
+                    if (matchingCause.isPresent()) {
+                      LOGGER.error("Backend call failure.", e);
+                      throw new UnavailableBackend(503, key.routeId());
+                    } else {
+                      LOGGER.error("Unhandled backend access error", e);
+                    }
+                  });
+      Object connectTimeout = route.getMetadata().get(RouteMetadataUtils.CONNECT_TIMEOUT_ATTR);
+      if (connectTimeout != null) {
+        client = client.option(
+            ChannelOption.CONNECT_TIMEOUT_MILLIS, Integer.valueOf(connectTimeout.toString()));
+      }
+      LOGGER.debug("Client HTTP créé pour {}", key);
+      return client;
+    } catch (SSLException ex) {
+      throw new TechnicalFailure("Échec du paramétrage SSL pour la connexion sortante.", ex);
+    }
+  }
+
+  @Override
+  public void destroy() {
+    clients.values().forEach(e -> e.client().configuration().connectionProvider().dispose());
+    clients.clear();
+  }
+
+  private record ClientRouteKey(String clientId, String routeId) {}
+
+  private record ClientEntry(HttpClient client, KeyManagerFactory kmf) {}
+
+  /**
+   * Réutilise la fabrique du gateway (pool, proxy, décodeur, customizers) en remplaçant seulement
+   * la configuration SSL par celle du client LPS.
+   */
+  private static class ClientRouteHttpClientFactory extends HttpClientFactory {
+    private final SslContext sslContext;
+
+    ClientRouteHttpClientFactory(
+        HttpClientProperties properties,
+        ServerProperties serverProperties,
+        List<HttpClientCustomizer> customizers,
+        SslContext sslContext) {
+      super(properties, serverProperties, customizers);
+      this.sslContext = sslContext;
+    }
+
+    HttpClient createClient() {
+      return createInstance();
+    }
+
+    @Override
+    protected HttpClient configureSsl(HttpClient httpClient) {
+      return httpClient.secure(s -> s.sslContext(sslContext));
+    }
+  }
+
+  /**
+   * Ce delegate wrapper permettra d'ajouter quelques logs traçant l'utilisation du contexte SSL
+   * d'un client LPS.
+   */
+  private static class SslContextSpy extends SslContext {
+
+    private final SslContext theCtx;
+    private final ClientRouteKey key;
+
+    public SslContextSpy(SslContext theCtx, ClientRouteKey key) {
+      LOGGER.debug("Création d'un contexte SSL pour {}", key);
+      this.theCtx = theCtx;
+      this.key = key;
+    }
+
+    @Override
+    public boolean isClient() {
+      LOGGER.debug("isClient called for {}", key);
+      return theCtx.isClient();
+    }
+
+    @Override
+    public List<String> cipherSuites() {
+      LOGGER.debug("cipherSuite called for {}", key);
+      return theCtx.cipherSuites();
+    }
+
+    @Override
+    public ApplicationProtocolNegotiator applicationProtocolNegotiator() {
+      LOGGER.debug("applicationProtocolNegotiator called for {}", key);
+      return theCtx.applicationProtocolNegotiator();
+    }
+
+    @Override
+    public SSLEngine newEngine(ByteBufAllocator bba) {
+      LOGGER.debug("newEngine(Bba) called for {}", key);
+      return theCtx.newEngine(bba);
+    }
+
+    @Override
+    public SSLEngine newEngine(ByteBufAllocator bba, String string, int i) {
+      LOGGER.debug("newEngine(Bba,{},{}) called for {}", string, i, key);
+      return theCtx.newEngine(bba, string, i);
+    }
+
+    @Override
+    public SSLSessionContext sessionContext() {
+      LOGGER.debug("sessionContext called for {}", key);
+      return theCtx.sessionContext();
+    }
+  }
+}
@@ -0,0 +1,79 @@
+/*
+ * The MIT License
+ * Copyright © 2024-2025 Agence du Numérique en Santé (ANS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.gouv.ans.psc.example.esante.proxy.controller.sendGW;
+
+import fr.gouv.ans.psc.example.esante.proxy.controller.SessionAttributes;
+import fr.gouv.ans.psc.example.esante.proxy.controller.TraceHelper;
+import fr.gouv.ans.psc.example.esante.proxy.controller.UnauthorizedException;
+import fr.gouv.ans.psc.example.esante.proxy.service.BackendAuthentication;
+import fr.gouv.ans.psc.example.esante.proxy.service.CredentialMaterialCache;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.cloud.gateway.filter.GatewayFilterChain;
+import org.springframework.cloud.gateway.filter.GlobalFilter;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.server.WebSession;
+import reactor.core.publisher.Mono;
+
+/**
+ * Ce filtre global résout la session utilisateur une seule fois pour chaque requête <code>/send</code>,
+ * sans bloquer la boucle d'événements, et dépose le {@link SendContext} utilisé par les filtres suivants.
+ *
+ * @author edegenetais
+ */
+@Component
+@Order(Integer.MIN_VALUE)
+public class SendSessionFilter implements GlobalFilter {
+  private final CredentialMaterialCache materials;
+
+  public SendSessionFilter(@Autowired CredentialMaterialCache materials) {
+    this.materials = materials;
+  }
+
+  @Override
+  public Mono<Void> filter(ServerWebExchange exchange, GatewayFilterChain chain) {
+    return exchange
+        .getSession()
+        .flatMap(
+            session -> {
+              if (!session.isStarted()) {
+                return Mono.error(new UnauthorizedException("No session found."));
+              }
+              exchange.getAttributes().put(SendContext.SEND_CONTEXT_ATTR, buildContext(session));
+              return chain.filter(exchange);
+            });
+  }
+
+  private SendContext buildContext(WebSession session) {
+    BackendAuthentication backendAuth = session.getAttribute(SessionAttributes.BACKEND_AUTH_ATTR);
+    String clientId = session.getAttribute(SessionAttributes.CLIENT_ID);
+    LoggerFactory.getLogger(SendSessionFilter.class).debug("Session {} resolved for /send", session.getId());
+    return new SendContext(
+        session.getId(),
+        clientId,
+        backendAuth,
+        TraceHelper.getSessionTraceData(session, materials));
+  }
+}
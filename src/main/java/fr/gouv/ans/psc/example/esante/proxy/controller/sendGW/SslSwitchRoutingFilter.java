@@ -22,27 +22,7 @@
  */
 package fr.gouv.ans.psc.example.esante.proxy.controller.sendGW;
 
-import fr.gouv.ans.psc.example.esante.proxy.controller.UnauthorizedException;
-import fr.gouv.ans.psc.example.esante.proxy.config.SendGatewayClientConfig;
-import fr.gouv.ans.psc.example.esante.proxy.controller.SessionAttributes;
-import fr.gouv.ans.psc.example.esante.proxy.service.BackendAuthentication;
-import fr.gouv.ans.psc.example.esante.proxy.service.Credential;
-import fr.gouv.ans.psc.example.esante.proxy.service.TechnicalFailure;
-import fr.gouv.ans.psc.example.esante.proxy.service.UnavailableBackend;
-import io.netty.buffer.ByteBufAllocator;
-import io.netty.handler.ssl.ApplicationProtocolNegotiator;
-import io.netty.handler.ssl.SslContext;
-import io.netty.handler.ssl.SslContextBuilder;
-import io.netty.resolver.dns.DnsErrorCauseException;
-import io.netty.resolver.dns.DnsNameResolverException;
-import java.net.ConnectException;
 import java.util.List;
-import java.util.Optional;
-import java.util.concurrent.ExecutionException;
-import javax.net.ssl.KeyManagerFactory;
-import javax.net.ssl.SSLEngine;
-import javax.net.ssl.SSLException;
-import javax.net.ssl.SSLSessionContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.ObjectProvider;
@@ -53,12 +33,12 @@ import org.springframework.cloud.gateway.filter.headers.HttpHeadersFilter;
 import org.springframework.cloud.gateway.route.Route;
 import org.springframework.stereotype.Component;
 import org.springframework.web.server.ServerWebExchange;
-import org.springframework.web.server.WebSession;
 import reactor.netty.http.client.HttpClient;
 
 /**
  * Ce composant associe pour chaque session un contexte SSL adapté au sein du proxy (méthode <code>/send</code>).s
  * Il surcharge le routeur par défaut du spring-gateway@netty pour lui ajouter cette fonctionalité.
+ * Les clients HTTP sont pris dans le {@link SendHttpClientRegistry}, qui les partage entre les sessions d'un même client LPS.
  * 
  * @author edegenetais
  */
@@ -66,13 +46,8 @@ import reactor.netty.http.client.HttpClient;
 public class SslSwitchRoutingFilter extends NettyRoutingFilter {
   private static final Logger LOGGER = LoggerFactory.getLogger(SslSwitchRoutingFilter.class);
   
-  private static final List<Class<? extends Throwable>> HANDLED_CLIENT_EX = List.of(
-      ConnectException.class,
-      DnsNameResolverException.class
-  );
-  
   @Autowired
-  private SendGatewayClientConfig cfg;
+  private SendHttpClientRegistry clientRegistry;
   
   public SslSwitchRoutingFilter(HttpClient httpClient, ObjectProvider<List<HttpHeadersFilter>> headersFiltersProvider, HttpClientProperties properties) {
     super(httpClient, headersFiltersProvider, properties);
@@ -80,105 +55,14 @@ public class SslSwitchRoutingFilter extends NettyRoutingFilter {
 
   @Override
   protected HttpClient getHttpClient(Route route, ServerWebExchange exchange) {
-    try {
-      final WebSession session = exchange.getSession().toFuture().get();
-      if(session==null || !session.isStarted()) {
-        throw new UnauthorizedException("Pas de session utilisateur.");
-      }
-      HttpClient defaultClient = super.getHttpClient(route, exchange);
-      
-      SslContextBuilder sslBuilder = SslContextBuilder.forClient();
-      
-      if(cfg.useInsecureTrustManager()){
-          sslBuilder=sslBuilder.trustManager(new InsecureX509TrustManager());
-      }
-      
-      BackendAuthentication backendAuthentication = session.getAttribute(SessionAttributes.BACKEND_AUTH_ATTR);
-      final Credential credential = backendAuthentication.credential;
-      KeyManagerFactory kmf = credential
-          .buildKeyManagerFactory();
-      LOGGER.debug("Provided kmf : {} for credential {}",kmf,credential);
-      final SslContext theCtx = sslBuilder.keyManager(kmf).build();
-
-      return defaultClient
-          .secure(s -> s.sslContext(new SslContextSpy(theCtx, session)))
-          .doOnRequestError(
-              (c, e) -> {
-                Optional<Class<? extends Throwable>> matchingCause =
-                    HANDLED_CLIENT_EX.stream()
-                        .filter(exClass -> exClass.isInstance(e.getCause()))
-                        .findFirst();
-                if (matchingCause.isPresent()) {
-                  LOGGER.error("Backend call failure.", e);
-                  throw new UnavailableBackend(503, route.getId());
-                } else {
-                  LOGGER.error("Unhandled backend access error",e);
-                }
-              });
-    } catch (InterruptedException | SSLException ex) {
-      throw new TechnicalFailure("Échec du paramétrage SSL pour la connexion sortante.",ex);
-    } catch (ExecutionException ex) {
-      LOGGER.debug("Contexte complet pour Execution error.",ex);
-      throw new TechnicalFailure("Échec du paramétrage SSL pour la connexion sortante.",ex.getCause());
-    }
+    final SendContext ctx = SendContext.of(exchange);
+    LOGGER.debug("Client HTTP de {} pour la route {}, session {}", ctx.clientId(), route.getId(), ctx.sessionId());
+    return clientRegistry.clientFor(route, ctx.clientId(), ctx.backendAuthentication().credential);
   }
   
   @Override
   public int getOrder() {
     return super.getOrder()-1;
   }
-
-  /**
-   * Ce delegate wrapper permettra d'ajouter quelques logs traçant l'utilisation du contexte SSL pour une session.
-   */
-  private class SslContextSpy extends SslContext {
-
-    private final SslContext theCtx;
-    private final WebSession session;
-
-    public SslContextSpy(SslContext theCtx, WebSession session) {
-      LOGGER.debug("Création d'un contexte SSL pour la session {}",session.getId());
-      this.theCtx = theCtx;
-      this.session = session;
-    }
-   
-    @Override
-    public boolean isClient() {
-      LOGGER.debug("isClient called from session {}",session.getId());
-      return theCtx.isClient();
-    }
-
-    @Override
-    public List<String> cipherSuites() {
-      LOGGER.debug("cipherSuite called from session {}",session.getId());
-      return theCtx.cipherSuites();
-    }
-
-    @Override
-    public ApplicationProtocolNegotiator applicationProtocolNegotiator() {
-      LOGGER.debug("applicationProtocolNegotiator called from session {}",session.getId());
-      return theCtx.applicationProtocolNegotiator();
-    }
-
-    @Override
-    public SSLEngine newEngine(ByteBufAllocator bba) {
-      LOGGER.debug("newEngine(Bba) called from session {}",session.getId());
-      return theCtx.newEngine(bba);
-    }
-
-    @Override
-    public SSLEngine newEngine(ByteBufAllocator bba, String string, int i) {
-      LOGGER.debug("newEngine(Bba,{},{}) called from session {}",string,i,session.getId());
-      return theCtx.newEngine(bba,string,i);
-    }
-
-    @Override
-    public SSLSessionContext sessionContext() {
-      LOGGER.debug("sessionContext called from session {}",session.getId());
-      return theCtx.sessionContext();
-    }
-  }
-
-  
   
 }
@@ -26,9 +26,7 @@ import fr.gouv.ans.psc.example.esante.proxy.controller.TraceHelper;
 import fr.gouv.ans.psc.example.esante.proxy.model.Request;
 import fr.gouv.ans.psc.example.esante.proxy.model.TraceType;
 import fr.gouv.ans.psc.example.esante.proxy.service.BaseTraceData;
-import fr.gouv.ans.psc.example.esante.proxy.service.TechnicalFailure;
 import fr.gouv.ans.psc.example.esante.proxy.service.TraceService;
-import java.util.concurrent.ExecutionException;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.cloud.gateway.filter.GatewayFilterChain;
 import org.springframework.cloud.gateway.filter.GlobalFilter;
@@ -37,7 +35,6 @@ import org.springframework.cloud.gateway.support.ServerWebExchangeUtils;
 import org.springframework.core.annotation.Order;
 import org.springframework.stereotype.Component;
 import org.springframework.web.server.ServerWebExchange;
-import org.springframework.web.server.WebSession;
 import reactor.core.publisher.Mono;
 
 /**
@@ -54,29 +51,21 @@ public class TraceFilter implements GlobalFilter {
   
   @Override
   public Mono<Void> filter(ServerWebExchange exchange, GatewayFilterChain chain) {
-    try {
-      BaseTraceData traceData = TraceHelper.getBaseTraceData(exchange);
-      
-      final String requestPath = exchange.getRequest().getPath().value();
-      final Route route = exchange.getAttribute(ServerWebExchangeUtils.GATEWAY_ROUTE_ATTR);
-      final String nomApiPsc = route.getId();
+    BaseTraceData traceData = TraceHelper.getBaseTraceData(exchange);
 
-      final Request newRequest = new Request(nomApiPsc, traceData.requestMethod(), requestPath);
-      
-      final WebSession session = exchange.getSession().toFuture().get();
-      traceSrv.record(
-          TraceType.SEND,
-          TraceHelper.getSessionTraceData(session),
-          traceData, 
-          newRequest);
-      
-      return chain.filter(exchange);
-    } catch (InterruptedException ex) {
-      Thread.currentThread().interrupt();
-      throw new TechnicalFailure("Interrupted while fetching session data.",ex);
-    } catch (ExecutionException ex) {
-       throw new TechnicalFailure("Failure while fetching session data",ex.getCause());
-    }
+    final String requestPath = exchange.getRequest().getPath().value();
+    final Route route = exchange.getAttribute(ServerWebExchangeUtils.GATEWAY_ROUTE_ATTR);
+    final String nomApiPsc = route.getId();
+
+    final Request newRequest = new Request(nomApiPsc, traceData.requestMethod(), requestPath);
+
+    traceSrv.record(
+        TraceType.SEND,
+        SendContext.of(exchange).traceIdentity(),
+        traceData, 
+        newRequest);
+
+    return chain.filter(exchange);
   }
 
 }
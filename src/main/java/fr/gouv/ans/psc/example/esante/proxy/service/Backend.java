@@ -26,6 +26,7 @@ import fr.gouv.ans.psc.example.esante.proxy.config.InvalidConfigurationException
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.Map;
+import java.util.Optional;
 import org.slf4j.LoggerFactory;
 
 /**
@@ -34,6 +35,10 @@ import org.slf4j.LoggerFactory;
  */
 public record Backend (String id,Map<String,String> metadata){
   private static final String TOKEN_EXCHANGE_ENDPOINT = "token-exchange-endpoint";
+  private static final String TOKEN_EXCHANGE_MODE = "token-exchange-mode";
+  private static final String TOKEN_REVOCATION_ENDPOINT = "token-revocation-endpoint";
+  private static final String EAGER = "eager";
+  private static final String LAZY = "lazy";
   
   public Backend(String id,Map<String,String> metadata) {
     this.id=id;
@@ -44,6 +49,11 @@ public record Backend (String id,Map<String,String> metadata){
     } catch(URISyntaxException e) {
       throw new InvalidConfigurationException("Bad token-exchange-endpoint URI for "+id, e);
     }
+    revocationUri();
+    final String mode = this.metadata.getOrDefault(TOKEN_EXCHANGE_MODE, EAGER);
+    if (!EAGER.equals(mode) && !LAZY.equals(mode)) {
+      throw new InvalidConfigurationException("Bad token-exchange-mode for "+id+" : "+mode+" (expected eager or lazy)");
+    }
   }
   
   public URI exchangeUri() {
@@ -54,4 +64,25 @@ public record Backend (String id,Map<String,String> metadata){
     }
   }
   
+  /**
+   * @return l'endpoint de révocation (RFC 7009) de l'IDP du backend, s'il est configuré
+   *     (<code>token-revocation-endpoint</code>).
+   */
+  public Optional<URI> revocationUri() {
+    final String uri = metadata.get(TOKEN_REVOCATION_ENDPOINT);
+    try {
+      return uri == null ? Optional.empty() : Optional.of(new URI(uri));
+    } catch (URISyntaxException ex) {
+      throw new InvalidConfigurationException("Bad token-revocation-endpoint URI for "+id, ex);
+    }
+  }
+
+  /**
+   * @return <code>true</code> si l'échange de token de ce backend est différé au premier
+   *     <code>/send</code> qui le cible (<code>token-exchange-mode: lazy</code>), plutôt que mené
+   *     dès le <code>/connect</code>.
+   */
+  public boolean lazyTokenExchange() {
+    return LAZY.equals(metadata.getOrDefault(TOKEN_EXCHANGE_MODE, EAGER));
+  }
 }
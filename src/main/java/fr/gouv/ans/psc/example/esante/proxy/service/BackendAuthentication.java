@@ -22,26 +22,166 @@
  */
 package fr.gouv.ans.psc.example.esante.proxy.service;
 
-import java.util.HashMap;
+import io.netty.util.Timeout;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Supplier;
+import reactor.core.publisher.Mono;
 
 /**
  * Contexte d'authentification auprès des services backend.
+ * Les tokens sont rangés dans un tableau atomique indexé par l'ordinal du backend
+ * ({@link BackendIndex}) : une lecture est un simple accès volatile, une écriture une substitution
+ * atomique, sans verrou entre les <code>/send</code> concurrents et le rafraîchissement.
  * 
  * @author edegenetais
  */
 public class BackendAuthentication {
   public final Credential credential;
-  private Map<String,BackendAccess> backendAccessTokens=new HashMap<>();
-  public BackendAuthentication(Credential credential) {
+  private final TokenExchangeProcess tokenExchange;
+  private final BackendIndex index;
+  private final AtomicReferenceArray<BackendAccess> backendAccessTokens;
+  private final Map<String, Mono<BackendAccess>> pendingExchanges = new ConcurrentHashMap<>();
+  private final Map<String, ScheduledRefresh> refreshTimers = new ConcurrentHashMap<>();
+  private volatile boolean wiped;
+  private volatile long lastUse = System.currentTimeMillis();
+
+  public BackendAuthentication(
+      Credential credential, TokenExchangeProcess tokenExchange, BackendIndex index) {
     this.credential = credential;
+    this.tokenExchange = tokenExchange;
+    this.index = index;
+    this.backendAccessTokens = new AtomicReferenceArray<>(index.size());
   }
   
   public BackendAccess switchBackendToken(String backendId, BackendAccess tokenFuture) {
-    return this.backendAccessTokens.put(backendId, tokenFuture);
+    final int ordinal = index.ordinal(backendId);
+    if (ordinal < 0) {
+      throw new TechnicalFailure("Unknown backend " + backendId);
+    }
+    return switchBackendToken(ordinal, tokenFuture);
+  }
+
+  public BackendAccess switchBackendToken(int ordinal, BackendAccess tokenFuture) {
+    if (tokenFuture != null && wiped) {
+      return null;
+    }
+    final BackendAccess previous = this.backendAccessTokens.getAndSet(ordinal, tokenFuture);
+    // wipe() a pu vider le tableau entre le test et la substitution : le token ne doit pas survivre.
+    if (tokenFuture != null && wiped) {
+      backendAccessTokens.compareAndSet(ordinal, tokenFuture, null);
+      return null;
+    }
+    return previous;
   }
   
   public BackendAccess findBackendToken(String backendId) {
-    return backendAccessTokens.get(backendId);
+    final int ordinal = index.ordinal(backendId);
+    return ordinal < 0 ? null : findBackendToken(ordinal);
+  }
+
+  public BackendAccess findBackendToken(int ordinal) {
+    return backendAccessTokens.get(ordinal);
+  }
+
+  /**
+   * @return la session PSC courante (rafraîchie le cas échéant), <code>null</code> si inconnue.
+   */
+  public CIBASession pscSession() {
+    return tokenExchange == null ? null : tokenExchange.pscSession();
+  }
+
+  /**
+   * @return le client LPS porteur de la session, <code>null</code> si inconnu.
+   */
+  public String clientId() {
+    return tokenExchange == null ? null : tokenExchange.clientId();
+  }
+
+  /**
+   * @param key clé du token (identifiant du backend, ou {@link TokenRefreshService#PSC_KEY}).
+   * @return la date (en millisecondes epoch) du prochain rafraîchissement planifié pour ce token,
+   *     <code>-1</code> s'il n'y en a pas.
+   */
+  public long refreshDueAt(String key) {
+    final ScheduledRefresh refresh = refreshTimers.get(key);
+    return refresh == null ? -1 : refresh.dueAt();
+  }
+
+  /**
+   * @return le processus d'échange de token de cette session, pour les échanges différés.
+   */
+  TokenExchangeProcess tokenExchange() {
+    return tokenExchange;
+  }
+
+  /**
+   * Mutualise les échanges concurrents pour un même backend : tous les appelants arrivés pendant
+   * l'échange en cours reçoivent son résultat.
+   *
+   * @param backendId backend visé.
+   * @param exchange échange à lancer si aucun n'est en cours.
+   * @return le résultat de l'échange en cours ou nouvellement lancé.
+   */
+  Mono<BackendAccess> singleFlight(String backendId, Supplier<Mono<BackendAccess>> exchange) {
+    if (wiped) {
+      return Mono.error(
+          new FunctionalError(FunctionalError.Category.UNAUTHORIZED, "Session closed.", null, null));
+    }
+    return pendingExchanges.computeIfAbsent(
+        backendId,
+        id -> {
+          // un échange terminé ne retire que lui-même, pas celui qui aurait déjà pris sa place.
+          final AtomicReference<Mono<BackendAccess>> pending = new AtomicReference<>();
+          pending.set(
+              exchange.get().doFinally(s -> pendingExchanges.remove(id, pending.get())).cache());
+          return pending.get();
+        });
+  }
+
+  void touch() {
+    lastUse = System.currentTimeMillis();
+  }
+
+  long lastUse() {
+    return lastUse;
+  }
+
+  boolean isWiped() {
+    return wiped;
   }
+
+  /**
+   * Enregistre le prochain rafraîchissement planifié pour ce token, en annulant le précédent.
+   */
+  void registerRefresh(String key, Timeout timeout, long dueAt) {
+    ScheduledRefresh previous = refreshTimers.put(key, new ScheduledRefresh(timeout, dueAt));
+    if (previous != null) {
+      previous.timeout().cancel();
+    }
+    if (wiped) {
+      cancelRefreshes();
+    }
+  }
+
+  void cancelRefreshes() {
+    refreshTimers.values().forEach(r -> r.timeout().cancel());
+    refreshTimers.clear();
+  }
+
+  /**
+   * Oublie tous les tokens et interdit les échanges ultérieurs.
+   */
+  void wipe() {
+    wiped = true;
+    cancelRefreshes();
+    pendingExchanges.clear();
+    for (int i = 0; i < backendAccessTokens.length(); i++) {
+      backendAccessTokens.set(i, null);
+    }
+  }
+
+  private record ScheduledRefresh(Timeout timeout, long dueAt) {}
 }
@@ -24,10 +24,14 @@ package fr.gouv.ans.psc.example.esante.proxy.service;
 
 import fr.gouv.ans.psc.example.esante.proxy.config.BackendAuthenticationConfig;
 import fr.gouv.ans.psc.example.esante.proxy.config.PSCConfiguration;
+import fr.gouv.ans.psc.example.esante.proxy.config.TokenExchangeConfig;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 
 /**
  * Ce service est reponsable de créer / détruire les essions vers les backends.
@@ -39,33 +43,123 @@ public class BackendAuthenticationService {
   
   private PSCConfiguration pscCfg;
   private BackendAuthenticationConfig backendCfg;
+  private TokenExchangeConfig exchangeCfg;
+  private BackendIndex index;
+  private TokenRefreshService refreshService;
+  private CredentialMaterialCache materials;
 
   public BackendAuthenticationService(@Autowired PSCConfiguration pscCfg, 
-      @Autowired  BackendAuthenticationConfig backendCfg) {
+      @Autowired  BackendAuthenticationConfig backendCfg,
+      @Autowired TokenExchangeConfig exchangeCfg,
+      @Autowired TokenRefreshService refreshService,
+      @Autowired CredentialMaterialCache materials) {
     this.pscCfg = pscCfg;
     this.backendCfg = backendCfg;
+    this.exchangeCfg = exchangeCfg;
+    this.refreshService = refreshService;
+    this.materials = materials;
+    this.index = backendCfg.index();
   }
 
-  
-  public BackendAuthentication authenticate(CIBASession session, String clientId) {
+  /**
+   * Échange le token PSC contre un token pour chaque backend, sauf ceux configurés en
+   * <code>token-exchange-mode: lazy</code>, dont l'échange attend le premier <code>/send</code>. Les échanges sont menés en parallèle
+   * (dans la limite de <code>proxy.token-exchange.parallelism</code>), chacun borné par
+   * <code>proxy.token-exchange.timeout</code>, qui borne aussi la connexion et la lecture HTTP. Tous les échanges vont à leur terme : chaque échec est
+   * journalisé avec son backend, puis le premier est propagé.
+   */
+  public Mono<BackendAuthentication> authenticate(CIBASession session, String clientId) {
     Credential cred = pscCfg.getSecret(clientId);
-    final BackendAuthentication backendAuthentication = new BackendAuthentication(cred);
-    final TokenExchangeProcess tokenExchange = new TokenExchangeProcess(clientId, session, cred);
+    final TokenExchangeProcess tokenExchange =
+        new TokenExchangeProcess(clientId, session, cred, materials, exchangeCfg.timeout());
+    final BackendAuthentication backendAuthentication = new BackendAuthentication(cred, tokenExchange, index);
     
-    this.backendCfg
-        .routes()
-        .forEach(
-            b -> {
-                  BackendAccess access = tokenExchange.getBackendAccessFromPSC(b);
-                  
-                  backendAuthentication.switchBackendToken(b.id(), access);
-                  LOGGER.debug("Token registered for {}",b.id());
-                  
+    return Flux.fromIterable(this.backendCfg.routes())
+        .filter(b -> !b.lazyTokenExchange())
+        .flatMap(b -> registerAccess(b, backendAuthentication), exchangeCfg.parallelism())
+        .collectList()
+        .flatMap(
+            failures -> {
+              if (failures.isEmpty()) {
+                refreshService.schedulePsc(backendAuthentication);
+                return Mono.just(backendAuthentication);
+              }
+              backendAuthentication.wipe();
+              final RuntimeException first = failures.get(0);
+              failures.stream().skip(1).forEach(first::addSuppressed);
+              LOGGER.warn("{} token exchange(s) failed for client {}", failures.size(), clientId);
+              return Mono.error(first);
+            });
+  }
+
+  /**
+   * Fournit l'accès au backend pour la session, en menant l'échange de token au premier appel si ce
+   * backend est en mode différé. Les appels concurrents partagent le même échange.
+   *
+   * @param backendAuth contexte d'authentification de la session.
+   * @param backendId identifiant du backend (route) visé.
+   * @return l'accès au backend.
+   */
+  public Mono<BackendAccess> backendAccess(BackendAuthentication backendAuth, String backendId) {
+    final int ordinal = index.ordinal(backendId);
+    if (ordinal < 0) {
+      backendAuth.touch();
+      return Mono.error(new TechnicalFailure("No token available for backend " + backendId));
+    }
+    return backendAccess(backendAuth, ordinal);
+  }
+
+  private Mono<BackendAccess> backendAccess(BackendAuthentication backendAuth, int ordinal) {
+    backendAuth.touch();
+    final BackendAccess access = backendAuth.findBackendToken(ordinal);
+    if (access != null) {
+      return Mono.just(access);
+    }
+    final Backend backend = index.backend(ordinal);
+    final String backendId = backend.id();
+    return backendAuth.singleFlight(
+        backendId,
+        () ->
+            exchange(backendAuth.tokenExchange(), backend)
+                .doOnNext(
+                    a -> {
+                      backendAuth.switchBackendToken(ordinal, a);
+                      refreshService.scheduleBackend(backendAuth, backend, a);
+                      refreshService.tokensChanged(backendAuth);
+                      LOGGER.debug("Token registered on first use for {}", backendId);
+                    }));
+  }
+
+  private Mono<BackendAccess> exchange(TokenExchangeProcess tokenExchange, Backend b) {
+    return Mono.fromCallable(() -> tokenExchange.getBackendAccessFromPSC(b))
+        .subscribeOn(Schedulers.boundedElastic())
+        .timeout(
+            exchangeCfg.timeout(),
+            Mono.error(() -> new UnavailableBackend(504, b.id() + " token exchange")));
+  }
+
+  /**
+   * @return l'échec de cet échange, ou rien s'il a réussi.
+   */
+  private Mono<RuntimeException> registerAccess(Backend b, BackendAuthentication backendAuthentication) {
+    return exchange(backendAuthentication.tokenExchange(), b)
+        .doOnNext(
+            access -> {
+              backendAuthentication.switchBackendToken(b.id(), access);
+              refreshService.scheduleBackend(backendAuthentication, b, access);
+              LOGGER.debug("Token registered for {}",b.id());
+            })
+        .then(Mono.<RuntimeException>empty())
+        .onErrorResume(
+            RuntimeException.class,
+            e -> {
+              LOGGER.warn("Token exchange failed for backend {} : {}", b.id(), e.getMessage());
+              return Mono.just(e);
             });
-    return backendAuthentication;
   }
   
   public void wipe(BackendAuthentication backendAuth){
+    backendAuth.wipe();
     this.backendCfg
         .routes()
         .forEach(b -> {
@@ -0,0 +1,63 @@
+/*
+ * The MIT License
+ * Copyright © 2024-2025 Agence du Numérique en Santé (ANS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.gouv.ans.psc.example.esante.proxy.service;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Index des backends configurés, construit une fois au démarrage : chaque backend y reçoit un
+ * ordinal dense (sa position dans la configuration), utilisé pour ranger ses tokens dans un tableau.
+ *
+ * @author edegenetais
+ */
+public final class BackendIndex {
+  private final List<Backend> backends;
+  private final Map<String, Integer> ordinals;
+
+  public BackendIndex(List<Backend> backends) {
+    this.backends = List.copyOf(backends);
+    final Map<String, Integer> byId = new HashMap<>();
+    for (int i = 0; i < this.backends.size(); i++) {
+      byId.put(this.backends.get(i).id(), i);
+    }
+    this.ordinals = Map.copyOf(byId);
+  }
+
+  public int size() {
+    return backends.size();
+  }
+
+  /**
+   * @return l'ordinal du backend, ou <code>-1</code> s'il n'est pas configuré.
+   */
+  public int ordinal(String backendId) {
+    final Integer ordinal = ordinals.get(backendId);
+    return ordinal == null ? -1 : ordinal;
+  }
+
+  public Backend backend(int ordinal) {
+    return backends.get(ordinal);
+  }
+}
@@ -27,22 +27,11 @@ import com.nimbusds.oauth2.sdk.auth.ClientSecretBasic;
 import com.nimbusds.oauth2.sdk.auth.PKITLSClientAuthentication;
 import com.nimbusds.oauth2.sdk.auth.Secret;
 import com.nimbusds.oauth2.sdk.id.ClientID;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.io.InputStream;
-import java.security.KeyManagementException;
-import java.security.KeyStore;
-import java.security.KeyStoreException;
-import java.security.NoSuchAlgorithmException;
-import java.security.UnrecoverableKeyException;
-import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.util.Objects;
 import java.util.Optional;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
-import javax.net.ssl.TrustManagerFactory;
 
 /**
  * Cet objet est utilisé pour porter les identifiants utilisés à la fois pour :
@@ -60,16 +49,16 @@ public record Credential(CredentialType type, String secret, String file) {
     type.validate(secret, file);
   }
 
-  public ClientAuthentication buildAuth(String clientId) {
-    return this.type.buildAuth(clientId, this);
+  public ClientAuthentication buildAuth(String clientId, CredentialMaterialCache materials) {
+    return this.type.buildAuth(clientId, this, materials);
   }
   
-  public KeyManagerFactory buildKeyManagerFactory() {
-    return this.type.keyManagerFactory(this);
+  public KeyManagerFactory buildKeyManagerFactory(CredentialMaterialCache materials) {
+    return this.type.keyManagerFactory(this, materials);
   }
   
-  public Optional<X509Certificate> getClientCert() {
-    return this.type.getClientCert(this);
+  public Optional<X509Certificate> getClientCert(CredentialMaterialCache materials) {
+    return this.type.getClientCert(this, materials);
   }
   
   /**
@@ -90,23 +79,27 @@ public record Credential(CredentialType type, String secret, String file) {
     }
 
     @Override
-    public ClientAuthentication buildAuth(String clientId, Credential credential) {
+    public ClientAuthentication buildAuth(
+        String clientId, Credential credential, CredentialMaterialCache materials) {
       return new ClientSecretBasic(new ClientID(clientId), new Secret(credential.secret));
     }
 
     @Override
-    public KeyManagerFactory keyManagerFactory(Credential credential) {
+    public KeyManagerFactory keyManagerFactory(
+        Credential credential, CredentialMaterialCache materials) {
       return null;
     }
 
       @Override
-      public Optional<X509Certificate> getClientCert(Credential credential) {
+      public Optional<X509Certificate> getClientCert(
+          Credential credential, CredentialMaterialCache materials) {
         return Optional.empty();
       }
     
     
     /**
      * Type d'identifiants à utiliser en production pour l'authentification CIBA: certificat client mTLS.
+     * Le contenu du fichier PKCS12 est conservé par {@link CredentialMaterialCache}.
      */
   }, MTLS {
     @Override
@@ -116,67 +109,22 @@ public record Credential(CredentialType type, String secret, String file) {
     }
 
       @Override
-      public ClientAuthentication buildAuth(String clientId, Credential credential) {
-        try {
-          TrustManagerFactory tf =
-              TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
-          tf.init((KeyStore) null);
-          
-          KeyManagerFactory kmf = keyManagerFactory(credential);
-          
-          SSLContext sslCtx = SSLContext.getInstance("TLS");
-          sslCtx.init(kmf.getKeyManagers(), tf.getTrustManagers(), null);
-          return new PKITLSClientAuthentication(new ClientID(clientId), sslCtx.getSocketFactory());
-          
-        } catch (
-            KeyManagementException |
-            NoSuchAlgorithmException |
-            KeyStoreException e) {
-          throw new TechnicalFailure("Failed to build mTLS auth for client " + clientId, e);
-        }
+      public ClientAuthentication buildAuth(
+          String clientId, Credential credential, CredentialMaterialCache materials) {
+        SSLContext sslCtx = materials.material(credential).sslContext();
+        return new PKITLSClientAuthentication(new ClientID(clientId), sslCtx.getSocketFactory());
       }
       
       @Override
-      public KeyManagerFactory keyManagerFactory(Credential credential) {
-
-        try (InputStream certIs = new FileInputStream(credential.file)) {
-          
-          final char[] password = credential.secret.toCharArray();
-          KeyStore store = KeyStore.getInstance("pkcs12");
-          store.load(certIs, password);
-          KeyManagerFactory kmf =
-              KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
-          kmf.init(store, password);
-          return kmf;
-          
-        } catch (
-            UnrecoverableKeyException |
-            KeyStoreException         |
-            NoSuchAlgorithmException  |
-            CertificateException      |
-            IOException ex) {
-          throw new TechnicalFailure("Failed to load certificate " + credential.file, ex);
-        }
+      public KeyManagerFactory keyManagerFactory(
+          Credential credential, CredentialMaterialCache materials) {
+        return materials.material(credential).keyManagerFactory();
       }
 
       @Override
-      public Optional<X509Certificate> getClientCert(Credential credential) {
-        try (InputStream certIs = new FileInputStream(credential.file)) {
-
-          final char[] password = credential.secret.toCharArray();
-          KeyStore store = KeyStore.getInstance("pkcs12");
-          store.load(certIs, password);
-
-          X509Certificate crt =
-              (X509Certificate) store.getCertificate(store.aliases().nextElement());
-          return Optional.of(crt);
-        } catch (
-            KeyStoreException        |
-            NoSuchAlgorithmException |
-            CertificateException     | 
-            IOException ex) {
-          throw new TechnicalFailure("Failed to load certificate " + credential.file, ex);
-        }
+      public Optional<X509Certificate> getClientCert(
+          Credential credential, CredentialMaterialCache materials) {
+        return Optional.of(materials.material(credential).certificate());
       }
   };
 
@@ -192,19 +140,24 @@ public record Credential(CredentialType type, String secret, String file) {
    * 
    * @param clientId
    * @param credential
+   * @param materials cache du matériel cryptographique des identifiants.
    * @return un descripteur d'authentification CIBA.
    */
-  public abstract ClientAuthentication buildAuth(String clientId, Credential credential);
+  public abstract ClientAuthentication buildAuth(
+      String clientId, Credential credential, CredentialMaterialCache materials);
   
   /**
    * Traduire ces identifiants sous forme de keyManagerFactory en vue des requêtes <code>/send</code>.
    * 
    * @param credential
+   * @param materials cache du matériel cryptographique des identifiants.
    * @return 
    */
-  public abstract KeyManagerFactory keyManagerFactory(Credential credential);
+  public abstract KeyManagerFactory keyManagerFactory(
+      Credential credential, CredentialMaterialCache materials);
   
-  public abstract Optional<X509Certificate> getClientCert(Credential credential);
+  public abstract Optional<X509Certificate> getClientCert(
+      Credential credential, CredentialMaterialCache materials);
   
   }
 
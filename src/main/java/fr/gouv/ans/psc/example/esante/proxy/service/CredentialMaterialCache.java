@@ -0,0 +1,186 @@
+/*
+ * The MIT License
+ * Copyright © 2024-2025 Agence du Numérique en Santé (ANS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.gouv.ans.psc.example.esante.proxy.service;
+
+import fr.gouv.ans.psc.example.esante.proxy.config.PSCConfiguration;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.KeyManagementException;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.UnrecoverableKeyException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Cache du matériel cryptographique des identifiants mTLS.
+ * Le fichier PKCS12 n'est lu et déchiffré qu'au premier usage, puis à chaque changement détecté par
+ * la surveillance en tâche de fond (date de modification et taille, confirmées par l'empreinte SHA-256
+ * du contenu), toutes les <code>psc.credential-watch-period</code>. Les requêtes ne font donc jamais
+ * d'entrée/sortie disque.
+ * Les identifiants étant liés depuis la configuration, le cache leur est passé par les services qui
+ * s'en servent.
+ *
+ * @author edegenetais
+ */
+@Component
+public final class CredentialMaterialCache implements DisposableBean {
+  private static final Logger LOGGER = LoggerFactory.getLogger(CredentialMaterialCache.class);
+
+  private final Map<Credential, CredentialMaterial> materials = new ConcurrentHashMap<>();
+  private final ScheduledExecutorService watcher =
+      Executors.newSingleThreadScheduledExecutor(
+          r -> {
+            Thread t = new Thread(r, "credential-watcher");
+            t.setDaemon(true);
+            return t;
+          });
+
+  @Autowired
+  CredentialMaterialCache(PSCConfiguration cfg) {
+    this(cfg.getCredentialWatchPeriod());
+  }
+
+  /**
+   * @param watchPeriod période de la surveillance des fichiers.
+   */
+  CredentialMaterialCache(Duration watchPeriod) {
+    final long period = watchPeriod.toMillis();
+    watcher.scheduleWithFixedDelay(this::checkFiles, period, period, TimeUnit.MILLISECONDS);
+  }
+
+  CredentialMaterial material(Credential credential) {
+    CredentialMaterial material = materials.get(credential);
+    if (material == null) {
+      material = materials.computeIfAbsent(credential, CredentialMaterialCache::load);
+    }
+    return material;
+  }
+
+  void checkFiles() {
+    materials.forEach(
+        (credential, material) -> {
+          try {
+            Path file = Path.of(credential.file());
+            if (Files.getLastModifiedTime(file).equals(material.lastModified())
+                && Files.size(file) == material.size()) {
+              return;
+            }
+            byte[] content = Files.readAllBytes(file);
+            if (Arrays.equals(sha256(content), material.sha256())) {
+              LOGGER.debug("Certificate {} touched but unchanged.", credential.file());
+              materials.put(
+                  credential,
+                  new CredentialMaterial(
+                      material.keyStore(),
+                      material.keyManagerFactory(),
+                      material.sslContext(),
+                      material.certificate(),
+                      Files.getLastModifiedTime(file),
+                      content.length,
+                      material.sha256()));
+            } else {
+              LOGGER.info("Certificate {} changed, reloading.", credential.file());
+              materials.put(credential, load(credential, file, content));
+            }
+          } catch (IOException | RuntimeException e) {
+            LOGGER.warn("Failed to reload certificate {}, keeping the previous one.", credential.file(), e);
+          }
+        });
+  }
+
+  /** Arrête la surveillance ; le matériel déjà chargé reste servi, sans rechargement. */
+  @Override
+  public void destroy() {
+    watcher.shutdownNow();
+  }
+
+  private static CredentialMaterial load(Credential credential) {
+    try {
+      Path file = Path.of(credential.file());
+      return load(credential, file, Files.readAllBytes(file));
+    } catch (IOException ex) {
+      throw new TechnicalFailure("Failed to load certificate " + credential.file(), ex);
+    }
+  }
+
+  private static CredentialMaterial load(Credential credential, Path file, byte[] content) {
+    try {
+      final FileTime lastModified = Files.getLastModifiedTime(file);
+      final char[] password = credential.secret().toCharArray();
+      KeyStore store = KeyStore.getInstance("pkcs12");
+      store.load(new ByteArrayInputStream(content), password);
+
+      KeyManagerFactory kmf =
+          KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+      kmf.init(store, password);
+
+      TrustManagerFactory tf =
+          TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+      tf.init((KeyStore) null);
+      SSLContext sslCtx = SSLContext.getInstance("TLS");
+      sslCtx.init(kmf.getKeyManagers(), tf.getTrustManagers(), null);
+
+      X509Certificate crt = (X509Certificate) store.getCertificate(store.aliases().nextElement());
+      LOGGER.debug("Certificate {} loaded.", credential.file());
+      return new CredentialMaterial(
+          store, kmf, sslCtx, crt, lastModified, content.length, sha256(content));
+    } catch (
+        UnrecoverableKeyException |
+        KeyStoreException         |
+        KeyManagementException    |
+        NoSuchAlgorithmException  |
+        CertificateException      |
+        IOException ex) {
+      throw new TechnicalFailure("Failed to load certificate " + credential.file(), ex);
+    }
+  }
+
+  private static byte[] sha256(byte[] content) {
+    try {
+      return MessageDigest.getInstance("SHA-256").digest(content);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 not available", e);
+    }
+  }
+}
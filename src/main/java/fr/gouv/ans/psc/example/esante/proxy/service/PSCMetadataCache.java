@@ -0,0 +1,160 @@
+/*
+ * The MIT License
+ * Copyright © 2024-2025 Agence du Numérique en Santé (ANS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.gouv.ans.psc.example.esante.proxy.service;
+
+import com.nimbusds.oauth2.sdk.ParseException;
+import com.nimbusds.oauth2.sdk.http.HTTPRequest;
+import com.nimbusds.oauth2.sdk.http.HTTPResponse;
+import com.nimbusds.openid.connect.sdk.op.OIDCProviderMetadata;
+import fr.gouv.ans.psc.example.esante.proxy.config.PSCConfiguration;
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * Cache des métadonnées de découverte OIDC de Pro Santé Connect.
+ * Les métadonnées sont chargées au démarrage (un échec est toléré, le chargement est alors retenté au
+ * premier usage), puis rafraîchies en tâche de fond une fois leur durée de vie écoulée : celle-ci
+ * vient du <code>max-age</code> de l'en-tête <code>Cache-Control</code> s'il est présent, sinon du
+ * paramètre <code>psc.metadata-ttl</code>. Tant que le rafraîchissement n'a pas abouti, la version
+ * précédente reste servie.
+ *
+ * @author edegenetais
+ */
+@Component
+public class PSCMetadataCache {
+  private static final Logger LOGGER = LoggerFactory.getLogger(PSCMetadataCache.class);
+  private static final Pattern MAX_AGE = Pattern.compile("max-age\\s*=\\s*(\\d+)");
+  /** Délai avant nouvelle tentative lorsque PSC est injoignable. */
+  private static final Duration RETRY_DELAY = Duration.ofSeconds(30);
+
+  private final PSCConfiguration cfg;
+  private final AtomicReference<CachedMetadata> current = new AtomicReference<>();
+  private final AtomicBoolean refreshing = new AtomicBoolean();
+  private final AtomicLong refreshCount = new AtomicLong();
+  private final AtomicLong failureCount = new AtomicLong();
+
+  public PSCMetadataCache(@Autowired PSCConfiguration cfg) {
+    this.cfg = cfg;
+    refreshAsync();
+  }
+
+  /**
+   * Fournit les métadonnées PSC. Seul le tout premier appel, si le chargement initial a échoué,
+   * effectue l'appel HTTP sur le thread appelant.
+   *
+   * @return les métadonnées courantes.
+   */
+  public OIDCProviderMetadata get() {
+    CachedMetadata cached = current.get();
+    if (cached == null) {
+      return load().metadata();
+    }
+    if (Instant.now().isAfter(cached.expiresAt())) {
+      refreshAsync();
+    }
+    return cached.metadata();
+  }
+
+  public Stats stats() {
+    CachedMetadata cached = current.get();
+    return new Stats(
+        cached == null ? null : Duration.between(cached.loadedAt(), Instant.now()).toSeconds(),
+        refreshCount.get(),
+        failureCount.get());
+  }
+
+  private void refreshAsync() {
+    if (refreshing.compareAndSet(false, true)) {
+      Schedulers.boundedElastic()
+          .schedule(
+              () -> {
+                try {
+                  load();
+                } catch (TechnicalFailure e) {
+                  LOGGER.warn("Échec du rafraîchissement des métadonnées PSC, la version précédente est conservée.", e);
+                  CachedMetadata stale = current.get();
+                  if (stale != null) {
+                    current.compareAndSet(
+                        stale,
+                        new CachedMetadata(
+                            stale.metadata(), stale.loadedAt(), Instant.now().plus(RETRY_DELAY)));
+                  }
+                } finally {
+                  refreshing.set(false);
+                }
+              });
+    }
+  }
+
+  private CachedMetadata load() {
+    try {
+      HTTPResponse response = new HTTPRequest(HTTPRequest.Method.GET, cfg.getDiscoveryURL()).send();
+      if (!response.indicatesSuccess()) {
+        throw new IOException("HTTP status " + response.getStatusCode());
+      }
+      OIDCProviderMetadata metadata = OIDCProviderMetadata.parse(response.getBody());
+      Instant now = Instant.now();
+      CachedMetadata loaded =
+          new CachedMetadata(metadata, now, now.plus(timeToLive(response.getHeaderValue("Cache-Control"))));
+      current.set(loaded);
+      refreshCount.incrementAndGet();
+      LOGGER.debug("Métadonnées PSC chargées, valides jusqu'à {}", loaded.expiresAt());
+      return loaded;
+    } catch (ParseException | IOException e) {
+      failureCount.incrementAndGet();
+      throw new TechnicalFailure("Échec lors du chargement des metadonnées PSC", e);
+    }
+  }
+
+  private Duration timeToLive(String cacheControl) {
+    if (cacheControl != null) {
+      Matcher maxAge = MAX_AGE.matcher(cacheControl);
+      if (maxAge.find()) {
+        return Duration.ofSeconds(Long.parseLong(maxAge.group(1)));
+      }
+    }
+    return cfg.getMetadataTtl();
+  }
+
+  private record CachedMetadata(OIDCProviderMetadata metadata, Instant loadedAt, Instant expiresAt) {}
+
+  /**
+   * État du cache exposé pour l'exploitation.
+   *
+   * @param ageSeconds âge des métadonnées servies, <code>null</code> si aucune n'a encore été chargée.
+   * @param refreshCount nombre de chargements réussis.
+   * @param failureCount nombre de chargements en échec.
+   */
+  public record Stats(Long ageSeconds, long refreshCount, long failureCount) {}
+}
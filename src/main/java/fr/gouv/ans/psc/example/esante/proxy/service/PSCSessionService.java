@@ -22,12 +22,16 @@
  */
 package fr.gouv.ans.psc.example.esante.proxy.service;
 
-import com.nimbusds.jose.util.IOUtils;
 import com.nimbusds.jwt.JWT;
+import com.nimbusds.oauth2.sdk.AccessTokenResponse;
+import com.nimbusds.oauth2.sdk.ErrorObject;
+import com.nimbusds.oauth2.sdk.ErrorResponse;
 import com.nimbusds.oauth2.sdk.ParseException;
+import com.nimbusds.oauth2.sdk.RefreshTokenGrant;
 import com.nimbusds.oauth2.sdk.Scope;
 import com.nimbusds.oauth2.sdk.TokenRequest;
 import com.nimbusds.oauth2.sdk.TokenResponse;
+import com.nimbusds.oauth2.sdk.TokenRevocationRequest;
 import com.nimbusds.oauth2.sdk.auth.ClientAuthentication;
 import com.nimbusds.oauth2.sdk.ciba.AuthRequestID;
 import com.nimbusds.oauth2.sdk.ciba.CIBAGrant;
@@ -35,7 +39,7 @@ import com.nimbusds.oauth2.sdk.ciba.CIBARequest;
 import com.nimbusds.oauth2.sdk.ciba.CIBARequestAcknowledgement;
 import com.nimbusds.oauth2.sdk.ciba.CIBAResponse;
 import com.nimbusds.oauth2.sdk.http.HTTPRequest;
-import com.nimbusds.oauth2.sdk.http.HTTPResponse;
+import com.nimbusds.oauth2.sdk.token.AccessToken;
 import com.nimbusds.oauth2.sdk.token.BearerAccessToken;
 import com.nimbusds.oauth2.sdk.token.RefreshToken;
 import com.nimbusds.openid.connect.sdk.LogoutRequest;
@@ -45,19 +49,23 @@ import com.nimbusds.openid.connect.sdk.claims.ACR;
 import com.nimbusds.openid.connect.sdk.op.OIDCProviderMetadata;
 import fr.gouv.ans.psc.example.esante.proxy.config.PSCConfiguration;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.URI;
-import java.nio.charset.Charset;
 import java.security.cert.X509Certificate;
 import java.time.Duration;
+import java.time.Instant;
 import java.util.List;
+import java.util.Objects;
 import java.util.Optional;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
+import net.minidev.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
 
 /**
  * Service de gestion de la session CIBA.
@@ -70,16 +78,52 @@ public class PSCSessionService {
   private static final Logger LOGGER = LoggerFactory.getLogger(PSCSessionService.class);
 
   private static final String PSC_CIBA_SCOPES = "openid scope_all";
+  /**
+   * Codes d'attente du token endpoint en mode poll (CIBA §11) : la norme reprend ceux de RFC 8628,
+   * que {@link com.nimbusds.oauth2.sdk.ciba.CIBAError} ne définit pas.
+   */
+  private static final ErrorObject AUTHORIZATION_PENDING = new ErrorObject("authorization_pending");
+  private static final ErrorObject SLOW_DOWN = new ErrorObject("slow_down");
+  /** Allongement de l'intervalle de polling demandé par une erreur slow_down (CIBA §11), en secondes. */
+  private static final int SLOW_DOWN_INCREMENT = 5;
 
   private PSCConfiguration cfg;
+  private PSCMetadataCache metadataCache;
+  private CredentialMaterialCache materials;
+  private Scheduler timer;
 
-  public PSCSessionService(@Autowired PSCConfiguration cfg) {
+  /**
+   * @param timer horloge des attentes entre deux interrogations du token endpoint, qui sert aussi à
+   *     vérifier l'échéance de la requête CIBA.
+   */
+  public PSCSessionService(
+      @Autowired PSCConfiguration cfg,
+      @Autowired PSCMetadataCache metadataCache,
+      @Autowired CredentialMaterialCache materials,
+      @Autowired Scheduler timer) {
     this.cfg = cfg;
+    this.metadataCache = metadataCache;
+    this.materials = materials;
+    this.timer = timer;
   }
 
-  public CIBASession cibaAuthentication(
-      String bindingMessage, String nationalId, String clientId, String channel)
-      throws IOException, ParseException, InterruptedException, ExecutionException {
+  /**
+   * Lance l'authentification CIBA de l'utilisateur.
+   * L'attente de la validation par le professionnel ne mobilise aucun thread : chaque interrogation du
+   * token endpoint est planifiée par un timer, seuls les appels HTTP eux-mêmes passent sur le scheduler
+   * <code>boundedElastic</code>.
+   *
+   * @return la session CIBA, émise une fois l'authentification validée.
+   */
+  public Mono<CIBASession> cibaAuthentication(
+      String bindingMessage, String nationalId, String clientId, String channel) {
+    return Mono.fromCallable(() -> startCibaRequest(bindingMessage, nationalId, clientId, channel))
+        .subscribeOn(Schedulers.boundedElastic())
+        .flatMap(poll -> poll(poll, poll.interval()));
+  }
+
+  private CIBAPoll startCibaRequest(
+      String bindingMessage, String nationalId, String clientId, String channel) {
 
     LOGGER.debug("Trying provider URL {}", cfg.getDiscoveryURL().toString());
 
@@ -92,7 +136,7 @@ public class PSCSessionService {
 
     LOGGER.debug("Client id {}, found credential for auth type {}",clientId,credential.type());
 
-    final ClientAuthentication clientAuthentication = credential.buildAuth(clientId);
+    final ClientAuthentication clientAuthentication = credential.buildAuth(clientId, materials);
 
     CIBARequest req =
         new CIBARequest.Builder(clientAuthentication, new Scope(PSC_CIBA_SCOPES))
@@ -103,91 +147,184 @@ public class PSCSessionService {
             .customParameter("channel", channel)
             .build();
 
-    CIBAResponse response = CIBAResponse.parse(req.toHTTPRequest().send());
-    if (response.indicatesSuccess()) {
-      URI tokenURI = providerMetadata.getTokenEndpointURI();
+    try {
+      CIBAResponse response = CIBAResponse.parse(req.toHTTPRequest().send());
+      if (response.indicatesSuccess()) {
+        URI tokenURI = providerMetadata.getTokenEndpointURI();
 
-      CIBARequestAcknowledgement acknowledgement = response.toRequestAcknowledgement();
-      AuthRequestID cibaRequestID = acknowledgement.getAuthRequestID();
-      int expiresIn = acknowledgement.getExpiresIn();
-      int pollInterval = acknowledgement.getMinWaitInterval();
-      LOGGER.info("Attente de l'authentification par l'utilisateur {}.", nationalId);
+        CIBARequestAcknowledgement acknowledgement = response.toRequestAcknowledgement();
+        AuthRequestID cibaRequestID = acknowledgement.getAuthRequestID();
+        LOGGER.info("Attente de l'authentification par l'utilisateur {}.", nationalId);
 
-      TokenRequest tokenRequest =
-          new TokenRequest.Builder(tokenURI, clientAuthentication, new CIBAGrant(cibaRequestID))
-              .build();
-      TokenResponse tokenResponse = null;
-
-      do {
-        Thread.sleep(Duration.ofSeconds(pollInterval));
-        expiresIn -= pollInterval;
-        tokenResponse = OIDCTokenResponseParser.parse(tokenRequest.toHTTPRequest().send());
-        LOGGER.debug("TokenResponse : {}", tokenResponse.toHTTPResponse().getBody());
-        LOGGER.debug("ExpiresIn : {}", expiresIn);
-        LOGGER.debug("tokenResponse Indicates Success : {}", tokenResponse.indicatesSuccess());
-      } while (!tokenResponse.indicatesSuccess() && expiresIn >= 0);
-
-      if (tokenResponse.indicatesSuccess()) {
-        OIDCTokenResponse successResponse = (OIDCTokenResponse) tokenResponse.toSuccessResponse();
-        JWT idToken = successResponse.getOIDCTokens().getIDToken();
-        BearerAccessToken accessToken = successResponse.getOIDCTokens().getBearerAccessToken();
-        RefreshToken refreshToken = successResponse.getOIDCTokens().getRefreshToken();
-        
-        LOGGER.debug("refreshToken : {}", refreshToken.toJSONString());
-        LOGGER.debug("accessToken : {}", accessToken.toJSONString());
-        return new CIBASession(
-            accessToken.getValue(),
-            (int) accessToken.getLifetime(),
-            refreshToken.toString(),
-            Integer.valueOf(successResponse.toJSONObject().getAsString("refresh_expires_in")),
-            accessToken.getType().getValue(),
-            idToken.getParsedString(),
-            accessToken.toJSONObject().getAsString("scope"),
-            successResponse.toJSONObject().getAsString("session_state")
-        );
-      } else if(response.toErrorResponse().getErrorObject().getHTTPStatusCode() >= 502 && response.toErrorResponse().getErrorObject().getHTTPStatusCode() <= 504) {
-        throw new UnavailableBackend(response.toErrorResponse().getErrorObject().getHTTPStatusCode(),"Pro Santé Connect");
+        TokenRequest tokenRequest =
+            new TokenRequest.Builder(tokenURI, clientAuthentication, new CIBAGrant(cibaRequestID))
+                .build();
+        return new CIBAPoll(
+            tokenRequest,
+            Duration.ofSeconds(acknowledgement.getMinWaitInterval()),
+            now().plusSeconds(acknowledgement.getExpiresIn()),
+            clientId,
+            nationalId);
       } else {
-        LOGGER.error("Authentication failed : {}",tokenResponse.toErrorResponse().toJSONObject());
-        throw new AuthenticationFailure(tokenResponse.toErrorResponse(),clientId,nationalId);
+        throw authenticationError(response.toErrorResponse(), clientId, nationalId);
       }
-    } else if(response.toErrorResponse().getErrorObject().getHTTPStatusCode() >= 502 && response.toErrorResponse().getErrorObject().getHTTPStatusCode() <= 504) {
-      throw new UnavailableBackend(response.toErrorResponse().getErrorObject().getHTTPStatusCode(),"Pro Santé Connect");
+    } catch (IOException | ParseException e) {
+      throw new TechnicalFailure("Échec de la requête CIBA auprès de Pro Santé Connect", e);
+    }
+  }
+
+  private Mono<CIBASession> poll(CIBAPoll poll, Duration interval) {
+    return Mono.delay(interval, timer)
+        .then(Mono.fromCallable(() -> pollTokenEndpoint(poll)).subscribeOn(Schedulers.boundedElastic()))
+        .flatMap(
+            tokenResponse -> {
+              if (tokenResponse.indicatesSuccess()) {
+                return Mono.just(toCIBASession((OIDCTokenResponse) tokenResponse.toSuccessResponse()));
+              }
+              final ErrorObject error = tokenResponse.toErrorResponse().getErrorObject();
+              final boolean pending = AUTHORIZATION_PENDING.equals(error);
+              final boolean slowDown = SLOW_DOWN.equals(error);
+              if ((pending || slowDown) && now().plus(interval).isBefore(poll.deadline())) {
+                return poll(
+                    poll,
+                    slowDown
+                        ? interval.plusSeconds(SLOW_DOWN_INCREMENT)
+                        : interval);
+              }
+              return Mono.error(
+                  authenticationError(tokenResponse.toErrorResponse(), poll.clientId(), poll.nationalId()));
+            });
+  }
+
+  private Instant now() {
+    return Instant.ofEpochMilli(timer.now(TimeUnit.MILLISECONDS));
+  }
+
+  private TokenResponse pollTokenEndpoint(CIBAPoll poll) throws IOException, ParseException {
+    TokenResponse tokenResponse = OIDCTokenResponseParser.parse(poll.tokenRequest().toHTTPRequest().send());
+    LOGGER.debug("TokenResponse : {}", tokenResponse.toHTTPResponse().getBody());
+    LOGGER.debug("tokenResponse Indicates Success : {}", tokenResponse.indicatesSuccess());
+    return tokenResponse;
+  }
+
+  private CIBASession toCIBASession(OIDCTokenResponse successResponse) {
+    JWT idToken = successResponse.getOIDCTokens().getIDToken();
+    BearerAccessToken accessToken = successResponse.getOIDCTokens().getBearerAccessToken();
+    RefreshToken refreshToken = successResponse.getOIDCTokens().getRefreshToken();
+
+    LOGGER.debug("refreshToken : {}", refreshToken.toJSONString());
+    LOGGER.debug("accessToken : {}", accessToken.toJSONString());
+    return new CIBASession(
+        accessToken.getValue(),
+        (int) accessToken.getLifetime(),
+        refreshToken.toString(),
+        Integer.valueOf(successResponse.toJSONObject().getAsString("refresh_expires_in")),
+        accessToken.getType().getValue(),
+        idToken.getParsedString(),
+        accessToken.toJSONObject().getAsString("scope"),
+        successResponse.toJSONObject().getAsString("session_state")
+    );
+  }
+
+  private RuntimeException authenticationError(
+      ErrorResponse errorResponse, String clientId, String nationalId) {
+    final int status = errorResponse.getErrorObject().getHTTPStatusCode();
+    if (status >= 502 && status <= 504) {
+      return new UnavailableBackend(status, "Pro Santé Connect");
     } else {
-      LOGGER.error("Authentication failed : {}",response.toErrorResponse().toJSONObject());
-      throw new AuthenticationFailure(response.toErrorResponse(),clientId,nationalId);
+      LOGGER.error("Authentication failed : {}",errorResponse.getErrorObject().toJSONObject());
+      return new AuthenticationFailure(errorResponse,clientId,nationalId);
     }
   }
 
+  /**
+   * État d'une authentification CIBA en attente de validation par l'utilisateur.
+   */
+  private record CIBAPoll(
+      TokenRequest tokenRequest,
+      Duration interval,
+      Instant deadline,
+      String clientId,
+      String nationalId) {}
+
   private OIDCProviderMetadata getMetadata() {
-    try (InputStream providerConfigurationIn = cfg.getDiscoveryURL().toURL().openStream()) {
-      String pscConfigData =
-          IOUtils.readInputStreamToString(providerConfigurationIn, Charset.forName("UTF-8"));
-      return OIDCProviderMetadata.parse(pscConfigData);
-    } catch (ParseException | IOException e) {
-      throw new TechnicalFailure("Échec lors du chargement des metadonnées PSC", e);
-    }
+    return metadataCache.get();
   }
   
-  public void logout(CIBASession session, String clientId) {
+  /**
+   * Renouvelle le token PSC avec son refresh token (grant <code>refresh_token</code>). Les champs
+   * absents de la réponse (id token, refresh token, session_state...) sont repris de la session
+   * courante.
+   *
+   * @param session session PSC courante.
+   * @param clientId client LPS porteur de la session.
+   * @return la session PSC renouvelée.
+   */
+  public CIBASession refresh(CIBASession session, String clientId) {
     try {
-      URI logoutUri = getMetadata().getEndSessionEndpointURI();
-      JWT idTokenHint = session.idTokenAsJWT();
-      
-      LogoutRequest logoutReq = new LogoutRequest(logoutUri, idTokenHint);
-      Credential crd = cfg.getSecret(clientId);
-      HTTPRequest httpRequest = logoutReq.toHTTPRequest();
-      final Optional<X509Certificate> clientCert = crd.getClientCert();
-      if(clientCert.isPresent()) {
-        httpRequest.setClientX509Certificate(clientCert.get());
-      }
-      HTTPResponse response =  httpRequest.send();
-      if (!response.indicatesSuccess()) {
-        LOGGER.warn("Failed to logout from ProSantéConnect, {} : {}",response.getStatusCode(), response.getBody());
+      TokenRequest refreshReq =
+          new TokenRequest.Builder(
+                  getMetadata().getTokenEndpointURI(),
+                  cfg.getSecret(clientId).buildAuth(clientId, materials),
+                  new RefreshTokenGrant(new RefreshToken(session.refreshToken())))
+              .build();
+      TokenResponse tokenResponse = TokenResponse.parse(refreshReq.toHTTPRequest().send());
+      if (!tokenResponse.indicatesSuccess()) {
+        throw new TechnicalFailure(
+            "PSC token refresh failed for client " + clientId + " : "
+                + tokenResponse.toErrorResponse().toJSONObject());
       }
+      AccessTokenResponse successResponse = tokenResponse.toSuccessResponse();
+      AccessToken accessToken = successResponse.getTokens().getAccessToken();
+      RefreshToken refreshToken = successResponse.getTokens().getRefreshToken();
+      JSONObject json = successResponse.toJSONObject();
+      Number refreshExpiresIn = json.getAsNumber("refresh_expires_in");
+      return new CIBASession(
+          accessToken.getValue(),
+          (int) accessToken.getLifetime(),
+          refreshToken == null ? session.refreshToken() : refreshToken.getValue(),
+          refreshExpiresIn == null ? session.refreshExpiresIn() : Integer.valueOf(refreshExpiresIn.intValue()),
+          accessToken.getType().getValue(),
+          Objects.requireNonNullElse(json.getAsString("id_token"), session.idToken()),
+          Objects.requireNonNullElse(json.getAsString("scope"), session.scope()),
+          Objects.requireNonNullElse(json.getAsString("session_state"), session.sessionState()));
+    } catch (IOException | ParseException e) {
+      throw new TechnicalFailure("Failed to refresh PSC token for " + clientId, e);
+    }
+  }
+  
+  /**
+   * Prépare la déconnexion de la session PSC (end session endpoint), envoyée ensuite par
+   * {@link TokenRevocationService}.
+   */
+  public HTTPRequest logoutRequest(CIBASession session, String clientId) {
+    URI logoutUri = getMetadata().getEndSessionEndpointURI();
+    JWT idTokenHint = session.idTokenAsJWT();
+
+    LogoutRequest logoutReq = new LogoutRequest(logoutUri, idTokenHint);
+    Credential crd = cfg.getSecret(clientId);
+    HTTPRequest httpRequest = logoutReq.toHTTPRequest();
+    final Optional<X509Certificate> clientCert = crd.getClientCert(materials);
+    if(clientCert.isPresent()) {
+      httpRequest.setClientX509Certificate(clientCert.get());
+    }
+    return httpRequest;
+  }
 
-    } catch (IOException ex) {
-      throw new TechnicalFailure("Failed to lgout from PSC", ex);
+  /**
+   * Prépare la révocation (RFC 7009) du refresh token de la session PSC, si PSC publie un
+   * endpoint de révocation.
+   */
+  public Optional<HTTPRequest> revocationRequest(CIBASession session, String clientId) {
+    final URI revocationUri = getMetadata().getRevocationEndpointURI();
+    if (revocationUri == null || session.refreshToken() == null) {
+      return Optional.empty();
     }
+    return Optional.of(
+        new TokenRevocationRequest(
+                revocationUri,
+                cfg.getSecret(clientId).buildAuth(clientId, materials),
+                new RefreshToken(session.refreshToken()))
+            .toHTTPRequest());
   }
 }
@@ -0,0 +1,63 @@
+/*
+ * The MIT License
+ * Copyright © 2024-2025 Agence du Numérique en Santé (ANS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.gouv.ans.psc.example.esante.proxy.service;
+
+import java.time.Duration;
+
+/**
+ * Coordination du rafraîchissement des tokens quand une même session est chargée par plusieurs
+ * instances du proxy : une seule d'entre elles renouvelle chaque token, puis publie la session
+ * modifiée pour que les autres la relisent. Avec la persistance locale des sessions, l'instance est
+ * seule à rafraîchir mais chaque token changé doit être journalisé.
+ *
+ * @author edegenetais
+ */
+public interface RefreshCoordinator {
+  /** Durée d'un droit de rafraîchissement, au-delà de laquelle une autre instance peut le prendre. */
+  Duration LEASE = Duration.ofSeconds(30);
+
+  /** Instance seule, sans persistance : elle rafraîchit tout et n'a rien à publier. */
+  RefreshCoordinator LOCAL =
+      new RefreshCoordinator() {
+        @Override
+        public boolean tryAcquire(BackendAuthentication auth, String key) {
+          return true;
+        }
+
+        @Override
+        public void tokensChanged(BackendAuthentication auth) {}
+      };
+
+  /**
+   * @param auth contexte d'authentification de la session.
+   * @param key clé du token (identifiant du backend ou {@link TokenRefreshService#PSC_KEY}).
+   * @return <code>true</code> si cette instance doit rafraîchir le token, <code>false</code> si une
+   *     autre s'en charge déjà ou si la coordination est momentanément impossible.
+   */
+  boolean tryAcquire(BackendAuthentication auth, String key);
+
+  /**
+   * Signale qu'un token de la session a été renouvelé ou obtenu par cette instance.
+   */
+  void tokensChanged(BackendAuthentication auth);
+}
@@ -22,11 +22,39 @@
  */
 package fr.gouv.ans.psc.example.esante.proxy.service;
 
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
 import java.security.cert.X509Certificate;
+import java.util.Base64;
 import java.util.Optional;
 
 /**
+ * Identité de session reprise dans les traces. Elle est calculée une seule fois à la fin d'un
+ * <code>/connect</code> réussi, puis relue telle quelle pour chaque trace de la session.
  *
  * @author edegenetais
  */
-public record SessionTraceData (Optional<X509Certificate> clientCertificate, String clientId, String nationalId,String sessionState, String proxy_session_id){}
+public record SessionTraceData (String clientId, String nationalId,String sessionState, String proxy_session_id, String dn, String certThumbprint){
+
+  /**
+   * Construit l'identité de session, en calculant le DN et l'empreinte SHA-256 (<code>x5t#S256</code>)
+   * du certificat client s'il existe.
+   */
+  public static SessionTraceData of(Optional<X509Certificate> clientCertificate, String clientId, String nationalId,String sessionState, String proxy_session_id) {
+    if(clientCertificate.isEmpty()) {
+      return new SessionTraceData(clientId, nationalId, sessionState, proxy_session_id, null, null);
+    }
+    final X509Certificate crt = clientCertificate.get();
+    return new SessionTraceData(clientId, nationalId, sessionState, proxy_session_id, crt.getSubjectX500Principal().toString(), thumbprint(crt));
+  }
+
+  private static String thumbprint(X509Certificate crt) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-256").digest(crt.getEncoded());
+      return Base64.getUrlEncoder().withoutPadding().encodeToString(digest);
+    } catch (NoSuchAlgorithmException | CertificateEncodingException e) {
+      throw new TechnicalFailure("Failed to compute certificate thumbprint", e);
+    }
+  }
+}
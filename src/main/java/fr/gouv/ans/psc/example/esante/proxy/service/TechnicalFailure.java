@@ -31,5 +31,9 @@ public class TechnicalFailure extends RuntimeException {
   public TechnicalFailure(String message, Throwable cause) {
     super(message, cause);
   }
+
+  public TechnicalFailure(String message) {
+    super(message);
+  }
   
 }
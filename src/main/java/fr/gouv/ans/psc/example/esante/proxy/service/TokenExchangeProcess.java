@@ -23,17 +23,21 @@
 package fr.gouv.ans.psc.example.esante.proxy.service;
 
 import com.nimbusds.jwt.JWT;
+import com.nimbusds.oauth2.sdk.AccessTokenResponse;
 import com.nimbusds.oauth2.sdk.ParseException;
+import com.nimbusds.oauth2.sdk.RefreshTokenGrant;
 import com.nimbusds.oauth2.sdk.TokenRequest;
 import com.nimbusds.oauth2.sdk.TokenResponse;
+import com.nimbusds.oauth2.sdk.http.HTTPRequest;
 import com.nimbusds.oauth2.sdk.token.AccessToken;
 import com.nimbusds.oauth2.sdk.token.BearerAccessToken;
+import com.nimbusds.oauth2.sdk.token.RefreshToken;
 import com.nimbusds.oauth2.sdk.token.TokenTypeURI;
 import com.nimbusds.oauth2.sdk.tokenexchange.TokenExchangeGrant;
-import com.nimbusds.openid.connect.sdk.OIDCTokenResponse;
 import com.nimbusds.openid.connect.sdk.OIDCTokenResponseParser;
 import java.io.IOException;
 import java.net.URI;
+import java.time.Duration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -46,15 +50,42 @@ public class TokenExchangeProcess {
   private static final String SUBJECT_ISSUER_KEY = "subject_issuer";
 
   private String clientId;
-  private CIBASession session;
+  private volatile CIBASession session;
   private Credential cred;
+  private final CredentialMaterialCache materials;
+  private final int timeoutMillis;
 
-  public TokenExchangeProcess(String clientId, CIBASession session, Credential cred) {
+  /**
+   * @param timeout délai de connexion et de lecture des appels au serveur d'identité
+   *     (<code>proxy.token-exchange.timeout</code>).
+   */
+  public TokenExchangeProcess(
+      String clientId,
+      CIBASession session,
+      Credential cred,
+      CredentialMaterialCache materials,
+      Duration timeout) {
     this.clientId = clientId;
     this.session = session;
     this.cred = cred;
+    this.materials = materials;
+    this.timeoutMillis = (int) Math.min(Integer.MAX_VALUE, timeout.toMillis());
   }
   
+  public String clientId() {
+    return clientId;
+  }
+
+  /**
+   * @return la session PSC courante, éventuellement rafraîchie depuis le <code>/connect</code>.
+   */
+  public CIBASession pscSession() {
+    return session;
+  }
+
+  void switchPscSession(CIBASession refreshed) {
+    this.session = refreshed;
+  }
   
   
   public BackendAccess getBackendAccessFromPSC(Backend b) {
@@ -66,27 +97,14 @@ public class TokenExchangeProcess {
       TokenRequest exchangeReq =
           new TokenRequest.Builder(
                   exchangeURI,
-                  cred.buildAuth(clientId),
+                  cred.buildAuth(clientId, materials),
                   new TokenExchangeGrant(token, TokenTypeURI.ACCESS_TOKEN))
               .customParameter(SUBJECT_ISSUER_KEY, SUBJECT_ISSUER_VALUE)
               .build();
-      TokenResponse reponse = OIDCTokenResponseParser.parse(exchangeReq.toHTTPRequest().send());
+      TokenResponse reponse =
+          OIDCTokenResponseParser.parse(withTimeouts(exchangeReq.toHTTPRequest()).send());
       if (reponse.indicatesSuccess()) {
-        OIDCTokenResponse successResponse = (OIDCTokenResponse) reponse.toSuccessResponse();
-        final AccessToken accessTokenValue = successResponse.getOIDCTokens().getAccessToken();
-        Long accessTokenLifetime =
-            successResponse.toSuccessResponse().getOIDCTokens().getAccessToken().getLifetime();
-        String accessToken = accessTokenValue.getValue();
-        String refreshToken = successResponse.getOIDCTokens().getRefreshToken().getValue();
-        Long refreshTokenLifetime =
-            successResponse
-                .toSuccessResponse()
-                .toJSONObject()
-                .getAsNumber("refresh_expires_in")
-                .longValue();
-        final Long renewalTime = Math.min(accessTokenLifetime, refreshTokenLifetime);
-        BackendAccess access = new BackendAccess(accessToken, renewalTime, refreshToken);
-        return access;
+        return toBackendAccess(reponse.toSuccessResponse(), null);
       } else if(reponse.toErrorResponse().getErrorObject().getHTTPStatusCode() >= 502 && reponse.toErrorResponse().getErrorObject().getHTTPStatusCode()<=504) {
         throw new UnavailableBackend(reponse.toErrorResponse().getErrorObject().getHTTPStatusCode(), b.id()+" token exchange");
       } else {
@@ -108,4 +126,55 @@ public class TokenExchangeProcess {
       throw new TechnicalFailure("Failed to call ID server for token echange for " + clientId, ex);
     }
   }
+
+  /**
+   * Renouvelle l'accès au backend avec son refresh token (grant <code>refresh_token</code>).
+   *
+   * @param b backend visé.
+   * @param previous accès courant, dont le refresh token est utilisé.
+   * @return le nouvel accès.
+   */
+  public BackendAccess refreshBackendAccess(Backend b, BackendAccess previous) {
+    try {
+      LOGGER.debug("Refreshing token of backend {}. Client id is {}", b.id(), clientId);
+      TokenRequest refreshReq =
+          new TokenRequest.Builder(
+                  b.exchangeUri(),
+                  cred.buildAuth(clientId, materials),
+                  new RefreshTokenGrant(new RefreshToken(previous.refreshToken())))
+              .build();
+      TokenResponse reponse = TokenResponse.parse(withTimeouts(refreshReq.toHTTPRequest()).send());
+      if (reponse.indicatesSuccess()) {
+        return toBackendAccess(reponse.toSuccessResponse(), previous.refreshToken());
+      }
+      throw new TechnicalFailure(
+          "Token refresh for " + b.id() + " failed for client " + clientId + " : "
+              + reponse.toErrorResponse().toJSONObject());
+    } catch (IOException | ParseException ex) {
+      throw new TechnicalFailure("Failed to call ID server for token refresh for " + clientId, ex);
+    }
+  }
+
+  /**
+   * Un serveur d'identité qui ne répond pas libère le thread au bout du délai, au lieu de le garder
+   * au-delà de l'abandon de l'échange.
+   */
+  private HTTPRequest withTimeouts(HTTPRequest request) {
+    request.setConnectTimeout(timeoutMillis);
+    request.setReadTimeout(timeoutMillis);
+    return request;
+  }
+
+  private static BackendAccess toBackendAccess(AccessTokenResponse successResponse, String previousRefreshToken) {
+    final AccessToken accessTokenValue = successResponse.getTokens().getAccessToken();
+    final long accessTokenLifetime = accessTokenValue.getLifetime();
+    final RefreshToken refreshTokenValue = successResponse.getTokens().getRefreshToken();
+    final String refreshToken =
+        refreshTokenValue == null ? previousRefreshToken : refreshTokenValue.getValue();
+    final Number refreshExpiresIn = successResponse.toJSONObject().getAsNumber("refresh_expires_in");
+    final long refreshTokenLifetime =
+        refreshExpiresIn == null ? accessTokenLifetime : refreshExpiresIn.longValue();
+    final long renewalTime = Math.min(accessTokenLifetime, refreshTokenLifetime);
+    return new BackendAccess(accessTokenValue.getValue(), renewalTime, refreshToken);
+  }
 }
@@ -0,0 +1,228 @@
+/*
+ * The MIT License
+ * Copyright © 2024-2025 Agence du Numérique en Santé (ANS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.gouv.ans.psc.example.esante.proxy.service;
+
+import fr.gouv.ans.psc.example.esante.proxy.config.TokenExchangeConfig;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.session.SessionProperties;
+import org.springframework.stereotype.Component;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * Rafraîchissement proactif des tokens d'une session : tokens d'API des backends et token PSC.
+ * Chaque token est planifié sur une roue de temporisation (un seul thread pour toutes les sessions)
+ * à l'échéance de sa validité moins <code>proxy.token-exchange.refresh-margin</code> (au plus tard à
+ * mi-vie), puis renouvelé en tâche de fond et substitué dans la session. Les requêtes
+ * <code>/send</code> ne paient donc jamais la latence d'un renouvellement.
+ * Le rafraîchissement s'arrête quand la session est détruite, ou inutilisée depuis plus que la
+ * durée de vie d'une session.
+ * Quand les sessions sont partagées entre instances, un {@link RefreshCoordinator} désigne celle qui
+ * rafraîchit chaque token ; les autres retentent après {@link RefreshCoordinator#LEASE}, à moins
+ * d'avoir entre-temps relu la session renouvelée.
+ *
+ * @author edegenetais
+ */
+@Component
+public class TokenRefreshService implements DisposableBean {
+  private static final Logger LOGGER = LoggerFactory.getLogger(TokenRefreshService.class);
+  /** Clé du token PSC parmi les rafraîchissements d'une session. */
+  public static final String PSC_KEY = "psc";
+
+  private final PSCSessionService pscService;
+  private final Duration margin;
+  private final Duration sessionTimeout;
+  private final HashedWheelTimer timer =
+      new HashedWheelTimer(new DefaultThreadFactory("token-refresh", true), 1, TimeUnit.SECONDS);
+  private volatile RefreshCoordinator coordinator = RefreshCoordinator.LOCAL;
+
+  public TokenRefreshService(
+      @Autowired PSCSessionService pscService,
+      @Autowired TokenExchangeConfig exchangeCfg,
+      @Autowired SessionProperties sessionProperties) {
+    this.pscService = pscService;
+    this.margin = exchangeCfg.refreshMargin();
+    this.sessionTimeout = sessionProperties.getTimeout();
+  }
+
+  /**
+   * Planifie le rafraîchissement d'un token de backend.
+   */
+  public void scheduleBackend(BackendAuthentication auth, Backend backend, BackendAccess access) {
+    schedule(auth, backend.id(), access.validitySeconds(), () -> refreshBackend(auth, backend, access));
+  }
+
+  /**
+   * Planifie le rafraîchissement du token PSC de la session.
+   */
+  public void schedulePsc(BackendAuthentication auth) {
+    CIBASession psc = auth.pscSession();
+    if (psc == null || psc.refreshToken() == null) {
+      return;
+    }
+    long validity = psc.expiresIn() == null ? 0 : psc.expiresIn();
+    if (psc.refreshExpiresIn() != null) {
+      validity = Math.min(validity, psc.refreshExpiresIn());
+    }
+    schedule(auth, PSC_KEY, validity, () -> refreshPsc(auth));
+  }
+
+  /**
+   * Replanifie le rafraîchissement d'un token de backend à une date déjà fixée, pour une session
+   * rechargée depuis sa persistance.
+   *
+   * @param dueAt date du rafraîchissement, en millisecondes epoch.
+   */
+  public void resumeBackend(
+      BackendAuthentication auth, Backend backend, BackendAccess access, long dueAt) {
+    scheduleAt(auth, backend.id(), dueAt, () -> refreshBackend(auth, backend, access));
+  }
+
+  /**
+   * Replanifie le rafraîchissement du token PSC à une date déjà fixée, pour une session rechargée
+   * depuis sa persistance.
+   *
+   * @param dueAt date du rafraîchissement, en millisecondes epoch.
+   */
+  public void resumePsc(BackendAuthentication auth, long dueAt) {
+    scheduleAt(auth, PSC_KEY, dueAt, () -> refreshPsc(auth));
+  }
+
+  /**
+   * Remplace la coordination locale par défaut, pour un stockage de sessions partagé.
+   */
+  public void setCoordinator(RefreshCoordinator coordinator) {
+    this.coordinator = coordinator;
+  }
+
+  /**
+   * Signale un token obtenu hors rafraîchissement planifié (échange à la première utilisation).
+   */
+  public void tokensChanged(BackendAuthentication auth) {
+    coordinator.tokensChanged(auth);
+  }
+
+  /**
+   * Abandonne les rafraîchissements planifiés d'une copie de session qui n'est plus utilisée par
+   * cette instance, sans rien oublier de ses tokens.
+   */
+  public void release(BackendAuthentication auth) {
+    auth.cancelRefreshes();
+  }
+
+  private void schedule(BackendAuthentication auth, String key, long validitySeconds, Runnable refresh) {
+    if (validitySeconds <= 0) {
+      return;
+    }
+    final long delay = Math.max(validitySeconds - margin.toSeconds(), validitySeconds / 2);
+    scheduleAt(auth, key, System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(delay), refresh);
+  }
+
+  private void scheduleAt(BackendAuthentication auth, String key, long dueAt, Runnable refresh) {
+    if (auth.isWiped()) {
+      return;
+    }
+    final long delay = Math.max(0, dueAt - System.currentTimeMillis());
+    LOGGER.debug("Rafraîchissement du token {} planifié dans {}ms", key, delay);
+    auth.registerRefresh(
+        key,
+        timer.newTimeout(
+            t -> Schedulers.boundedElastic().schedule(refresh), delay, TimeUnit.MILLISECONDS),
+        dueAt);
+  }
+
+  /**
+   * @return <code>true</code> si une autre instance rafraîchit déjà ce token : une nouvelle tentative
+   *     est alors planifiée au terme de son droit.
+   */
+  private boolean deferred(BackendAuthentication auth, String key, Runnable refresh) {
+    if (coordinator.tryAcquire(auth, key)) {
+      return false;
+    }
+    LOGGER.debug("Token {} rafraîchi par une autre instance.", key);
+    scheduleAt(auth, key, System.currentTimeMillis() + RefreshCoordinator.LEASE.toMillis(), refresh);
+    return true;
+  }
+
+  private boolean isOver(BackendAuthentication auth) {
+    if (auth.isWiped()) {
+      return true;
+    }
+    if (System.currentTimeMillis() - auth.lastUse() > sessionTimeout.toMillis()) {
+      LOGGER.debug("Session inutilisée depuis plus de {}, arrêt du rafraîchissement.", sessionTimeout);
+      auth.cancelRefreshes();
+      return true;
+    }
+    return false;
+  }
+
+  private void refreshBackend(BackendAuthentication auth, Backend backend, BackendAccess previous) {
+    if (isOver(auth)
+        || deferred(auth, backend.id(), () -> refreshBackend(auth, backend, previous))) {
+      return;
+    }
+    BackendAccess next;
+    try {
+      next = auth.tokenExchange().refreshBackendAccess(backend, previous);
+    } catch (RuntimeException e) {
+      LOGGER.warn("Échec du rafraîchissement du token de {}, nouvel échange de token.", backend.id(), e);
+      try {
+        next = auth.tokenExchange().getBackendAccessFromPSC(backend);
+      } catch (RuntimeException e2) {
+        LOGGER.warn("Échec du renouvellement du token de {}, il expirera.", backend.id(), e2);
+        return;
+      }
+    }
+    auth.switchBackendToken(backend.id(), next);
+    LOGGER.debug("Token de {} rafraîchi.", backend.id());
+    scheduleBackend(auth, backend, next);
+    coordinator.tokensChanged(auth);
+  }
+
+  private void refreshPsc(BackendAuthentication auth) {
+    if (isOver(auth) || deferred(auth, PSC_KEY, () -> refreshPsc(auth))) {
+      return;
+    }
+    try {
+      final TokenExchangeProcess tokenExchange = auth.tokenExchange();
+      tokenExchange.switchPscSession(
+          pscService.refresh(tokenExchange.pscSession(), tokenExchange.clientId()));
+      LOGGER.debug("Token PSC rafraîchi pour le client {}.", tokenExchange.clientId());
+      schedulePsc(auth);
+      coordinator.tokensChanged(auth);
+    } catch (RuntimeException e) {
+      LOGGER.warn("Échec du rafraîchissement du token PSC, il expirera.", e);
+    }
+  }
+
+  @Override
+  public void destroy() {
+    timer.stop();
+  }
+}
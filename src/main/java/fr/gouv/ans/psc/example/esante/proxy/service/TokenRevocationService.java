@@ -0,0 +1,258 @@
+/*
+ * The MIT License
+ * Copyright © 2024-2025 Agence du Numérique en Santé (ANS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.gouv.ans.psc.example.esante.proxy.service;
+
+import com.nimbusds.oauth2.sdk.TokenRevocationRequest;
+import com.nimbusds.oauth2.sdk.http.HTTPRequest;
+import com.nimbusds.oauth2.sdk.http.HTTPResponse;
+import com.nimbusds.oauth2.sdk.token.BearerAccessToken;
+import com.nimbusds.oauth2.sdk.token.RefreshToken;
+import com.nimbusds.oauth2.sdk.token.Token;
+import fr.gouv.ans.psc.example.esante.proxy.config.BackendAuthenticationConfig;
+import fr.gouv.ans.psc.example.esante.proxy.config.TokenRevocationConfig;
+import java.io.IOException;
+import java.net.URI;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.retry.Retry;
+
+/**
+ * Révocation asynchrone des tokens d'une session close (déconnexion ou expiration) : déconnexion
+ * PSC, révocation (RFC 7009) du refresh token PSC et des tokens des backends qui publient un
+ * endpoint de révocation.
+ * Les appels sont préparés à la fermeture de la session puis confiés à une file d'attente : la
+ * fermeture ne coûte qu'une opération locale. Un flux unique, ouvert pour toute la vie du service,
+ * les répartit par serveur d'identité, avec un nombre borné d'appels simultanés vers chaque serveur,
+ * et les retente en cas d'échec transitoire (erreur réseau, 429 ou 5xx) : les reprises d'un serveur
+ * lent ne retardent que les révocations qui le visent.
+ *
+ * @author edegenetais
+ */
+@Component
+public class TokenRevocationService implements DisposableBean {
+  private static final Logger LOGGER = LoggerFactory.getLogger(TokenRevocationService.class);
+  private static final Duration SHUTDOWN_TIMEOUT = Duration.ofSeconds(10);
+
+  private final PSCSessionService pscService;
+  private final BackendIndex index;
+  private final TokenRevocationConfig cfg;
+  private final CredentialMaterialCache materials;
+  private final int timeoutMillis;
+  private final Sinks.Many<Revocation> queue;
+  private final AtomicLong pending = new AtomicLong();
+  private final AtomicLong revoked = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+  private final Disposable worker;
+
+  public TokenRevocationService(
+      @Autowired PSCSessionService pscService,
+      @Autowired BackendAuthenticationConfig backendCfg,
+      @Autowired TokenRevocationConfig cfg,
+      @Autowired CredentialMaterialCache materials) {
+    this.pscService = pscService;
+    this.index = backendCfg.index();
+    this.cfg = cfg;
+    this.materials = materials;
+    this.timeoutMillis = (int) Math.min(Integer.MAX_VALUE, cfg.timeout().toMillis());
+    this.queue =
+        Sinks.many().unicast().onBackpressureBuffer(new LinkedBlockingQueue<>(cfg.queueCapacity()));
+    // les groupes ne se terminent jamais : il en faut un abonné par serveur, PSC compris.
+    this.worker =
+        queue
+            .asFlux()
+            .groupBy(Revocation::server, cfg.queueCapacity())
+            .flatMap(
+                server -> server.flatMap(this::send, cfg.parallelism()), index.size() + 2)
+            .subscribe();
+  }
+
+  /**
+   * Planifie la révocation des tokens de la session. Les tokens sont relevés immédiatement : la
+   * session peut être effacée dès le retour de cet appel.
+   *
+   * @param clientId client LPS porteur de la session.
+   * @param cibaSession session PSC obtenue à la connexion, si la session n'a pas été rafraîchie.
+   * @param backendAuth contexte d'authentification auprès des backends, éventuellement
+   *     <code>null</code>.
+   */
+  public void revoke(String clientId, CIBASession cibaSession, BackendAuthentication backendAuth) {
+    final CIBASession psc =
+        backendAuth != null && backendAuth.pscSession() != null
+            ? backendAuth.pscSession()
+            : cibaSession;
+    if (psc != null) {
+      try {
+        enqueue(new Revocation("PSC logout", pscService.logoutRequest(psc, clientId)));
+        pscService
+            .revocationRequest(psc, clientId)
+            .ifPresent(r -> enqueue(new Revocation("PSC refresh token", r)));
+      } catch (RuntimeException e) {
+        LOGGER.warn("Impossible de préparer la déconnexion PSC du client {}", clientId, e);
+      }
+    }
+    if (backendAuth != null) {
+      for (int ordinal = 0; ordinal < index.size(); ordinal++) {
+        final BackendAccess access = backendAuth.findBackendToken(ordinal);
+        final Backend backend = index.backend(ordinal);
+        final Optional<URI> revocationUri = backend.revocationUri();
+        if (access != null && revocationUri.isPresent()) {
+          final Token token =
+              access.refreshToken() != null
+                  ? new RefreshToken(access.refreshToken())
+                  : new BearerAccessToken(access.accessToken());
+          enqueue(
+              new Revocation(
+                  backend.id() + " token",
+                  new TokenRevocationRequest(
+                          revocationUri.get(),
+                          backendAuth.credential.buildAuth(clientId, materials),
+                          token)
+                      .toHTTPRequest()));
+        }
+      }
+    }
+  }
+
+  private void enqueue(Revocation revocation) {
+    pending.incrementAndGet();
+    final Sinks.EmitResult result;
+    synchronized (queue) {
+      result = queue.tryEmitNext(revocation);
+    }
+    if (result.isFailure()) {
+      done();
+      rejected.incrementAndGet();
+      LOGGER.warn("File de révocation pleine, révocation {} abandonnée.", revocation.description());
+    }
+  }
+
+  private Mono<Void> send(Revocation revocation) {
+    final HTTPRequest request = revocation.request();
+    request.setConnectTimeout(timeoutMillis);
+    request.setReadTimeout(timeoutMillis);
+    return Mono.fromCallable(request::send)
+        .subscribeOn(Schedulers.boundedElastic())
+        .flatMap(
+            response ->
+                response.indicatesSuccess()
+                    ? Mono.<Void>empty()
+                    : Mono.<Void>error(new RevocationFailure(response)))
+        .retryWhen(
+            Retry.backoff(cfg.maxAttempts() - 1, cfg.retryBackoff())
+                .filter(TokenRevocationService::isTransient))
+        .doOnSuccess(
+            v -> {
+              revoked.incrementAndGet();
+              LOGGER.debug("Révocation {} effectuée.", revocation.description());
+            })
+        .onErrorResume(
+            e -> {
+              failed.incrementAndGet();
+              LOGGER.warn("Échec de la révocation {} : {}", revocation.description(), e.getMessage());
+              return Mono.empty();
+            })
+        .doFinally(s -> done());
+  }
+
+  private static boolean isTransient(Throwable e) {
+    if (e instanceof RevocationFailure failure) {
+      final int status = failure.status;
+      return status == 429 || status >= 500;
+    }
+    return e instanceof IOException;
+  }
+
+  private void done() {
+    if (pending.decrementAndGet() == 0) {
+      synchronized (pending) {
+        pending.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Attend que toutes les révocations planifiées soient traitées.
+   *
+   * @return <code>false</code> si le délai a expiré avant.
+   */
+  public boolean flush(Duration timeout) {
+    final long deadline = System.nanoTime() + timeout.toNanos();
+    synchronized (pending) {
+      while (pending.get() > 0) {
+        final long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+          return false;
+        }
+        try {
+          pending.wait(Math.max(1, remaining / 1_000_000));
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  public TokenRevocationStats stats() {
+    return new TokenRevocationStats(pending.get(), revoked.get(), failed.get(), rejected.get());
+  }
+
+  @Override
+  public void destroy() {
+    if (!flush(SHUTDOWN_TIMEOUT)) {
+      LOGGER.warn("{} révocation(s) non effectuée(s) à l'arrêt.", pending.get());
+    }
+    worker.dispose();
+  }
+
+  /** Appel de révocation préparé, et le serveur d'identité qu'il vise. */
+  private record Revocation(String description, HTTPRequest request) {
+    URI server() {
+      final URI uri = request.getURI();
+      return URI.create(uri.getScheme() + "://" + uri.getAuthority());
+    }
+  }
+
+  /** Réponse d'échec d'un serveur d'identité. */
+  private static final class RevocationFailure extends RuntimeException {
+    private final int status;
+
+    RevocationFailure(HTTPResponse response) {
+      super("HTTP " + response.getStatusCode() + " " + response.getBody());
+      this.status = response.getStatusCode();
+    }
+  }
+}
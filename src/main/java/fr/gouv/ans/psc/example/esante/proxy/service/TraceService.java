@@ -22,36 +22,240 @@
  */
 package fr.gouv.ans.psc.example.esante.proxy.service;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import fr.gouv.ans.psc.example.esante.proxy.config.TraceJournalConfig;
+import fr.gouv.ans.psc.example.esante.proxy.config.TraceStoreConfig;
 import fr.gouv.ans.psc.example.esante.proxy.model.Request;
 import fr.gouv.ans.psc.example.esante.proxy.model.Trace;
 import fr.gouv.ans.psc.example.esante.proxy.model.TraceType;
-import java.security.cert.X509Certificate;
+import fr.gouv.ans.psc.example.esante.proxy.service.trace.TraceCursor;
+import fr.gouv.ans.psc.example.esante.proxy.service.trace.TraceJournal;
+import fr.gouv.ans.psc.example.esante.proxy.service.trace.TraceJournalStats;
+import fr.gouv.ans.psc.example.esante.proxy.service.trace.TracePage;
+import fr.gouv.ans.psc.example.esante.proxy.service.trace.TracePipeline;
+import fr.gouv.ans.psc.example.esante.proxy.service.trace.TracePipelineStats;
+import fr.gouv.ans.psc.example.esante.proxy.service.trace.TraceQuery;
+import fr.gouv.ans.psc.example.esante.proxy.service.trace.TraceRollup;
+import fr.gouv.ans.psc.example.esante.proxy.service.trace.TraceRollups;
+import fr.gouv.ans.psc.example.esante.proxy.service.trace.TraceStore;
+import fr.gouv.ans.psc.example.esante.proxy.service.trace.TraceStoreStats;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.time.Instant;
 import java.time.OffsetDateTime;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 /**
  * @author edegenetais
  */
 @Component
-public class TraceService {
+public class TraceService implements DisposableBean {
+  private static final Logger LOGGER = LoggerFactory.getLogger(TraceService.class);
 
-  public final List<Trace> store;
+  private final TraceStore store;
+  private final TraceJournal journal;
+  private final TracePipeline pipeline;
+  private final TraceRollups rollups = new TraceRollups();
+  /** Les décomptes suivent la rétention des traces qu'ils résument : journal ou mémoire. */
+  private final Duration rollupMaxAge;
+  private final TraceStoreConfig cfg;
+  private final ObjectMapper mapper;
+  private final ScheduledExecutorService retention =
+      Executors.newSingleThreadScheduledExecutor(
+          r -> {
+            Thread t = new Thread(r, "trace-retention");
+            t.setDaemon(true);
+            return t;
+          });
+  /** Reconstruction des décomptes depuis le journal, achevée d'emblée sans journal. */
+  private final Future<?> rollupsRebuilt;
 
-  public TraceService() {
-    store = new LinkedList<>();
+  public TraceService(
+      @Autowired TraceStoreConfig cfg,
+      @Autowired TraceJournalConfig journalCfg,
+      @Autowired ObjectMapper mapper) {
+    this.mapper = mapper;
+    this.cfg = cfg;
+    store = new TraceStore(cfg, mapper);
+    journal = journalCfg.enabled() ? new TraceJournal(journalCfg, mapper) : null;
+    pipeline =
+        new TracePipeline(
+            cfg.pipelineCapacity(),
+            cfg.pipelineOverflow(),
+            cfg.pipelineOverflowWait(),
+            batch -> {
+              batch.forEach(rollups::record);
+              if (journal == null) {
+                batch.forEach(store::append);
+              } else {
+                journal.appendAll(batch);
+              }
+            });
+    rollupMaxAge = journal == null ? cfg.maxAge() : journalCfg.maxAge();
+    rollupsRebuilt =
+        journal == null
+            ? CompletableFuture.completedFuture(null)
+            : retention.submit(this::rebuildRollups);
+    final long period = cfg.retentionInterval().toMillis();
+    retention.scheduleWithFixedDelay(this::enforceRetention, period, period, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Les décomptes ne sont tenus qu'en mémoire : au démarrage, ils sont recalculés à partir des
+   * traces que le journal a conservées dans leur fenêtre de rétention.
+   */
+  private void rebuildRollups() {
+    try {
+      journal.replayRecovered(Instant.now().minus(rollupMaxAge), rollups::record);
+    } catch (RuntimeException e) {
+      LOGGER.error("Failed to rebuild trace rollups from the journal.", e);
+    }
+  }
+
+  private void enforceRetention() {
+    try {
+      final Instant now = Instant.now();
+      if (journal == null) {
+        store.enforceRetention(now);
+      } else {
+        journal.expire(now);
+      }
+      rollups.expire(now.minus(rollupMaxAge));
+    } catch (RuntimeException e) {
+      // une exception annulerait les passages suivants.
+      LOGGER.error("Trace retention failed.", e);
+    }
   }
   
+  /**
+   * Publie l'événement de trace : la trace est construite, validée et stockée en tâche de fond.
+   * Sans attente : si la chaîne est saturée, la trace est abandonnée et comptée.
+   */
   public void record(TraceType traceType, SessionTraceData sessionTraceData, BaseTraceData baseTraceData, final Request outGoingRequest) {
-    Optional<X509Certificate> crt = sessionTraceData.clientCertificate();
-    final Trace newTrace = new Trace(traceType, sessionTraceData.clientId(), sessionTraceData.nationalId(), baseTraceData.remoteAddress(), baseTraceData.sourcePorts(), sessionTraceData.proxy_session_id(), sessionTraceData.sessionState(), crt.isPresent() ? crt.get().getSubjectX500Principal().toString() : null, OffsetDateTime.now(), outGoingRequest);
-    store.add(newTrace);
+    pipeline.publish(traceType, sessionTraceData, baseTraceData, outGoingRequest);
   }
 
-  
-  public synchronized List<Trace> getTraces() {
-    return List.copyOf(store);
+  /**
+   * Les traces sont lues dans le journal persistant s'il est activé, en mémoire sinon.
+   *
+   * @return les traces horodatées strictement entre les deux bornes qui satisfont les critères.
+   */
+  public Stream<Trace> getTraces(OffsetDateTime after, OffsetDateTime before, TraceQuery query) {
+    pipeline.flush();
+    return journal == null
+        ? store.range(after, before, query)
+        : journal.range(after, before, query);
+  }
+
+  /**
+   * @return les traces horodatées strictement entre les deux bornes, sérialisées en JSON. Celles du
+   *     journal persistant sont lues telles quelles, sans désérialisation.
+   */
+  public Stream<ByteBuffer> getTracesAsJson(
+      OffsetDateTime after, OffsetDateTime before, TraceQuery query) {
+    pipeline.flush();
+    if (journal != null) {
+      return journal.rawRange(after, before, query);
+    }
+    return store.range(after, before, query).map(this::toJson);
+  }
+
+  /**
+   * @param cursor position de reprise, <code>null</code> pour la première page.
+   * @param limit nombre maximal de traces de la page.
+   * @return une page des traces horodatées strictement entre les deux bornes.
+   */
+  public TracePage<Trace> getTracePage(
+      OffsetDateTime after,
+      OffsetDateTime before,
+      TraceQuery query,
+      TraceCursor cursor,
+      int limit) {
+    pipeline.flush();
+    return journal == null
+        ? store.page(after, before, query, cursor, limit)
+        : journal.page(after, before, query, cursor, limit);
+  }
+
+  /**
+   * @return une page des traces horodatées strictement entre les deux bornes, sérialisées en JSON.
+   */
+  public TracePage<ByteBuffer> getTracePageAsJson(
+      OffsetDateTime after,
+      OffsetDateTime before,
+      TraceQuery query,
+      TraceCursor cursor,
+      int limit) {
+    pipeline.flush();
+    if (journal != null) {
+      return journal.rawPage(after, before, query, cursor, limit);
+    }
+    final TracePage<Trace> page = store.page(after, before, query, cursor, limit);
+    return new TracePage<>(page.traces().stream().map(this::toJson).toList(), page.next());
+  }
+
+  /**
+   * @return les décomptes par minute des traces enregistrées entre les deux bornes, ventilés selon
+   *     la dimension. Ils sont tenus à jour à l'enregistrement : le coût de lecture ne dépend que du
+   *     nombre de minutes. Juste après un démarrage, l'appel attend qu'ils aient été reconstruits
+   *     depuis le journal.
+   */
+  public List<TraceRollup> getTraceRollups(
+      OffsetDateTime after, OffsetDateTime before, TraceRollups.Dimension dimension) {
+    try {
+      rollupsRebuilt.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new TechnicalFailure("Interrupted while rebuilding trace rollups.", e);
+    } catch (ExecutionException | CancellationException e) {
+      throw new TechnicalFailure("Trace rollups could not be rebuilt.", e);
+    }
+    pipeline.flush();
+    return rollups.query(after, before, dimension);
+  }
+
+  private ByteBuffer toJson(Trace trace) {
+    try {
+      return ByteBuffer.wrap(mapper.writeValueAsBytes(trace));
+    } catch (JsonProcessingException e) {
+      throw new TechnicalFailure("Failed to serialize trace.", e);
+    }
+  }
+
+  public TraceStoreStats stats() {
+    return store.stats();
+  }
+
+  public TracePipelineStats pipelineStats() {
+    return pipeline.stats();
+  }
+
+  public Optional<TraceJournalStats> journalStats() {
+    return Optional.ofNullable(journal).map(TraceJournal::stats);
+  }
+
+  @Override
+  public void destroy() {
+    retention.shutdownNow();
+    pipeline.close();
+    store.close();
+    if (journal != null) {
+      journal.close();
+    }
   }
 }
@@ -0,0 +1,87 @@
+/*
+ * The MIT License
+ * Copyright © 2024-2025 Agence du Numérique en Santé (ANS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.gouv.ans.psc.example.esante.proxy.service.session;
+
+import fr.gouv.ans.psc.example.esante.proxy.controller.SessionAttributes;
+import fr.gouv.ans.psc.example.esante.proxy.service.Backend;
+import fr.gouv.ans.psc.example.esante.proxy.service.BackendAuthentication;
+import fr.gouv.ans.psc.example.esante.proxy.service.TokenRefreshService;
+import java.util.List;
+import org.springframework.session.MapSession;
+
+/**
+ * Session relue par {@link SessionCodec}, avec les dates prévues pour le rafraîchissement de ses
+ * tokens. Le décodage ne planifie rien : le rafraîchissement ne reprend que par
+ * {@link #resumeRefreshes}, une fois la session adoptée par un stockage.
+ *
+ * @param session la session relue.
+ * @param refreshes rafraîchissements à reprendre.
+ * @author edegenetais
+ */
+public record DecodedSession(MapSession session, List<PendingRefresh> refreshes) {
+
+  /**
+   * @param key identifiant du backend, ou {@link TokenRefreshService#PSC_KEY}.
+   * @return la date prévue du rafraîchissement de ce token, <code>-1</code> s'il n'y en a pas.
+   */
+  public long refreshDueAt(String key) {
+    for (PendingRefresh refresh : refreshes) {
+      if (refresh.key().equals(key)) {
+        return refresh.dueAt();
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Replanifie le rafraîchissement des tokens aux dates prévues avant l'encodage.
+   */
+  public void resumeRefreshes(TokenRefreshService refreshService) {
+    final BackendAuthentication auth = session.getAttribute(SessionAttributes.BACKEND_AUTH_ATTR);
+    if (auth == null) {
+      return;
+    }
+    for (PendingRefresh refresh : refreshes) {
+      if (refresh.backend() == null) {
+        refreshService.resumePsc(auth, refresh.dueAt());
+      } else {
+        refreshService.resumeBackend(
+            auth,
+            refresh.backend(),
+            auth.findBackendToken(refresh.backend().id()),
+            refresh.dueAt());
+      }
+    }
+  }
+
+  /**
+   * Rafraîchissement à reprendre : token d'un backend, ou token PSC sans backend.
+   *
+   * @param dueAt date du rafraîchissement, en millisecondes epoch.
+   */
+  public record PendingRefresh(Backend backend, long dueAt) {
+    public String key() {
+      return backend == null ? TokenRefreshService.PSC_KEY : backend.id();
+    }
+  }
+}
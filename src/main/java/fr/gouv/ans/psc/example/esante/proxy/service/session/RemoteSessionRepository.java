@@ -0,0 +1,622 @@
+/*
+ * The MIT License
+ * Copyright © 2024-2025 Agence du Numérique en Santé (ANS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.gouv.ans.psc.example.esante.proxy.service.session;
+
+import fr.gouv.ans.psc.example.esante.proxy.config.SessionStoreConfig;
+import fr.gouv.ans.psc.example.esante.proxy.controller.SessionAttributes;
+import fr.gouv.ans.psc.example.esante.proxy.service.BackendAuthentication;
+import fr.gouv.ans.psc.example.esante.proxy.service.RefreshCoordinator;
+import fr.gouv.ans.psc.example.esante.proxy.service.TechnicalFailure;
+import fr.gouv.ans.psc.example.esante.proxy.service.TokenRefreshService;
+import io.lettuce.core.ClientOptions;
+import io.lettuce.core.RedisChannelHandler;
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisConnectionStateListener;
+import io.lettuce.core.RedisException;
+import io.lettuce.core.RedisURI;
+import io.lettuce.core.SetArgs;
+import io.lettuce.core.TimeoutOptions;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.api.reactive.RedisReactiveCommands;
+import io.lettuce.core.codec.ByteArrayCodec;
+import io.lettuce.core.codec.RedisCodec;
+import io.lettuce.core.codec.StringCodec;
+import io.lettuce.core.protocol.ProtocolVersion;
+import io.lettuce.core.pubsub.RedisPubSubAdapter;
+import io.lettuce.core.pubsub.StatefulRedisPubSubConnection;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.session.MapSession;
+import org.springframework.session.ReactiveSessionRepository;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * Stockage des sessions partagé entre instances du proxy, sur un serveur parlant le protocole
+ * Redis. Chaque session y est rangée sous sa clé, encodée par {@link SessionCodec} et précédée
+ * d'un numéro de version ; sa durée de vie est celle de la clé, prolongée à chaque accès.
+ * Chaque instance garde un cache local des sessions qu'elle a lues ou écrites : une session en
+ * cache est restituée sans appel au serveur. Toute écriture publie l'identifiant et la nouvelle
+ * version de la session sur un canal d'invalidation, et les autres instances oublient alors leur
+ * copie, relue au prochain accès. Tant que l'abonnement à ce canal est rompu, le cache n'est plus
+ * consulté.
+ * Une session dont seuls les accès changent n'est pas réécrite : les prolongations sont reportées
+ * vers le serveur par lots, toutes les <code>proxy.session-store.touch-interval</code>.
+ * Chaque copie d'une session planifie le rafraîchissement de ses tokens ; en tant que
+ * {@link RefreshCoordinator}, ce stockage réserve chaque rafraîchissement à une seule instance, qui
+ * publie ensuite la session renouvelée.
+ * L'expiration a lieu sur le serveur, qui la signale par ses notifications d'espace de clés
+ * (<code>notify-keyspace-events</code>, activées au démarrage si le serveur le permet). Chaque
+ * session y est doublée d'une fiche de révocation, de même contenu mais qui lui survit quelques
+ * minutes : à l'expiration de la session, la première instance qui retire cette fiche prévient les
+ * écouteurs d'expiration, qui révoquent ses tokens.
+ *
+ * @author edegenetais
+ */
+public class RemoteSessionRepository
+    implements ReactiveSessionRepository<MapSession>,
+        SessionExpiryNotifier,
+        RefreshCoordinator,
+        DisposableBean {
+  private static final Logger LOGGER = LoggerFactory.getLogger(RemoteSessionRepository.class);
+  private static final RedisCodec<String, byte[]> CODEC =
+      RedisCodec.of(StringCodec.UTF8, ByteArrayCodec.INSTANCE);
+  private static final int FORMAT_VERSION = 1;
+  private static final long DELETED = 0;
+  private static final String NOTIFY_KEYSPACE_EVENTS = "notify-keyspace-events";
+  /** Survie de la fiche de révocation à sa session, le temps que l'expiration soit signalée. */
+  private static final Duration REVOCATION_GRACE = Duration.ofMinutes(5);
+
+  private final SessionCodec codec;
+  private final TokenRefreshService refreshService;
+  private final String keyPrefix;
+  private final String channel;
+  private final String expiredChannel;
+  private final int nearCacheSize;
+  private final Duration timeout;
+  private final byte[] backendTable;
+  private final byte[] node = UUID.randomUUID().toString().getBytes(StandardCharsets.US_ASCII);
+  private final long versionBase = ThreadLocalRandom.current().nextLong();
+  private final AtomicLong versions = new AtomicLong();
+  private final RedisClient client;
+  private final StatefulRedisConnection<String, byte[]> connection;
+  private final RedisReactiveCommands<String, byte[]> commands;
+  private final StatefulRedisPubSubConnection<String, byte[]> invalidations;
+  private final Map<String, Cached> nearCache = new ConcurrentHashMap<>();
+  private final Map<BackendAuthentication, String> sessionIds = new ConcurrentHashMap<>();
+  private final Set<String> touched = ConcurrentHashMap.newKeySet();
+  private final List<Consumer<MapSession>> expiryListeners = new CopyOnWriteArrayList<>();
+  private final ScheduledExecutorService toucher;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong writes = new AtomicLong();
+  private final AtomicLong touches = new AtomicLong();
+  private final AtomicLong invalidated = new AtomicLong();
+  private volatile boolean trusted;
+  private volatile Duration defaultMaxInactiveInterval =
+      Duration.ofSeconds(MapSession.DEFAULT_MAX_INACTIVE_INTERVAL_SECONDS);
+
+  public RemoteSessionRepository(
+      SessionStoreConfig cfg, SessionCodec codec, TokenRefreshService refreshService) {
+    this.codec = codec;
+    this.refreshService = refreshService;
+    this.keyPrefix = cfg.keyPrefix();
+    this.channel = cfg.keyPrefix() + "invalidations";
+    this.expiredChannel =
+        "__keyevent@" + RedisURI.create(cfg.uri()).getDatabase() + "__:expired";
+    this.nearCacheSize = cfg.nearCacheSize();
+    this.timeout = cfg.timeout();
+    try {
+      final ByteArrayOutputStream table = new ByteArrayOutputStream();
+      codec.writeBackendTable(new DataOutputStream(table));
+      this.backendTable = table.toByteArray();
+    } catch (IOException e) {
+      throw new IllegalStateException("In-memory write failure", e);
+    }
+
+    this.client = RedisClient.create(RedisURI.create(cfg.uri()));
+    client.setOptions(
+        ClientOptions.builder()
+            .protocolVersion(ProtocolVersion.RESP2)
+            .timeoutOptions(TimeoutOptions.enabled(timeout))
+            .build());
+    this.connection = client.connect(CODEC);
+    this.commands = connection.reactive();
+    this.invalidations = client.connectPubSub(CODEC);
+    client.addListener(new InvalidationStateListener());
+    invalidations.addListener(
+        new RedisPubSubAdapter<>() {
+          @Override
+          public void message(String channel, byte[] message) {
+            if (expiredChannel.equals(channel)) {
+              expired(new String(message, StandardCharsets.UTF_8));
+            } else {
+              invalidated(message);
+            }
+          }
+        });
+    enableExpiryEvents();
+    invalidations.sync().subscribe(channel, expiredChannel);
+    this.trusted = true;
+
+    this.toucher =
+        Executors.newSingleThreadScheduledExecutor(
+            r -> {
+              Thread t = new Thread(r, "session-store");
+              t.setDaemon(true);
+              return t;
+            });
+    toucher.scheduleWithFixedDelay(
+        this::flushTouches,
+        cfg.touchInterval().toMillis(),
+        cfg.touchInterval().toMillis(),
+        TimeUnit.MILLISECONDS);
+    LOGGER.info("Sessions partagées sur {}", RedisURI.create(cfg.uri()).toURI().getAuthority());
+  }
+
+  public void setDefaultMaxInactiveInterval(Duration defaultMaxInactiveInterval) {
+    this.defaultMaxInactiveInterval = defaultMaxInactiveInterval;
+  }
+
+  /**
+   * Enregistre un écouteur prévenu, sur une seule des instances, de chaque session expirée sur le
+   * serveur. Les sessions supprimées explicitement ne sont pas concernées.
+   */
+  @Override
+  public void addExpiryListener(Consumer<MapSession> listener) {
+    expiryListeners.add(listener);
+  }
+
+  @Override
+  public Mono<MapSession> createSession() {
+    return Mono.fromSupplier(
+        () -> {
+          final MapSession session = new MapSession();
+          session.setMaxInactiveInterval(defaultMaxInactiveInterval);
+          return session;
+        });
+  }
+
+  @Override
+  public Mono<Void> save(MapSession session) {
+    return Mono.defer(
+        () -> {
+          final MapSession copy = new MapSession(session);
+          final Mono<Void> renamed =
+              copy.getId().equals(session.getOriginalId())
+                  ? Mono.empty()
+                  : deleteById(session.getOriginalId());
+          final Cached previous = nearCache.get(copy.getId());
+          if (previous != null && sameAttributes(previous.session, copy)) {
+            // simple accès : la copie du serveur reste valable, seule sa durée de vie change.
+            nearCache.replace(copy.getId(), previous, new Cached(previous.version, copy));
+            touched.add(copy.getId());
+            return renamed;
+          }
+          return renamed.then(write(copy));
+        });
+  }
+
+  @Override
+  public Mono<MapSession> findById(String id) {
+    return Mono.defer(
+        () -> {
+          final Cached cached = trusted ? nearCache.get(id) : null;
+          if (cached != null && !cached.session.isExpired()) {
+            hits.incrementAndGet();
+            cached.lastHit = System.nanoTime();
+            return Mono.just(new MapSession(cached.session));
+          }
+          misses.incrementAndGet();
+          return commands
+              .get(key(id))
+              .map(value -> new MapSession(load(value)))
+              .switchIfEmpty(Mono.fromRunnable(() -> evict(id)))
+              .onErrorMap(RedisException.class, this::unavailable);
+        });
+  }
+
+  @Override
+  public Mono<Void> deleteById(String id) {
+    return Mono.defer(
+        () -> {
+          evict(id);
+          touched.remove(id);
+          return commands
+              .del(key(id), revocationKey(id))
+              .then(commands.publish(channel, invalidation(id, DELETED)))
+              .then()
+              .onErrorMap(RedisException.class, this::unavailable);
+        });
+  }
+
+  @Override
+  public boolean tryAcquire(BackendAuthentication auth, String key) {
+    final String id = sessionIds.get(auth);
+    if (id == null) {
+      return true;
+    }
+    final String lease = keyPrefix + "refresh:" + id + ":" + key;
+    try {
+      final String acquired =
+          connection.sync().set(lease, node, SetArgs.Builder.nx().px(LEASE.toMillis()));
+      // une instance qui détient déjà le droit le garde pour ses rafraîchissements suivants.
+      return "OK".equals(acquired) || Arrays.equals(node, connection.sync().get(lease));
+    } catch (RedisException e) {
+      // sans coordination, toutes les instances rafraîchiraient le même token : il attendra.
+      LOGGER.warn("Stockage des sessions injoignable, rafraîchissement du token {} reporté.", key, e);
+      return false;
+    }
+  }
+
+  @Override
+  public void tokensChanged(BackendAuthentication auth) {
+    final String id = sessionIds.get(auth);
+    final Cached cached = id == null ? null : nearCache.get(id);
+    if (cached == null || cached.auth() != auth) {
+      return;
+    }
+    write(new MapSession(cached.session))
+        .subscribe(
+            null, e -> LOGGER.warn("Échec de la publication des tokens renouvelés de {}.", id, e));
+  }
+
+  /**
+   * @return l'état du stockage partagé et du cache local.
+   */
+  public RemoteSessionStoreStats stats() {
+    return new RemoteSessionStoreStats(
+        nearCache.size(),
+        hits.get(),
+        misses.get(),
+        writes.get(),
+        touches.get(),
+        invalidated.get(),
+        trusted);
+  }
+
+  @Override
+  public void destroy() throws InterruptedException {
+    toucher.shutdown();
+    toucher.awaitTermination(timeout.toMillis(), TimeUnit.MILLISECONDS);
+    flushTouches();
+    nearCache.forEach(this::evict);
+    invalidations.close();
+    connection.close();
+    client.shutdown();
+  }
+
+  private Mono<Void> write(MapSession session) {
+    final String id = session.getId();
+    final long version = versionBase + versions.incrementAndGet();
+    final byte[] value = encode(version, session);
+    cache(id, new Cached(version, session));
+    final long ttl = session.getMaxInactiveInterval().toMillis();
+    final Mono<Void> set =
+        ttl > 0
+            ? Mono.when(
+                commands.set(key(id), value, SetArgs.Builder.px(ttl)),
+                commands.set(
+                    revocationKey(id),
+                    value,
+                    SetArgs.Builder.px(ttl + REVOCATION_GRACE.toMillis())))
+            : commands.set(key(id), value).then();
+    return set.then(commands.publish(channel, invalidation(id, version)))
+        .doOnSuccess(n -> writes.incrementAndGet())
+        .then()
+        .onErrorMap(RedisException.class, this::unavailable);
+  }
+
+  /**
+   * Décode une session lue sur le serveur et la range dans le cache local, qui porte alors le
+   * rafraîchissement de ses tokens. Son dernier accès est celui de la lecture : la clé existe
+   * encore, elle n'a donc pas expiré.
+   */
+  private MapSession load(byte[] value) {
+    final Stored stored = decode(value);
+    final MapSession session = stored.decoded().session();
+    session.setLastAccessedTime(Instant.now());
+    cache(session.getId(), new Cached(stored.version(), session));
+    stored.decoded().resumeRefreshes(refreshService);
+    return session;
+  }
+
+  private Stored decode(byte[] value) {
+    try {
+      final DataInputStream in = new DataInputStream(new ByteArrayInputStream(value));
+      if (in.readUnsignedByte() != FORMAT_VERSION) {
+        throw new IOException("Unsupported session format");
+      }
+      final long version = in.readLong();
+      return new Stored(version, codec.read(in, codec.readBackendTable(in)));
+    } catch (IOException e) {
+      throw new TechnicalFailure("Session illisible dans le stockage partagé.", e);
+    }
+  }
+
+  /**
+   * Complète les notifications d'espace de clés du serveur avec celles des expirations, sans retirer
+   * celles déjà activées.
+   */
+  private void enableExpiryEvents() {
+    try {
+      final String events =
+          connection
+              .sync()
+              .configGet(NOTIFY_KEYSPACE_EVENTS)
+              .getOrDefault(NOTIFY_KEYSPACE_EVENTS, "");
+      if (!events.contains("E") || !(events.contains("x") || events.contains("A"))) {
+        connection.sync().configSet(NOTIFY_KEYSPACE_EVENTS, events + "Ex");
+      }
+    } catch (RedisException e) {
+      LOGGER.warn(
+          "Impossible d'activer les notifications d'expiration ({} doit contenir Ex) : les tokens"
+              + " des sessions expirées sur le stockage partagé ne seront pas révoqués.",
+          NOTIFY_KEYSPACE_EVENTS,
+          e);
+    }
+  }
+
+  /**
+   * Une session a expiré sur le serveur : l'instance qui retire sa fiche de révocation prévient les
+   * écouteurs, hors du thread de la connexion.
+   */
+  private void expired(String expiredKey) {
+    final String sessionKeyPrefix = key("");
+    if (!expiredKey.startsWith(sessionKeyPrefix)) {
+      return;
+    }
+    final String id = expiredKey.substring(sessionKeyPrefix.length());
+    evict(id);
+    touched.remove(id);
+    commands
+        .getdel(revocationKey(id))
+        .publishOn(Schedulers.boundedElastic())
+        .map(value -> decode(value).decoded().session())
+        .subscribe(
+            this::notifyExpired,
+            e -> LOGGER.warn("Échec du traitement de l'expiration de la session {}", id, e));
+  }
+
+  private void notifyExpired(MapSession session) {
+    for (Consumer<MapSession> listener : expiryListeners) {
+      try {
+        listener.accept(session);
+      } catch (RuntimeException e) {
+        LOGGER.warn("Échec du traitement de l'expiration de la session {}", session.getId(), e);
+      }
+    }
+  }
+
+  private byte[] encode(long version, MapSession session) {
+    try {
+      final ByteArrayOutputStream buffer = new ByteArrayOutputStream(2048);
+      final DataOutputStream out = new DataOutputStream(buffer);
+      out.writeByte(FORMAT_VERSION);
+      out.writeLong(version);
+      out.write(backendTable);
+      codec.write(session, out);
+      return buffer.toByteArray();
+    } catch (IOException e) {
+      throw new IllegalStateException("In-memory write failure", e);
+    }
+  }
+
+  private void cache(String id, Cached entry) {
+    final Cached previous = nearCache.put(id, entry);
+    if (entry.auth() != null) {
+      sessionIds.put(entry.auth(), id);
+    }
+    if (previous != null) {
+      release(id, previous, entry.auth());
+    }
+    if (nearCache.size() > nearCacheSize) {
+      trim();
+    }
+  }
+
+  private void evict(String id) {
+    final Cached previous = nearCache.remove(id);
+    if (previous != null) {
+      release(id, previous, null);
+    }
+  }
+
+  private void evict(String id, Cached expected) {
+    if (nearCache.remove(id, expected)) {
+      release(id, expected, null);
+    }
+  }
+
+  /**
+   * Arrête le rafraîchissement des tokens d'une copie remplacée ou oubliée, sauf si son contexte
+   * d'authentification reste celui de la session en cache.
+   */
+  private void release(String id, Cached previous, BackendAuthentication kept) {
+    final BackendAuthentication auth = previous.auth();
+    if (auth != null && auth != kept) {
+      sessionIds.remove(auth, id);
+      refreshService.release(auth);
+    }
+  }
+
+  /**
+   * Ramène le cache à 90% de sa capacité en oubliant les sessions restituées le moins récemment.
+   */
+  private synchronized void trim() {
+    final int excess = nearCache.size() - nearCacheSize * 9 / 10;
+    if (excess <= 0) {
+      return;
+    }
+    final List<Map.Entry<String, Cached>> entries = new ArrayList<>(nearCache.entrySet());
+    entries.sort(Comparator.comparingLong(e -> e.getValue().lastHit));
+    entries.stream().limit(excess).forEach(e -> evict(e.getKey(), e.getValue()));
+  }
+
+  private void invalidated(byte[] message) {
+    final ByteBuffer buffer = ByteBuffer.wrap(message);
+    final long version = buffer.getLong();
+    final String id = StandardCharsets.UTF_8.decode(buffer).toString();
+    final Cached cached = nearCache.get(id);
+    if (cached != null && cached.version != version) {
+      evict(id, cached);
+      invalidated.incrementAndGet();
+    }
+  }
+
+  /**
+   * Reporte vers le serveur la durée de vie des sessions accédées depuis le dernier passage, et
+   * oublie les copies locales expirées.
+   */
+  private void flushTouches() {
+    nearCache.forEach(
+        (id, cached) -> {
+          if (cached.session.isExpired()) {
+            evict(id, cached);
+          }
+        });
+    final List<Mono<Boolean>> batch = new ArrayList<>();
+    int sessions = 0;
+    for (String id : touched) {
+      touched.remove(id);
+      final Cached cached = nearCache.get(id);
+      final long ttl = cached == null ? 0 : cached.session.getMaxInactiveInterval().toMillis();
+      if (ttl > 0) {
+        batch.add(commands.pexpire(key(id), ttl));
+        batch.add(commands.pexpire(revocationKey(id), ttl + REVOCATION_GRACE.toMillis()));
+        sessions++;
+      }
+    }
+    if (batch.isEmpty()) {
+      return;
+    }
+    try {
+      Flux.merge(batch).then().block(timeout);
+      touches.addAndGet(sessions);
+    } catch (RuntimeException e) {
+      LOGGER.warn("Échec de la prolongation de {} sessions partagées.", sessions, e);
+    }
+  }
+
+  private String key(String id) {
+    return keyPrefix + "session:" + id;
+  }
+
+  private String revocationKey(String id) {
+    return keyPrefix + "revocation:" + id;
+  }
+
+  private static byte[] invalidation(String id, long version) {
+    final byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+    return ByteBuffer.allocate(Long.BYTES + idBytes.length).putLong(version).put(idBytes).array();
+  }
+
+  private TechnicalFailure unavailable(Throwable e) {
+    return new TechnicalFailure("Stockage partagé des sessions indisponible.", e);
+  }
+
+  /**
+   * @return <code>true</code> si les deux sessions portent les mêmes attributs (mêmes instances).
+   */
+  private static boolean sameAttributes(MapSession previous, MapSession next) {
+    if (previous.getAttributeNames().size() != next.getAttributeNames().size()) {
+      return false;
+    }
+    for (String name : next.getAttributeNames()) {
+      if (previous.getAttribute(name) != next.getAttribute(name)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private record Stored(long version, DecodedSession decoded) {}
+
+  /**
+   * Copie locale d'une session, dans la version lue ou écrite par cette instance.
+   */
+  private static final class Cached {
+    private final long version;
+    private final MapSession session;
+    private volatile long lastHit = System.nanoTime();
+
+    private Cached(long version, MapSession session) {
+      this.version = version;
+      this.session = session;
+    }
+
+    private BackendAuthentication auth() {
+      return session.getAttribute(SessionAttributes.BACKEND_AUTH_ATTR);
+    }
+  }
+
+  /**
+   * Le cache local n'est consulté que tant que l'abonnement aux invalidations tient : à sa reprise,
+   * les invalidations manquées sont inconnues et le cache est vidé.
+   */
+  private final class InvalidationStateListener implements RedisConnectionStateListener {
+    @Override
+    public void onRedisConnected(RedisChannelHandler<?, ?> handler, SocketAddress address) {
+      if (handler == invalidations && !trusted) {
+        nearCache.forEach(RemoteSessionRepository.this::evict);
+        trusted = true;
+        LOGGER.info("Abonnement aux invalidations de sessions rétabli, cache local vidé.");
+      }
+    }
+
+    @Override
+    public void onRedisDisconnected(RedisChannelHandler<?, ?> handler) {
+      if (handler == invalidations) {
+        trusted = false;
+        LOGGER.warn("Abonnement aux invalidations de sessions rompu, cache local suspendu.");
+      }
+    }
+  }
+}
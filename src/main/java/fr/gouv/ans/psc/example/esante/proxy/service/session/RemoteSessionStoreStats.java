@@ -0,0 +1,44 @@
+/*
+ * The MIT License
+ * Copyright © 2024-2025 Agence du Numérique en Santé (ANS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.gouv.ans.psc.example.esante.proxy.service.session;
+
+/**
+ * État du stockage partagé des sessions vu depuis cette instance.
+ *
+ * @param cachedSessions nombre de sessions du cache local.
+ * @param hits sessions restituées depuis le cache local.
+ * @param misses sessions lues sur le serveur.
+ * @param writes sessions écrites sur le serveur.
+ * @param touches prolongations de session reportées sur le serveur.
+ * @param invalidations copies locales oubliées après écriture par une autre instance.
+ * @param nearCacheActive <code>false</code> tant que l'abonnement aux invalidations est rompu.
+ * @author edegenetais
+ */
+public record RemoteSessionStoreStats(
+    long cachedSessions,
+    long hits,
+    long misses,
+    long writes,
+    long touches,
+    long invalidations,
+    boolean nearCacheActive) {}
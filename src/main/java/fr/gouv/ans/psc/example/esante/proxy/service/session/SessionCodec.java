@@ -0,0 +1,535 @@
+/*
+ * The MIT License
+ * Copyright © 2024-2025 Agence du Numérique en Santé (ANS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.gouv.ans.psc.example.esante.proxy.service.session;
+
+import fr.gouv.ans.psc.example.esante.proxy.config.BackendAuthenticationConfig;
+import fr.gouv.ans.psc.example.esante.proxy.config.PSCConfiguration;
+import fr.gouv.ans.psc.example.esante.proxy.config.TokenExchangeConfig;
+import fr.gouv.ans.psc.example.esante.proxy.controller.SessionAttributes;
+import fr.gouv.ans.psc.example.esante.proxy.model.Session;
+import fr.gouv.ans.psc.example.esante.proxy.service.BackendAccess;
+import fr.gouv.ans.psc.example.esante.proxy.service.BackendAuthentication;
+import fr.gouv.ans.psc.example.esante.proxy.service.BackendIndex;
+import fr.gouv.ans.psc.example.esante.proxy.service.CIBASession;
+import fr.gouv.ans.psc.example.esante.proxy.service.Credential;
+import fr.gouv.ans.psc.example.esante.proxy.service.CredentialMaterialCache;
+import fr.gouv.ans.psc.example.esante.proxy.service.SessionTraceData;
+import fr.gouv.ans.psc.example.esante.proxy.service.TokenExchangeProcess;
+import fr.gouv.ans.psc.example.esante.proxy.service.TokenRefreshService;
+import fr.gouv.ans.psc.example.esante.proxy.service.session.DecodedSession.PendingRefresh;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.session.MapSession;
+import org.springframework.stereotype.Component;
+
+/**
+ * Encodage binaire compact d'une session et de ses attributs ({@link SessionAttributes}) : entiers
+ * en varint, chaînes en UTF-8 précédées de leur longueur, tokens de backend rangés par ordinal,
+ * identifiants mTLS réduits à l'identifiant du client LPS (ils sont relus dans la configuration).
+ * Les jetons JWT sont stockés sous forme binaire (segments base64url décodés, un quart de moins que
+ * leur texte), et les valeurs répétées d'un attribut à l'autre (identifiant de session, client LPS,
+ * identifiant national, <code>session_state</code> PSC) ne sont écrites qu'une fois.
+ * Les attributs hors de {@link SessionAttributes} ne sont pas encodés.
+ * Les ordinaux des backends se réfèrent à une table écrite en tête de chaque fichier
+ * ({@link #writeBackendTable}), ce qui tolère l'ajout ou le retrait de routes entre deux démarrages.
+ *
+ * @author edegenetais
+ */
+@Component
+public class SessionCodec {
+  private static final int TAG_CLIENT_ID = 1;
+  private static final int TAG_NATIONAL_ID = 2;
+  private static final int TAG_CIBA_SESSION = 3;
+  private static final int TAG_BACKEND_AUTH = 4;
+  private static final int TAG_PROXY_API_SESSION = 5;
+  private static final int TAG_TRACE_IDENTITY = 6;
+  /** Attributs encodés, dans l'ordre d'écriture (la session PSC précède le contexte backend). */
+  private static final String[] ATTRIBUTES = {
+    null,
+    SessionAttributes.CLIENT_ID,
+    SessionAttributes.NATIONAL_ID,
+    SessionAttributes.CIBA_SESSION,
+    SessionAttributes.BACKEND_AUTH_ATTR,
+    SessionAttributes.PROXY_API_SESSION,
+    SessionAttributes.TRACE_IDENTITY
+  };
+
+  private static final int TOKEN_NULL = 0;
+  private static final int TOKEN_TEXT = 1;
+  private static final int TOKEN_JWT = 2;
+  private static final int MAX_JWT_PARTS = 5;
+
+  /** Champs d'une identité de trace ou d'une session proxy égaux à une valeur déjà écrite. */
+  private static final int SAME_CLIENT_ID = 1;
+  private static final int SAME_NATIONAL_ID = 2;
+  private static final int SAME_SESSION_STATE = 4;
+  private static final int SAME_SESSION_ID = 8;
+
+  private static final int PSC_NONE = 0;
+  private static final int PSC_SAME_AS_CIBA_SESSION = 1;
+  private static final int PSC_OWN = 2;
+
+  private static final Base64.Encoder BASE64URL_ENCODER = Base64.getUrlEncoder().withoutPadding();
+  private static final Base64.Decoder BASE64URL_DECODER = Base64.getUrlDecoder();
+
+  private final BackendIndex index;
+  private final PSCConfiguration pscCfg;
+  private final CredentialMaterialCache materials;
+  private final TokenExchangeConfig exchangeCfg;
+
+  public SessionCodec(
+      @Autowired BackendAuthenticationConfig backendCfg,
+      @Autowired PSCConfiguration pscCfg,
+      @Autowired CredentialMaterialCache materials,
+      @Autowired TokenExchangeConfig exchangeCfg) {
+    this.index = backendCfg.index();
+    this.pscCfg = pscCfg;
+    this.materials = materials;
+    this.exchangeCfg = exchangeCfg;
+  }
+
+  /**
+   * Écrit la table des backends (identifiants dans l'ordre des ordinaux) à laquelle se réfèrent les
+   * sessions encodées à sa suite.
+   */
+  public void writeBackendTable(DataOutputStream out) throws IOException {
+    writeVarLong(out, index.size());
+    for (int ordinal = 0; ordinal < index.size(); ordinal++) {
+      writeString(out, index.backend(ordinal).id());
+    }
+  }
+
+  /**
+   * @return pour chaque ordinal de la table lue, l'ordinal actuel du même backend, <code>-1</code>
+   *     s'il n'est plus configuré.
+   */
+  public int[] readBackendTable(DataInputStream in) throws IOException {
+    final int[] ordinals = new int[(int) readVarLong(in)];
+    for (int i = 0; i < ordinals.length; i++) {
+      ordinals[i] = index.ordinal(readString(in));
+    }
+    return ordinals;
+  }
+
+  public void write(MapSession session, DataOutputStream out) throws IOException {
+    final long base = session.getCreationTime().toEpochMilli();
+    writeString(out, session.getId());
+    writeVarLong(out, base);
+    writeVarLong(out, zigZag(session.getLastAccessedTime().toEpochMilli() - base));
+    writeVarLong(out, zigZag(session.getMaxInactiveInterval().toSeconds()));
+    int count = 0;
+    for (int tag = 1; tag < ATTRIBUTES.length; tag++) {
+      if (session.getAttribute(ATTRIBUTES[tag]) != null) {
+        count++;
+      }
+    }
+    writeVarLong(out, count);
+    final Known known = new Known(session);
+    for (int tag = 1; tag < ATTRIBUTES.length; tag++) {
+      final Object value = session.getAttribute(ATTRIBUTES[tag]);
+      if (value == null) {
+        continue;
+      }
+      out.writeByte(tag);
+      switch (tag) {
+        case TAG_CLIENT_ID, TAG_NATIONAL_ID -> writeString(out, (String) value);
+        case TAG_CIBA_SESSION -> writeCibaSession(out, (CIBASession) value);
+        case TAG_BACKEND_AUTH -> writeBackendAuth(out, (BackendAuthentication) value, known, base);
+        case TAG_PROXY_API_SESSION -> {
+          final Session proxySession = (Session) value;
+          final int same =
+              known.same(SAME_SESSION_ID, proxySession.proxySessionId())
+                  | known.same(SAME_SESSION_STATE, proxySession.sessionState());
+          writeVarLong(out, same);
+          writeUnless(out, same, SAME_SESSION_ID, proxySession.proxySessionId());
+          writeUnless(out, same, SAME_SESSION_STATE, proxySession.sessionState());
+        }
+        case TAG_TRACE_IDENTITY -> {
+          final SessionTraceData identity = (SessionTraceData) value;
+          final int same =
+              known.same(SAME_CLIENT_ID, identity.clientId())
+                  | known.same(SAME_NATIONAL_ID, identity.nationalId())
+                  | known.same(SAME_SESSION_STATE, identity.sessionState())
+                  | known.same(SAME_SESSION_ID, identity.proxy_session_id());
+          writeVarLong(out, same);
+          writeUnless(out, same, SAME_CLIENT_ID, identity.clientId());
+          writeUnless(out, same, SAME_NATIONAL_ID, identity.nationalId());
+          writeUnless(out, same, SAME_SESSION_STATE, identity.sessionState());
+          writeUnless(out, same, SAME_SESSION_ID, identity.proxy_session_id());
+          writeString(out, identity.dn());
+          writeString(out, identity.certThumbprint());
+        }
+        default -> throw new IllegalStateException("Unexpected session attribute tag " + tag);
+      }
+    }
+  }
+
+  /**
+   * Relit une session, sans effet de bord : les dates de rafraîchissement de ses tokens sont
+   * restituées avec elle, et rien n'est planifié.
+   *
+   * @param ordinals correspondance des ordinaux de backend, lue par {@link #readBackendTable}.
+   */
+  public DecodedSession read(DataInputStream in, int[] ordinals) throws IOException {
+    final List<PendingRefresh> refreshes = new ArrayList<>();
+    final MapSession session = new MapSession(readString(in));
+    final long base = readVarLong(in);
+    session.setCreationTime(Instant.ofEpochMilli(base));
+    session.setLastAccessedTime(Instant.ofEpochMilli(base + unZigZag(readVarLong(in))));
+    session.setMaxInactiveInterval(Duration.ofSeconds(unZigZag(readVarLong(in))));
+    final long count = readVarLong(in);
+    final Known known = new Known(session);
+    for (long i = 0; i < count; i++) {
+      final int tag = in.readUnsignedByte();
+      final Object value =
+          switch (tag) {
+            case TAG_CLIENT_ID, TAG_NATIONAL_ID -> readString(in);
+            case TAG_CIBA_SESSION -> readCibaSession(in);
+            case TAG_BACKEND_AUTH -> readBackendAuth(in, ordinals, known, base, refreshes);
+            case TAG_PROXY_API_SESSION -> {
+              final int same = (int) readVarLong(in);
+              yield new Session(
+                  readUnless(in, same, SAME_SESSION_ID, known),
+                  readUnless(in, same, SAME_SESSION_STATE, known));
+            }
+            case TAG_TRACE_IDENTITY -> {
+              final int same = (int) readVarLong(in);
+              yield new SessionTraceData(
+                  readUnless(in, same, SAME_CLIENT_ID, known),
+                  readUnless(in, same, SAME_NATIONAL_ID, known),
+                  readUnless(in, same, SAME_SESSION_STATE, known),
+                  readUnless(in, same, SAME_SESSION_ID, known),
+                  readString(in),
+                  readString(in));
+            }
+            default -> throw new IOException("Unknown session attribute tag " + tag);
+          };
+      session.setAttribute(ATTRIBUTES[tag], value);
+    }
+    return new DecodedSession(session, refreshes);
+  }
+
+  private static void writeCibaSession(DataOutputStream out, CIBASession ciba) throws IOException {
+    writeToken(out, ciba.accessToken());
+    writeInteger(out, ciba.expiresIn());
+    writeToken(out, ciba.refreshToken());
+    writeInteger(out, ciba.refreshExpiresIn());
+    writeString(out, ciba.tokenType());
+    writeToken(out, ciba.idToken());
+    writeString(out, ciba.scope());
+    writeString(out, ciba.sessionState());
+  }
+
+  private static CIBASession readCibaSession(DataInputStream in) throws IOException {
+    return new CIBASession(
+        readToken(in),
+        readInteger(in),
+        readToken(in),
+        readInteger(in),
+        readString(in),
+        readToken(in),
+        readString(in),
+        readString(in));
+  }
+
+  private void writeBackendAuth(
+      DataOutputStream out, BackendAuthentication auth, Known known, long base) throws IOException {
+    final int same = known.same(SAME_CLIENT_ID, auth.clientId());
+    writeVarLong(out, same);
+    writeUnless(out, same, SAME_CLIENT_ID, auth.clientId());
+    final CIBASession psc = auth.pscSession();
+    if (psc == null) {
+      out.writeByte(PSC_NONE);
+    } else if (psc.equals(known.cibaSession())) {
+      out.writeByte(PSC_SAME_AS_CIBA_SESSION);
+    } else {
+      out.writeByte(PSC_OWN);
+      writeCibaSession(out, psc);
+    }
+    writeDueAt(out, auth.refreshDueAt(TokenRefreshService.PSC_KEY), base);
+    int count = 0;
+    for (int ordinal = 0; ordinal < index.size(); ordinal++) {
+      if (auth.findBackendToken(ordinal) != null) {
+        count++;
+      }
+    }
+    writeVarLong(out, count);
+    for (int ordinal = 0; ordinal < index.size() && count > 0; ordinal++) {
+      final BackendAccess access = auth.findBackendToken(ordinal);
+      if (access != null) {
+        writeVarLong(out, ordinal);
+        writeToken(out, access.accessToken());
+        writeVarLong(out, access.validitySeconds());
+        writeToken(out, access.refreshToken());
+        writeDueAt(out, auth.refreshDueAt(index.backend(ordinal).id()), base);
+        count--;
+      }
+    }
+  }
+
+  private BackendAuthentication readBackendAuth(
+      DataInputStream in, int[] ordinals, Known known, long base, List<PendingRefresh> refreshes)
+      throws IOException {
+    final String clientId = readUnless(in, (int) readVarLong(in), SAME_CLIENT_ID, known);
+    final CIBASession psc =
+        switch (in.readUnsignedByte()) {
+          case PSC_NONE -> null;
+          case PSC_SAME_AS_CIBA_SESSION -> known.cibaSession();
+          case PSC_OWN -> readCibaSession(in);
+          default -> throw new IOException("Unknown PSC session marker");
+        };
+    final long pscDueAt = readDueAt(in, base);
+    final Credential credential = pscCfg.getSecret(clientId);
+    if (credential == null) {
+      throw new IOException("Client " + clientId + " is no longer configured");
+    }
+    final BackendAuthentication auth =
+        new BackendAuthentication(
+            credential,
+            new TokenExchangeProcess(clientId, psc, credential, materials, exchangeCfg.timeout()),
+            index);
+    final long count = readVarLong(in);
+    for (long i = 0; i < count; i++) {
+      final int stored = (int) readVarLong(in);
+      final BackendAccess access =
+          new BackendAccess(readToken(in), readVarLong(in), readToken(in));
+      final long dueAt = readDueAt(in, base);
+      final int ordinal = stored < ordinals.length ? ordinals[stored] : -1;
+      if (ordinal < 0) {
+        // route retirée de la configuration depuis l'encodage.
+        continue;
+      }
+      auth.switchBackendToken(ordinal, access);
+      if (dueAt >= 0) {
+        refreshes.add(new PendingRefresh(index.backend(ordinal), dueAt));
+      }
+    }
+    if (pscDueAt >= 0) {
+      refreshes.add(new PendingRefresh(null, pscDueAt));
+    }
+    return auth;
+  }
+
+  /** Date de rafraîchissement (ou <code>-1</code>), relative à la création de la session. */
+  private static void writeDueAt(DataOutputStream out, long dueAt, long base) throws IOException {
+    writeVarLong(out, dueAt < 0 ? 0 : zigZag(dueAt - base) + 1);
+  }
+
+  private static long readDueAt(DataInputStream in, long base) throws IOException {
+    final long value = readVarLong(in);
+    return value == 0 ? -1 : base + unZigZag(value - 1);
+  }
+
+  private static void writeUnless(DataOutputStream out, int same, int flag, String value)
+      throws IOException {
+    if ((same & flag) == 0) {
+      writeString(out, value);
+    }
+  }
+
+  private static String readUnless(DataInputStream in, int same, int flag, Known known)
+      throws IOException {
+    return (same & flag) == 0 ? readString(in) : known.value(flag);
+  }
+
+  /**
+   * Écrit un jeton : un JWT (segments base64url séparés par des points) est stocké segment par
+   * segment sous forme binaire, à condition que le réencodage redonne exactement le même texte ;
+   * tout autre jeton est stocké en texte.
+   */
+  static void writeToken(DataOutputStream out, String token) throws IOException {
+    if (token == null) {
+      out.writeByte(TOKEN_NULL);
+      return;
+    }
+    final byte[][] parts = jwtParts(token);
+    if (parts == null) {
+      out.writeByte(TOKEN_TEXT);
+      writeString(out, token);
+      return;
+    }
+    out.writeByte(TOKEN_JWT);
+    writeVarLong(out, parts.length);
+    for (byte[] part : parts) {
+      writeVarLong(out, part.length);
+      out.write(part);
+    }
+  }
+
+  static String readToken(DataInputStream in) throws IOException {
+    return switch (in.readUnsignedByte()) {
+      case TOKEN_NULL -> null;
+      case TOKEN_TEXT -> readString(in);
+      case TOKEN_JWT -> {
+        final int count = (int) readVarLong(in);
+        if (count > MAX_JWT_PARTS) {
+          throw new IOException("Malformed JWT in encoded session.");
+        }
+        final StringBuilder token = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+          if (i > 0) {
+            token.append('.');
+          }
+          final byte[] part = new byte[(int) readVarLong(in)];
+          in.readFully(part);
+          token.append(BASE64URL_ENCODER.encodeToString(part));
+        }
+        yield token.toString();
+      }
+      default -> throw new IOException("Unknown token marker");
+    };
+  }
+
+  /**
+   * @return les segments décodés du JWT, <code>null</code> si le jeton n'en est pas un dont
+   *     l'encodage base64url se restitue à l'identique.
+   */
+  private static byte[][] jwtParts(String token) {
+    int count = 1;
+    for (int i = 0; i < token.length(); i++) {
+      final char c = token.charAt(i);
+      if (c == '.') {
+        count++;
+      } else if (!(c >= 'A' && c <= 'Z' || c >= 'a' && c <= 'z' || c >= '0' && c <= '9'
+          || c == '-' || c == '_')) {
+        return null;
+      }
+    }
+    if (count < 3 || count > MAX_JWT_PARTS) {
+      return null;
+    }
+    final String[] segments = token.split("\\.", -1);
+    final byte[][] parts = new byte[segments.length][];
+    for (int i = 0; i < segments.length; i++) {
+      if (segments[i].length() % 4 == 1) {
+        // longueur impossible en base64 : le décodage échouerait.
+        return null;
+      }
+      parts[i] = BASE64URL_DECODER.decode(segments[i]);
+      if (!BASE64URL_ENCODER.encodeToString(parts[i]).equals(segments[i])) {
+        // bits de remplissage non nuls : le réencodage ne redonnerait pas ce texte.
+        return null;
+      }
+    }
+    return parts;
+  }
+
+  private static void writeInteger(DataOutputStream out, Integer value) throws IOException {
+    writeVarLong(out, value == null ? 0 : zigZag(value) + 1);
+  }
+
+  private static Integer readInteger(DataInputStream in) throws IOException {
+    final long value = readVarLong(in);
+    return value == 0 ? null : (int) unZigZag(value - 1);
+  }
+
+  static void writeString(DataOutputStream out, String value) throws IOException {
+    if (value == null) {
+      writeVarLong(out, 0);
+      return;
+    }
+    final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    writeVarLong(out, bytes.length + 1L);
+    out.write(bytes);
+  }
+
+  static String readString(DataInputStream in) throws IOException {
+    final long length = readVarLong(in);
+    if (length == 0) {
+      return null;
+    }
+    final byte[] bytes = new byte[(int) length - 1];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static long zigZag(long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  private static long unZigZag(long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  static void writeVarLong(DataOutputStream out, long value) throws IOException {
+    while ((value & ~0x7FL) != 0) {
+      out.writeByte((int) (value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.writeByte((int) value);
+  }
+
+  static long readVarLong(DataInputStream in) throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < Long.SIZE; shift += 7) {
+      final int b = in.readUnsignedByte();
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("Malformed varint in encoded session.");
+  }
+
+  /**
+   * Valeurs de la session déjà écrites (ou relues) par les attributs précédents, auxquelles les
+   * attributs suivants se réfèrent plutôt que de les répéter. Elles sont lues dans la session à la
+   * demande : au décodage, elle ne porte que les attributs déjà relus.
+   */
+  private static final class Known {
+    private final MapSession session;
+
+    private Known(MapSession session) {
+      this.session = session;
+    }
+
+    private CIBASession cibaSession() {
+      return session.getAttribute(SessionAttributes.CIBA_SESSION);
+    }
+
+    private String value(int flag) {
+      return switch (flag) {
+        case SAME_CLIENT_ID -> session.getAttribute(SessionAttributes.CLIENT_ID);
+        case SAME_NATIONAL_ID -> session.getAttribute(SessionAttributes.NATIONAL_ID);
+        case SAME_SESSION_STATE -> cibaSession() == null ? null : cibaSession().sessionState();
+        case SAME_SESSION_ID -> session.getId();
+        default -> throw new IllegalArgumentException("Unknown flag " + flag);
+      };
+    }
+
+    /**
+     * @return <code>flag</code> si la valeur est connue (et non nulle), <code>0</code> sinon.
+     */
+    private int same(int flag, String candidate) {
+      return candidate != null && candidate.equals(value(flag)) ? flag : 0;
+    }
+  }
+}
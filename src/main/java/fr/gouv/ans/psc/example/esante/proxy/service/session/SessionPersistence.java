@@ -0,0 +1,578 @@
+/*
+ * The MIT License
+ * Copyright © 2024-2025 Agence du Numérique en Santé (ANS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.gouv.ans.psc.example.esante.proxy.service.session;
+
+import fr.gouv.ans.psc.example.esante.proxy.config.InvalidConfigurationException;
+import fr.gouv.ans.psc.example.esante.proxy.config.SessionPersistenceConfig;
+import fr.gouv.ans.psc.example.esante.proxy.config.SessionStoreConfig;
+import fr.gouv.ans.psc.example.esante.proxy.controller.SessionAttributes;
+import fr.gouv.ans.psc.example.esante.proxy.service.BackendAuthentication;
+import fr.gouv.ans.psc.example.esante.proxy.service.RefreshCoordinator;
+import fr.gouv.ans.psc.example.esante.proxy.service.TechnicalFailure;
+import fr.gouv.ans.psc.example.esante.proxy.service.TokenRefreshService;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.session.MapSession;
+import org.springframework.stereotype.Component;
+
+/**
+ * Persistance locale des sessions, pour qu'un redémarrage du proxy n'impose pas une nouvelle
+ * authentification CIBA à chaque professionnel connecté.
+ * Chaque écriture du stockage des sessions est ajoutée à un journal (<code>sessions.wal</code>) :
+ * session complète si ses attributs ont changé, date de dernier accès sinon, ou retrait. Les tokens
+ * renouvelés hors d'une requête (rafraîchissement en tâche de fond, échange à la première
+ * utilisation) n'y passent pas : la persistance est aussi le {@link RefreshCoordinator} des
+ * rafraîchissements, et journalise la session complète à chaque token changé. Un
+ * instantané de toutes les sessions (<code>sessions.snapshot</code>) est écrit périodiquement, puis
+ * le journal est remis à zéro ; les deux fichiers portent un numéro de génération, et un journal
+ * d'une autre génération que l'instantané est ignoré. Au démarrage, avant l'ouverture du service,
+ * l'instantané puis le journal sont relus et les sessions non expirées réintégrées avec leurs
+ * tokens, dont le rafraîchissement reprend aux dates prévues.
+ * Toutes les écritures sont faites par un thread dédié. Le journal est vidé vers le système à
+ * chaque fin de rafale, sans synchronisation disque : il survit à l'arrêt du processus, pas à celui
+ * de la machine (seul l'instantané est synchronisé).
+ * Les fichiers portent les jetons des sessions en clair : le répertoire est restreint au
+ * propriétaire du processus (0700) et chaque fichier créé l'est en 0600.
+ *
+ * @author edegenetais
+ */
+@Component
+@ConditionalOnExpression(SessionStoreConfig.ABSENT)
+public class SessionPersistence
+    implements SessionWriteListener, RefreshCoordinator, DisposableBean {
+  private static final Logger LOGGER = LoggerFactory.getLogger(SessionPersistence.class);
+  static final String SNAPSHOT_FILE = "sessions.snapshot";
+  static final String LOG_FILE = "sessions.wal";
+  private static final int MAGIC = 0x50534353;
+  private static final int FORMAT_VERSION = 2;
+  private static final int OP_SAVE = 1;
+  private static final int OP_TOUCH = 2;
+  private static final int OP_REMOVE = 3;
+  private static final int MAX_RECORD_BYTES = 1 << 24;
+  private static final long SHUTDOWN_TIMEOUT_SECONDS = 10;
+  private static final Set<StandardOpenOption> WRITE_FROM_START =
+      Set.of(
+          StandardOpenOption.CREATE,
+          StandardOpenOption.TRUNCATE_EXISTING,
+          StandardOpenOption.WRITE);
+  private static final Set<PosixFilePermission> OWNER_DIRECTORY =
+      PosixFilePermissions.fromString("rwx------");
+  private static final Set<PosixFilePermission> OWNER_FILE =
+      PosixFilePermissions.fromString("rw-------");
+
+  private final SessionPersistenceConfig cfg;
+  private final ShardedSessionRepository repository;
+  private final SessionCodec codec;
+  private final TokenRefreshService refreshService;
+  private final ScheduledExecutorService writer;
+  private final Map<BackendAuthentication, String> sessionIds = new ConcurrentHashMap<>();
+  private final AtomicLong queued = new AtomicLong();
+  private final AtomicLong logRecords = new AtomicLong();
+  private final RecordBuffer buffer = new RecordBuffer();
+  private final DataOutputStream record = new DataOutputStream(buffer);
+  private DataOutputStream log;
+  private boolean posix;
+  private long generation;
+  private volatile SessionPersistenceStats stats;
+
+  public SessionPersistence(
+      @Autowired SessionPersistenceConfig cfg,
+      @Autowired ShardedSessionRepository repository,
+      @Autowired SessionCodec codec,
+      @Autowired TokenRefreshService refreshService) {
+    this.cfg = cfg;
+    this.repository = repository;
+    this.codec = codec;
+    this.refreshService = refreshService;
+    if (!cfg.enabled()) {
+      writer = null;
+      return;
+    }
+    refreshService.setCoordinator(this);
+    try {
+      prepareDirectory();
+      load();
+    } catch (IOException e) {
+      throw new TechnicalFailure("Failed to load sessions from " + cfg.directory(), e);
+    }
+    snapshot();
+    if (log == null) {
+      throw new TechnicalFailure("Failed to open the session log in " + cfg.directory());
+    }
+    writer =
+        Executors.newSingleThreadScheduledExecutor(
+            r -> {
+              Thread t = new Thread(r, "session-persistence");
+              t.setDaemon(true);
+              return t;
+            });
+    final long period = cfg.snapshotInterval().toMillis();
+    writer.scheduleWithFixedDelay(this::snapshot, period, period, TimeUnit.MILLISECONDS);
+    repository.setWriteListener(this);
+  }
+
+  /**
+   * Crée le répertoire, ou restreint celui qui existe, ainsi que les fichiers qu'il contient déjà,
+   * au seul propriétaire.
+   */
+  private void prepareDirectory() throws IOException {
+    final Path directory = cfg.directory();
+    Files.createDirectories(directory);
+    posix =
+        Files.getFileStore(directory).supportsFileAttributeView(PosixFileAttributeView.class);
+    if (!posix) {
+      if (!cfg.allowNonPosix()) {
+        throw new InvalidConfigurationException(
+            "proxy.session-persistence.directory must be on a POSIX file system, "
+                + "or set proxy.session-persistence.allow-non-posix");
+      }
+      LOGGER.warn(
+          "Droits des fichiers de session non restreints sur {} : ils contiennent des jetons.",
+          directory);
+      return;
+    }
+    Files.setPosixFilePermissions(directory, OWNER_DIRECTORY);
+    for (String name : new String[] {SNAPSHOT_FILE, LOG_FILE}) {
+      final Path file = directory.resolve(name);
+      if (Files.exists(file)) {
+        Files.setPosixFilePermissions(file, OWNER_FILE);
+      }
+    }
+    Files.deleteIfExists(directory.resolve(SNAPSHOT_FILE + ".tmp"));
+  }
+
+  /**
+   * @return les attributs de création d'un fichier réservé au propriétaire.
+   */
+  private FileAttribute<?>[] ownerOnly() {
+    return posix
+        ? new FileAttribute<?>[] {PosixFilePermissions.asFileAttribute(OWNER_FILE)}
+        : new FileAttribute<?>[0];
+  }
+
+  @Override
+  public void saved(MapSession session, boolean attributesChanged) {
+    final BackendAuthentication auth = session.getAttribute(SessionAttributes.BACKEND_AUTH_ATTR);
+    if (auth != null) {
+      sessionIds.put(auth, session.getId());
+    }
+    submit(
+        () -> {
+          if (attributesChanged) {
+            record.writeByte(OP_SAVE);
+            codec.write(session, record);
+          } else {
+            record.writeByte(OP_TOUCH);
+            SessionCodec.writeString(record, session.getId());
+            SessionCodec.writeVarLong(record, session.getLastAccessedTime().toEpochMilli());
+          }
+        });
+  }
+
+  @Override
+  public void removed(MapSession session) {
+    final String id = session.getId();
+    final BackendAuthentication auth = session.getAttribute(SessionAttributes.BACKEND_AUTH_ATTR);
+    if (auth != null) {
+      sessionIds.remove(auth, id);
+    }
+    submit(
+        () -> {
+          record.writeByte(OP_REMOVE);
+          SessionCodec.writeString(record, id);
+        });
+  }
+
+  @Override
+  public boolean tryAcquire(BackendAuthentication auth, String key) {
+    return true;
+  }
+
+  @Override
+  public void tokensChanged(BackendAuthentication auth) {
+    final String id = sessionIds.get(auth);
+    if (id != null) {
+      repository.rewrite(id);
+    }
+  }
+
+  private void submit(LogRecord logRecord) {
+    queued.incrementAndGet();
+    try {
+      writer.execute(
+          () -> {
+            try {
+              buffer.reset();
+              logRecord.write();
+              writeFrame(log, buffer);
+              logRecords.incrementAndGet();
+            } catch (IOException | RuntimeException e) {
+              LOGGER.warn("Échec de la journalisation d'une session.", e);
+            } finally {
+              if (queued.decrementAndGet() == 0) {
+                flushLog();
+              }
+            }
+          });
+    } catch (RejectedExecutionException e) {
+      // arrêt en cours : l'instantané final couvre cette écriture.
+      queued.decrementAndGet();
+    }
+  }
+
+  /**
+   * Attend que toutes les écritures déjà reçues soient passées au système.
+   */
+  public void flush() {
+    if (writer == null) {
+      return;
+    }
+    try {
+      writer.submit(this::flushLog).get();
+    } catch (ExecutionException e) {
+      throw new TechnicalFailure("Failed to flush the session log.", e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void flushLog() {
+    try {
+      log.flush();
+    } catch (IOException e) {
+      LOGGER.warn("Échec de l'écriture du journal des sessions.", e);
+    }
+  }
+
+  /**
+   * Écrit l'instantané de toutes les sessions dans un fichier temporaire, le synchronise, le
+   * substitue au précédent puis ouvre un journal vide de la nouvelle génération.
+   */
+  private void snapshot() {
+    final long next = generation + 1;
+    final Path tmp = cfg.directory().resolve(SNAPSHOT_FILE + ".tmp");
+    // sessions, octets, durée d'encodage (ns).
+    final long[] totals = new long[3];
+    try {
+      try (FileChannel channel =
+              FileChannel.open(tmp, WRITE_FROM_START, ownerOnly());
+          DataOutputStream out =
+              new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)))) {
+        writeHeader(out, next);
+        repository.forEach(
+            session -> {
+              try {
+                buffer.reset();
+                final long start = System.nanoTime();
+                codec.write(session, record);
+                totals[2] += System.nanoTime() - start;
+                writeFrame(out, buffer);
+                totals[0]++;
+                totals[1] += buffer.size();
+              } catch (IOException e) {
+                throw new UncheckedIOException(e);
+              }
+            });
+        out.flush();
+        channel.force(true);
+      }
+      Files.move(
+          tmp,
+          cfg.directory().resolve(SNAPSHOT_FILE),
+          StandardCopyOption.ATOMIC_MOVE,
+          StandardCopyOption.REPLACE_EXISTING);
+      generation = next;
+      if (log != null) {
+        log.close();
+      }
+      log =
+          new DataOutputStream(
+              new BufferedOutputStream(
+                  Channels.newOutputStream(
+                      FileChannel.open(
+                          cfg.directory().resolve(LOG_FILE), WRITE_FROM_START, ownerOnly()))));
+      writeHeader(log, generation);
+      log.flush();
+      logRecords.set(0);
+      final long sessions = totals[0];
+      stats =
+          new SessionPersistenceStats(
+              generation,
+              sessions,
+              totals[1],
+              sessions == 0 ? 0 : totals[1] / sessions,
+              sessions == 0 ? 0 : totals[2] / sessions,
+              0);
+      LOGGER.debug(
+          "Instantané de {} sessions écrit (génération {}, {} octets).",
+          sessions,
+          generation,
+          totals[1]);
+    } catch (IOException | RuntimeException e) {
+      // une exception annulerait les instantanés suivants ; le journal courant reste valide.
+      LOGGER.error("Échec de l'instantané des sessions.", e);
+    }
+  }
+
+  private void load() throws IOException {
+    final Map<String, Encoded> sessions = new HashMap<>();
+    final Map<String, Long> lastAccesses = new HashMap<>();
+    final Path snapshotFile = cfg.directory().resolve(SNAPSHOT_FILE);
+    if (Files.exists(snapshotFile)) {
+      try (DataInputStream in = open(snapshotFile)) {
+        final long snapshotGeneration = readHeader(in);
+        final int[] ordinals = codec.readBackendTable(in);
+        byte[] payload;
+        while ((payload = readFrame(in, snapshotFile)) != null) {
+          sessions.put(readId(payload, 0), new Encoded(payload, 0, ordinals));
+        }
+        generation = snapshotGeneration;
+      } catch (IOException e) {
+        LOGGER.warn("Instantané des sessions illisible, ignoré : {}", e.getMessage());
+        sessions.clear();
+      }
+    }
+    final Path logFile = cfg.directory().resolve(LOG_FILE);
+    if (Files.exists(logFile)) {
+      try (DataInputStream in = open(logFile)) {
+        final long logGeneration = readHeader(in);
+        if (logGeneration != generation) {
+          LOGGER.info("Journal des sessions d'une génération déjà couverte par l'instantané, ignoré.");
+        } else {
+          final int[] ordinals = codec.readBackendTable(in);
+          byte[] payload;
+          while ((payload = readFrame(in, logFile)) != null) {
+            final DataInputStream entry = new DataInputStream(new ByteArrayInputStream(payload));
+            switch (entry.readUnsignedByte()) {
+              case OP_SAVE -> {
+                final String id = readId(payload, 1);
+                sessions.put(id, new Encoded(payload, 1, ordinals));
+                lastAccesses.remove(id);
+              }
+              case OP_TOUCH ->
+                  lastAccesses.put(SessionCodec.readString(entry), SessionCodec.readVarLong(entry));
+              case OP_REMOVE -> {
+                final String id = SessionCodec.readString(entry);
+                sessions.remove(id);
+                lastAccesses.remove(id);
+              }
+              default -> throw new IOException("Unknown session log operation");
+            }
+          }
+        }
+      } catch (IOException e) {
+        LOGGER.warn("Journal des sessions illisible, relu jusqu'à l'erreur : {}", e.getMessage());
+      }
+    }
+    restore(sessions, lastAccesses);
+  }
+
+  private void restore(Map<String, Encoded> sessions, Map<String, Long> lastAccesses) {
+    int restored = 0;
+    int expired = 0;
+    int failed = 0;
+    for (Map.Entry<String, Encoded> entry : sessions.entrySet()) {
+      final Encoded encoded = entry.getValue();
+      try {
+        final DecodedSession decoded =
+            codec.read(
+                new DataInputStream(
+                    new ByteArrayInputStream(
+                        encoded.payload(),
+                        encoded.offset(),
+                        encoded.payload().length - encoded.offset())),
+                encoded.ordinals());
+        final MapSession session = decoded.session();
+        final Long lastAccess = lastAccesses.get(entry.getKey());
+        if (lastAccess != null) {
+          session.setLastAccessedTime(Instant.ofEpochMilli(lastAccess));
+        }
+        if (session.isExpired()) {
+          expired++;
+          continue;
+        }
+        repository.restore(session);
+        final BackendAuthentication auth =
+            session.getAttribute(SessionAttributes.BACKEND_AUTH_ATTR);
+        if (auth != null) {
+          sessionIds.put(auth, session.getId());
+        }
+        decoded.resumeRefreshes(refreshService);
+        restored++;
+      } catch (IOException | RuntimeException e) {
+        failed++;
+        LOGGER.warn("Session {} non restaurée : {}", entry.getKey(), e.getMessage());
+      }
+    }
+    LOGGER.info(
+        "{} sessions restaurées depuis {} ({} expirées, {} en échec).",
+        restored,
+        cfg.directory(),
+        expired,
+        failed);
+  }
+
+  private static DataInputStream open(Path file) throws IOException {
+    return new DataInputStream(new BufferedInputStream(Files.newInputStream(file)));
+  }
+
+  private void writeHeader(DataOutputStream out, long headerGeneration) throws IOException {
+    out.writeInt(MAGIC);
+    out.writeByte(FORMAT_VERSION);
+    out.writeLong(headerGeneration);
+    codec.writeBackendTable(out);
+  }
+
+  private static long readHeader(DataInputStream in) throws IOException {
+    if (in.readInt() != MAGIC || in.readUnsignedByte() != FORMAT_VERSION) {
+      throw new IOException("Not a session file of a supported version");
+    }
+    return in.readLong();
+  }
+
+  private static void writeFrame(DataOutputStream out, RecordBuffer payload) throws IOException {
+    final CRC32 crc = new CRC32();
+    crc.update(payload.array(), 0, payload.size());
+    out.writeInt(payload.size());
+    out.writeInt((int) crc.getValue());
+    payload.writeTo(out);
+  }
+
+  /**
+   * @return le contenu de l'enregistrement suivant, <code>null</code> en fin de fichier ou sur un
+   *     enregistrement incomplet ou corrompu (écriture interrompue par l'arrêt du processus).
+   */
+  private static byte[] readFrame(DataInputStream in, Path file) throws IOException {
+    try {
+      final int length = in.readInt();
+      final int expectedCrc = in.readInt();
+      if (length < 0 || length > MAX_RECORD_BYTES) {
+        LOGGER.warn("Enregistrement corrompu en fin de {}, ignoré.", file.getFileName());
+        return null;
+      }
+      final byte[] payload = in.readNBytes(length);
+      final CRC32 crc = new CRC32();
+      crc.update(payload);
+      if (payload.length != length || (int) crc.getValue() != expectedCrc) {
+        LOGGER.warn("Enregistrement incomplet en fin de {}, ignoré.", file.getFileName());
+        return null;
+      }
+      return payload;
+    } catch (EOFException e) {
+      return null;
+    }
+  }
+
+  private static String readId(byte[] payload, int offset) throws IOException {
+    return SessionCodec.readString(
+        new DataInputStream(
+            new ByteArrayInputStream(payload, offset, payload.length - offset)));
+  }
+
+  /**
+   * @return l'état de la persistance au dernier instantané, vide si elle est désactivée.
+   */
+  public Optional<SessionPersistenceStats> stats() {
+    final SessionPersistenceStats last = stats;
+    return last == null
+        ? Optional.empty()
+        : Optional.of(
+            new SessionPersistenceStats(
+                last.generation(),
+                last.sessions(),
+                last.snapshotBytes(),
+                last.bytesPerSession(),
+                last.encodeNanosPerSession(),
+                logRecords.get()));
+  }
+
+  @Override
+  public void destroy() throws InterruptedException {
+    if (writer == null) {
+      return;
+    }
+    repository.setWriteListener(null);
+    writer.execute(this::snapshot);
+    writer.shutdown();
+    if (!writer.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+      LOGGER.warn("Instantané final des sessions non terminé à l'arrêt.");
+      return;
+    }
+    try {
+      log.close();
+    } catch (IOException e) {
+      LOGGER.warn("Échec de la fermeture du journal des sessions.", e);
+    }
+  }
+
+  /** Écriture d'un enregistrement du journal dans le tampon {@link #record}. */
+  @FunctionalInterface
+  private interface LogRecord {
+    void write() throws IOException;
+  }
+
+  /** Tampon d'encodage réutilisé, dont le contenu est écrit sans copie. */
+  private static final class RecordBuffer extends ByteArrayOutputStream {
+    private byte[] array() {
+      return buf;
+    }
+  }
+
+  /** Session encodée, lue dans l'instantané ou le journal, avec sa table des backends. */
+  private record Encoded(byte[] payload, int offset, int[] ordinals) {}
+}
@@ -0,0 +1,49 @@
+/*
+ * The MIT License
+ * Copyright © 2024-2025 Agence du Numérique en Santé (ANS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.gouv.ans.psc.example.esante.proxy.service.session;
+
+import org.springframework.session.MapSession;
+
+/**
+ * Écouteur des écritures du stockage des sessions, prévenu dans l'ordre où elles s'appliquent à
+ * chaque session. Il est appelé sous le verrou de la partition de la session et ne doit donc pas
+ * bloquer.
+ *
+ * @author edegenetais
+ */
+public interface SessionWriteListener {
+
+  /**
+   * @param session copie enregistrée de la session.
+   * @param attributesChanged <code>false</code> si seule la date de dernier accès a pu changer
+   *     depuis l'enregistrement précédent.
+   */
+  void saved(MapSession session, boolean attributesChanged);
+
+  /**
+   * La session a été supprimée ou a expiré.
+   *
+   * @param session dernière copie enregistrée de la session.
+   */
+  void removed(MapSession session);
+}
@@ -0,0 +1,335 @@
+/*
+ * The MIT License
+ * Copyright © 2024-2025 Agence du Numérique en Santé (ANS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.gouv.ans.psc.example.esante.proxy.service.session;
+
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.session.MapSession;
+import org.springframework.session.ReactiveSessionRepository;
+import reactor.core.publisher.Mono;
+
+/**
+ * Stockage des sessions en mémoire, réparti en partitions indépendantes selon l'identifiant de
+ * session. Comme {@link org.springframework.session.ReactiveMapSessionRepository}, il conserve une
+ * copie de chaque session enregistrée et en restitue une copie.
+ * L'expiration est proactive : chaque session est inscrite dans une roue temporelle
+ * ({@link HashedWheelTimer}) pour la date où elle expirerait sans nouvel accès. À l'échéance, une
+ * session accédée entre-temps est réinscrite pour le temps qui lui reste, sinon elle est retirée et
+ * les écouteurs d'expiration sont prévenus. Chaque échéance coûte O(1), et les accès ne touchent
+ * pas à la roue.
+ *
+ * @author edegenetais
+ */
+public class ShardedSessionRepository
+    implements ReactiveSessionRepository<MapSession>, SessionExpiryNotifier, DisposableBean {
+  private static final Logger LOGGER = LoggerFactory.getLogger(ShardedSessionRepository.class);
+
+  private final Map<String, Entry>[] shards;
+  private final HashedWheelTimer wheel;
+  private final List<Consumer<MapSession>> expiryListeners = new CopyOnWriteArrayList<>();
+  private final AtomicLong expired = new AtomicLong();
+  private volatile SessionWriteListener writeListener;
+  private volatile Duration defaultMaxInactiveInterval =
+      Duration.ofSeconds(MapSession.DEFAULT_MAX_INACTIVE_INTERVAL_SECONDS);
+
+  /**
+   * @param shards nombre de partitions, puissance de deux.
+   * @param tick résolution de la roue temporelle : une session expire au plus un tick en retard.
+   */
+  @SuppressWarnings("unchecked")
+  public ShardedSessionRepository(int shards, Duration tick) {
+    if (Integer.bitCount(shards) != 1) {
+      throw new IllegalArgumentException("Shard count must be a power of two");
+    }
+    this.shards = new Map[shards];
+    for (int i = 0; i < shards; i++) {
+      this.shards[i] = new ConcurrentHashMap<>();
+    }
+    this.wheel =
+        new HashedWheelTimer(
+            new DefaultThreadFactory("session-expiry", true), tick.toMillis(), TimeUnit.MILLISECONDS);
+  }
+
+  public void setDefaultMaxInactiveInterval(Duration defaultMaxInactiveInterval) {
+    this.defaultMaxInactiveInterval = defaultMaxInactiveInterval;
+  }
+
+  /**
+   * Enregistre un écouteur prévenu, depuis le thread de la roue temporelle, de chaque session
+   * expirée. Les sessions supprimées explicitement ne sont pas concernées.
+   */
+  @Override
+  public void addExpiryListener(Consumer<MapSession> listener) {
+    expiryListeners.add(listener);
+  }
+
+  /**
+   * Enregistre l'écouteur (unique) des écritures, utilisé pour la persistance des sessions.
+   */
+  public void setWriteListener(SessionWriteListener writeListener) {
+    this.writeListener = writeListener;
+  }
+
+  /**
+   * Réintègre une session rechargée depuis sa persistance, sans prévenir l'écouteur des écritures.
+   */
+  public void restore(MapSession session) {
+    final Entry entry = new Entry(session.getId(), session);
+    shard(session.getId()).put(session.getId(), entry);
+    entry.scheduleIfNeeded();
+  }
+
+  /**
+   * Enregistre à nouveau une session dont un attribut a changé sans passer par {@link #save}
+   * (tokens renouvelés en tâche de fond), pour que l'écouteur des écritures en garde l'état courant.
+   */
+  public void rewrite(String id) {
+    shard(id)
+        .computeIfPresent(
+            id,
+            (k, entry) -> {
+              final SessionWriteListener listener = writeListener;
+              if (listener != null) {
+                listener.saved(entry.session, true);
+              }
+              return entry;
+            });
+  }
+
+  /**
+   * Parcourt les sessions présentes (copies internes, à ne pas modifier).
+   */
+  public void forEach(Consumer<MapSession> action) {
+    for (Map<String, Entry> shard : shards) {
+      shard.values().forEach(entry -> action.accept(entry.session));
+    }
+  }
+
+  @Override
+  public Mono<MapSession> createSession() {
+    return Mono.fromSupplier(
+        () -> {
+          final MapSession session = new MapSession();
+          session.setMaxInactiveInterval(defaultMaxInactiveInterval);
+          return session;
+        });
+  }
+
+  @Override
+  public Mono<Void> save(MapSession session) {
+    return Mono.fromRunnable(
+        () -> {
+          if (!session.getId().equals(session.getOriginalId())) {
+            remove(session.getOriginalId());
+          }
+          final MapSession copy = new MapSession(session);
+          final Entry entry =
+              shard(copy.getId())
+                  .compute(
+                      copy.getId(),
+                      (id, previous) -> {
+                        final SessionWriteListener listener = writeListener;
+                        if (listener != null) {
+                          listener.saved(
+                              copy, previous == null || !sameAttributes(previous.session, copy));
+                        }
+                        if (previous == null) {
+                          return new Entry(id, copy);
+                        }
+                        previous.session = copy;
+                        return previous;
+                      });
+          entry.scheduleIfNeeded();
+        });
+  }
+
+  @Override
+  public Mono<MapSession> findById(String id) {
+    return Mono.fromSupplier(
+        () -> {
+          final Entry entry = shard(id).get(id);
+          if (entry == null) {
+            return null;
+          }
+          final MapSession session = entry.session;
+          if (session.isExpired()) {
+            // échéance pas encore atteinte par la roue.
+            expire(entry, session);
+            return null;
+          }
+          return new MapSession(session);
+        });
+  }
+
+  @Override
+  public Mono<Void> deleteById(String id) {
+    return Mono.fromRunnable(() -> remove(id));
+  }
+
+  /**
+   * @return l'état du stockage des sessions.
+   */
+  public SessionStoreStats stats() {
+    long size = 0;
+    for (Map<String, Entry> shard : shards) {
+      size += shard.size();
+    }
+    return new SessionStoreStats(size, expired.get());
+  }
+
+  private Map<String, Entry> shard(String id) {
+    final int h = id.hashCode();
+    return shards[(h ^ (h >>> 16)) & (shards.length - 1)];
+  }
+
+  /**
+   * @return <code>true</code> si les deux sessions portent les mêmes attributs (mêmes instances).
+   */
+  private static boolean sameAttributes(MapSession previous, MapSession next) {
+    if (previous.getAttributeNames().size() != next.getAttributeNames().size()) {
+      return false;
+    }
+    for (String name : next.getAttributeNames()) {
+      if (previous.getAttribute(name) != next.getAttribute(name)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void remove(String id) {
+    final Entry[] removed = new Entry[1];
+    shard(id)
+        .computeIfPresent(
+            id,
+            (k, e) -> {
+              removed[0] = e;
+              return removed(e);
+            });
+    if (removed[0] != null) {
+      removed[0].cancel();
+    }
+  }
+
+  /**
+   * Prévient l'écouteur des écritures du retrait de l'entrée, sous le verrou de sa partition.
+   *
+   * @return toujours <code>null</code>, pour retirer l'entrée.
+   */
+  private Entry removed(Entry entry) {
+    final SessionWriteListener listener = writeListener;
+    if (listener != null) {
+      listener.removed(entry.session);
+    }
+    return null;
+  }
+
+  private void expire(Entry entry, MapSession session) {
+    final boolean[] mine = new boolean[1];
+    shard(entry.id)
+        .computeIfPresent(
+            entry.id,
+            (k, e) -> {
+              if (e != entry) {
+                return e;
+              }
+              mine[0] = true;
+              return removed(e);
+            });
+    if (mine[0]) {
+      entry.cancel();
+      expired.incrementAndGet();
+      LOGGER.debug("Session {} expirée.", entry.id);
+      for (Consumer<MapSession> listener : expiryListeners) {
+        try {
+          listener.accept(session);
+        } catch (RuntimeException e) {
+          LOGGER.warn("Échec du traitement de l'expiration de la session {}", entry.id, e);
+        }
+      }
+    }
+  }
+
+  @Override
+  public void destroy() {
+    wheel.stop();
+  }
+
+  /** Session d'une partition et son échéance dans la roue temporelle. */
+  private final class Entry {
+    private final String id;
+    private volatile MapSession session;
+    private Timeout timeout;
+    private boolean removed;
+
+    private Entry(String id, MapSession session) {
+      this.id = id;
+      this.session = session;
+    }
+
+    private synchronized void scheduleIfNeeded() {
+      if (timeout == null) {
+        schedule(session);
+      }
+    }
+
+    private synchronized void schedule(MapSession current) {
+      if (removed || current.getMaxInactiveInterval().isNegative()) {
+        timeout = null;
+        return;
+      }
+      final Instant deadline = current.getLastAccessedTime().plus(current.getMaxInactiveInterval());
+      final long delay = Math.max(0, Duration.between(Instant.now(), deadline).toMillis());
+      timeout = wheel.newTimeout(t -> fire(), delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void fire() {
+      final MapSession current = session;
+      if (current.isExpired()) {
+        expire(this, current);
+      } else {
+        schedule(current);
+      }
+    }
+
+    private synchronized void cancel() {
+      removed = true;
+      if (timeout != null) {
+        timeout.cancel();
+      }
+    }
+  }
+}
@@ -0,0 +1,326 @@
+/*
+ * The MIT License
+ * Copyright © 2024-2025 Agence du Numérique en Santé (ANS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.gouv.ans.psc.example.esante.proxy.service.trace;
+
+import fr.gouv.ans.psc.example.esante.proxy.model.Trace;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.LongPredicate;
+import java.util.stream.Stream;
+
+/**
+ * Fichier segment du journal des traces, de taille fixe et projeté en mémoire.
+ * Chaque enregistrement est composé de sa longueur, de l'horodatage de la trace (en nanosecondes
+ * depuis l'époque) puis de son contenu ; la longueur est écrite en dernier, si bien qu'un
+ * enregistrement interrompu par un arrêt brutal est simplement ignoré à la relecture. Un index
+ * creux associe un enregistrement sur {@value #INDEX_INTERVAL} octets au plus grand horodatage
+ * rencontré avant lui, pour positionner une lecture par date sans parcourir le début du segment.
+ * L'ensemble des valeurs de champs indexés présentes dans le segment permet d'écarter un segment
+ * entier lors d'une recherche filtrée ; pour un segment relu au démarrage, il n'est construit qu'à
+ * la première recherche filtrée qui le concerne.
+ * Seul le thread d'écriture du journal modifie un segment ; les lectures sont concurrentes.
+ *
+ * @author edegenetais
+ */
+final class JournalSegment implements AutoCloseable {
+  static final int MAGIC = 0x50534354;
+  static final int VERSION = 1;
+  static final int HEADER_SIZE = 2 * Integer.BYTES;
+  static final int RECORD_HEADER_SIZE = Integer.BYTES + Long.BYTES;
+  static final int INDEX_INTERVAL = 64 * 1024;
+
+  private final Path file;
+  private final FileChannel channel;
+  private final MappedByteBuffer buffer;
+  private final int capacity;
+  private final long[] indexOffsets;
+  private final long[] indexMaxNanos;
+  private volatile int indexSize;
+  private long lastIndexed = -INDEX_INTERVAL;
+  /** Fin du dernier enregistrement complet : sa mise à jour publie l'enregistrement aux lecteurs. */
+  private volatile int end = HEADER_SIZE;
+  private volatile long minNanos = Long.MAX_VALUE;
+  private volatile long maxNanos = Long.MIN_VALUE;
+  /** Valeurs indexées présentes, <code>null</code> tant qu'elles n'ont pas été relues. */
+  private Set<TraceQuery.Term> terms;
+
+  private JournalSegment(Path file, FileChannel channel, MappedByteBuffer buffer) {
+    this.file = file;
+    this.channel = channel;
+    this.buffer = buffer;
+    this.capacity = buffer.capacity();
+    final int maxEntries = capacity / INDEX_INTERVAL + 1;
+    this.indexOffsets = new long[maxEntries];
+    this.indexMaxNanos = new long[maxEntries];
+  }
+
+  static JournalSegment create(Path file, int size) throws IOException {
+    final FileChannel channel =
+        FileChannel.open(
+            file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    final JournalSegment segment =
+        new JournalSegment(file, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+    segment.terms = new HashSet<>();
+    segment.buffer.putInt(0, MAGIC);
+    segment.buffer.putInt(Integer.BYTES, VERSION);
+    return segment;
+  }
+
+  /**
+   * Ouvre un segment existant et reconstruit son index en ne lisant que les en-têtes
+   * d'enregistrements.
+   */
+  static JournalSegment open(Path file, boolean writable) throws IOException {
+    final FileChannel channel =
+        writable
+            ? FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)
+            : FileChannel.open(file, StandardOpenOption.READ);
+    final MappedByteBuffer buffer =
+        channel.map(
+            writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY,
+            0,
+            channel.size());
+    final JournalSegment segment = new JournalSegment(file, channel, buffer);
+    if (buffer.capacity() < HEADER_SIZE
+        || buffer.getInt(0) != MAGIC
+        || buffer.getInt(Integer.BYTES) != VERSION) {
+      channel.close();
+      throw new IOException(file + " is not a trace journal segment");
+    }
+    segment.recover();
+    return segment;
+  }
+
+  private void recover() {
+    int pos = HEADER_SIZE;
+    while (pos + RECORD_HEADER_SIZE <= capacity) {
+      final int length = buffer.getInt(pos);
+      if (length <= 0 || length > capacity - pos - RECORD_HEADER_SIZE) {
+        break;
+      }
+      indexRecord(pos, buffer.getLong(pos + Integer.BYTES));
+      pos += RECORD_HEADER_SIZE + length;
+    }
+    end = pos;
+  }
+
+  /**
+   * @param added valeurs indexées de la trace, enregistrées avant la publication de
+   *     l'enregistrement pour qu'un lecteur filtré ne puisse pas l'écarter à tort.
+   * @return <code>false</code> si l'enregistrement ne tient pas dans la place restante.
+   */
+  boolean append(long nanos, byte[] payload, List<TraceQuery.Term> added) {
+    final int pos = end;
+    if ((long) pos + RECORD_HEADER_SIZE + payload.length > capacity) {
+      return false;
+    }
+    buffer.putLong(pos + Integer.BYTES, nanos);
+    buffer.put(pos + RECORD_HEADER_SIZE, payload);
+    buffer.putInt(pos, payload.length);
+    indexRecord(pos, nanos);
+    publish(pos + RECORD_HEADER_SIZE + payload.length, added);
+    return true;
+  }
+
+  /**
+   * Enregistre les valeurs indexées puis publie la nouvelle fin, sous le verrou de {@link
+   * #mayContain} : une relecture paresseuse des valeurs ne peut pas s'intercaler entre les deux.
+   */
+  private synchronized void publish(int newEnd, List<TraceQuery.Term> added) {
+    if (terms != null) {
+      terms.addAll(added);
+    }
+    end = newEnd;
+  }
+
+  private void indexRecord(int pos, long nanos) {
+    if (pos - lastIndexed >= INDEX_INTERVAL && indexSize < indexOffsets.length) {
+      // le plus grand horodatage des enregistrements précédents.
+      indexOffsets[indexSize] = pos;
+      indexMaxNanos[indexSize] = maxNanos;
+      indexSize++;
+      lastIndexed = pos;
+    }
+    if (nanos < minNanos) {
+      minNanos = nanos;
+    }
+    if (nanos > maxNanos) {
+      maxNanos = nanos;
+    }
+  }
+
+  /**
+   * @param wanted valeurs recherchées, toutes requises.
+   * @param decoder décodage d'un enregistrement, pour relire un segment issu d'un démarrage
+   *     précédent.
+   * @return <code>false</code> si aucune trace du segment ne peut porter toutes ces valeurs.
+   */
+  synchronized boolean mayContain(
+      List<TraceQuery.Term> wanted, Function<ByteBuffer, Trace> decoder) {
+    if (wanted.isEmpty()) {
+      return true;
+    }
+    if (terms == null) {
+      final Set<TraceQuery.Term> read = new HashSet<>();
+      for (int pos = HEADER_SIZE; pos < end; pos = nextRecord(pos)) {
+        read.addAll(TraceQuery.termsOf(decoder.apply(payload(pos))));
+      }
+      terms = read;
+    }
+    return terms.containsAll(wanted);
+  }
+
+  static boolean fits(int segmentSize, int payloadLength) {
+    return (long) HEADER_SIZE + RECORD_HEADER_SIZE + payloadLength <= segmentSize;
+  }
+
+  /**
+   * @param afterNanos borne inférieure, exclue.
+   * @param beforeNanos borne supérieure, exclue.
+   * @return le contenu des enregistrements horodatés dans l'intervalle, lu directement dans les
+   *     pages projetées.
+   */
+  Stream<ByteBuffer> read(long afterNanos, long beforeNanos) {
+    return records(afterNanos, beforeNanos, HEADER_SIZE).map(this::payload);
+  }
+
+  /**
+   * @param afterNanos borne inférieure, exclue.
+   * @param beforeNanos borne supérieure, exclue.
+   * @param from position d'enregistrement à partir de laquelle lire.
+   * @return les positions des enregistrements horodatés dans l'intervalle.
+   * @throws fr.gouv.ans.psc.example.esante.proxy.service.FunctionalError si la position n'est pas
+   *     un début d'enregistrement.
+   */
+  Stream<Integer> records(long afterNanos, long beforeNanos, int from) {
+    final int limit = end;
+    if (!isRecordStart(from, limit)) {
+      throw TraceCursor.invalid();
+    }
+    if (limit == HEADER_SIZE || maxNanos <= afterNanos || minNanos >= beforeNanos) {
+      return Stream.empty();
+    }
+    final LongPredicate inRange = n -> n > afterNanos && n < beforeNanos;
+    return Stream.iterate(
+            Math.max(from, seek(afterNanos, limit)), pos -> pos < limit, this::nextRecord)
+        .filter(pos -> inRange.test(nanos(pos)));
+  }
+
+  /**
+   * Vérifie une position de reprise en la rejoignant depuis le point d'index qui la précède.
+   */
+  private boolean isRecordStart(int pos, int limit) {
+    if (pos < HEADER_SIZE || pos > limit) {
+      return false;
+    }
+    int record = HEADER_SIZE;
+    for (int i = indexSize - 1; i >= 0; i--) {
+      if (indexOffsets[i] <= pos) {
+        record = (int) indexOffsets[i];
+        break;
+      }
+    }
+    while (record < pos) {
+      record = nextRecord(record);
+    }
+    return record == pos;
+  }
+
+  /** @return la position qui suit le dernier enregistrement écrit. */
+  int end() {
+    return end;
+  }
+
+  /** @return l'horodatage, en nanosecondes, de l'enregistrement à cette position. */
+  long nanos(int pos) {
+    return buffer.getLong(pos + Integer.BYTES);
+  }
+
+  ByteBuffer payload(int pos) {
+    return buffer.slice(pos + RECORD_HEADER_SIZE, buffer.getInt(pos));
+  }
+
+  int nextRecord(int pos) {
+    return pos + RECORD_HEADER_SIZE + buffer.getInt(pos);
+  }
+
+  /**
+   * @return la position du dernier point d'index avant lequel aucun enregistrement n'est postérieur
+   *     à la borne.
+   */
+  private int seek(long afterNanos, int limit) {
+    int low = 0;
+    int high = indexSize - 1;
+    int found = HEADER_SIZE;
+    while (low <= high) {
+      final int mid = (low + high) >>> 1;
+      if (indexOffsets[mid] >= limit) {
+        high = mid - 1;
+      } else if (indexMaxNanos[mid] <= afterNanos) {
+        found = (int) indexOffsets[mid];
+        low = mid + 1;
+      } else {
+        high = mid - 1;
+      }
+    }
+    return found;
+  }
+
+  Path file() {
+    return file;
+  }
+
+  /**
+   * @return l'horodatage le plus récent du segment, <code>Long.MIN_VALUE</code> s'il est vide.
+   */
+  long maxNanos() {
+    return maxNanos;
+  }
+
+  /**
+   * @return le nombre d'octets occupés par les enregistrements.
+   */
+  int used() {
+    return end - HEADER_SIZE;
+  }
+
+  void force() {
+    buffer.force();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (!buffer.isReadOnly()) {
+      buffer.force();
+    }
+    channel.close();
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ * The MIT License
+ * Copyright © 2024-2025 Agence du Numérique en Santé (ANS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.gouv.ans.psc.example.esante.proxy.service.trace;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Dictionnaire des chaînes d'un segment de traces : chaque valeur distincte n'y est conservée
+ * qu'une fois et les traces n'en portent que l'identifiant. Le dictionnaire disparaît avec son
+ * segment, si bien que les valeurs à forte cardinalité (identifiants de session, chemins) ne
+ * s'accumulent pas.
+ *
+ * @author edegenetais
+ */
+final class SegmentDictionary {
+  static final int NULL_ID = -1;
+  /** Coût estimé d'une entrée du dictionnaire, hors contenu de la chaîne. */
+  private static final long ENTRY_OVERHEAD_BYTES = 96;
+
+  private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+  private final MemoryAccount memory;
+  private volatile String[] values;
+  private int size;
+
+  SegmentDictionary(int initialCapacity, MemoryAccount memory) {
+    this.values = new String[Math.max(initialCapacity, 8)];
+    this.memory = memory;
+  }
+
+  /**
+   * @return l'identifiant de la valeur, <code>-1</code> pour <code>null</code>.
+   */
+  int encode(String value) {
+    if (value == null) {
+      return NULL_ID;
+    }
+    final Integer id = ids.get(value);
+    if (id != null) {
+      return id;
+    }
+    synchronized (this) {
+      final Integer raced = ids.get(value);
+      if (raced != null) {
+        return raced;
+      }
+      String[] current = values;
+      if (size == current.length) {
+        final String[] grown = new String[current.length * 2];
+        System.arraycopy(current, 0, grown, 0, size);
+        current = grown;
+      }
+      final int created = size++;
+      current[created] = value;
+      values = current;
+      ids.put(value, created);
+      memory.add(ENTRY_OVERHEAD_BYTES + 2L * value.length());
+      return created;
+    }
+  }
+
+  /**
+   * @return l'identifiant de la valeur si elle est présente, <code>-1</code> sinon.
+   */
+  int lookup(String value) {
+    final Integer id = ids.get(value);
+    return id == null ? NULL_ID : id;
+  }
+
+  String decode(int id) {
+    return id == NULL_ID ? null : values[id];
+  }
+}
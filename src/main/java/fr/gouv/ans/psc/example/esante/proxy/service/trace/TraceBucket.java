@@ -0,0 +1,204 @@
+/*
+ * The MIT License
+ * Copyright © 2024-2025 Agence du Numérique en Santé (ANS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.gouv.ans.psc.example.esante.proxy.service.trace;
+
+import fr.gouv.ans.psc.example.esante.proxy.model.Trace;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Traces d'une même tranche de temps, rangées dans une chaîne de segments. Le premier segment est
+ * petit et chaque segment suivant double de taille, jusqu'à la taille configurée : une tranche peu
+ * active n'occupe que peu de mémoire.
+ *
+ * @author edegenetais
+ */
+final class TraceBucket {
+  private static final int FIRST_SEGMENT_SIZE = 64;
+  private static final int SEALED = Integer.MIN_VALUE;
+
+  private final int maxSegmentSize;
+  /** Mémoire estimée de tout le stockage, que chaque segment alimente. */
+  private final LongAdder memory;
+  private final AtomicReference<TraceSegment> head;
+  private final AtomicReference<TraceSegment> tail;
+  /** Nombre de producteurs en cours d'écriture, ou {@link #SEALED} une fois la tranche évincée. */
+  private final AtomicInteger writers = new AtomicInteger();
+
+  TraceBucket(int maxSegmentSize, LongAdder memory) {
+    this.maxSegmentSize = maxSegmentSize;
+    this.memory = memory;
+    final TraceSegment first =
+        new TraceSegment(
+            Math.min(FIRST_SEGMENT_SIZE, maxSegmentSize), 0, new MemoryAccount(memory));
+    this.head = new AtomicReference<>(first);
+    this.tail = new AtomicReference<>(first);
+  }
+
+  /**
+   * @return <code>false</code> si la tranche a été scellée pour éviction : le producteur doit alors
+   *     en créer une nouvelle.
+   */
+  boolean enter() {
+    int current;
+    do {
+      current = writers.get();
+      if (current < 0) {
+        return false;
+      }
+    } while (!writers.compareAndSet(current, current + 1));
+    return true;
+  }
+
+  void leave() {
+    writers.decrementAndGet();
+  }
+
+  /**
+   * Scelle la tranche si aucun producteur n'y écrit.
+   *
+   * @return <code>true</code> si la tranche est désormais scellée par cet appel.
+   */
+  boolean seal() {
+    return writers.compareAndSet(0, SEALED);
+  }
+
+  /**
+   * Ajoute une trace ; l'appelant doit être entré dans la tranche.
+   *
+   * @return <code>true</code> si cet ajout a chaîné un nouveau segment.
+   */
+  boolean append(Trace trace) {
+    boolean rolled = false;
+    TraceSegment segment = tail.get();
+    int slot;
+    while ((slot = segment.claim()) < 0) {
+      final TraceSegment next =
+          segment.linkNext(
+              Math.min(segment.capacity() * 2, maxSegmentSize), new MemoryAccount(memory));
+      rolled |= tail.compareAndSet(segment, next);
+      segment = tail.get();
+    }
+    segment.publish(slot, trace);
+    return rolled;
+  }
+
+  /**
+   * @return le plus ancien segment, retiré de la tranche, ou <code>null</code> s'il ne reste que le
+   *     segment courant.
+   */
+  TraceSegment evictHead() {
+    final TraceSegment oldest = head.get();
+    final TraceSegment next = oldest.next();
+    if (next == null || oldest == tail.get()) {
+      return null;
+    }
+    return head.compareAndSet(oldest, next) ? oldest : null;
+  }
+
+  /** Remet tous les segments restants d'une tranche scellée. */
+  void drain(Consumer<TraceSegment> evicted) {
+    final TraceSegment last = tail.get();
+    for (TraceSegment s = head.get(); s != null; s = s == last ? null : s.next()) {
+      evicted.accept(s);
+    }
+  }
+
+  /**
+   * Compacte les segments de la tranche, y compris le dernier, qui est alors fermé : une trace
+   * tardive ouvre un nouveau segment.
+   *
+   * @return le nombre de segments compactés par cet appel.
+   */
+  int compact() {
+    int compacted = 0;
+    final TraceSegment last = tail.get();
+    for (TraceSegment s = head.get(); s != null; s = s == last ? null : s.next()) {
+      if (s.compact()) {
+        compacted++;
+      }
+    }
+    return compacted;
+  }
+
+  /**
+   * @return les traces présentes au moment de l'appel, dans l'ordre d'enregistrement.
+   */
+  Stream<Trace> snapshot() {
+    return scan(0, 0, List.of()).map(Located::trace);
+  }
+
+  /**
+   * @param fromSegment rang du premier segment à lire.
+   * @param fromSlot premier emplacement à lire dans ce segment.
+   * @param terms termes que doivent porter les traces ; les segments qui n'en contiennent aucune
+   *     sont écartés sans être parcourus.
+   * @return les traces présentes au moment de l'appel à partir de cette position, avec leur
+   *     position.
+   */
+  Stream<Located> scan(long fromSegment, int fromSlot, List<TraceQuery.Term> terms) {
+    // la tête est lue avant la queue : elle la précède donc toujours dans la chaîne.
+    final TraceSegment first = head.get();
+    final TraceSegment last = tail.get();
+    final int lastLimit = last.limit();
+    return Stream.iterate(first, Objects::nonNull, s -> s == last ? null : s.next())
+        .filter(s -> s.id() >= fromSegment)
+        .flatMap(
+            s -> {
+              final int from = s.id() == fromSegment ? fromSlot : 0;
+              final int to = s == last ? lastLimit : s.limit();
+              final IntStream slots = from < to ? slots(s, from, to, terms) : null;
+              if (slots == null) {
+                return Stream.empty();
+              }
+              // un segment compacté n'est décompressé qu'une fois par parcours.
+              final TraceSegment.Columns columns = s.columns();
+              return slots.mapToObj(slot -> new Located(columns.get(slot), s.id(), slot));
+            })
+        .filter(l -> l.trace() != null);
+  }
+
+  /**
+   * @return les emplacements candidats, <code>null</code> si le segment n'en contient aucun.
+   */
+  private static IntStream slots(TraceSegment segment, int from, int to, List<TraceQuery.Term> terms) {
+    if (terms.isEmpty()) {
+      return IntStream.range(from, to);
+    }
+    final BitSet matching = segment.matching(terms);
+    if (matching == null) {
+      return null;
+    }
+    return matching.stream().filter(slot -> slot >= from && slot < to);
+  }
+
+  /** Trace et sa position dans la tranche. */
+  record Located(Trace trace, long segment, int slot) {}
+}
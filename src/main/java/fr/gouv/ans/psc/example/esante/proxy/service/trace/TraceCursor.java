@@ -0,0 +1,66 @@
+/*
+ * The MIT License
+ * Copyright © 2024-2025 Agence du Numérique en Santé (ANS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.gouv.ans.psc.example.esante.proxy.service.trace;
+
+import fr.gouv.ans.psc.example.esante.proxy.service.FunctionalError;
+import java.nio.ByteBuffer;
+import java.util.Base64;
+
+/**
+ * Position de reprise d'une lecture paginée des traces. Son contenu dépend du stockage qui l'a
+ * produite (tranche et emplacement en mémoire, segment et position dans le journal) : les clients
+ * ne manipulent que sa forme encodée, opaque.
+ *
+ * @param major premier niveau de position.
+ * @param minor second niveau de position.
+ * @author edegenetais
+ */
+public record TraceCursor(long major, long minor) {
+
+  public String encode() {
+    final ByteBuffer raw = ByteBuffer.allocate(2 * Long.BYTES).putLong(major).putLong(minor);
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.array());
+  }
+
+  /**
+   * @param encoded forme encodée par {@link #encode()}.
+   * @throws FunctionalError si la forme encodée n'est pas valide.
+   */
+  public static TraceCursor decode(String encoded) {
+    try {
+      final byte[] raw = Base64.getUrlDecoder().decode(encoded);
+      if (raw.length != 2 * Long.BYTES) {
+        throw invalid();
+      }
+      final ByteBuffer buffer = ByteBuffer.wrap(raw);
+      return new TraceCursor(buffer.getLong(), buffer.getLong());
+    } catch (IllegalArgumentException e) {
+      throw invalid();
+    }
+  }
+
+  static FunctionalError invalid() {
+    return new FunctionalError(
+        FunctionalError.Category.INVALID_REQUEST, "Invalid trace cursor.", null, null);
+  }
+}
@@ -0,0 +1,422 @@
+/*
+ * The MIT License
+ * Copyright © 2024-2025 Agence du Numérique en Santé (ANS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.gouv.ans.psc.example.esante.proxy.service.trace;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
+import fr.gouv.ans.psc.example.esante.proxy.config.TraceJournalConfig;
+import fr.gouv.ans.psc.example.esante.proxy.model.Trace;
+import fr.gouv.ans.psc.example.esante.proxy.service.TechnicalFailure;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Journal persistant des traces, en ajout seul, dans des fichiers segments de taille fixe projetés
+ * en mémoire. Toutes les écritures passent par un thread dédié ; quand le segment courant est plein,
+ * un nouveau segment est créé et les plus anciens au-delà du nombre configuré sont supprimés.
+ * Les lectures décodent les traces directement depuis les pages projetées : l'historique n'occupe
+ * pas le tas, et un redémarrage ne relit que les en-têtes d'enregistrements pour reconstruire les
+ * index. La file d'écriture est bornée : si le disque ne suit pas, les traces en excès sont écartées
+ * et comptées plutôt que retenues sur le tas.
+ *
+ * @author edegenetais
+ */
+public class TraceJournal implements AutoCloseable {
+  private static final Logger LOGGER = LoggerFactory.getLogger(TraceJournal.class);
+  private static final Pattern SEGMENT_NAME = Pattern.compile("journal-(\\d{20})\\.seg");
+
+  private final TraceJournalConfig cfg;
+  private final ObjectMapper mapper;
+  private final int segmentSize;
+  private final ConcurrentNavigableMap<Long, JournalSegment> segments =
+      new ConcurrentSkipListMap<>();
+  private final AtomicLong written = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  /** Places libres dans la file d'écriture, une par trace en attente. */
+  private final Semaphore pending;
+  private final ExecutorService writer =
+      Executors.newSingleThreadExecutor(
+          r -> {
+            Thread t = new Thread(r, "trace-journal");
+            t.setDaemon(true);
+            return t;
+          });
+  /** Segment en cours d'écriture, manipulé par le seul thread d'écriture. */
+  private JournalSegment current;
+  /**
+   * Segments retrouvés à l'ouverture, avec la fin de leur contenu à ce moment-là, en attendant que
+   * {@link #replayRecovered} les relise.
+   */
+  private volatile Map<JournalSegment, Integer> recovered;
+
+  public TraceJournal(TraceJournalConfig cfg, ObjectMapper mapper) {
+    this.cfg = cfg;
+    this.mapper = mapper;
+    this.segmentSize = (int) cfg.segmentSize().toBytes();
+    this.pending = new Semaphore(cfg.maxPending());
+    try {
+      Files.createDirectories(cfg.directory());
+      final List<Path> files;
+      try (Stream<Path> listing = Files.list(cfg.directory())) {
+        files =
+            listing
+                .filter(f -> SEGMENT_NAME.matcher(f.getFileName().toString()).matches())
+                .sorted()
+                .toList();
+      }
+      final Map<JournalSegment, Integer> found = new LinkedHashMap<>();
+      JournalSegment writable = null;
+      for (int i = 0; i < files.size(); i++) {
+        final Path file = files.get(i);
+        final boolean last = i == files.size() - 1;
+        try {
+          final JournalSegment segment = JournalSegment.open(file, last);
+          segments.put(sequence(file), segment);
+          found.put(segment, segment.end());
+          if (last) {
+            writable = segment;
+          }
+        } catch (IOException e) {
+          LOGGER.error("Trace journal segment {} ignored.", file, e);
+        }
+      }
+      recovered = found;
+      current =
+          writable != null
+              ? writable
+              : createSegment(segments.isEmpty() ? 1 : segments.lastKey() + 1);
+      LOGGER.info(
+          "Trace journal opened in {} with {} segment(s).", cfg.directory(), segments.size());
+    } catch (IOException e) {
+      throw new TechnicalFailure("Failed to open trace journal in " + cfg.directory(), e);
+    }
+  }
+
+  /**
+   * Relit une fois les traces retrouvées à l'ouverture du journal, sans celles qui lui ont été
+   * confiées depuis : leurs en-têtes écartent les plus anciennes sans décodage. Un enregistrement
+   * illisible est journalisé puis ignoré.
+   *
+   * @param since borne inférieure (exclue) de l'horodatage des traces relues.
+   * @param consumer destinataire des traces relues.
+   */
+  public void replayRecovered(Instant since, Consumer<Trace> consumer) {
+    final Map<JournalSegment, Integer> pendingReplay = recovered;
+    recovered = null;
+    if (pendingReplay == null) {
+      return;
+    }
+    final long sinceNanos = toNanos(since);
+    pendingReplay.forEach(
+        (segment, limit) -> {
+          for (int pos = JournalSegment.HEADER_SIZE; pos < limit; pos = segment.nextRecord(pos)) {
+            if (segment.nanos(pos) <= sinceNanos) {
+              continue;
+            }
+            try {
+              consumer.accept(decode(segment.payload(pos)));
+            } catch (TechnicalFailure e) {
+              LOGGER.warn("Unreadable record at {} in {} ignored.", pos, segment.file(), e);
+            }
+          }
+        });
+  }
+
+  /** Confie la trace au thread d'écriture du journal, ou l'écarte si sa file est pleine. */
+  public void append(Trace trace) {
+    appendAll(List.of(trace));
+  }
+
+  /** Confie un lot de traces au thread d'écriture du journal, ou l'écarte si sa file est pleine. */
+  public void appendAll(List<Trace> traces) {
+    if (!pending.tryAcquire(traces.size())) {
+      final long count = dropped.addAndGet(traces.size());
+      if (Long.highestOneBit(count) != Long.highestOneBit(count - traces.size())) {
+        LOGGER.warn("Trace journal write queue full, {} trace(s) dropped so far.", count);
+      }
+      return;
+    }
+    writer.execute(
+        () -> {
+          try {
+            traces.forEach(this::write);
+          } finally {
+            pending.release(traces.size());
+          }
+        });
+  }
+
+  private void write(Trace trace) {
+    try {
+      final byte[] payload = mapper.writeValueAsBytes(trace);
+      if (!JournalSegment.fits(segmentSize, payload.length)) {
+        rejected.incrementAndGet();
+        LOGGER.error("Trace of {} bytes larger than a journal segment, not journaled.", payload.length);
+        return;
+      }
+      final long nanos = toNanos(trace.timestamp());
+      final List<TraceQuery.Term> terms = TraceQuery.termsOf(trace);
+      if (!current.append(nanos, payload, terms)) {
+        rotate();
+        current.append(nanos, payload, terms);
+      }
+      written.incrementAndGet();
+    } catch (IOException | RuntimeException e) {
+      rejected.incrementAndGet();
+      LOGGER.error("Failed to journal trace.", e);
+    }
+  }
+
+  private void rotate() throws IOException {
+    current.force();
+    current = createSegment(segments.lastKey() + 1);
+    while (segments.size() > cfg.maxSegments()) {
+      delete(segments.pollFirstEntry().getValue());
+    }
+  }
+
+  /**
+   * Supprime, par le thread d'écriture, les segments dont toutes les traces sont plus anciennes que
+   * l'âge maximal. Le segment en cours d'écriture est toujours conservé.
+   *
+   * @param now instant de référence des âges.
+   */
+  public void expire(Instant now) {
+    final long cutoff = toNanos(now.minus(cfg.maxAge()));
+    writer.execute(
+        () -> {
+          for (Map.Entry<Long, JournalSegment> oldest = segments.firstEntry();
+              oldest != null && oldest.getValue() != current && oldest.getValue().maxNanos() < cutoff;
+              oldest = segments.firstEntry()) {
+            segments.remove(oldest.getKey());
+            delete(oldest.getValue());
+          }
+        });
+  }
+
+  private void delete(JournalSegment segment) {
+    try {
+      segment.close();
+      Files.deleteIfExists(segment.file());
+      LOGGER.debug("Trace journal segment {} deleted.", segment.file());
+    } catch (IOException e) {
+      LOGGER.warn("Failed to delete trace journal segment {}", segment.file(), e);
+    }
+  }
+
+  private JournalSegment createSegment(long sequence) throws IOException {
+    final Path file = cfg.directory().resolve("journal-%020d.seg".formatted(sequence));
+    final JournalSegment segment = JournalSegment.create(file, segmentSize);
+    segments.put(sequence, segment);
+    return segment;
+  }
+
+  /** Attend que les traces déjà confiées au journal y soient écrites. */
+  public void flush() {
+    try {
+      writer.submit(() -> {}).get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new TechnicalFailure("Interrupted while flushing the trace journal.", e);
+    } catch (ExecutionException e) {
+      throw new TechnicalFailure("Failed to flush the trace journal.", e);
+    }
+  }
+
+  public Stream<Trace> range(OffsetDateTime after, OffsetDateTime before) {
+    return range(after, before, TraceQuery.ALL);
+  }
+
+  /**
+   * @param after borne inférieure (exclue) de l'horodatage.
+   * @param before borne supérieure (exclue) de l'horodatage.
+   * @param query critères de sélection.
+   * @return les traces journalisées dans l'intervalle, y compris celles confiées au journal avant
+   *     l'appel.
+   */
+  public Stream<Trace> range(OffsetDateTime after, OffsetDateTime before, TraceQuery query) {
+    return rawRange(after, before, query).map(this::decode);
+  }
+
+  /**
+   * @return le JSON des traces journalisées dans l'intervalle, lu directement dans les pages
+   *     projetées.
+   */
+  public Stream<ByteBuffer> rawRange(
+      OffsetDateTime after, OffsetDateTime before, TraceQuery query) {
+    flush();
+    final long afterNanos = toNanos(after);
+    final long beforeNanos = toNanos(before);
+    final List<TraceQuery.Term> terms = query.terms();
+    return List.copyOf(segments.values()).stream()
+        .filter(s -> s.mayContain(terms, this::decode))
+        .flatMap(s -> s.records(afterNanos, beforeNanos, JournalSegment.HEADER_SIZE).map(s::payload))
+        .filter(record -> matches(query, record));
+  }
+
+  /**
+   * Lecture paginée : la reprise se positionne directement sur le segment et l'enregistrement qui
+   * suivent le dernier de la page précédente.
+   *
+   * @param after borne inférieure (exclue) de l'horodatage.
+   * @param before borne supérieure (exclue) de l'horodatage.
+   * @param query critères de sélection.
+   * @param cursor position de reprise, <code>null</code> pour la première page.
+   * @param limit nombre maximal de traces de la page.
+   * @return le JSON des traces de la page.
+   */
+  public TracePage<ByteBuffer> rawPage(
+      OffsetDateTime after,
+      OffsetDateTime before,
+      TraceQuery query,
+      TraceCursor cursor,
+      int limit) {
+    flush();
+    final long afterNanos = toNanos(after);
+    final long beforeNanos = toNanos(before);
+    final List<TraceQuery.Term> terms = query.terms();
+    final List<ByteBuffer> traces = new ArrayList<>(Math.min(limit, 1024));
+    if (cursor != null && (cursor.minor() < 0 || cursor.minor() > Integer.MAX_VALUE)) {
+      throw TraceCursor.invalid();
+    }
+    final Map<Long, JournalSegment> candidates =
+        cursor == null ? segments : segments.tailMap(cursor.major(), true);
+    TraceCursor last = null;
+    for (Map.Entry<Long, JournalSegment> entry : List.copyOf(candidates.entrySet())) {
+      final JournalSegment segment = entry.getValue();
+      if (!segment.mayContain(terms, this::decode)) {
+        continue;
+      }
+      final boolean resume = cursor != null && entry.getKey() == cursor.major();
+      final Iterator<Integer> positions =
+          segment
+              .records(
+                  afterNanos,
+                  beforeNanos,
+                  resume ? (int) cursor.minor() : JournalSegment.HEADER_SIZE)
+              .filter(pos -> matches(query, segment.payload(pos)))
+              .iterator();
+      while (positions.hasNext()) {
+        final int pos = positions.next();
+        if (traces.size() == limit) {
+          return new TracePage<>(traces, last);
+        }
+        traces.add(segment.payload(pos));
+        last = new TraceCursor(entry.getKey(), segment.nextRecord(pos));
+      }
+    }
+    return new TracePage<>(traces, null);
+  }
+
+  public TracePage<Trace> page(
+      OffsetDateTime after,
+      OffsetDateTime before,
+      TraceQuery query,
+      TraceCursor cursor,
+      int limit) {
+    final TracePage<ByteBuffer> raw = rawPage(after, before, query, cursor, limit);
+    return new TracePage<>(raw.traces().stream().map(this::decode).toList(), raw.next());
+  }
+
+  private boolean matches(TraceQuery query, ByteBuffer record) {
+    return query.isEmpty() || query.matches(decode(record));
+  }
+
+  private Trace decode(ByteBuffer record) {
+    try {
+      return mapper.readValue(new ByteBufferBackedInputStream(record.duplicate()), Trace.class);
+    } catch (JsonProcessingException e) {
+      throw new TechnicalFailure("Corrupted trace journal record.", e);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  public TraceJournalStats stats() {
+    return new TraceJournalStats(
+        segments.size(),
+        segments.values().stream().mapToLong(JournalSegment::used).sum(),
+        written.get(),
+        rejected.get(),
+        dropped.get());
+  }
+
+  private static long sequence(Path file) {
+    final Matcher m = SEGMENT_NAME.matcher(file.getFileName().toString());
+    m.matches();
+    return Long.parseLong(m.group(1));
+  }
+
+  private static long toNanos(OffsetDateTime timestamp) {
+    return toNanos(timestamp.toInstant());
+  }
+
+  private static long toNanos(Instant instant) {
+    return Math.addExact(Math.multiplyExact(instant.getEpochSecond(), 1_000_000_000L), instant.getNano());
+  }
+
+  @Override
+  public void close() {
+    writer.shutdown();
+    try {
+      if (!writer.awaitTermination(10, TimeUnit.SECONDS)) {
+        LOGGER.warn("Trace journal writer still running at shutdown.");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    for (JournalSegment segment : segments.values()) {
+      try {
+        segment.close();
+      } catch (IOException e) {
+        LOGGER.warn("Failed to close trace journal segment {}", segment.file(), e);
+      }
+    }
+  }
+}
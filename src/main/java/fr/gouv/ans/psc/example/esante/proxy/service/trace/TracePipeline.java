@@ -0,0 +1,302 @@
+/*
+ * The MIT License
+ * Copyright © 2024-2025 Agence du Numérique en Santé (ANS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.gouv.ans.psc.example.esante.proxy.service.trace;
+
+import fr.gouv.ans.psc.example.esante.proxy.config.TraceStoreConfig.PipelineOverflowPolicy;
+import fr.gouv.ans.psc.example.esante.proxy.model.Request;
+import fr.gouv.ans.psc.example.esante.proxy.model.Trace;
+import fr.gouv.ans.psc.example.esante.proxy.model.TraceType;
+import fr.gouv.ans.psc.example.esante.proxy.service.BaseTraceData;
+import fr.gouv.ans.psc.example.esante.proxy.service.SessionTraceData;
+import fr.gouv.ans.psc.example.esante.proxy.service.TechnicalFailure;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Chaîne d'enregistrement asynchrone des traces.
+ * Les threads de requête ne font que publier un événement dans un anneau d'emplacements
+ * préalloués, à plusieurs producteurs et un seul consommateur : la réservation d'un emplacement
+ * est un incrément atomique, sa publication une écriture volatile. Un thread consommateur dédié
+ * construit et valide les traces, puis les remet au stockage par lots. Le coût du stockage ne pèse
+ * donc plus sur la latence des requêtes. Quand l'anneau est plein (stockage durablement plus lent
+ * que le flux des requêtes), la politique {@link PipelineOverflowPolicy#DROP} abandonne et compte la
+ * trace sans jamais faire attendre le thread de requête, souvent une boucle d'événements ;
+ * {@link PipelineOverflowPolicy#BLOCK_BRIEFLY} le fait attendre une place un court délai borné avant
+ * d'en arriver là.
+ *
+ * @author edegenetais
+ */
+public class TracePipeline implements AutoCloseable {
+  private static final Logger LOGGER = LoggerFactory.getLogger(TracePipeline.class);
+  private static final int BATCH_SIZE = 256;
+  private static final long IDLE_PARK_NANOS = 1_000_000;
+  private static final long OVERFLOW_PARK_NANOS = 50_000;
+  private static final Duration FLUSH_TIMEOUT = Duration.ofSeconds(10);
+
+  /** Emplacement de l'anneau, réutilisé d'un tour à l'autre. */
+  private static final class Event {
+    /** Numéro de l'événement publié dans l'emplacement ; son écriture publie les autres champs. */
+    private volatile long sequence = -1;
+    private TraceType type;
+    private SessionTraceData session;
+    private BaseTraceData base;
+    private Request request;
+    private Instant timestamp;
+
+    private void clear() {
+      session = null;
+      base = null;
+      request = null;
+      timestamp = null;
+    }
+  }
+
+  private final Event[] ring;
+  private final int mask;
+  /** Attente maximale d'une place quand l'anneau est plein, nulle pour abandonner d'emblée. */
+  private final long overflowWaitNanos;
+  private final Consumer<List<Trace>> sink;
+  private final ZoneId zone = ZoneId.systemDefault();
+  /** Prochain numéro d'événement à réserver. */
+  private final AtomicLong claimed = new AtomicLong();
+  /** Nombre d'événements traités et remis au stockage. */
+  private volatile long consumed;
+  private volatile boolean running = true;
+  private volatile boolean idle;
+  private final AtomicLong dropped = new AtomicLong();
+  /** Moniteur des appels à {@link #flush()}, prévenus à chaque lot remis au stockage. */
+  private final Object drained = new Object();
+  private volatile int flushWaiters;
+  private final AtomicLong rejected = new AtomicLong();
+  private final Thread consumer;
+
+  /**
+   * @param capacity nombre d'emplacements de l'anneau, puissance de deux.
+   * @param sink destination des lots de traces, appelée par le seul thread consommateur.
+   */
+  public TracePipeline(int capacity, Consumer<List<Trace>> sink) {
+    this(capacity, PipelineOverflowPolicy.DROP, Duration.ZERO, sink);
+  }
+
+  /**
+   * @param capacity nombre d'emplacements de l'anneau, puissance de deux.
+   * @param overflow conduite à tenir quand l'anneau est plein.
+   * @param overflowWait attente maximale d'une place avec la politique BLOCK_BRIEFLY.
+   * @param sink destination des lots de traces, appelée par le seul thread consommateur.
+   */
+  public TracePipeline(
+      int capacity,
+      PipelineOverflowPolicy overflow,
+      Duration overflowWait,
+      Consumer<List<Trace>> sink) {
+    if (Integer.bitCount(capacity) != 1) {
+      throw new IllegalArgumentException("Pipeline capacity must be a power of two : " + capacity);
+    }
+    this.ring = new Event[capacity];
+    for (int i = 0; i < capacity; i++) {
+      ring[i] = new Event();
+    }
+    this.mask = capacity - 1;
+    this.overflowWaitNanos =
+        overflow == PipelineOverflowPolicy.BLOCK_BRIEFLY ? overflowWait.toNanos() : 0;
+    this.sink = sink;
+    this.consumer = new Thread(this::consume, "trace-pipeline");
+    consumer.setDaemon(true);
+    consumer.start();
+  }
+
+  /**
+   * Publie un événement de trace. L'appelant n'attend que si l'anneau est plein avec la politique
+   * BLOCK_BRIEFLY, et au plus le délai configuré.
+   *
+   * @return <code>false</code> si l'anneau est resté plein : la trace est alors abandonnée.
+   */
+  public boolean publish(
+      TraceType type, SessionTraceData session, BaseTraceData base, Request request) {
+    final Instant timestamp = Instant.now();
+    long waitDeadline = 0;
+    long sequence;
+    while (true) {
+      sequence = claimed.get();
+      if (sequence - consumed >= ring.length) {
+        if (overflowWaitNanos > 0) {
+          final long now = System.nanoTime();
+          if (waitDeadline == 0) {
+            waitDeadline = now + overflowWaitNanos;
+          }
+          if (now - waitDeadline < 0) {
+            LockSupport.unpark(consumer);
+            LockSupport.parkNanos(OVERFLOW_PARK_NANOS);
+            continue;
+          }
+        }
+        final long count = dropped.incrementAndGet();
+        if (Long.bitCount(count) == 1) {
+          LOGGER.warn("Trace pipeline full, {} traces dropped so far.", count);
+        }
+        return false;
+      }
+      if (claimed.compareAndSet(sequence, sequence + 1)) {
+        break;
+      }
+    }
+    final Event event = ring[(int) sequence & mask];
+    event.type = type;
+    event.session = session;
+    event.base = base;
+    event.request = request;
+    event.timestamp = timestamp;
+    event.sequence = sequence;
+    if (idle) {
+      LockSupport.unpark(consumer);
+    }
+    return true;
+  }
+
+  private void consume() {
+    long next = 0;
+    while (running || next < claimed.get()) {
+      List<Trace> batch = null;
+      int taken = 0;
+      Event event;
+      while (taken < BATCH_SIZE && (event = ring[(int) next & mask]).sequence == next) {
+        final Trace trace = toTrace(event);
+        event.clear();
+        if (trace != null) {
+          if (batch == null) {
+            batch = new ArrayList<>(BATCH_SIZE);
+          }
+          batch.add(trace);
+        }
+        next++;
+        taken++;
+      }
+      if (batch != null) {
+        deliver(batch);
+      }
+      if (taken > 0) {
+        consumed = next;
+        if (flushWaiters > 0) {
+          synchronized (drained) {
+            drained.notifyAll();
+          }
+        }
+      } else {
+        waitForEvents(next);
+      }
+    }
+  }
+
+  private void waitForEvents(long next) {
+    idle = true;
+    if (running && ring[(int) next & mask].sequence != next) {
+      LockSupport.parkNanos(IDLE_PARK_NANOS);
+    }
+    idle = false;
+  }
+
+  private Trace toTrace(Event event) {
+    try {
+      return new Trace(
+          event.type,
+          event.session.clientId(),
+          event.session.nationalId(),
+          event.base.remoteAddress(),
+          event.base.sourcePorts(),
+          event.session.proxy_session_id(),
+          event.session.sessionState(),
+          event.session.dn(),
+          OffsetDateTime.ofInstant(event.timestamp, zone),
+          event.request);
+    } catch (RuntimeException e) {
+      rejected.incrementAndGet();
+      LOGGER.error("Invalid {} trace rejected.", event.type, e);
+      return null;
+    }
+  }
+
+  private void deliver(List<Trace> batch) {
+    try {
+      sink.accept(batch);
+    } catch (RuntimeException e) {
+      rejected.addAndGet(batch.size());
+      LOGGER.error("Failed to store {} traces.", batch.size(), e);
+    }
+  }
+
+  /**
+   * Attend, sans attente active, que les événements publiés avant l'appel aient été remis au
+   * stockage. Bloquant : réservé aux lectures, qui s'exécutent hors des boucles d'événements.
+   */
+  public void flush() {
+    final long target = claimed.get();
+    if (consumed >= target) {
+      return;
+    }
+    final long deadline = System.nanoTime() + FLUSH_TIMEOUT.toNanos();
+    synchronized (drained) {
+      flushWaiters++;
+      try {
+        LockSupport.unpark(consumer);
+        while (consumed < target) {
+          final long remaining = deadline - System.nanoTime();
+          if (!consumer.isAlive() || remaining <= 0) {
+            throw new TechnicalFailure("Trace pipeline is not draining.");
+          }
+          drained.wait(Math.max(1, remaining / 1_000_000));
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } finally {
+        flushWaiters--;
+      }
+    }
+  }
+
+  public TracePipelineStats stats() {
+    final long published = claimed.get();
+    final long done = consumed;
+    return new TracePipelineStats(
+        published, done, published - done, dropped.get(), rejected.get());
+  }
+
+  @Override
+  public void close() {
+    running = false;
+    LockSupport.unpark(consumer);
+    try {
+      consumer.join(FLUSH_TIMEOUT.toMillis());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,107 @@
+/*
+ * The MIT License
+ * Copyright © 2024-2025 Agence du Numérique en Santé (ANS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.gouv.ans.psc.example.esante.proxy.service.trace;
+
+import fr.gouv.ans.psc.example.esante.proxy.model.Trace;
+import fr.gouv.ans.psc.example.esante.proxy.model.TraceType;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Function;
+
+/**
+ * Critères de sélection des traces, en plus de l'intervalle de dates. Un critère
+ * <code>null</code> n'est pas appliqué.
+ *
+ * @author edegenetais
+ */
+public record TraceQuery(
+    String clientId, String IdRPPS, TraceType type, String nomApiPsc, String proxy_id_session) {
+
+  /** Aucun critère : toutes les traces de l'intervalle. */
+  public static final TraceQuery ALL = new TraceQuery(null, null, null, null, null);
+
+  /** Champs indexés des traces. */
+  enum Field {
+    CLIENT_ID(Trace::clientId),
+    ID_RPPS(Trace::IdRPPS),
+    TYPE(t -> t.type().name()),
+    NOM_API_PSC(t -> t.apiRequest() == null ? null : t.apiRequest().nomApiPsc()),
+    PROXY_ID_SESSION(Trace::proxy_id_session);
+
+    private final Function<Trace, String> extractor;
+
+    Field(Function<Trace, String> extractor) {
+      this.extractor = extractor;
+    }
+
+    String of(Trace trace) {
+      return extractor.apply(trace);
+    }
+  }
+
+  /** Valeur d'un champ indexé, clé des listes de correspondance. */
+  record Term(Field field, String value) {}
+
+  public boolean isEmpty() {
+    return terms().isEmpty();
+  }
+
+  /**
+   * @return les termes que doit porter une trace pour satisfaire les critères.
+   */
+  List<Term> terms() {
+    final List<Term> terms = new ArrayList<>(Field.values().length);
+    addTerm(terms, Field.CLIENT_ID, clientId);
+    addTerm(terms, Field.ID_RPPS, IdRPPS);
+    addTerm(terms, Field.TYPE, type == null ? null : type.name());
+    addTerm(terms, Field.NOM_API_PSC, nomApiPsc);
+    addTerm(terms, Field.PROXY_ID_SESSION, proxy_id_session);
+    return terms;
+  }
+
+  private static void addTerm(List<Term> terms, Field field, String value) {
+    if (value != null) {
+      terms.add(new Term(field, value));
+    }
+  }
+
+  /**
+   * @return les termes indexés d'une trace.
+   */
+  static List<Term> termsOf(Trace trace) {
+    final List<Term> terms = new ArrayList<>(Field.values().length);
+    for (Field field : Field.values()) {
+      addTerm(terms, field, field.of(trace));
+    }
+    return terms;
+  }
+
+  public boolean matches(Trace trace) {
+    return (clientId == null || clientId.equals(trace.clientId()))
+        && (IdRPPS == null || IdRPPS.equals(trace.IdRPPS()))
+        && (type == null || type == trace.type())
+        && (nomApiPsc == null || nomApiPsc.equals(Field.NOM_API_PSC.of(trace)))
+        && (proxy_id_session == null || Objects.equals(proxy_id_session, trace.proxy_id_session()));
+  }
+}
@@ -0,0 +1,145 @@
+/*
+ * The MIT License
+ * Copyright © 2024-2025 Agence du Numérique en Santé (ANS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.gouv.ans.psc.example.esante.proxy.service.trace;
+
+import fr.gouv.ans.psc.example.esante.proxy.model.Trace;
+import fr.gouv.ans.psc.example.esante.proxy.model.TraceType;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Function;
+
+/**
+ * Décomptes des traces par minute, par type et par dimension (client LPS ou API appelée),
+ * tenus à jour à l'enregistrement de chaque trace. Les compteurs d'une valeur sont regroupés dans un
+ * {@link AtomicLongArray} : au démarrage, la relecture du journal les incrémente en même temps que
+ * la chaîne d'enregistrement, et les lectures les parcourent sans verrou.
+ * Une lecture ne parcourt que les minutes de l'intervalle demandé, jamais les traces.
+ *
+ * @author edegenetais
+ */
+public class TraceRollups {
+  private static final long MINUTE_MILLIS = 60_000;
+  private static final TraceType[] TYPES = TraceType.values();
+
+  /** Dimension de ventilation des décomptes. */
+  public enum Dimension {
+    CLIENT_ID("clientId", Trace::clientId),
+    NOM_API_PSC("nomApiPsc", t -> t.apiRequest() == null ? null : t.apiRequest().nomApiPsc());
+
+    private final String parameter;
+    private final Function<Trace, String> extractor;
+
+    Dimension(String parameter, Function<Trace, String> extractor) {
+      this.parameter = parameter;
+      this.extractor = extractor;
+    }
+
+    /**
+     * @param parameter nom de la dimension dans l'API : <code>clientId</code> ou
+     *     <code>nomApiPsc</code>.
+     */
+    public static Optional<Dimension> of(String parameter) {
+      return Arrays.stream(values()).filter(d -> d.parameter.equals(parameter)).findFirst();
+    }
+  }
+
+  private final ConcurrentNavigableMap<Long, Map<Key, AtomicLongArray>> minutes =
+      new ConcurrentSkipListMap<>();
+
+  public void record(Trace trace) {
+    final Map<Key, AtomicLongArray> minute =
+        minutes.computeIfAbsent(
+            minuteOf(trace.timestamp().toInstant()), k -> new ConcurrentHashMap<>());
+    for (Dimension dimension : Dimension.values()) {
+      final String value = dimension.extractor.apply(trace);
+      if (value != null) {
+        minute
+            .computeIfAbsent(new Key(dimension, value), k -> new AtomicLongArray(TYPES.length))
+            .incrementAndGet(trace.type().ordinal());
+      }
+    }
+  }
+
+  /**
+   * @param after début de l'intervalle : sa minute est incluse.
+   * @param before fin de l'intervalle : sa minute est incluse.
+   * @param dimension dimension de ventilation.
+   * @return les décomptes non nuls, par minute puis par valeur de la dimension.
+   */
+  public List<TraceRollup> query(OffsetDateTime after, OffsetDateTime before, Dimension dimension) {
+    final long from = minuteOf(after.toInstant());
+    final long to = minuteOf(before.toInstant());
+    final List<TraceRollup> rollups = new ArrayList<>();
+    if (from > to) {
+      return rollups;
+    }
+    for (Map.Entry<Long, Map<Key, AtomicLongArray>> minute :
+        minutes.subMap(from, true, to, true).entrySet()) {
+      final OffsetDateTime start =
+          OffsetDateTime.ofInstant(
+              Instant.ofEpochMilli(minute.getKey() * MINUTE_MILLIS), ZoneOffset.UTC);
+      minute.getValue().forEach(
+          (key, counters) -> {
+            if (key.dimension() == dimension) {
+              rollups.add(new TraceRollup(start, key.value(), counts(counters)));
+            }
+          });
+    }
+    return rollups;
+  }
+
+  private static Map<TraceType, Long> counts(AtomicLongArray counters) {
+    final Map<TraceType, Long> counts = new EnumMap<>(TraceType.class);
+    for (int i = 0; i < counters.length(); i++) {
+      final long count = counters.get(i);
+      if (count > 0) {
+        counts.put(TYPES[i], count);
+      }
+    }
+    return counts;
+  }
+
+  /**
+   * Oublie les minutes entièrement antérieures à cette date.
+   */
+  public void expire(Instant before) {
+    minutes.headMap(minuteOf(before)).clear();
+  }
+
+  private static long minuteOf(Instant instant) {
+    return Math.floorDiv(instant.toEpochMilli(), MINUTE_MILLIS);
+  }
+
+  private record Key(Dimension dimension, String value) {}
+}
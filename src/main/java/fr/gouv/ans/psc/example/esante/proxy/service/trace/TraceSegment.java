@@ -0,0 +1,444 @@
+/*
+ * The MIT License
+ * Copyright © 2024-2025 Agence du Numérique en Santé (ANS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.gouv.ans.psc.example.esante.proxy.service.trace;
+
+import fr.gouv.ans.psc.example.esante.proxy.model.Request;
+import fr.gouv.ans.psc.example.esante.proxy.model.Trace;
+import fr.gouv.ans.psc.example.esante.proxy.model.TraceType;
+import fr.gouv.ans.psc.example.esante.proxy.service.TechnicalFailure;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Segment de taille fixe du stockage des traces. Les producteurs réservent un emplacement par
+ * incrément atomique, puis y publient leur trace : aucun verrou n'est pris.
+ * Les traces sont rangées en colonnes de types primitifs : horodatage en nanosecondes depuis
+ * l'époque, ports en entiers, et chaînes remplacées par leur identifiant dans le dictionnaire du
+ * segment. Elles ne redeviennent des objets {@link Trace} qu'à la lecture.
+ * Un segment ancien peut être compacté : il est fermé aux producteurs et ses colonnes sont
+ * remplacées par leur forme compressée, décompressée à la demande pour la lecture.
+ * Chaque segment indexe ses traces : à chaque valeur des champs indexés correspond la carte de bits
+ * des emplacements qui la portent. Une recherche filtrée écarte ainsi un segment sans le parcourir.
+ * Chaque carte couvre tout le segment et est comptée dans sa mémoire dès sa création.
+ *
+ * @author edegenetais
+ */
+final class TraceSegment {
+  private static final TraceType[] TYPES = TraceType.values();
+  /** Chaînes d'une trace, dans l'ordre des colonnes. */
+  private static final int CLIENT_ID = 0;
+  private static final int ID_RPPS = 1;
+  private static final int IP_ADDRESS = 2;
+  private static final int PROXY_ID_SESSION = 3;
+  private static final int SESSION_STATE = 4;
+  private static final int DN = 5;
+  private static final int NOM_API_PSC = 6;
+  private static final int METHODE = 7;
+  private static final int PATH = 8;
+  private static final int STRING_COLUMNS = 9;
+  private static final int NO_PORT = -1;
+  private static final int NULL_PORTS = -2;
+  /**
+   * Mémoire estimée d'un emplacement, toutes colonnes confondues. Les colonnes étant allouées en
+   * entier à la création du segment, toute sa capacité est comptée dès ce moment.
+   */
+  static final long SLOT_BYTES = Long.BYTES + 3 * Integer.BYTES + STRING_COLUMNS * Integer.BYTES;
+  /**
+   * Mémoire estimée d'une carte de bits de l'index, hors ses mots : tableau atomique et son tableau,
+   * clé et nœud de la table.
+   */
+  static final long POSTING_OVERHEAD_BYTES = 96;
+
+  private final long id;
+  private final int size;
+  /** Colonnes en cours d'alimentation, <code>null</code> une fois le segment compacté. */
+  private volatile Columns live;
+  /** Colonnes compressées d'un segment compacté. */
+  private volatile byte[] packed;
+  private volatile SoftReference<Columns> unpacked;
+  /** Nombre d'emplacements réservés à la fermeture du segment, <code>-1</code> s'il est ouvert. */
+  private volatile int closedAt = -1;
+  /** Ports des rares traces qui en portent plusieurs. */
+  private final Map<Integer, List<Integer>> extraPorts = new ConcurrentHashMap<>();
+  private final SegmentDictionary dictionary;
+  private final MemoryAccount memory;
+  private final AtomicInteger claimed = new AtomicInteger();
+  private final AtomicInteger published = new AtomicInteger();
+  private final AtomicReference<TraceSegment> next = new AtomicReference<>();
+  /** Cartes de bits par valeur indexée, clé : rang du champ et identifiant de la valeur. */
+  private final Map<Long, AtomicLongArray> postings = new ConcurrentHashMap<>();
+
+  /**
+   * @param size nombre d'emplacements.
+   * @param id rang du segment dans sa chaîne.
+   * @param memory décompte de mémoire du segment.
+   */
+  TraceSegment(int size, long id, MemoryAccount memory) {
+    this.id = id;
+    this.size = size;
+    this.live = new Columns(size);
+    this.memory = memory;
+    this.dictionary = new SegmentDictionary(size / 4, memory);
+    memory.add(size * SLOT_BYTES);
+  }
+
+  /**
+   * @return l'emplacement réservé, ou <code>-1</code> si le segment est plein.
+   */
+  int claim() {
+    final int slot = claimed.getAndIncrement();
+    return slot < size ? slot : -1;
+  }
+
+  void publish(int slot, Trace trace) {
+    final Columns columns = live;
+    final long[] timestamps = columns.timestamps;
+    final int[] ports = columns.ports;
+    final int[] strings = columns.strings;
+    final Instant instant = trace.timestamp().toInstant();
+    timestamps[slot] = instant.getEpochSecond() * 1_000_000_000L + instant.getNano();
+    columns.offsets[slot] = trace.timestamp().getOffset().getTotalSeconds();
+    final List<Integer> tracePorts = trace.ports();
+    if (tracePorts == null) {
+      ports[slot] = NULL_PORTS;
+    } else if (tracePorts.isEmpty()) {
+      ports[slot] = NO_PORT;
+    } else {
+      ports[slot] = tracePorts.getFirst();
+      if (tracePorts.size() > 1) {
+        extraPorts.put(slot, List.copyOf(tracePorts));
+      }
+    }
+    final int base = slot * STRING_COLUMNS;
+    strings[base + CLIENT_ID] = dictionary.encode(trace.clientId());
+    strings[base + ID_RPPS] = dictionary.encode(trace.IdRPPS());
+    strings[base + IP_ADDRESS] = dictionary.encode(trace.ipAddress());
+    strings[base + PROXY_ID_SESSION] = dictionary.encode(trace.proxy_id_session());
+    strings[base + SESSION_STATE] = dictionary.encode(trace.session_state());
+    strings[base + DN] = dictionary.encode(trace.dn());
+    final Request request = trace.apiRequest();
+    strings[base + NOM_API_PSC] = dictionary.encode(request == null ? null : request.nomApiPsc());
+    strings[base + METHODE] = dictionary.encode(request == null ? null : request.methode());
+    strings[base + PATH] = dictionary.encode(request == null ? null : request.path());
+    // l'index est alimenté avant la publication : une trace visible est toujours indexée.
+    for (TraceQuery.Term term : TraceQuery.termsOf(trace)) {
+      postings
+          .computeIfAbsent(postingKey(term.field(), dictionary.encode(term.value())), k -> newPosting())
+          .accumulateAndGet(slot / Long.SIZE, 1L << slot, (a, b) -> a | b);
+    }
+    columns.types.set(slot, trace.type().ordinal() + 1);
+    published.incrementAndGet();
+  }
+
+  /**
+   * @return une carte de bits vide couvrant tout le segment, comptée dans sa mémoire.
+   */
+  private AtomicLongArray newPosting() {
+    final int words = (size + Long.SIZE - 1) / Long.SIZE;
+    memory.add(POSTING_OVERHEAD_BYTES + (long) words * Long.BYTES);
+    return new AtomicLongArray(words);
+  }
+
+  private static long postingKey(TraceQuery.Field field, int valueId) {
+    return (long) field.ordinal() << Integer.SIZE | (valueId & 0xFFFFFFFFL);
+  }
+
+  /**
+   * @param terms termes recherchés, tous requis.
+   * @return les emplacements des traces portant tous ces termes, <code>null</code> si aucune trace
+   *     du segment ne peut correspondre.
+   */
+  BitSet matching(List<TraceQuery.Term> terms) {
+    long[] result = null;
+    for (TraceQuery.Term term : terms) {
+      final int valueId = dictionary.lookup(term.value());
+      final AtomicLongArray posting =
+          valueId == SegmentDictionary.NULL_ID ? null : postings.get(postingKey(term.field(), valueId));
+      if (posting == null) {
+        return null;
+      }
+      if (result == null) {
+        result = new long[posting.length()];
+        for (int i = 0; i < result.length; i++) {
+          result[i] = posting.get(i);
+        }
+      } else {
+        for (int i = 0; i < result.length; i++) {
+          result[i] &= posting.get(i);
+        }
+      }
+    }
+    return result == null ? null : BitSet.valueOf(result);
+  }
+
+  /**
+   * @return le nombre d'emplacements réservés, borne de lecture d'un instantané.
+   */
+  int limit() {
+    final int closed = closedAt;
+    return closed >= 0 ? closed : Math.min(claimed.get(), size);
+  }
+
+  /**
+   * @return la trace de cet emplacement, reconstituée depuis les colonnes, <code>null</code> si sa
+   *     publication est encore en cours.
+   */
+  Trace get(int slot) {
+    return columns().get(slot);
+  }
+
+  /**
+   * @return les colonnes du segment, décompressées s'il est compacté. Un lecteur qui parcourt le
+   *     segment les obtient une fois pour toutes.
+   */
+  Columns columns() {
+    final Columns current = live;
+    if (current != null) {
+      return current;
+    }
+    final SoftReference<Columns> cached = unpacked;
+    Columns columns = cached == null ? null : cached.get();
+    if (columns == null) {
+      columns = unpack(packed);
+      unpacked = new SoftReference<>(columns);
+    }
+    return columns;
+  }
+
+  /**
+   * Ferme le segment aux producteurs puis, une fois toutes ses traces publiées, remplace ses
+   * colonnes par leur forme compressée. Appelé par un seul thread à la fois.
+   *
+   * @return <code>true</code> si le segment vient d'être compacté.
+   */
+  boolean compact() {
+    if (packed != null) {
+      return false;
+    }
+    if (closedAt < 0) {
+      closedAt = Math.min(claimed.getAndAccumulate(size, Math::max), size);
+    }
+    final int count = closedAt;
+    if (published.get() < count) {
+      // publications encore en cours : le segment sera compacté au prochain passage.
+      return false;
+    }
+    final byte[] compressed = pack(live, count);
+    packed = compressed;
+    live = null;
+    memory.add(compressed.length - size * SLOT_BYTES);
+    return true;
+  }
+
+  boolean compacted() {
+    return packed != null;
+  }
+
+  private static byte[] pack(Columns columns, int count) {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream out =
+        new DataOutputStream(new DeflaterOutputStream(bytes, new Deflater(Deflater.BEST_SPEED)))) {
+      long previous = 0;
+      for (int slot = 0; slot < count; slot++) {
+        out.writeByte(columns.types.get(slot));
+        writeVarLong(out, zigZag(columns.timestamps[slot] - previous));
+        previous = columns.timestamps[slot];
+        writeVarLong(out, zigZag(columns.offsets[slot]));
+        writeVarLong(out, columns.ports[slot] - NULL_PORTS);
+        for (int c = 0; c < STRING_COLUMNS; c++) {
+          writeVarLong(out, columns.strings[slot * STRING_COLUMNS + c] - SegmentDictionary.NULL_ID);
+        }
+      }
+    } catch (IOException e) {
+      throw new TechnicalFailure("Failed to compact trace segment.", e);
+    }
+    return bytes.toByteArray();
+  }
+
+  private Columns unpack(byte[] compressed) {
+    final int count = closedAt;
+    final Columns columns = new Columns(count);
+    try (DataInputStream in =
+        new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(compressed)))) {
+      long previous = 0;
+      for (int slot = 0; slot < count; slot++) {
+        final int type = in.readUnsignedByte();
+        previous += unZigZag(readVarLong(in));
+        columns.timestamps[slot] = previous;
+        columns.offsets[slot] = (int) unZigZag(readVarLong(in));
+        columns.ports[slot] = (int) readVarLong(in) + NULL_PORTS;
+        for (int c = 0; c < STRING_COLUMNS; c++) {
+          columns.strings[slot * STRING_COLUMNS + c] =
+              (int) readVarLong(in) + SegmentDictionary.NULL_ID;
+        }
+        columns.types.set(slot, type);
+      }
+    } catch (IOException e) {
+      throw new TechnicalFailure("Failed to read compacted trace segment.", e);
+    }
+    return columns;
+  }
+
+  private static long zigZag(long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  private static long unZigZag(long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+    while ((value & ~0x7FL) != 0) {
+      out.writeByte((int) (value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.writeByte((int) value);
+  }
+
+  private static long readVarLong(DataInputStream in) throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < Long.SIZE; shift += 7) {
+      final int b = in.readUnsignedByte();
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("Malformed varint in compacted trace segment.");
+  }
+
+  long id() {
+    return id;
+  }
+
+  int capacity() {
+    return size;
+  }
+
+  int published() {
+    return published.get();
+  }
+
+  MemoryAccount memory() {
+    return memory;
+  }
+
+  TraceSegment next() {
+    return next.get();
+  }
+
+  /**
+   * Chaîne un nouveau segment à la suite de celui-ci, ou retourne celui qu'un autre producteur a
+   * chaîné entre-temps.
+   */
+  TraceSegment linkNext(int size, MemoryAccount memory) {
+    TraceSegment current = next.get();
+    if (current == null) {
+      final TraceSegment created = new TraceSegment(size, id + 1, memory);
+      current = next.compareAndExchange(null, created);
+      if (current == null) {
+        current = created;
+      }
+    }
+    return current;
+  }
+
+  /** Colonnes des traces d'un segment, et leur lecture. */
+  final class Columns {
+    /** Type de la trace plus un, <code>0</code> tant que la trace n'est pas publiée. */
+    private final AtomicIntegerArray types;
+    private final long[] timestamps;
+    private final int[] offsets;
+    private final int[] ports;
+    private final int[] strings;
+
+    private Columns(int slots) {
+      this.types = new AtomicIntegerArray(slots);
+      this.timestamps = new long[slots];
+      this.offsets = new int[slots];
+      this.ports = new int[slots];
+      this.strings = new int[slots * STRING_COLUMNS];
+    }
+
+    /**
+     * @return la trace de cet emplacement, <code>null</code> si sa publication est encore en cours.
+     */
+    Trace get(int slot) {
+      final int type = types.get(slot);
+      if (type == 0) {
+        return null;
+      }
+      final int base = slot * STRING_COLUMNS;
+      final String nomApiPsc = dictionary.decode(strings[base + NOM_API_PSC]);
+      final Request request =
+          nomApiPsc == null
+              ? null
+              : new Request(
+                  nomApiPsc,
+                  dictionary.decode(strings[base + METHODE]),
+                  dictionary.decode(strings[base + PATH]));
+      return new Trace(
+          TYPES[type - 1],
+          dictionary.decode(strings[base + CLIENT_ID]),
+          dictionary.decode(strings[base + ID_RPPS]),
+          dictionary.decode(strings[base + IP_ADDRESS]),
+          portsOf(slot),
+          dictionary.decode(strings[base + PROXY_ID_SESSION]),
+          dictionary.decode(strings[base + SESSION_STATE]),
+          dictionary.decode(strings[base + DN]),
+          OffsetDateTime.ofInstant(
+              Instant.ofEpochSecond(0, timestamps[slot]), ZoneOffset.ofTotalSeconds(offsets[slot])),
+          request);
+    }
+
+    private List<Integer> portsOf(int slot) {
+      final List<Integer> extra = extraPorts.get(slot);
+      if (extra != null) {
+        return extra;
+      }
+      return switch (ports[slot]) {
+        case NULL_PORTS -> null;
+        case NO_PORT -> List.of();
+        default -> List.of(ports[slot]);
+      };
+    }
+  }
+}
@@ -0,0 +1,102 @@
+/*
+ * The MIT License
+ * Copyright © 2024-2025 Agence du Numérique en Santé (ANS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.gouv.ans.psc.example.esante.proxy.service.trace;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SequenceWriter;
+import fr.gouv.ans.psc.example.esante.proxy.model.Trace;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Déversement sur disque, au format NDJSON, des segments évincés du stockage des traces.
+ * L'écriture est faite par un thread dédié pour ne jamais ralentir l'enregistrement des traces.
+ *
+ * @author edegenetais
+ */
+final class TraceSpill {
+  private static final Logger LOGGER = LoggerFactory.getLogger(TraceSpill.class);
+
+  private final Path directory;
+  private final ObjectMapper mapper;
+  private final AtomicLong sequence = new AtomicLong();
+  private final ExecutorService writer =
+      Executors.newSingleThreadExecutor(
+          r -> {
+            Thread t = new Thread(r, "trace-spill");
+            t.setDaemon(true);
+            return t;
+          });
+
+  TraceSpill(Path directory, ObjectMapper mapper) {
+    this.directory = directory;
+    this.mapper = mapper;
+  }
+
+  void write(TraceSegment segment) {
+    writer.execute(() -> doWrite(segment));
+  }
+
+  private void doWrite(TraceSegment segment) {
+    final Path file =
+        directory.resolve(
+            "traces-" + System.currentTimeMillis() + "-" + sequence.incrementAndGet() + ".ndjson");
+    try {
+      Files.createDirectories(directory);
+      try (Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8);
+          SequenceWriter json = mapper.writer().withRootValueSeparator("\n").writeValues(out)) {
+        final TraceSegment.Columns columns = segment.columns();
+        for (int i = 0; i < segment.limit(); i++) {
+          final Trace trace = columns.get(i);
+          if (trace != null) {
+            json.write(trace);
+          }
+        }
+        out.write('\n');
+      }
+      LOGGER.debug("{} traces spilled to {}", segment.published(), file);
+    } catch (IOException e) {
+      LOGGER.error("Failed to spill {} traces to {}", segment.published(), file, e);
+    }
+  }
+
+  void close() {
+    writer.shutdown();
+    try {
+      if (!writer.awaitTermination(10, TimeUnit.SECONDS)) {
+        LOGGER.warn("Trace spill still running at shutdown.");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,295 @@
+/*
+ * The MIT License
+ * Copyright © 2024-2025 Agence du Numérique en Santé (ANS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.gouv.ans.psc.example.esante.proxy.service.trace;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import fr.gouv.ans.psc.example.esante.proxy.config.TraceStoreConfig;
+import fr.gouv.ans.psc.example.esante.proxy.model.Trace;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stockage borné des traces, sans verrou, indexé par le temps.
+ * Les traces sont réparties en tranches d'une minute selon leur horodatage, rangées dans une
+ * skip-list : une recherche par intervalle de dates se positionne directement sur la première
+ * tranche concernée et ne parcourt que les tranches de l'intervalle. Dans une tranche, les traces
+ * sont rangées dans une chaîne de segments où l'enregistrement ne coûte qu'une réservation
+ * d'emplacement par incrément atomique.
+ * La capacité (en nombre de traces et en volume estimé) est contrôlée à chaque changement de
+ * segment ou de tranche : les segments les plus anciens sont alors abandonnés ou déversés sur disque,
+ * selon la politique de débordement. Les lecteurs obtiennent un instantané sans jamais bloquer les
+ * producteurs.
+ * La rétention est appliquée par tranches entières : une tranche expirée est retirée de la
+ * skip-list en une opération, quel que soit son nombre de traces. Les tranches plus anciennes que le
+ * délai de compaction voient leurs segments compactés.
+ *
+ * @author edegenetais
+ */
+public class TraceStore implements AutoCloseable {
+  private static final Logger LOGGER = LoggerFactory.getLogger(TraceStore.class);
+  private static final long BUCKET_MILLIS = 60_000;
+
+  private final TraceStoreConfig cfg;
+  private final long maxBytes;
+  private final TraceSpill spill;
+  private final ConcurrentNavigableMap<Long, TraceBucket> buckets = new ConcurrentSkipListMap<>();
+  private final LongAdder count = new LongAdder();
+  /** Mémoire estimée des segments présents, alimentée par les segments eux-mêmes. */
+  private final LongAdder bytes = new LongAdder();
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicLong spilled = new AtomicLong();
+  private final AtomicLong expired = new AtomicLong();
+
+  public TraceStore(TraceStoreConfig cfg, ObjectMapper mapper) {
+    this.cfg = cfg;
+    this.maxBytes = cfg.maxSize().toBytes();
+    this.spill =
+        cfg.overflow() == TraceStoreConfig.OverflowPolicy.SPILL
+            ? new TraceSpill(cfg.spillDirectory(), mapper)
+            : null;
+  }
+
+  public void append(Trace trace) {
+    final Long key = bucketKey(trace.timestamp());
+    boolean grown = false;
+    TraceBucket bucket;
+    while (true) {
+      bucket = buckets.get(key);
+      if (bucket == null) {
+        final TraceBucket created = new TraceBucket(cfg.segmentSize(), bytes);
+        bucket = buckets.putIfAbsent(key, created);
+        if (bucket == null) {
+          bucket = created;
+          grown = true;
+        }
+      }
+      if (bucket.enter()) {
+        break;
+      }
+      // tranche scellée par une éviction en cours : elle sera remplacée.
+      buckets.remove(key, bucket);
+    }
+    try {
+      grown |= bucket.append(trace);
+      count.increment();
+    } finally {
+      bucket.leave();
+    }
+    if (grown) {
+      enforceCapacity();
+    }
+  }
+
+  /**
+   * @return les traces présentes au moment de l'appel, de la tranche la plus ancienne à la plus
+   *     récente. Le flux est évalué au fil de la lecture.
+   */
+  public Stream<Trace> snapshot() {
+    return buckets.values().stream().flatMap(TraceBucket::snapshot);
+  }
+
+  /**
+   * @param after borne inférieure (exclue) de l'horodatage.
+   * @param before borne supérieure (exclue) de l'horodatage.
+   * @return les traces horodatées dans l'intervalle, en ne parcourant que les tranches concernées.
+   */
+  public Stream<Trace> range(OffsetDateTime after, OffsetDateTime before) {
+    return range(after, before, TraceQuery.ALL);
+  }
+
+  /**
+   * @param query critères de sélection, appliqués par les index des segments.
+   */
+  public Stream<Trace> range(OffsetDateTime after, OffsetDateTime before, TraceQuery query) {
+    final long from = bucketKey(after);
+    final long to = bucketKey(before);
+    if (from > to) {
+      return Stream.empty();
+    }
+    final List<TraceQuery.Term> terms = query.terms();
+    return buckets.subMap(from, true, to, true).values().stream()
+        .flatMap(b -> b.scan(0, 0, terms))
+        .map(TraceBucket.Located::trace)
+        .filter(t -> after.isBefore(t.timestamp()) && before.isAfter(t.timestamp()));
+  }
+
+  /**
+   * Lecture paginée : la reprise se positionne directement sur la tranche et l'emplacement qui
+   * suivent la dernière trace de la page précédente.
+   *
+   * @param after borne inférieure (exclue) de l'horodatage.
+   * @param before borne supérieure (exclue) de l'horodatage.
+   * @param query critères de sélection, appliqués par les index des segments.
+   * @param cursor position de reprise, <code>null</code> pour la première page.
+   * @param limit nombre maximal de traces de la page.
+   */
+  public TracePage<Trace> page(
+      OffsetDateTime after,
+      OffsetDateTime before,
+      TraceQuery query,
+      TraceCursor cursor,
+      int limit) {
+    final List<TraceQuery.Term> terms = query.terms();
+    long from = bucketKey(after);
+    final long to = bucketKey(before);
+    if (cursor != null) {
+      if ((int) cursor.minor() < 0) {
+        throw TraceCursor.invalid();
+      }
+      from = Math.max(from, cursor.major());
+    }
+    final List<Trace> traces = new ArrayList<>(Math.min(limit, 1024));
+    if (from > to) {
+      return new TracePage<>(traces, null);
+    }
+    TraceCursor last = null;
+    for (Map.Entry<Long, TraceBucket> entry : buckets.subMap(from, true, to, true).entrySet()) {
+      final long key = entry.getKey();
+      final boolean resume = cursor != null && key == cursor.major();
+      final Iterator<TraceBucket.Located> located =
+          entry.getValue()
+              .scan(resume ? cursor.minor() >>> 32 : 0, resume ? (int) cursor.minor() : 0, terms)
+              .filter(l -> after.isBefore(l.trace().timestamp()))
+              .filter(l -> before.isAfter(l.trace().timestamp()))
+              .iterator();
+      while (located.hasNext()) {
+        final TraceBucket.Located l = located.next();
+        if (traces.size() == limit) {
+          return new TracePage<>(traces, last);
+        }
+        traces.add(l.trace());
+        last = new TraceCursor(key, l.segment() << 32 | (l.slot() + 1));
+      }
+    }
+    return new TracePage<>(traces, null);
+  }
+
+  public TraceStoreStats stats() {
+    return new TraceStoreStats(
+        count.sum(), bytes.sum(), dropped.get(), spilled.get(), expired.get());
+  }
+
+  /**
+   * Applique la rétention : abandonne (ou déverse) les tranches entièrement plus anciennes que
+   * l'âge maximal, contrôle la capacité puis compacte les segments des tranches anciennes.
+   * Appelé périodiquement par un seul thread.
+   *
+   * @param now instant de référence des âges.
+   */
+  public void enforceRetention(Instant now) {
+    final long expiredBefore = bucketKey(now.minus(cfg.maxAge()));
+    for (Map.Entry<Long, TraceBucket> entry : buckets.headMap(expiredBefore).entrySet()) {
+      final TraceBucket bucket = entry.getValue();
+      // une tranche où un producteur écrit encore sera retirée au prochain passage.
+      if (bucket.seal() && buckets.remove(entry.getKey(), bucket)) {
+        bucket.drain(
+            segment -> {
+              expired.addAndGet(segment.published());
+              evicted(segment);
+            });
+      }
+    }
+    enforceCapacity();
+    int compacted = 0;
+    for (TraceBucket bucket :
+        buckets.headMap(bucketKey(now.minus(cfg.compactAfter()))).values()) {
+      compacted += bucket.compact();
+    }
+    if (compacted > 0) {
+      LOGGER.debug("{} trace segments compacted.", compacted);
+    }
+  }
+
+  private static long bucketKey(OffsetDateTime timestamp) {
+    return bucketKey(timestamp.toInstant());
+  }
+
+  private static long bucketKey(Instant instant) {
+    return Math.floorDiv(instant.toEpochMilli(), BUCKET_MILLIS);
+  }
+
+  private void enforceCapacity() {
+    while (count.sum() > cfg.capacity() || bytes.sum() > maxBytes) {
+      if (!evictOldest()) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Évince le plus ancien segment de la plus ancienne tranche, ou cette tranche entière s'il ne lui
+   * en reste qu'un et qu'elle n'est pas la plus récente.
+   *
+   * @return <code>false</code> si rien ne peut plus être évincé pour l'instant.
+   */
+  private boolean evictOldest() {
+    final Map.Entry<Long, TraceBucket> oldest = buckets.firstEntry();
+    if (oldest == null) {
+      return false;
+    }
+    final TraceBucket bucket = oldest.getValue();
+    final TraceSegment segment = bucket.evictHead();
+    if (segment != null) {
+      evicted(segment);
+      return true;
+    }
+    if (oldest.getKey().equals(buckets.lastKey()) || !bucket.seal()) {
+      return false;
+    }
+    if (buckets.remove(oldest.getKey(), bucket)) {
+      bucket.drain(this::evicted);
+    }
+    return true;
+  }
+
+  private void evicted(TraceSegment segment) {
+    final int evicted = segment.published();
+    count.add(-evicted);
+    segment.memory().release();
+    if (spill != null) {
+      spill.write(segment);
+      spilled.addAndGet(evicted);
+    } else {
+      dropped.addAndGet(evicted);
+      LOGGER.debug("{} oldest traces dropped.", evicted);
+    }
+  }
+
+  @Override
+  public void close() {
+    if (spill != null) {
+      spill.close();
+    }
+  }
+}
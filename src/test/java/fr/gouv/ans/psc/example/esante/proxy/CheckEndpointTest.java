@@ -22,6 +22,7 @@
  */
 package fr.gouv.ans.psc.example.esante.proxy;
 
+import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.reactive.AutoConfigureWebTestClient;
@@ -49,4 +50,19 @@ public class CheckEndpointTest extends AbstractProxyIntegrationTest {
         .expectBody(String.class)
         .isEqualTo("OK");
   }
+
+  @Test
+  public void testCheckPscMetadataAfterConnect() {
+    getSession(testClient);
+
+    testClient
+        .get()
+        .uri("/check/psc-metadata")
+        .exchange()
+        .expectStatus()
+        .isOk()
+        .expectBody()
+        .jsonPath("$.ageSeconds").isNumber()
+        .jsonPath("$.refreshCount").value(count -> Assertions.assertTrue(((Number) count).longValue() >= 1));
+  }
 }
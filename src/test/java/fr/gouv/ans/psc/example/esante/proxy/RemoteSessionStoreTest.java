@@ -0,0 +1,250 @@
+/*
+ * The MIT License
+ * Copyright © 2024-2025 Agence du Numérique en Santé (ANS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.gouv.ans.psc.example.esante.proxy;
+
+import fr.gouv.ans.psc.example.esante.proxy.config.SessionStoreConfig;
+import fr.gouv.ans.psc.example.esante.proxy.controller.SessionAttributes;
+import fr.gouv.ans.psc.example.esante.proxy.model.Session;
+import fr.gouv.ans.psc.example.esante.proxy.service.BackendAuthentication;
+import fr.gouv.ans.psc.example.esante.proxy.service.CIBASession;
+import fr.gouv.ans.psc.example.esante.proxy.service.TokenRefreshService;
+import fr.gouv.ans.psc.example.esante.proxy.service.session.RemoteSessionRepository;
+import fr.gouv.ans.psc.example.esante.proxy.service.session.SessionCodec;
+import fr.gouv.ans.psc.example.esante.proxy.service.session.ShardedSessionRepository;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BooleanSupplier;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.reactive.AutoConfigureWebTestClient;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.session.MapSession;
+
+/**
+ * Cette suite valide le stockage partagé des sessions : deux stockages branchés sur le même
+ * serveur de test jouent le rôle de deux instances du proxy.
+ *
+ * @author edegenetais
+ */
+@SpringBootTest(classes = {EsanteProxyApplication.class})
+@AutoConfigureWebTestClient(timeout = "PT30S")
+public class RemoteSessionStoreTest extends AbstractProxyIntegrationTest {
+  @Autowired private SessionCodec codec;
+  @Autowired private TokenRefreshService refreshService;
+  @Autowired private ShardedSessionRepository sessionRepository;
+
+  private RespStandIn store;
+  private RemoteSessionRepository nodeA;
+  private RemoteSessionRepository nodeB;
+
+  @BeforeEach
+  public void startStore() throws IOException {
+    store = new RespStandIn();
+    final SessionStoreConfig cfg =
+        new SessionStoreConfig(
+            store.uri(), "test:", 100, Duration.ofMillis(100), Duration.ofSeconds(2));
+    nodeA = new RemoteSessionRepository(cfg, codec, refreshService);
+    nodeB = new RemoteSessionRepository(cfg, codec, refreshService);
+  }
+
+  @AfterEach
+  public void stopStore() throws InterruptedException, IOException {
+    nodeA.destroy();
+    nodeB.destroy();
+    store.close();
+  }
+
+  @Test
+  public void sessionSavedOnOneNodeIsServedByAnother() {
+    final Session session = getSession(testClient);
+    try {
+      final MapSession original = sessionRepository.findById(session.proxySessionId()).block();
+      nodeA.save(original).block();
+
+      final MapSession shared = nodeB.findById(session.proxySessionId()).block();
+      Assertions.assertNotNull(shared, "La session doit être servie par l'autre instance.");
+      Assertions.assertEquals(TEST_CLIENT_ID, shared.getAttribute(SessionAttributes.CLIENT_ID));
+      Assertions.assertEquals(
+          original.<CIBASession>getAttribute(SessionAttributes.CIBA_SESSION),
+          shared.getAttribute(SessionAttributes.CIBA_SESSION));
+      Assertions.assertEquals(session, shared.getAttribute(SessionAttributes.PROXY_API_SESSION));
+      final BackendAuthentication originalAuth =
+          original.getAttribute(SessionAttributes.BACKEND_AUTH_ATTR);
+      final BackendAuthentication sharedAuth =
+          shared.getAttribute(SessionAttributes.BACKEND_AUTH_ATTR);
+      Assertions.assertEquals(
+          originalAuth.findBackendToken("backend-1"), sharedAuth.findBackendToken("backend-1"));
+
+      final int reads = store.count("GET");
+      Assertions.assertNotNull(nodeB.findById(session.proxySessionId()).block());
+      Assertions.assertEquals(reads, store.count("GET"), "Le second accès doit venir du cache.");
+      Assertions.assertEquals(1, nodeB.stats().hits());
+    } finally {
+      killSession(testClient, session.proxySessionId());
+    }
+  }
+
+  @Test
+  public void changeOnOneNodeInvalidatesTheOtherNodeCache() {
+    final Session session = getSession(testClient);
+    try {
+      nodeA.save(sessionRepository.findById(session.proxySessionId()).block()).block();
+      Assertions.assertNotNull(nodeB.findById(session.proxySessionId()).block());
+
+      final MapSession changed = nodeA.findById(session.proxySessionId()).block();
+      changed.setAttribute(SessionAttributes.NATIONAL_ID, "changed-national-id");
+      nodeA.save(changed).block();
+
+      awaitTrue(
+          () ->
+              "changed-national-id"
+                  .equals(
+                      nodeB
+                          .findById(session.proxySessionId())
+                          .block()
+                          .getAttribute(SessionAttributes.NATIONAL_ID)),
+          "La modification doit être vue par l'autre instance.");
+      Assertions.assertEquals(1, nodeB.stats().invalidations());
+    } finally {
+      killSession(testClient, session.proxySessionId());
+    }
+  }
+
+  @Test
+  public void accessIsReportedWithoutRewritingTheSession() {
+    final Session session = getSession(testClient);
+    try {
+      nodeA.save(sessionRepository.findById(session.proxySessionId()).block()).block();
+      final int writes = store.count("SET");
+
+      final MapSession accessed = nodeB.findById(session.proxySessionId()).block();
+      nodeB.save(accessed).block();
+
+      // la session et sa fiche de révocation.
+      awaitTrue(() -> store.count("PEXPIRE") == 2, "La prolongation doit être reportée.");
+      Assertions.assertEquals(writes, store.count("SET"), "La session ne doit pas être réécrite.");
+      Assertions.assertTrue(store.ttl("test:session:" + session.proxySessionId()) > 0);
+    } finally {
+      killSession(testClient, session.proxySessionId());
+    }
+  }
+
+  @Test
+  public void deletedSessionIsGoneOnEveryNode() {
+    final Session session = getSession(testClient);
+    try {
+      nodeA.save(sessionRepository.findById(session.proxySessionId()).block()).block();
+      Assertions.assertNotNull(nodeB.findById(session.proxySessionId()).block());
+
+      nodeA.deleteById(session.proxySessionId()).block();
+
+      Assertions.assertNull(nodeA.findById(session.proxySessionId()).block());
+      awaitTrue(
+          () -> nodeB.findById(session.proxySessionId()).block() == null,
+          "La session supprimée ne doit plus être servie par l'autre instance.");
+    } finally {
+      killSession(testClient, session.proxySessionId());
+    }
+  }
+
+  @Test
+  public void expiredSessionIsReportedByOneNode() {
+    final Session session = getSession(testClient);
+    try {
+      final List<MapSession> expired = new CopyOnWriteArrayList<>();
+      nodeA.addExpiryListener(expired::add);
+      nodeB.addExpiryListener(expired::add);
+      final MapSession shortLived =
+          new MapSession(sessionRepository.findById(session.proxySessionId()).block());
+      shortLived.setMaxInactiveInterval(Duration.ofMillis(300));
+      nodeA.save(shortLived).block();
+      Assertions.assertNotNull(nodeB.findById(session.proxySessionId()).block());
+
+      awaitTrue(() -> !expired.isEmpty(), "L'expiration de la session doit être signalée.");
+      Assertions.assertEquals(session.proxySessionId(), expired.getFirst().getId());
+      Assertions.assertNotNull(expired.getFirst().getAttribute(SessionAttributes.BACKEND_AUTH_ATTR));
+      Assertions.assertEquals(-2, store.ttl("test:revocation:" + session.proxySessionId()));
+      Assertions.assertNull(nodeB.findById(session.proxySessionId()).block());
+      Assertions.assertEquals(1, expired.size(), "Une seule instance doit traiter l'expiration.");
+    } finally {
+      killSession(testClient, session.proxySessionId());
+    }
+  }
+
+  @Test
+  public void onlyOneNodeRefreshesAToken() {
+    final Session session = getSession(testClient);
+    try {
+      final MapSession original = sessionRepository.findById(session.proxySessionId()).block();
+      nodeA.save(original).block();
+      final BackendAuthentication authA = original.getAttribute(SessionAttributes.BACKEND_AUTH_ATTR);
+      final BackendAuthentication authB =
+          nodeB
+              .findById(session.proxySessionId())
+              .block()
+              .getAttribute(SessionAttributes.BACKEND_AUTH_ATTR);
+
+      Assertions.assertTrue(nodeA.tryAcquire(authA, "backend-1"));
+      Assertions.assertFalse(nodeB.tryAcquire(authB, "backend-1"));
+      Assertions.assertTrue(nodeA.tryAcquire(authA, "backend-1"), "Le détenteur garde son droit.");
+      Assertions.assertTrue(nodeB.tryAcquire(authB, TokenRefreshService.PSC_KEY));
+    } finally {
+      killSession(testClient, session.proxySessionId());
+    }
+  }
+
+  @Test
+  public void noNodeRefreshesWhileTheStoreIsUnreachable() throws IOException {
+    final Session session = getSession(testClient);
+    try {
+      final MapSession original = sessionRepository.findById(session.proxySessionId()).block();
+      nodeA.save(original).block();
+      final BackendAuthentication auth = original.getAttribute(SessionAttributes.BACKEND_AUTH_ATTR);
+
+      store.close();
+
+      Assertions.assertFalse(
+          nodeA.tryAcquire(auth, "backend-1"), "Le rafraîchissement doit être reporté.");
+    } finally {
+      killSession(testClient, session.proxySessionId());
+    }
+  }
+
+  private static void awaitTrue(BooleanSupplier condition, String message) {
+    final long deadline = System.currentTimeMillis() + 5000;
+    while (!condition.getAsBoolean()) {
+      Assertions.assertTrue(System.currentTimeMillis() < deadline, message);
+      try {
+        Thread.sleep(20);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        Assertions.fail(message);
+      }
+    }
+  }
+}
@@ -0,0 +1,375 @@
+/*
+ * The MIT License
+ * Copyright © 2024-2025 Agence du Numérique en Santé (ANS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.gouv.ans.psc.example.esante.proxy;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serveur minimal parlant le protocole Redis (RESP2), dans le processus de test : il implémente
+ * les seules commandes utilisées par le stockage partagé des sessions, et compte les commandes
+ * reçues. Comme Redis, il retire les clés expirées en tâche de fond et signale leur expiration sur
+ * <code>__keyevent@0__:expired</code> si <code>notify-keyspace-events</code> le demande.
+ *
+ * @author edegenetais
+ */
+class RespStandIn implements Closeable {
+  private final ServerSocket server;
+  private final ExecutorService threads =
+      Executors.newCachedThreadPool(
+          r -> {
+            Thread t = new Thread(r, "resp-stand-in");
+            t.setDaemon(true);
+            return t;
+          });
+  private final Map<String, Value> data = new ConcurrentHashMap<>();
+  private final Map<String, Set<Client>> subscribers = new ConcurrentHashMap<>();
+  private final Map<String, AtomicInteger> counts = new ConcurrentHashMap<>();
+  private final Set<Socket> sockets = ConcurrentHashMap.newKeySet();
+  private final Map<String, String> config = new ConcurrentHashMap<>();
+  private final ScheduledExecutorService expiry =
+      Executors.newSingleThreadScheduledExecutor(
+          r -> {
+            Thread t = new Thread(r, "resp-stand-in-expiry");
+            t.setDaemon(true);
+            return t;
+          });
+
+  RespStandIn() throws IOException {
+    this.server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    threads.execute(this::accept);
+    expiry.scheduleWithFixedDelay(this::expireKeys, 10, 10, TimeUnit.MILLISECONDS);
+  }
+
+  String uri() {
+    return "redis://127.0.0.1:" + server.getLocalPort();
+  }
+
+  /**
+   * @return le nombre de commandes de ce nom reçues depuis le démarrage.
+   */
+  int count(String command) {
+    final AtomicInteger count = counts.get(command);
+    return count == null ? 0 : count.get();
+  }
+
+  /**
+   * @return la durée de vie restante de la clé en millisecondes, -1 sans expiration, -2 si absente.
+   */
+  long ttl(String key) {
+    final Value value = live(key);
+    if (value == null) {
+      return -2;
+    }
+    return value.expiresAt() == 0 ? -1 : value.expiresAt() - System.currentTimeMillis();
+  }
+
+  @Override
+  public void close() throws IOException {
+    server.close();
+    for (Socket socket : sockets) {
+      socket.close();
+    }
+    threads.shutdownNow();
+    expiry.shutdownNow();
+  }
+
+  private void accept() {
+    while (!server.isClosed()) {
+      try {
+        final Socket socket = server.accept();
+        sockets.add(socket);
+        threads.execute(() -> serve(socket));
+      } catch (IOException e) {
+        // arrêt du serveur.
+      }
+    }
+  }
+
+  private void serve(Socket socket) {
+    Client client = null;
+    try (socket) {
+      final InputStream in = new BufferedInputStream(socket.getInputStream());
+      client = new Client(new BufferedOutputStream(socket.getOutputStream()));
+      while (true) {
+        final List<byte[]> command = readCommand(in);
+        if (command == null) {
+          break;
+        }
+        execute(command, client);
+      }
+    } catch (IOException e) {
+      // connexion fermée par le client ou par close().
+    } finally {
+      sockets.remove(socket);
+      for (Set<Client> channelSubscribers : subscribers.values()) {
+        channelSubscribers.remove(client);
+      }
+    }
+  }
+
+  private void execute(List<byte[]> command, Client client) throws IOException {
+    final String name = text(command.get(0)).toUpperCase(Locale.ROOT);
+    counts.computeIfAbsent(name, n -> new AtomicInteger()).incrementAndGet();
+    switch (name) {
+      case "PING" -> client.simple("PONG");
+      case "AUTH", "SELECT", "CLIENT" -> client.simple("OK");
+      case "GET" -> {
+        final Value value = live(text(command.get(1)));
+        client.bulk(value == null ? null : value.bytes());
+      }
+      case "SET" -> set(command, client);
+      case "GETDEL" -> {
+        final String key = text(command.get(1));
+        final Value value = live(key);
+        client.bulk(value != null && data.remove(key, value) ? value.bytes() : null);
+      }
+      case "CONFIG" -> {
+        final String parameter = text(command.get(2)).toLowerCase(Locale.ROOT);
+        if (text(command.get(1)).equalsIgnoreCase("SET")) {
+          config.put(parameter, text(command.get(3)));
+          client.simple("OK");
+        } else {
+          client.pair(parameter, config.getOrDefault(parameter, ""));
+        }
+      }
+      case "DEL" -> {
+        long removed = 0;
+        for (byte[] key : command.subList(1, command.size())) {
+          removed += data.remove(text(key)) == null ? 0 : 1;
+        }
+        client.integer(removed);
+      }
+      case "PEXPIRE" -> {
+        final String key = text(command.get(1));
+        final Value value = live(key);
+        if (value != null) {
+          data.put(
+              key,
+              new Value(
+                  value.bytes(), System.currentTimeMillis() + Long.parseLong(text(command.get(2)))));
+        }
+        client.integer(value == null ? 0 : 1);
+      }
+      case "PUBLISH" -> {
+        final Set<Client> receivers = subscribers.getOrDefault(text(command.get(1)), Set.of());
+        for (Client receiver : receivers) {
+          receiver.message(command.get(1), command.get(2));
+        }
+        client.integer(receivers.size());
+      }
+      case "SUBSCRIBE" -> {
+        for (byte[] channel : command.subList(1, command.size())) {
+          subscribers.computeIfAbsent(text(channel), c -> new CopyOnWriteArraySet<>()).add(client);
+          client.subscribed(channel);
+        }
+      }
+      default -> client.error("ERR unknown command '" + name + "'");
+    }
+  }
+
+  private void set(List<byte[]> command, Client client) throws IOException {
+    final String key = text(command.get(1));
+    long expiresAt = 0;
+    boolean onlyIfAbsent = false;
+    for (int i = 3; i < command.size(); i++) {
+      final String option = text(command.get(i)).toUpperCase(Locale.ROOT);
+      if (option.equals("PX")) {
+        expiresAt = System.currentTimeMillis() + Long.parseLong(text(command.get(++i)));
+      } else if (option.equals("NX")) {
+        onlyIfAbsent = true;
+      }
+    }
+    final Value value = new Value(command.get(2), expiresAt);
+    synchronized (data) {
+      if (onlyIfAbsent && live(key) != null) {
+        client.bulk(null);
+        return;
+      }
+      data.put(key, value);
+    }
+    client.simple("OK");
+  }
+
+  private Value live(String key) {
+    final Value value = data.get(key);
+    if (value != null && value.expiresAt() != 0 && value.expiresAt() <= System.currentTimeMillis()) {
+      expired(key, value);
+      return null;
+    }
+    return value;
+  }
+
+  private void expireKeys() {
+    final long now = System.currentTimeMillis();
+    data.forEach(
+        (key, value) -> {
+          if (value.expiresAt() != 0 && value.expiresAt() <= now) {
+            expired(key, value);
+          }
+        });
+  }
+
+  private void expired(String key, Value value) {
+    final String events = config.getOrDefault("notify-keyspace-events", "");
+    if (data.remove(key, value) && events.contains("E") && events.contains("x")) {
+      final byte[] channel = "__keyevent@0__:expired".getBytes(StandardCharsets.UTF_8);
+      for (Client receiver : subscribers.getOrDefault(text(channel), Set.of())) {
+        receiver.message(channel, key.getBytes(StandardCharsets.UTF_8));
+      }
+    }
+  }
+
+  /**
+   * @return la commande lue (tableau de chaînes), <code>null</code> en fin de flux.
+   */
+  private static List<byte[]> readCommand(InputStream in) throws IOException {
+    final int type = in.read();
+    if (type < 0) {
+      return null;
+    }
+    if (type != '*') {
+      throw new IOException("Unexpected RESP type " + (char) type);
+    }
+    final int size = Integer.parseInt(readLine(in));
+    final List<byte[]> command = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      if (in.read() != '$') {
+        throw new IOException("Bulk string expected");
+      }
+      final byte[] bytes = in.readNBytes(Integer.parseInt(readLine(in)));
+      readLine(in);
+      command.add(bytes);
+    }
+    return command;
+  }
+
+  private static String readLine(InputStream in) throws IOException {
+    final StringBuilder line = new StringBuilder();
+    int c;
+    while ((c = in.read()) != '\r') {
+      if (c < 0) {
+        throw new EOFException();
+      }
+      line.append((char) c);
+    }
+    in.read();
+    return line.toString();
+  }
+
+  private static String text(byte[] bytes) {
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private record Value(byte[] bytes, long expiresAt) {}
+
+  /**
+   * Réponses à un client, écrites sous verrou : les messages publiés lui parviennent depuis la
+   * connexion d'un autre client.
+   */
+  private static final class Client {
+    private final OutputStream out;
+
+    private Client(OutputStream out) {
+      this.out = out;
+    }
+
+    private synchronized void simple(String value) throws IOException {
+      out.write(('+' + value + "\r\n").getBytes(StandardCharsets.UTF_8));
+      out.flush();
+    }
+
+    private synchronized void error(String message) throws IOException {
+      out.write(('-' + message + "\r\n").getBytes(StandardCharsets.UTF_8));
+      out.flush();
+    }
+
+    private synchronized void integer(long value) throws IOException {
+      out.write((":" + value + "\r\n").getBytes(StandardCharsets.UTF_8));
+      out.flush();
+    }
+
+    private synchronized void bulk(byte[] value) throws IOException {
+      writeBulk(value);
+      out.flush();
+    }
+
+    private synchronized void pair(String name, String value) throws IOException {
+      out.write("*2\r\n".getBytes(StandardCharsets.UTF_8));
+      writeBulk(name.getBytes(StandardCharsets.UTF_8));
+      writeBulk(value.getBytes(StandardCharsets.UTF_8));
+      out.flush();
+    }
+
+    private synchronized void subscribed(byte[] channel) throws IOException {
+      out.write("*3\r\n".getBytes(StandardCharsets.UTF_8));
+      writeBulk("subscribe".getBytes(StandardCharsets.UTF_8));
+      writeBulk(channel);
+      out.write(":1\r\n".getBytes(StandardCharsets.UTF_8));
+      out.flush();
+    }
+
+    private synchronized void message(byte[] channel, byte[] payload) {
+      try {
+        out.write("*3\r\n".getBytes(StandardCharsets.UTF_8));
+        writeBulk("message".getBytes(StandardCharsets.UTF_8));
+        writeBulk(channel);
+        writeBulk(payload);
+        out.flush();
+      } catch (IOException e) {
+        // abonné déconnecté.
+      }
+    }
+
+    private void writeBulk(byte[] value) throws IOException {
+      if (value == null) {
+        out.write("$-1\r\n".getBytes(StandardCharsets.UTF_8));
+        return;
+      }
+      out.write(('$' + String.valueOf(value.length) + "\r\n").getBytes(StandardCharsets.UTF_8));
+      out.write(value);
+      out.write("\r\n".getBytes(StandardCharsets.UTF_8));
+    }
+  }
+}
@@ -27,6 +27,10 @@ import com.github.tomakehurst.wiremock.core.WireMockConfiguration;
 import com.github.tomakehurst.wiremock.junit5.WireMockExtension;
 import com.github.tomakehurst.wiremock.matching.UrlPattern;
 import fr.gouv.ans.psc.example.esante.proxy.model.ErrorDescriptor;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.IntStream;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.RegisterExtension;
@@ -46,7 +50,6 @@ public class SendEndpointTest extends AbstractAuthenticatedProxyIntegrationTest
   private static final String NO_SESSION_FOUND_ERR_MSG = "No session found.";
   
   private static final int BACKEND_M_TLS_PORT = 8083;
-  
 
   @Test
   public void getFromBackendOne() {
@@ -109,6 +112,70 @@ public class SendEndpointTest extends AbstractAuthenticatedProxyIntegrationTest
             .withHeader("Authorization", WireMock.equalTo("Bearer "+BACKEND2_ACCESS_TOKEN)));
   }
     
+  @Test
+  public void lazyBackendExchangesTokenOnFirstSendOnly() {
+    final String reponseBody = "{\"status\": \"OK\"}";
+    backend2.stubFor(
+        WireMock.get(WireMock.urlEqualTo("/rsc1")).willReturn(WireMock.okJson(reponseBody)));
+    // seul l'échange eager de backend-2 a été fait au /connect.
+    backend2IDP.verify(1, WireMock.postRequestedFor(WireMock.urlEqualTo(TOKEN_EXCHANGE_URI)));
+
+    for (int i = 0; i < 2; i++) {
+      testClient
+          .get()
+          .uri("/send/backend-2-lazy/rsc1")
+          .cookie(SESSION_COOKIE_NAME, sessionId)
+          .exchange()
+          .expectStatus()
+          .isOk()
+          .expectBody()
+          .json(reponseBody);
+    }
+
+    backend2IDP.verify(2, WireMock.postRequestedFor(WireMock.urlEqualTo(TOKEN_EXCHANGE_URI)));
+    backend2.verify(WireMock.exactly(2),
+        WireMock.anyRequestedFor(UrlPattern.ANY)
+            .withHeader("Authorization", WireMock.equalTo("Bearer "+BACKEND2_ACCESS_TOKEN)));
+  }
+    
+  @Test
+  public void concurrentSendsToLazyBackendShareOneExchange() {
+    final String reponseBody = "{\"status\": \"OK\"}";
+    backend2.stubFor(
+        WireMock.get(WireMock.urlEqualTo("/rsc1")).willReturn(WireMock.okJson(reponseBody)));
+    final int parallel = 8;
+    final ExecutorService senders = Executors.newFixedThreadPool(parallel);
+    // l'échange dure assez longtemps pour que tous les /send arrivent pendant qu'il est en cours.
+    backend2IDP.setGlobalFixedDelay(300);
+    try {
+      CompletableFuture.allOf(
+              IntStream.range(0, parallel)
+                  .mapToObj(
+                      i ->
+                          CompletableFuture.runAsync(
+                              () ->
+                                  testClient
+                                      .get()
+                                      .uri("/send/backend-2-lazy/rsc1")
+                                      .cookie(SESSION_COOKIE_NAME, sessionId)
+                                      .exchange()
+                                      .expectStatus()
+                                      .isOk(),
+                              senders))
+                  .toArray(CompletableFuture[]::new))
+          .join();
+    } finally {
+      backend2IDP.setGlobalFixedDelay(0);
+      senders.shutdownNow();
+    }
+
+    // l'échange eager de backend-2 au /connect, puis un seul échange pour backend-2-lazy.
+    backend2IDP.verify(2, WireMock.postRequestedFor(WireMock.urlEqualTo(TOKEN_EXCHANGE_URI)));
+    backend2.verify(WireMock.exactly(parallel),
+        WireMock.anyRequestedFor(UrlPattern.ANY)
+            .withHeader("Authorization", WireMock.equalTo("Bearer "+BACKEND2_ACCESS_TOKEN)));
+  }
+
   @Test
   public void sendWithoutSessionGives401() {
     final String reponseBody = "{\"status\": \"OK\"}";
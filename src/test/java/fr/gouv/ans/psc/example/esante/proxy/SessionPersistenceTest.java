@@ -0,0 +1,314 @@
+/*
+ * The MIT License
+ * Copyright © 2024-2025 Agence du Numérique en Santé (ANS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.gouv.ans.psc.example.esante.proxy;
+
+import com.github.tomakehurst.wiremock.client.WireMock;
+import fr.gouv.ans.psc.example.esante.proxy.config.BackendAuthenticationConfig;
+import fr.gouv.ans.psc.example.esante.proxy.config.SessionPersistenceConfig;
+import fr.gouv.ans.psc.example.esante.proxy.config.TokenExchangeConfig;
+import fr.gouv.ans.psc.example.esante.proxy.controller.SessionAttributes;
+import fr.gouv.ans.psc.example.esante.proxy.model.Session;
+import fr.gouv.ans.psc.example.esante.proxy.service.Backend;
+import fr.gouv.ans.psc.example.esante.proxy.service.BackendAccess;
+import fr.gouv.ans.psc.example.esante.proxy.service.BackendAuthentication;
+import fr.gouv.ans.psc.example.esante.proxy.service.BackendAuthenticationService;
+import fr.gouv.ans.psc.example.esante.proxy.service.CIBASession;
+import fr.gouv.ans.psc.example.esante.proxy.service.PSCSessionService;
+import fr.gouv.ans.psc.example.esante.proxy.service.SessionTraceData;
+import fr.gouv.ans.psc.example.esante.proxy.service.TokenRefreshService;
+import fr.gouv.ans.psc.example.esante.proxy.service.session.DecodedSession;
+import fr.gouv.ans.psc.example.esante.proxy.service.session.SessionCodec;
+import fr.gouv.ans.psc.example.esante.proxy.service.session.SessionPersistence;
+import fr.gouv.ans.psc.example.esante.proxy.service.session.ShardedSessionRepository;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.time.Duration;
+import java.time.temporal.ChronoUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.session.SessionProperties;
+import org.springframework.boot.test.autoconfigure.web.reactive.AutoConfigureWebTestClient;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.session.MapSession;
+
+/**
+ * Cette suite valide la persistance des sessions : un second stockage, relu depuis une copie des
+ * fichiers du proxy en cours d'exécution, joue le rôle du proxy redémarré.
+ *
+ * @author edegenetais
+ */
+@SpringBootTest(classes = {EsanteProxyApplication.class})
+@AutoConfigureWebTestClient(timeout = "PT30S")
+public class SessionPersistenceTest extends AbstractProxyIntegrationTest {
+  @Autowired private SessionPersistenceConfig persistenceCfg;
+  @Autowired private SessionPersistence persistence;
+  @Autowired private SessionCodec codec;
+  @Autowired private ShardedSessionRepository sessionRepository;
+  @Autowired private BackendAuthenticationService backendAuthService;
+  @Autowired private BackendAuthenticationConfig backendCfg;
+  @Autowired private PSCSessionService pscService;
+  @Autowired private TokenExchangeConfig exchangeCfg;
+  @Autowired private SessionProperties sessionProperties;
+
+  @TempDir private Path restartDirectory;
+
+  @Test
+  public void openSessionIsRestoredWithItsTokens() throws IOException {
+    final Session session = getSession(testClient);
+    final MapSession original = sessionRepository.findById(session.proxySessionId()).block();
+    final BackendAuthentication originalAuth = original.getAttribute(SessionAttributes.BACKEND_AUTH_ATTR);
+
+    afterRestart(
+        restarted -> {
+          final MapSession restored = restarted.findById(session.proxySessionId()).block();
+          Assertions.assertNotNull(restored, "La session doit survivre au redémarrage.");
+          Assertions.assertEquals(
+              TEST_CLIENT_ID, restored.getAttribute(SessionAttributes.CLIENT_ID));
+          Assertions.assertEquals(
+              original.<CIBASession>getAttribute(SessionAttributes.CIBA_SESSION),
+              restored.getAttribute(SessionAttributes.CIBA_SESSION));
+          Assertions.assertEquals(
+              session, restored.getAttribute(SessionAttributes.PROXY_API_SESSION));
+          Assertions.assertEquals(
+              original.<Object>getAttribute(SessionAttributes.TRACE_IDENTITY),
+              restored.getAttribute(SessionAttributes.TRACE_IDENTITY));
+          final BackendAuthentication restoredAuth =
+              restored.getAttribute(SessionAttributes.BACKEND_AUTH_ATTR);
+          Assertions.assertEquals(TEST_CLIENT_ID, restoredAuth.clientId());
+          Assertions.assertEquals(
+              originalAuth.findBackendToken("backend-1"), restoredAuth.findBackendToken("backend-1"));
+          Assertions.assertEquals(
+              originalAuth.findBackendToken("backend-2"), restoredAuth.findBackendToken("backend-2"));
+          Assertions.assertEquals(
+              originalAuth.refreshDueAt("backend-1"),
+              restoredAuth.refreshDueAt("backend-1"),
+              "Le rafraîchissement reprend à la date prévue une fois la session restaurée.");
+          backendAuthService.wipe(restoredAuth);
+        });
+    killSession(testClient, session.proxySessionId());
+  }
+
+  @Test
+  public void refreshedTokenIsRestored() throws IOException, InterruptedException {
+    backend1IDP.stubFor(WireMock.post(WireMock.urlEqualTo(TOKEN_EXCHANGE_URI))
+        .withRequestBody(WireMock.containing("token-exchange"))
+        .willReturn(WireMock.okJson(
+            "{\"access_token\":\"short-lived-token\",\"expires_in\":2,\"refresh_token\":\"backend-refresh-token\",\"refresh_expires_in\":1800,\"token_type\":\"Bearer\"}")));
+    backend1IDP.stubFor(WireMock.post(WireMock.urlEqualTo(TOKEN_EXCHANGE_URI))
+        .withRequestBody(WireMock.containing("grant_type=refresh_token"))
+        .willReturn(WireMock.okJson(
+            "{\"access_token\":\"refreshed-token\",\"expires_in\":14400,\"refresh_token\":\"rotated-refresh-token\",\"refresh_expires_in\":1800,\"token_type\":\"Bearer\"}")));
+    final Session session = getSession(testClient);
+    final BackendAuthentication auth =
+        sessionRepository
+            .findById(session.proxySessionId())
+            .block()
+            .getAttribute(SessionAttributes.BACKEND_AUTH_ATTR);
+    for (int i = 0;
+        i < 50 && !"refreshed-token".equals(auth.findBackendToken("backend-1").accessToken());
+        i++) {
+      Thread.sleep(100);
+    }
+    Assertions.assertEquals("refreshed-token", auth.findBackendToken("backend-1").accessToken());
+
+    afterRestart(
+        restarted -> {
+          final BackendAuthentication restoredAuth =
+              restarted
+                  .findById(session.proxySessionId())
+                  .block()
+                  .getAttribute(SessionAttributes.BACKEND_AUTH_ATTR);
+          final BackendAccess restored = restoredAuth.findBackendToken("backend-1");
+          Assertions.assertEquals(
+              "refreshed-token",
+              restored.accessToken(),
+              "Le token rafraîchi depuis le dernier instantané doit être relu du journal.");
+          Assertions.assertEquals("rotated-refresh-token", restored.refreshToken());
+          backendAuthService.wipe(restoredAuth);
+        });
+    killSession(testClient, session.proxySessionId());
+  }
+
+  @Test
+  public void disconnectedSessionIsNotRestored() throws IOException {
+    final Session session = getSession(testClient);
+    killSession(testClient, session.proxySessionId());
+
+    afterRestart(
+        restarted ->
+            Assertions.assertNull(restarted.findById(session.proxySessionId()).block()));
+  }
+
+  @Test
+  public void encodedSessionIsLosslessAndSmallerThanItsStrings() throws IOException {
+    final Session session = getSession(testClient);
+    final MapSession original = sessionRepository.findById(session.proxySessionId()).block();
+    final CIBASession ciba = original.getAttribute(SessionAttributes.CIBA_SESSION);
+    final BackendAuthentication auth = original.getAttribute(SessionAttributes.BACKEND_AUTH_ATTR);
+    final SessionTraceData identity = original.getAttribute(SessionAttributes.TRACE_IDENTITY);
+    final BackendAccess backend1 = auth.findBackendToken("backend-1");
+    final BackendAccess backend2 = auth.findBackendToken("backend-2");
+    int rawStrings = 0;
+    for (Backend backend : backendCfg.routes()) {
+      final BackendAccess access = auth.findBackendToken(backend.id());
+      if (access != null) {
+        rawStrings += utf8Length(access.accessToken(), access.refreshToken());
+      }
+    }
+    rawStrings +=
+        utf8Length(
+            original.getId(),
+            original.getAttribute(SessionAttributes.CLIENT_ID),
+            original.getAttribute(SessionAttributes.NATIONAL_ID),
+            ciba.accessToken(),
+            ciba.refreshToken(),
+            ciba.idToken(),
+            ciba.tokenType(),
+            ciba.scope(),
+            ciba.sessionState(),
+            auth.clientId(),
+            session.proxySessionId(),
+            session.sessionState(),
+            identity.clientId(),
+            identity.nationalId(),
+            identity.sessionState(),
+            identity.proxy_session_id(),
+            identity.dn(),
+            identity.certThumbprint());
+
+    final ByteArrayOutputStream table = new ByteArrayOutputStream();
+    codec.writeBackendTable(new DataOutputStream(table));
+    final int[] ordinals =
+        codec.readBackendTable(new DataInputStream(new ByteArrayInputStream(table.toByteArray())));
+    final ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+    codec.write(original, new DataOutputStream(encoded));
+    Assertions.assertTrue(
+        encoded.size() < rawStrings * 4 / 5,
+        "Session encodée en " + encoded.size() + " octets pour " + rawStrings + " octets de texte.");
+
+    final DecodedSession decodedSession =
+        codec.read(
+            new DataInputStream(new ByteArrayInputStream(encoded.toByteArray())), ordinals);
+    final MapSession decoded = decodedSession.session();
+    final BackendAuthentication decodedAuth =
+        decoded.getAttribute(SessionAttributes.BACKEND_AUTH_ATTR);
+    try {
+      Assertions.assertEquals(original.getId(), decoded.getId());
+      // les dates sont conservées à la milliseconde.
+      Assertions.assertEquals(
+          original.getCreationTime().truncatedTo(ChronoUnit.MILLIS), decoded.getCreationTime());
+      Assertions.assertEquals(
+          original.getLastAccessedTime().truncatedTo(ChronoUnit.MILLIS),
+          decoded.getLastAccessedTime());
+      Assertions.assertEquals(ciba, decoded.getAttribute(SessionAttributes.CIBA_SESSION));
+      Assertions.assertEquals(identity, decoded.getAttribute(SessionAttributes.TRACE_IDENTITY));
+      Assertions.assertEquals(session, decoded.getAttribute(SessionAttributes.PROXY_API_SESSION));
+      Assertions.assertEquals(backend1, decodedAuth.findBackendToken("backend-1"));
+      Assertions.assertEquals(backend2, decodedAuth.findBackendToken("backend-2"));
+      Assertions.assertEquals(
+          auth.refreshDueAt("backend-1"), decodedSession.refreshDueAt("backend-1"));
+      Assertions.assertEquals(
+          -1, decodedAuth.refreshDueAt("backend-1"), "Le décodage ne doit rien planifier.");
+    } finally {
+      killSession(testClient, session.proxySessionId());
+    }
+  }
+
+  @Test
+  public void persistenceFilesAreOwnerOnly() throws IOException {
+    persistence.flush();
+    Assertions.assertEquals(
+        PosixFilePermissions.fromString("rwx------"),
+        Files.getPosixFilePermissions(persistenceCfg.directory()));
+    for (String file : new String[] {"sessions.snapshot", "sessions.wal"}) {
+      Assertions.assertEquals(
+          PosixFilePermissions.fromString("rw-------"),
+          Files.getPosixFilePermissions(persistenceCfg.directory().resolve(file)),
+          file + " contient des jetons : il doit être réservé au propriétaire.");
+    }
+  }
+
+  @Test
+  public void persistenceStatsAreServed() {
+    testClient
+        .get()
+        .uri("/check/session-persistence")
+        .exchange()
+        .expectStatus()
+        .isOk()
+        .expectBody()
+        .jsonPath("$.generation").value(g -> Assertions.assertTrue(((Number) g).longValue() >= 1));
+  }
+
+  private static int utf8Length(String... values) {
+    int length = 0;
+    for (String value : values) {
+      length += value == null ? 0 : value.getBytes(StandardCharsets.UTF_8).length;
+    }
+    return length;
+  }
+
+  /**
+   * Relit une copie des fichiers de persistance dans un nouveau stockage.
+   */
+  private void afterRestart(Consumer<ShardedSessionRepository> check) throws IOException {
+    persistence.flush();
+    try (Stream<Path> files = Files.list(persistenceCfg.directory())) {
+      for (Path file : files.toList()) {
+        Files.copy(file, restartDirectory.resolve(file.getFileName()));
+      }
+    }
+    final ShardedSessionRepository restarted =
+        new ShardedSessionRepository(8, Duration.ofSeconds(1));
+    final TokenRefreshService refreshService =
+        new TokenRefreshService(pscService, exchangeCfg, sessionProperties);
+    final SessionPersistence restartedPersistence =
+        new SessionPersistence(
+            new SessionPersistenceConfig(restartDirectory, Duration.ofMinutes(1), false),
+            restarted,
+            codec,
+            refreshService);
+    try {
+      check.accept(restarted);
+    } finally {
+      try {
+        restartedPersistence.destroy();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      restarted.destroy();
+      refreshService.destroy();
+    }
+  }
+}
@@ -24,11 +24,15 @@ package fr.gouv.ans.psc.example.esante.proxy;
 
 import com.github.tomakehurst.wiremock.client.BasicCredentials;
 import com.github.tomakehurst.wiremock.client.WireMock;
+import com.github.tomakehurst.wiremock.stubbing.Scenario;
+import com.github.tomakehurst.wiremock.verification.LoggedRequest;
 import com.nimbusds.jwt.JWTParser;
 import fr.gouv.ans.psc.example.esante.proxy.model.Connection;
 import fr.gouv.ans.psc.example.esante.proxy.model.ErrorDescriptor;
 import fr.gouv.ans.psc.example.esante.proxy.model.Session;
 import java.text.ParseException;
+import java.time.Duration;
+import java.util.List;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 import org.springframework.boot.test.autoconfigure.web.reactive.AutoConfigureWebTestClient;
@@ -252,6 +256,70 @@ public class SessionTests extends AbstractProxyIntegrationTest {
         .isEqualTo(503);
   }
   
+  @Test
+  public void slowDownOnTokenEndpointDelaysNextPoll() {
+    pscMock.stubFor(
+        WireMock.post(
+                WireMock.urlEqualTo("/auth/realms/esante-wallet/protocol/openid-connect/token"))
+            .inScenario("Poll once then get token")
+            .whenScenarioStateIs(Scenario.STARTED)
+            .willSetStateTo("First probe done")
+            .willReturn(
+                WireMock.jsonResponse(
+                    "{\"error\":\"slow_down\",\"error_description\":\"Polling too fast.\"}",
+                    400)));
+
+    testClient
+        .post()
+        .uri((UriBuilder b) -> b.path("/connect").build())
+        .contentType(MediaType.APPLICATION_JSON)
+        .body(
+            Mono.just(
+                new Connection(
+                    ID_NAT,
+                    "00", 
+                    TEST_CLIENT_ID, 
+                    "CARD")),
+            Connection.class
+        )
+        .exchange()
+        .expectStatus()
+        .isOk();
+
+    final List<LoggedRequest> polls =
+        pscMock.findAll(
+            WireMock.postRequestedFor(
+                    WireMock.urlEqualTo("/auth/realms/esante-wallet/protocol/openid-connect/token"))
+                .withRequestBody(WireMock.containing("grant_type=urn")));
+    Assertions.assertEquals(2, polls.size());
+    // intervalle initial de 1s, porté à 1 + 5s par le slow_down : au moins 6s virtuelles entre les
+    // deux polls, soit 6s / VIRTUAL_STEP millisecondes réelles, à la milliseconde près des
+    // horodatages WireMock.
+    final Duration gap =
+        Duration.between(
+            polls.get(0).getLoggedDate().toInstant(), polls.get(1).getLoggedDate().toInstant());
+    final Duration minGap =
+        Duration.ofMillis(
+            Duration.ofSeconds(6).dividedBy(VirtualTimerConfiguration.VIRTUAL_STEP) - 1);
+    Assertions.assertTrue(
+        gap.compareTo(minGap) >= 0,
+        "Le second poll doit attendre l'intervalle allongé, écart constaté : " + gap);
+  }
+  
+  @Test
+  public void discoveryMetadataIsNotFetchedForEachConnect() {
+    getSession(testClient);
+    getSession(testClient);
+    Assertions.assertTrue(
+        pscMock.countRequestsMatching(
+                    WireMock.getRequestedFor(
+                            WireMock.urlEqualTo("/auth/realms/esante-wallet/.well-known/wallet-openid-configuration"))
+                        .build())
+                .getCount()
+            <= 1,
+        "Les métadonnées PSC doivent être servies depuis le cache.");
+  }
+  
   @Test
   public void callingDisconnectWithNoSessionGives401() {
     testClient
@@ -301,9 +369,33 @@ public class SessionTests extends AbstractProxyIntegrationTest {
         .expectStatus()
         .isOk();
 
+    awaitRevocations();
     pscMock.verify(1, WireMock.postRequestedFor(WireMock.urlEqualTo("/auth/realms/esante-wallet/protocol/openid-connect/logout")));
   }
 
+  @Test
+  public void disconnectRevokesPscAndBackendRefreshTokens() {
+    Session session = getSession(testClient);
+    testClient
+        .delete()
+        .uri(b -> b.path("/disconnect").build())
+        .cookie(SESSION_COOKIE_NAME, session.proxySessionId())
+        .exchange()
+        .expectStatus()
+        .isOk();
+
+    awaitRevocations();
+    pscMock.verify(1,
+        WireMock.postRequestedFor(WireMock.urlEqualTo("/auth/realms/esante-wallet/protocol/openid-connect/revoke"))
+            .withRequestBody(WireMock.containing("token_type_hint=refresh_token"))
+            .withBasicAuth(new BasicCredentials(TEST_CLIENT_ID, MY_CLIENT_SECRET)));
+    backend1IDP.verify(1,
+        WireMock.postRequestedFor(WireMock.urlEqualTo(TOKEN_REVOCATION_URI))
+            .withRequestBody(WireMock.containing("token_type_hint=refresh_token")));
+    // Pas d'endpoint de révocation configuré pour les autres backends.
+    backend2IDP.verify(0, WireMock.postRequestedFor(WireMock.urlEqualTo(TOKEN_REVOCATION_URI)));
+  }
+
   
   @Test
   public void callingDisconnectWithDisconnectedRealSessionGives401() {
@@ -315,6 +407,7 @@ public class SessionTests extends AbstractProxyIntegrationTest {
         .exchange()
         .expectStatus()
         .isOk();
+    awaitRevocations();
     pscMock.verify(1, WireMock.postRequestedFor(WireMock.urlEqualTo("/auth/realms/esante-wallet/protocol/openid-connect/logout")));
     
     testClient
@@ -325,6 +418,7 @@ public class SessionTests extends AbstractProxyIntegrationTest {
         .expectStatus()
         .isUnauthorized();
     //Le compte doit rester à 1, AKA le second appel à `/disconnect` n'a pas déclenché d'appel à ProSantéConnect
+    awaitRevocations();
     pscMock.verify(1, WireMock.postRequestedFor(WireMock.urlEqualTo("/auth/realms/esante-wallet/protocol/openid-connect/logout")));
   }
   
@@ -575,6 +669,60 @@ public class SessionTests extends AbstractProxyIntegrationTest {
     Assertions.assertEquals(TEST_CLIENT_ID, error.metadata().clientId());
   }
   
+  @Test
+  public void slowTokenExchangeTimesOutWithoutBlockingOtherBackends() {
+    backend1IDP.stubFor(WireMock.post(WireMock.urlEqualTo(TOKEN_EXCHANGE_URI))
+        .willReturn(WireMock.okJson("{}").withFixedDelay(6000)));
+
+    testClient
+        .post()
+        .uri((UriBuilder b) -> b.path("/connect").build())
+        .contentType(MediaType.APPLICATION_JSON)
+        .body(Mono.just(new Connection(ID_NAT, "00", TEST_CLIENT_ID, "CARD")), Connection.class)
+        .exchange()
+        .expectStatus()
+        .isEqualTo(504);
+
+    backend2IDP.verify(1, WireMock.postRequestedFor(WireMock.urlEqualTo(TOKEN_EXCHANGE_URI)));
+    backend3IDP.verify(2, WireMock.postRequestedFor(WireMock.urlEqualTo(TOKEN_EXCHANGE_URI)));
+  }
+  
+  @Test
+  public void backendTokenIsRefreshedBeforeExpiry() throws InterruptedException {
+    backend1IDP.stubFor(WireMock.post(WireMock.urlEqualTo(TOKEN_EXCHANGE_URI))
+        .withRequestBody(WireMock.containing("token-exchange"))
+        .willReturn(WireMock.okJson(
+            "{\"access_token\":\"short-lived-token\",\"expires_in\":2,\"refresh_token\":\"backend-refresh-token\",\"refresh_expires_in\":1800,\"token_type\":\"Bearer\"}")));
+    backend1IDP.stubFor(WireMock.post(WireMock.urlEqualTo(TOKEN_EXCHANGE_URI))
+        .withRequestBody(WireMock.containing("grant_type=refresh_token"))
+        .withRequestBody(WireMock.containing("backend-refresh-token"))
+        .willReturn(WireMock.okJson(
+            "{\"access_token\":\"refreshed-token\",\"expires_in\":14400,\"refresh_expires_in\":1800,\"token_type\":\"Bearer\"}")));
+    backend1.stubFor(WireMock.get(WireMock.urlEqualTo("/rsc1")).willReturn(WireMock.okJson("{}")));
+
+    Session session = getSession(testClient);
+    try {
+      for (int i = 0; i < 50 && backend1IDP.findAll(
+          WireMock.postRequestedFor(WireMock.urlEqualTo(TOKEN_EXCHANGE_URI))
+              .withRequestBody(WireMock.containing("grant_type=refresh_token"))).isEmpty(); i++) {
+        Thread.sleep(100);
+      }
+
+      testClient
+          .get()
+          .uri("/send/backend-1/rsc1")
+          .cookie(SESSION_COOKIE_NAME, session.proxySessionId())
+          .exchange()
+          .expectStatus()
+          .isOk();
+
+      backend1.verify(1, WireMock.getRequestedFor(WireMock.urlEqualTo("/rsc1"))
+          .withHeader("Authorization", WireMock.equalTo("Bearer refreshed-token")));
+    } finally {
+      killSessionIfAny(session);
+    }
+  }
+  
   private void killSessionIfAny(Session session) {
     if(session!=null) {
       killSession(testClient, session.proxySessionId());
@@ -0,0 +1,161 @@
+/*
+ * The MIT License
+ * Copyright © 2024-2025 Agence du Numérique en Santé (ANS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.gouv.ans.psc.example.esante.proxy;
+
+import com.github.tomakehurst.wiremock.client.WireMock;
+import com.github.tomakehurst.wiremock.matching.RequestPatternBuilder;
+import com.github.tomakehurst.wiremock.stubbing.Scenario;
+import fr.gouv.ans.psc.example.esante.proxy.config.BackendAuthenticationConfig;
+import fr.gouv.ans.psc.example.esante.proxy.config.TokenRevocationConfig;
+import fr.gouv.ans.psc.example.esante.proxy.controller.SessionAttributes;
+import fr.gouv.ans.psc.example.esante.proxy.model.Session;
+import fr.gouv.ans.psc.example.esante.proxy.service.CredentialMaterialCache;
+import fr.gouv.ans.psc.example.esante.proxy.service.PSCSessionService;
+import fr.gouv.ans.psc.example.esante.proxy.service.TokenRevocationService;
+import fr.gouv.ans.psc.example.esante.proxy.service.TokenRevocationStats;
+import fr.gouv.ans.psc.example.esante.proxy.service.session.ShardedSessionRepository;
+import java.time.Duration;
+import java.time.Instant;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.reactive.AutoConfigureWebTestClient;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.session.MapSession;
+
+/**
+ * Cette suite valide la révocation des tokens en tâche de fond : reprises sur échec transitoire,
+ * file d'attente bornée et révocation à l'expiration des sessions.
+ *
+ * @author edegenetais
+ */
+@SpringBootTest(classes = {EsanteProxyApplication.class})
+@AutoConfigureWebTestClient(timeout = "PT30S")
+public class TokenRevocationTests extends AbstractProxyIntegrationTest {
+  private static final String PSC_LOGOUT_URI =
+      "/auth/realms/esante-wallet/protocol/openid-connect/logout";
+  private static final RequestPatternBuilder BACKEND_1_REVOCATION =
+      WireMock.postRequestedFor(WireMock.urlEqualTo(TOKEN_REVOCATION_URI));
+
+  @Autowired private PSCSessionService pscService;
+  @Autowired private BackendAuthenticationConfig backendCfg;
+  @Autowired private CredentialMaterialCache materials;
+  @Autowired private ShardedSessionRepository sessionRepository;
+
+  @Test
+  public void transientFailuresAreRetried() {
+    backend1IDP.stubFor(
+        WireMock.post(TOKEN_REVOCATION_URI)
+            .inScenario("revocation")
+            .whenScenarioStateIs(Scenario.STARTED)
+            .willReturn(WireMock.serviceUnavailable())
+            .willSetStateTo("throttled"));
+    backend1IDP.stubFor(
+        WireMock.post(TOKEN_REVOCATION_URI)
+            .inScenario("revocation")
+            .whenScenarioStateIs("throttled")
+            .willReturn(WireMock.status(429))
+            .willSetStateTo("available"));
+    backend1IDP.stubFor(
+        WireMock.post(TOKEN_REVOCATION_URI)
+            .inScenario("revocation")
+            .whenScenarioStateIs("available")
+            .willReturn(WireMock.ok()));
+    final Session session = getSession(testClient);
+    final TokenRevocationStats before = revocationService.stats();
+
+    killSession(testClient, session.proxySessionId());
+
+    backend1IDP.verify(3, BACKEND_1_REVOCATION);
+    final TokenRevocationStats after = revocationService.stats();
+    Assertions.assertEquals(0, after.failed() - before.failed());
+    // déconnexion PSC, révocation du refresh token PSC et du token du backend 1.
+    Assertions.assertEquals(3, after.revoked() - before.revoked());
+  }
+
+  @Test
+  public void clientErrorsAreNotRetried() {
+    backend1IDP.stubFor(WireMock.post(TOKEN_REVOCATION_URI).willReturn(WireMock.badRequest()));
+    final Session session = getSession(testClient);
+    final TokenRevocationStats before = revocationService.stats();
+
+    killSession(testClient, session.proxySessionId());
+
+    backend1IDP.verify(1, BACKEND_1_REVOCATION);
+    final TokenRevocationStats after = revocationService.stats();
+    Assertions.assertEquals(1, after.failed() - before.failed());
+    Assertions.assertEquals(2, after.revoked() - before.revoked());
+  }
+
+  @Test
+  public void revocationsBeyondQueueCapacityAreRejected() {
+    final Session session = getSession(testClient);
+    final MapSession stored = sessionRepository.findById(session.proxySessionId()).block();
+    final TokenRevocationService smallQueue =
+        new TokenRevocationService(
+            pscService,
+            backendCfg,
+            new TokenRevocationConfig(1, 1, Duration.ofMillis(100), 1, Duration.ofSeconds(3)),
+            materials);
+    pscMock.setGlobalFixedDelay(200);
+    backend1IDP.setGlobalFixedDelay(200);
+    try {
+      // Trois révocations par session : déconnexion PSC, refresh token PSC, token du backend 1.
+      final int sessions = 10;
+      for (int i = 0; i < sessions; i++) {
+        smallQueue.revoke(
+            stored.getAttribute(SessionAttributes.CLIENT_ID),
+            stored.getAttribute(SessionAttributes.CIBA_SESSION),
+            stored.getAttribute(SessionAttributes.BACKEND_AUTH_ATTR));
+      }
+      Assertions.assertTrue(smallQueue.flush(Duration.ofSeconds(10)), "Révocations en attente.");
+
+      final TokenRevocationStats stats = smallQueue.stats();
+      Assertions.assertTrue(stats.rejected() > 0, "La file pleine doit rejeter des révocations.");
+      Assertions.assertEquals(0, stats.pending());
+      Assertions.assertEquals(
+          3 * sessions, stats.revoked() + stats.failed() + stats.rejected());
+    } finally {
+      pscMock.setGlobalFixedDelay(0);
+      backend1IDP.setGlobalFixedDelay(0);
+      smallQueue.destroy();
+      killSession(testClient, session.proxySessionId());
+    }
+  }
+
+  @Test
+  public void expiredSessionTokensAreRevoked() {
+    final Session session = getSession(testClient);
+    final MapSession stale =
+        new MapSession(sessionRepository.findById(session.proxySessionId()).block());
+    stale.setLastAccessedTime(Instant.now().minus(stale.getMaxInactiveInterval()).minusSeconds(1));
+    sessionRepository.save(stale).block();
+
+    // l'échéance n'est pas encore atteinte par la roue : la lecture constate l'expiration.
+    Assertions.assertNull(sessionRepository.findById(session.proxySessionId()).block());
+    awaitRevocations();
+
+    backend1IDP.verify(1, BACKEND_1_REVOCATION);
+    pscMock.verify(1, WireMock.postRequestedFor(WireMock.urlEqualTo(PSC_LOGOUT_URI)));
+  }
+}
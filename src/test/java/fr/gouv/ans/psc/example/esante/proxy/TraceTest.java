@@ -22,21 +22,36 @@
  */
 package fr.gouv.ans.psc.example.esante.proxy;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.github.tomakehurst.wiremock.client.WireMock;
 import com.github.tomakehurst.wiremock.matching.UrlPattern;
+import fr.gouv.ans.psc.example.esante.proxy.controller.SessionAttributes;
+import fr.gouv.ans.psc.example.esante.proxy.controller.TraceController;
 import fr.gouv.ans.psc.example.esante.proxy.model.Connection;
 import fr.gouv.ans.psc.example.esante.proxy.model.Session;
 import fr.gouv.ans.psc.example.esante.proxy.model.Trace;
 import fr.gouv.ans.psc.example.esante.proxy.model.TraceType;
+import fr.gouv.ans.psc.example.esante.proxy.service.SessionTraceData;
+import fr.gouv.ans.psc.example.esante.proxy.service.session.ShardedSessionRepository;
+import fr.gouv.ans.psc.example.esante.proxy.service.trace.TraceRollup;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.time.OffsetDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.List;
+import java.util.zip.GZIPInputStream;
 import org.bouncycastle.asn1.x500.X500Name;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.reactive.AutoConfigureWebTestClient;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.session.MapSession;
+import org.springframework.test.web.reactive.server.EntityExchangeResult;
 import org.springframework.web.util.UriBuilder;
 
 /**
@@ -50,6 +65,12 @@ import org.springframework.web.util.UriBuilder;
 @SpringBootTest(classes = {EsanteProxyApplication.class})
 @AutoConfigureWebTestClient
 public class TraceTest  extends AbstractAuthenticatedProxyIntegrationTest {
+
+  @Autowired
+  private ObjectMapper objectMapper;
+
+  @Autowired
+  private ShardedSessionRepository sessionRepository;
   
   /**
    * Pour ces tests, le comportement exact du bcakend ne nous intéresse pas, 
@@ -258,6 +279,45 @@ public class TraceTest  extends AbstractAuthenticatedProxyIntegrationTest {
     Assertions.assertEquals(expectedDn, effectiveDN);
   }
   
+  @Test
+  public void traceIdentityIsComputedAtConnectAndReused() {
+    final Session session = connectWithCert();
+    final MapSession stored = sessionRepository.findById(session.proxySessionId()).block();
+    final SessionTraceData identity = stored.getAttribute(SessionAttributes.TRACE_IDENTITY);
+    Assertions.assertNotNull(identity, "L'identité doit être calculée au /connect.");
+    Assertions.assertNotNull(identity.certThumbprint());
+    Assertions.assertEquals(session.proxySessionId(), identity.proxy_session_id());
+
+    // une identité modifiée dans la session est reprise telle quelle : elle n'est pas recalculée.
+    stored.setAttribute(
+        SessionAttributes.TRACE_IDENTITY,
+        new SessionTraceData(
+            identity.clientId(),
+            identity.nationalId(),
+            identity.sessionState(),
+            identity.proxy_session_id(),
+            "CN=identite-de-connexion",
+            identity.certThumbprint()));
+    sessionRepository.save(stored).block();
+
+    final Trace send = sendTraceOf(session);
+    Assertions.assertEquals("CN=identite-de-connexion", send.dn());
+  }
+
+  @Test
+  public void traceIdentityIsRebuiltWhenMissingFromTheSession() {
+    final Session session = connectWithCert();
+    final MapSession stored = sessionRepository.findById(session.proxySessionId()).block();
+    stored.removeAttribute(SessionAttributes.TRACE_IDENTITY);
+    sessionRepository.save(stored).block();
+
+    final Trace send = sendTraceOf(session);
+    final X500Name expectedDn = new X500Name("C = FR, ST = Ile-de-France, L = Montrouge, O = Henix, OU = EDC-test-CA, CN = client.edc.proxy.1, emailAddress = \"edegenetais+client.edc.proxy.1@henix.fr\"");
+    Assertions.assertEquals(expectedDn, new X500Name(send.dn()));
+    Assertions.assertEquals(session.proxySessionId(), send.proxy_id_session());
+    Assertions.assertEquals("session-state-256-xxx", send.session_state());
+  }
+
   @Test
   public void sendOnSessionHasId() {
     
@@ -705,4 +765,259 @@ public class TraceTest  extends AbstractAuthenticatedProxyIntegrationTest {
     Assertions.assertTrue(testBegin.isBefore(trace.timestamp()));
     Assertions.assertTrue(OffsetDateTime.now().isAfter(trace.timestamp()));
   }
+
+  @Test
+  public void tracesAreStreamedAsNdjson() throws IOException {
+    OffsetDateTime testBegin = OffsetDateTime.now();
+    sendTwice();
+
+    byte[] body =
+        testClient
+            .get()
+            .uri(
+                (UriBuilder b) ->
+                    b.path("/traces")
+                        .queryParam("start", testBegin.format(DateTimeFormatter.ISO_INSTANT))
+                        .build())
+            .accept(MediaType.APPLICATION_NDJSON)
+            .exchange()
+            .expectStatus().is2xxSuccessful()
+            .expectHeader().contentTypeCompatibleWith(MediaType.APPLICATION_NDJSON)
+            .expectBody().returnResult().getResponseBody();
+
+    assertTwoSendTraces(new String(body, StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void tracesAreStreamedAsGzippedNdjson() throws IOException {
+    OffsetDateTime testBegin = OffsetDateTime.now();
+    sendTwice();
+
+    byte[] body =
+        testClient
+            .get()
+            .uri(
+                (UriBuilder b) ->
+                    b.path("/traces")
+                        .queryParam("start", testBegin.format(DateTimeFormatter.ISO_INSTANT))
+                        .build())
+            .accept(MediaType.APPLICATION_NDJSON)
+            .header(HttpHeaders.ACCEPT_ENCODING, "gzip")
+            .exchange()
+            .expectStatus().is2xxSuccessful()
+            .expectHeader().valueEquals(HttpHeaders.CONTENT_ENCODING, "gzip")
+            .expectBody().returnResult().getResponseBody();
+
+    try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(body))) {
+      assertTwoSendTraces(new String(in.readAllBytes(), StandardCharsets.UTF_8));
+    }
+  }
+
+  @Test
+  public void tracesArePaginatedWithACursor() {
+    OffsetDateTime testBegin = OffsetDateTime.now();
+    sendTwice();
+
+    EntityExchangeResult<List<Trace>> first =
+        testClient
+            .get()
+            .uri(
+                (UriBuilder b) ->
+                    b.path("/traces")
+                        .queryParam("start", testBegin.format(DateTimeFormatter.ISO_INSTANT))
+                        .queryParam("limit", 1)
+                        .build())
+            .exchange()
+            .expectStatus().is2xxSuccessful()
+            .expectBodyList(Trace.class)
+            .hasSize(1)
+            .returnResult();
+    Assertions.assertEquals("/carebear0", first.getResponseBody().getFirst().apiRequest().path());
+    final String cursor =
+        first.getResponseHeaders().getFirst(TraceController.NEXT_CURSOR_HEADER);
+    Assertions.assertNotNull(cursor);
+
+    EntityExchangeResult<List<Trace>> second =
+        testClient
+            .get()
+            .uri(
+                (UriBuilder b) ->
+                    b.path("/traces")
+                        .queryParam("start", testBegin.format(DateTimeFormatter.ISO_INSTANT))
+                        .queryParam("limit", 1)
+                        .queryParam("cursor", cursor)
+                        .build())
+            .exchange()
+            .expectStatus().is2xxSuccessful()
+            .expectBodyList(Trace.class)
+            .hasSize(1)
+            .returnResult();
+    Assertions.assertEquals("/carebear1", second.getResponseBody().getFirst().apiRequest().path());
+    Assertions.assertNull(second.getResponseHeaders().getFirst(TraceController.NEXT_CURSOR_HEADER));
+  }
+
+  @Test
+  public void invalidCursorIsRejected() {
+    testClient
+        .get()
+        .uri(
+            (UriBuilder b) ->
+                b.path("/traces")
+                    .queryParam("start", OffsetDateTime.now().format(DateTimeFormatter.ISO_INSTANT))
+                    .queryParam("cursor", "not-a-cursor")
+                    .build())
+        .exchange()
+        .expectStatus().isBadRequest();
+  }
+
+  @Test
+  public void tracesAreFilteredByQueryParameters() {
+    OffsetDateTime testBegin = OffsetDateTime.now();
+    sendTwice();
+
+    testClient
+        .get()
+        .uri(
+            (UriBuilder b) ->
+                b.path("/traces")
+                    .queryParam("start", testBegin.format(DateTimeFormatter.ISO_INSTANT))
+                    .queryParam("type", "SEND")
+                    .queryParam("nomApiPsc", "backend-1")
+                    .queryParam("IdRPPS", ID_NAT)
+                    .build())
+        .exchange()
+        .expectStatus().is2xxSuccessful()
+        .expectBodyList(Trace.class)
+        .hasSize(2);
+    testClient
+        .get()
+        .uri(
+            (UriBuilder b) ->
+                b.path("/traces")
+                    .queryParam("start", testBegin.format(DateTimeFormatter.ISO_INSTANT))
+                    .queryParam("nomApiPsc", "backend-2")
+                    .build())
+        .exchange()
+        .expectStatus().is2xxSuccessful()
+        .expectBodyList(Trace.class)
+        .hasSize(0);
+    testClient
+        .get()
+        .uri(
+            (UriBuilder b) ->
+                b.path("/traces")
+                    .queryParam("start", testBegin.format(DateTimeFormatter.ISO_INSTANT))
+                    .queryParam("proxy_id_session", sessionId)
+                    .queryParam("clientId", "another-client")
+                    .build())
+        .exchange()
+        .expectStatus().is2xxSuccessful()
+        .expectBodyList(Trace.class)
+        .hasSize(0);
+  }
+
+  @Test
+  public void traceStatsCountSendsPerBackend() {
+    OffsetDateTime testBegin = OffsetDateTime.now();
+    final long before = sendCount(testBegin, "backend-1");
+
+    sendTwice();
+
+    Assertions.assertEquals(before + 2, sendCount(testBegin, "backend-1"));
+    testClient
+        .get()
+        .uri(
+            (UriBuilder b) ->
+                b.path("/traces/stats")
+                    .queryParam("start", testBegin.format(DateTimeFormatter.ISO_INSTANT))
+                    .queryParam("by", "IdRPPS")
+                    .build())
+        .exchange()
+        .expectStatus().isBadRequest();
+  }
+
+  private Session connectWithCert() {
+    return testClient
+        .post()
+        .uri("/connect")
+        .bodyValue(new Connection(ID_NAT, "42", "client-with-cert", "CARD"))
+        .exchange()
+        .expectStatus()
+        .is2xxSuccessful()
+        .expectBody(Session.class)
+        .returnResult()
+        .getResponseBody();
+  }
+
+  /**
+   * @return la trace d'un <code>/send</code> fait dans la session, qui est ensuite close.
+   */
+  private Trace sendTraceOf(Session session) {
+    OffsetDateTime testBegin = OffsetDateTime.now();
+    testClient.get().uri("/send/backend-1/carebear1")
+        .cookie(SESSION_COOKIE_NAME, session.proxySessionId())
+        .exchange().expectStatus().is2xxSuccessful();
+    OffsetDateTime testEnd = OffsetDateTime.now();
+
+    testClient.delete().uri("/disconnect")
+        .cookie(SESSION_COOKIE_NAME, session.proxySessionId())
+        .exchange().expectStatus().isOk();
+
+    return testClient
+        .get()
+        .uri(
+            (UriBuilder b) ->
+                b.path("/traces")
+                    .queryParam("start", testBegin.format(DateTimeFormatter.ISO_INSTANT))
+                    .queryParam("end", testEnd.format(DateTimeFormatter.ISO_INSTANT))
+                    .build())
+        .exchange()
+        .expectStatus()
+        .is2xxSuccessful()
+        .expectBodyList(Trace.class)
+        .hasSize(1)
+        .returnResult()
+        .getResponseBody()
+        .getFirst();
+  }
+
+  private long sendCount(OffsetDateTime start, String nomApiPsc) {
+    return testClient
+        .get()
+        .uri(
+            (UriBuilder b) ->
+                b.path("/traces/stats")
+                    .queryParam("start", start.format(DateTimeFormatter.ISO_INSTANT))
+                    .queryParam("by", "nomApiPsc")
+                    .build())
+        .exchange()
+        .expectStatus().is2xxSuccessful()
+        .expectBodyList(TraceRollup.class)
+        .returnResult()
+        .getResponseBody()
+        .stream()
+        .filter(r -> nomApiPsc.equals(r.value()))
+        .mapToLong(r -> r.counts().getOrDefault(TraceType.SEND, 0L))
+        .sum();
+  }
+
+  private void sendTwice() {
+    for (int i = 0; i < 2; i++) {
+      testClient
+          .get()
+          .uri("/send/backend-1/carebear" + i)
+          .cookie(SESSION_COOKIE_NAME, sessionId)
+          .exchange().expectStatus().is2xxSuccessful();
+    }
+  }
+
+  private void assertTwoSendTraces(String ndjson) throws IOException {
+    String[] lines = ndjson.split("\n");
+    Assertions.assertEquals(2, lines.length, ndjson);
+    for (int i = 0; i < 2; i++) {
+      Trace trace = objectMapper.readValue(lines[i], Trace.class);
+      Assertions.assertEquals(TraceType.SEND, trace.type());
+      Assertions.assertEquals("/carebear" + i, trace.apiRequest().path());
+    }
+  }
 }
@@ -0,0 +1,65 @@
+/*
+ * The MIT License
+ * Copyright © 2024-2025 Agence du Numérique en Santé (ANS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.gouv.ans.psc.example.esante.proxy;
+
+import java.time.Duration;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Primary;
+import reactor.core.scheduler.Scheduler;
+import reactor.test.scheduler.VirtualTimeScheduler;
+
+/**
+ * Remplace l'horloge des attentes du proxy par un temps virtuel qui avance de
+ * {@link #VIRTUAL_STEP} à chaque milliseconde réelle au plus : les intervalles de polling CIBA,
+ * exprimés en secondes, ne ralentissent pas les tests.
+ *
+ * @author edegenetais
+ */
+@TestConfiguration(proxyBeanMethods = false)
+public class VirtualTimerConfiguration {
+  /** Temps virtuel écoulé par milliseconde réelle. */
+  public static final Duration VIRTUAL_STEP = Duration.ofMillis(100);
+
+  @Bean(destroyMethod = "dispose")
+  @Primary
+  public VirtualTimeScheduler virtualTimer() {
+    final VirtualTimeScheduler timer = VirtualTimeScheduler.create();
+    final Thread driver =
+        new Thread(
+            () -> {
+              while (!timer.isDisposed()) {
+                timer.advanceTimeBy(VIRTUAL_STEP);
+                try {
+                  Thread.sleep(1);
+                } catch (InterruptedException e) {
+                  return;
+                }
+              }
+            },
+            "virtual-timer");
+    driver.setDaemon(true);
+    driver.start();
+    return timer;
+  }
+}
@@ -0,0 +1,103 @@
+/*
+ * The MIT License
+ * Copyright © 2024-2025 Agence du Numérique en Santé (ANS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.gouv.ans.psc.example.esante.proxy.service;
+
+import fr.gouv.ans.psc.example.esante.proxy.service.Credential.CredentialType;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Cette suite vérifie que le matériel cryptographique mTLS n'est rechargé qu'en cas de changement du fichier.
+ *
+ * @author edegenetais
+ */
+public class CredentialMaterialCacheTest {
+  private static final Path CLIENT_P12 = Path.of("src/test/resources/client.edc.proxy.1.p12");
+  private static final String CLIENT_P12_PASS = "CLIENTpass";
+
+  @TempDir
+  Path tmp;
+
+  private CredentialMaterialCache cache;
+
+  @BeforeEach
+  public void startCache() {
+    cache = new CredentialMaterialCache(Duration.ofSeconds(30));
+  }
+
+  @AfterEach
+  public void stopCache() {
+    cache.destroy();
+  }
+
+  @Test
+  public void materialIsLoadedOnce() throws IOException {
+    Credential cred = copyCredential("once.p12");
+
+    Assertions.assertSame(cred.buildKeyManagerFactory(cache), cred.buildKeyManagerFactory(cache));
+    Assertions.assertSame(cred.getClientCert(cache).get(), cred.getClientCert(cache).get());
+  }
+
+  @Test
+  public void touchedFileKeepsMaterial() throws IOException {
+    Credential cred = copyCredential("touched.p12");
+    Object kmf = cred.buildKeyManagerFactory(cache);
+
+    Files.setLastModifiedTime(Path.of(cred.file()), FileTime.from(Instant.now().plusSeconds(60)));
+    cache.checkFiles();
+
+    Assertions.assertSame(kmf, cred.buildKeyManagerFactory(cache));
+  }
+
+  @Test
+  public void changedFileReloadsMaterial() throws IOException {
+    Credential cred = copyCredential("changed.p12");
+    Object kmf = cred.buildKeyManagerFactory(cache);
+
+    // Même keystore, contenu différent : l'octet ajouté en fin de fichier est ignoré au décodage.
+    byte[] content = Files.readAllBytes(CLIENT_P12);
+    byte[] changed = Arrays.copyOf(content, content.length + 1);
+    Files.write(Path.of(cred.file()), changed);
+    Files.setLastModifiedTime(Path.of(cred.file()), FileTime.from(Instant.now().plusSeconds(60)));
+    cache.checkFiles();
+
+    Assertions.assertNotSame(kmf, cred.buildKeyManagerFactory(cache));
+  }
+
+  private Credential copyCredential(String name) throws IOException {
+    Path copy = tmp.resolve(name);
+    Files.copy(CLIENT_P12, copy, StandardCopyOption.REPLACE_EXISTING);
+    return new Credential(CredentialType.MTLS, CLIENT_P12_PASS, copy.toString());
+  }
+}
@@ -0,0 +1,131 @@
+/*
+ * The MIT License
+ * Copyright © 2024-2025 Agence du Numérique en Santé (ANS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.gouv.ans.psc.example.esante.proxy.service.session;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.session.MapSession;
+
+/**
+ * @author edegenetais
+ */
+public class ShardedSessionRepositoryTest {
+  private final ShardedSessionRepository repository =
+      new ShardedSessionRepository(8, Duration.ofMillis(20));
+
+  @AfterEach
+  public void stop() {
+    repository.destroy();
+  }
+
+  @Test
+  public void idleSessionsExpireWithoutLookup() throws InterruptedException {
+    final List<String> expired = new CopyOnWriteArrayList<>();
+    repository.addExpiryListener(s -> expired.add(s.getId()));
+    repository.setDefaultMaxInactiveInterval(Duration.ofMillis(200));
+    final MapSession idle = repository.createSession().block();
+    final MapSession active = repository.createSession().block();
+    active.setMaxInactiveInterval(Duration.ofSeconds(30));
+    repository.save(idle).block();
+    repository.save(active).block();
+
+    final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (expired.isEmpty() && System.nanoTime() < deadline) {
+      Thread.sleep(20);
+    }
+
+    Assertions.assertEquals(List.of(idle.getId()), expired);
+    Assertions.assertNull(repository.findById(idle.getId()).block());
+    Assertions.assertNotNull(repository.findById(active.getId()).block());
+    Assertions.assertEquals(new SessionStoreStats(1, 1), repository.stats());
+  }
+
+  @Test
+  public void accessedSessionsAreKeptAlive() throws InterruptedException {
+    final List<String> expired = new CopyOnWriteArrayList<>();
+    repository.addExpiryListener(s -> expired.add(s.getId()));
+    repository.setDefaultMaxInactiveInterval(Duration.ofMillis(300));
+    final MapSession session = repository.createSession().block();
+    repository.save(session).block();
+
+    for (int i = 0; i < 10; i++) {
+      Thread.sleep(100);
+      final MapSession found = repository.findById(session.getId()).block();
+      Assertions.assertNotNull(found);
+      found.setLastAccessedTime(Instant.now());
+      repository.save(found).block();
+    }
+
+    Assertions.assertTrue(expired.isEmpty());
+  }
+
+  @Test
+  public void deletedSessionsDoNotExpire() throws InterruptedException {
+    final List<String> expired = new CopyOnWriteArrayList<>();
+    repository.addExpiryListener(s -> expired.add(s.getId()));
+    repository.setDefaultMaxInactiveInterval(Duration.ofMillis(100));
+    final MapSession session = repository.createSession().block();
+    repository.save(session).block();
+    repository.deleteById(session.getId()).block();
+
+    Thread.sleep(300);
+
+    Assertions.assertTrue(expired.isEmpty());
+    Assertions.assertEquals(new SessionStoreStats(0, 0), repository.stats());
+  }
+
+  @Test
+  public void concurrentSavesAndLookupsAreConsistent() throws InterruptedException {
+    final ExecutorService pool = Executors.newFixedThreadPool(8);
+    final List<String> ids = new CopyOnWriteArrayList<>();
+    for (int t = 0; t < 8; t++) {
+      pool.execute(
+          () -> {
+            final List<String> own = new ArrayList<>();
+            for (int i = 0; i < 1000; i++) {
+              final MapSession session = repository.createSession().block();
+              session.setAttribute("n", i);
+              repository.save(session).block();
+              own.add(session.getId());
+              Assertions.assertEquals(
+                  i, (int) repository.findById(session.getId()).block().getAttribute("n"));
+            }
+            ids.addAll(own);
+          });
+    }
+    pool.shutdown();
+    Assertions.assertTrue(pool.awaitTermination(30, TimeUnit.SECONDS));
+
+    Assertions.assertEquals(8000, ids.size());
+    Assertions.assertEquals(8000, repository.stats().sessions());
+  }
+}
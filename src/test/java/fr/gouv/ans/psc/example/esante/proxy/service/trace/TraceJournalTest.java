@@ -0,0 +1,266 @@
+/*
+ * The MIT License
+ * Copyright © 2024-2025 Agence du Numérique en Santé (ANS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.gouv.ans.psc.example.esante.proxy.service.trace;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import fr.gouv.ans.psc.example.esante.proxy.config.TraceJournalConfig;
+import fr.gouv.ans.psc.example.esante.proxy.model.Request;
+import fr.gouv.ans.psc.example.esante.proxy.model.Trace;
+import fr.gouv.ans.psc.example.esante.proxy.model.TraceType;
+import fr.gouv.ans.psc.example.esante.proxy.service.FunctionalError;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+
+/**
+ * Cette suite vérifie la persistance des traces dans le journal projeté en mémoire.
+ *
+ * @author edegenetais
+ */
+public class TraceJournalTest {
+  private static final ObjectMapper MAPPER = JsonMapper.builder().findAndAddModules().build();
+  private static final OffsetDateTime ORIGIN = OffsetDateTime.of(2025, 3, 1, 8, 0, 0, 0, ZoneOffset.UTC);
+
+  @TempDir
+  Path tmp;
+
+  @Test
+  public void tracesSurviveRestart() {
+    TraceJournalConfig cfg = config(DataSize.ofKilobytes(64), 8);
+    try (TraceJournal journal = new TraceJournal(cfg, MAPPER)) {
+      for (int i = 0; i < 100; i++) {
+        journal.append(trace(i));
+      }
+      journal.flush();
+    }
+
+    try (TraceJournal reopened = new TraceJournal(cfg, MAPPER)) {
+      List<Trace> all = reopened.range(ORIGIN.minusSeconds(1), ORIGIN.plusDays(1)).toList();
+      Assertions.assertEquals(100, all.size());
+      Assertions.assertEquals(trace(42), all.get(42));
+
+      reopened.append(trace(100));
+      Assertions.assertEquals(101, reopened.range(ORIGIN.minusSeconds(1), ORIGIN.plusDays(1)).count());
+    }
+  }
+
+  @Test
+  public void recoveredTracesAreReplayedOnce() {
+    TraceJournalConfig cfg = config(DataSize.ofKilobytes(4), 100);
+    try (TraceJournal journal = new TraceJournal(cfg, MAPPER)) {
+      for (int i = 0; i < 200; i++) {
+        journal.append(trace(i));
+      }
+      journal.flush();
+    }
+
+    try (TraceJournal reopened = new TraceJournal(cfg, MAPPER)) {
+      reopened.append(trace(200));
+      reopened.flush();
+      List<Trace> replayed = new ArrayList<>();
+
+      reopened.replayRecovered(ORIGIN.plusSeconds(49).toInstant(), replayed::add);
+      reopened.replayRecovered(ORIGIN.minusSeconds(1).toInstant(), replayed::add);
+
+      Assertions.assertTrue(reopened.stats().segments() > 1);
+      Assertions.assertEquals(150, replayed.size());
+      Assertions.assertEquals(trace(50), replayed.getFirst());
+      Assertions.assertEquals(trace(199), replayed.getLast());
+    }
+  }
+
+  @Test
+  public void rangeOnlyReturnsTracesOfTheWindow() {
+    TraceJournalConfig cfg = config(DataSize.ofMegabytes(1), 8);
+    try (TraceJournal journal = new TraceJournal(cfg, MAPPER)) {
+      for (int i = 0; i < 5000; i++) {
+        journal.append(trace(i));
+      }
+
+      List<Trace> window =
+          journal.range(ORIGIN.plusSeconds(3000), ORIGIN.plusSeconds(3010)).toList();
+
+      Assertions.assertEquals(9, window.size());
+      Assertions.assertEquals("client-3001", window.getFirst().clientId());
+    }
+  }
+
+  @Test
+  public void segmentsAreRotatedAndOldestDeleted() throws IOException {
+    TraceJournalConfig cfg = config(DataSize.ofKilobytes(4), 3);
+    try (TraceJournal journal = new TraceJournal(cfg, MAPPER)) {
+      for (int i = 0; i < 500; i++) {
+        journal.append(trace(i));
+      }
+      journal.flush();
+
+      TraceJournalStats stats = journal.stats();
+      Assertions.assertEquals(3, stats.segments());
+      Assertions.assertEquals(500, stats.written());
+      try (Stream<Path> files = Files.list(tmp)) {
+        Assertions.assertEquals(3, files.count());
+      }
+      List<Trace> kept = journal.range(ORIGIN.minusSeconds(1), ORIGIN.plusDays(1)).toList();
+      Assertions.assertEquals("client-499", kept.getLast().clientId());
+    }
+  }
+
+  @Test
+  public void pagesCoverTheWindowAcrossSegments() {
+    TraceJournalConfig cfg = config(DataSize.ofKilobytes(8), 100);
+    try (TraceJournal journal = new TraceJournal(cfg, MAPPER)) {
+      for (int i = 0; i < 500; i++) {
+        journal.append(trace(i));
+      }
+      final OffsetDateTime after = ORIGIN.plusSeconds(99);
+      final OffsetDateTime before = ORIGIN.plusSeconds(400);
+
+      List<Trace> paged = new ArrayList<>();
+      TraceCursor cursor = null;
+      do {
+        TracePage<Trace> page = journal.page(after, before, TraceQuery.ALL, cursor, 30);
+        paged.addAll(page.traces());
+        cursor = page.next();
+      } while (cursor != null);
+
+      Assertions.assertTrue(journal.stats().segments() > 1);
+      Assertions.assertEquals(journal.range(after, before).toList(), paged);
+      Assertions.assertEquals(300, paged.size());
+    }
+  }
+
+  @Test
+  public void cursorInsideARecordIsRejected() {
+    TraceJournalConfig cfg = config(DataSize.ofKilobytes(64), 8);
+    try (TraceJournal journal = new TraceJournal(cfg, MAPPER)) {
+      for (int i = 0; i < 20; i++) {
+        journal.append(trace(i));
+      }
+      final OffsetDateTime after = ORIGIN.minusSeconds(1);
+      final OffsetDateTime before = ORIGIN.plusDays(1);
+      final TraceCursor next = journal.page(after, before, TraceQuery.ALL, null, 5).next();
+
+      for (TraceCursor tampered :
+          List.of(
+              new TraceCursor(next.major(), next.minor() + 3),
+              new TraceCursor(next.major(), -next.minor()),
+              new TraceCursor(next.major(), 1L << 40))) {
+        Assertions.assertThrows(
+            FunctionalError.class,
+            () -> journal.page(after, before, TraceQuery.ALL, tampered, 5),
+            tampered.toString());
+      }
+      Assertions.assertEquals(5, journal.page(after, before, TraceQuery.ALL, next, 5).traces().size());
+    }
+  }
+
+  @Test
+  public void filteredQueryWorksAfterRestart() {
+    TraceJournalConfig cfg = config(DataSize.ofKilobytes(8), 100);
+    final TraceQuery query = new TraceQuery(null, null, null, null, "session-123");
+    try (TraceJournal journal = new TraceJournal(cfg, MAPPER)) {
+      for (int i = 0; i < 300; i++) {
+        journal.append(trace(i));
+      }
+      Assertions.assertEquals(1, journal.range(ORIGIN, ORIGIN.plusDays(1), query).count());
+    }
+
+    try (TraceJournal reopened = new TraceJournal(cfg, MAPPER)) {
+      List<Trace> found = reopened.range(ORIGIN, ORIGIN.plusDays(1), query).toList();
+      Assertions.assertEquals(1, found.size());
+      Assertions.assertEquals("client-123", found.getFirst().clientId());
+      Assertions.assertEquals(
+          0,
+          reopened
+              .range(ORIGIN, ORIGIN.plusDays(1), new TraceQuery(null, null, TraceType.DISCONNECT, null, null))
+              .count());
+    }
+  }
+
+  @Test
+  public void expiredSegmentsAreDeletedWhole() {
+    TraceJournalConfig cfg = config(DataSize.ofKilobytes(4), 100);
+    try (TraceJournal journal = new TraceJournal(cfg, MAPPER)) {
+      for (int i = 0; i < 500; i++) {
+        journal.append(trace(i));
+      }
+      journal.flush();
+      final int segments = journal.stats().segments();
+
+      journal.expire(ORIGIN.plusSeconds(250).plus(cfg.maxAge()).toInstant());
+      journal.flush();
+
+      List<Trace> kept = journal.range(ORIGIN.minusSeconds(1), ORIGIN.plusDays(1)).toList();
+      Assertions.assertTrue(journal.stats().segments() < segments);
+      Assertions.assertTrue(kept.size() < 500);
+      Assertions.assertTrue(kept.size() >= 250);
+      Assertions.assertEquals("client-499", kept.getLast().clientId());
+    }
+  }
+
+  @Test
+  public void batchesBeyondTheWriteQueueAreDropped() {
+    TraceJournalConfig cfg =
+        new TraceJournalConfig(tmp, DataSize.ofKilobytes(64), 8, Duration.ofDays(30), 2);
+    try (TraceJournal journal = new TraceJournal(cfg, MAPPER)) {
+      journal.appendAll(List.of(trace(0), trace(1), trace(2)));
+      journal.appendAll(List.of(trace(3), trace(4)));
+      journal.flush();
+
+      Assertions.assertEquals(3, journal.stats().dropped());
+      Assertions.assertEquals(2, journal.stats().written());
+      Assertions.assertEquals(
+          List.of("client-3", "client-4"),
+          journal.range(ORIGIN.minusSeconds(1), ORIGIN.plusDays(1)).map(Trace::clientId).toList());
+    }
+  }
+
+  private TraceJournalConfig config(DataSize segmentSize, int maxSegments) {
+    return new TraceJournalConfig(tmp, segmentSize, maxSegments, Duration.ofDays(30), 65536);
+  }
+
+  private static Trace trace(int i) {
+    return new Trace(
+        TraceType.SEND,
+        "client-" + i,
+        "899700218896",
+        "127.0.0.1",
+        List.of(8080, 8081),
+        "session-" + i,
+        "state",
+        "CN=client",
+        ORIGIN.plusSeconds(i),
+        new Request("backend-1", "GET", "/send/backend-1/resource"));
+  }
+}
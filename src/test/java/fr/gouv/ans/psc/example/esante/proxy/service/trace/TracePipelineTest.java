@@ -0,0 +1,183 @@
+/*
+ * The MIT License
+ * Copyright © 2024-2025 Agence du Numérique en Santé (ANS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.gouv.ans.psc.example.esante.proxy.service.trace;
+
+import fr.gouv.ans.psc.example.esante.proxy.config.TraceStoreConfig.PipelineOverflowPolicy;
+import fr.gouv.ans.psc.example.esante.proxy.model.Request;
+import fr.gouv.ans.psc.example.esante.proxy.model.Trace;
+import fr.gouv.ans.psc.example.esante.proxy.model.TraceType;
+import fr.gouv.ans.psc.example.esante.proxy.service.BaseTraceData;
+import fr.gouv.ans.psc.example.esante.proxy.service.SessionTraceData;
+import java.time.Duration;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Cette suite vérifie la chaîne d'enregistrement asynchrone des traces.
+ *
+ * @author edegenetais
+ */
+public class TracePipelineTest {
+  private static final SessionTraceData SESSION =
+      new SessionTraceData("client", "899700218896", "state", "session", null, null);
+  private static final BaseTraceData BASE = new BaseTraceData(List.of(8080), "127.0.0.1", "GET");
+
+  @Test
+  public void allPublishedTracesAreDeliveredBeforeFlushReturns() throws InterruptedException {
+    Queue<Trace> stored = new ConcurrentLinkedQueue<>();
+    // anneau assez grand pour toute la rafale : aucune trace ne doit être abandonnée.
+    try (TracePipeline pipeline = new TracePipeline(16384, stored::addAll)) {
+      ExecutorService producers = Executors.newFixedThreadPool(8);
+      for (int p = 0; p < 8; p++) {
+        producers.execute(
+            () -> {
+              for (int i = 0; i < 2000; i++) {
+                pipeline.publish(
+                    TraceType.SEND, SESSION, BASE, new Request("backend-1", "GET", "/" + i));
+              }
+            });
+      }
+      producers.shutdown();
+      Assertions.assertTrue(producers.awaitTermination(30, TimeUnit.SECONDS));
+      pipeline.flush();
+
+      Assertions.assertEquals(16000, stored.size());
+      TracePipelineStats stats = pipeline.stats();
+      Assertions.assertEquals(16000, stats.published());
+      Assertions.assertEquals(0, stats.lag());
+      Assertions.assertEquals(0, stats.dropped());
+      Assertions.assertEquals(0, stats.rejected());
+    }
+  }
+
+  @Test
+  public void invalidTracesAreRejectedWithoutStoppingThePipeline() {
+    Queue<Trace> stored = new ConcurrentLinkedQueue<>();
+    try (TracePipeline pipeline = new TracePipeline(16, stored::addAll)) {
+      // une trace SEND sans requête est invalide.
+      pipeline.publish(TraceType.SEND, SESSION, BASE, null);
+      pipeline.publish(TraceType.DISCONNECT, SESSION, BASE, null);
+      pipeline.flush();
+
+      Assertions.assertEquals(1, stored.size());
+      Assertions.assertEquals(TraceType.DISCONNECT, stored.peek().type());
+      Assertions.assertEquals(1, pipeline.stats().rejected());
+    }
+  }
+
+  @Test
+  public void publishDropsInsteadOfBlockingWhenTheRingIsFull() throws InterruptedException {
+    Queue<Trace> stored = new ConcurrentLinkedQueue<>();
+    CountDownLatch storeBlocked = new CountDownLatch(1);
+    try (TracePipeline pipeline =
+        new TracePipeline(
+            16,
+            batch -> {
+              try {
+                storeBlocked.await();
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+              }
+              stored.addAll(batch);
+            })) {
+      for (int i = 0; i < 26; i++) {
+        pipeline.publish(TraceType.DISCONNECT, SESSION, BASE, null);
+      }
+
+      Assertions.assertEquals(10, pipeline.stats().dropped());
+      storeBlocked.countDown();
+      pipeline.flush();
+      Assertions.assertEquals(16, stored.size());
+      Assertions.assertTrue(pipeline.publish(TraceType.DISCONNECT, SESSION, BASE, null));
+    }
+  }
+
+  @Test
+  public void blockBrieflyWaitsForRoomWhenTheRingIsFull() {
+    Queue<Trace> stored = new ConcurrentLinkedQueue<>();
+    CountDownLatch storeBlocked = new CountDownLatch(1);
+    try (TracePipeline pipeline =
+        new TracePipeline(
+            16,
+            PipelineOverflowPolicy.BLOCK_BRIEFLY,
+            Duration.ofSeconds(10),
+            batch -> {
+              try {
+                storeBlocked.await();
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+              }
+              stored.addAll(batch);
+            })) {
+      for (int i = 0; i < 16; i++) {
+        pipeline.publish(TraceType.DISCONNECT, SESSION, BASE, null);
+      }
+      // le stockage se libère pendant que le producteur attend une place.
+      ScheduledExecutorService release = Executors.newSingleThreadScheduledExecutor();
+      release.schedule(storeBlocked::countDown, 100, TimeUnit.MILLISECONDS);
+      release.shutdown();
+      for (int i = 0; i < 10; i++) {
+        Assertions.assertTrue(pipeline.publish(TraceType.DISCONNECT, SESSION, BASE, null));
+      }
+      pipeline.flush();
+
+      Assertions.assertEquals(26, stored.size());
+      Assertions.assertEquals(0, pipeline.stats().dropped());
+    }
+  }
+
+  @Test
+  public void blockBrieflyDropsOnceTheWaitIsOver() {
+    CountDownLatch storeBlocked = new CountDownLatch(1);
+    try (TracePipeline pipeline =
+        new TracePipeline(
+            16,
+            PipelineOverflowPolicy.BLOCK_BRIEFLY,
+            Duration.ofMillis(50),
+            batch -> {
+              try {
+                storeBlocked.await();
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+              }
+            })) {
+      for (int i = 0; i < 16; i++) {
+        pipeline.publish(TraceType.DISCONNECT, SESSION, BASE, null);
+      }
+      final long start = System.nanoTime();
+      Assertions.assertFalse(pipeline.publish(TraceType.DISCONNECT, SESSION, BASE, null));
+
+      Assertions.assertTrue(System.nanoTime() - start >= Duration.ofMillis(50).toNanos());
+      Assertions.assertEquals(1, pipeline.stats().dropped());
+      storeBlocked.countDown();
+    }
+  }
+}
@@ -0,0 +1,397 @@
+/*
+ * The MIT License
+ * Copyright © 2024-2025 Agence du Numérique en Santé (ANS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.gouv.ans.psc.example.esante.proxy.service.trace;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import fr.gouv.ans.psc.example.esante.proxy.config.TraceStoreConfig;
+import fr.gouv.ans.psc.example.esante.proxy.config.TraceStoreConfig.OverflowPolicy;
+import fr.gouv.ans.psc.example.esante.proxy.model.Request;
+import fr.gouv.ans.psc.example.esante.proxy.model.Trace;
+import fr.gouv.ans.psc.example.esante.proxy.model.TraceType;
+import fr.gouv.ans.psc.example.esante.proxy.service.FunctionalError;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+
+/**
+ * Cette suite vérifie le stockage borné des traces : enregistrement concurrent et politiques de
+ * débordement.
+ *
+ * @author edegenetais
+ */
+public class TraceStoreTest {
+  private static final ObjectMapper MAPPER = JsonMapper.builder().findAndAddModules().build();
+
+  @TempDir
+  Path tmp;
+
+  @Test
+  public void concurrentAppendsAreAllKept() throws InterruptedException {
+    TraceStore store = new TraceStore(config(100_000, 64, OverflowPolicy.DROP_OLDEST, null), MAPPER);
+    ExecutorService producers = Executors.newFixedThreadPool(8);
+    for (int p = 0; p < 8; p++) {
+      producers.execute(
+          () -> {
+            for (int i = 0; i < 1000; i++) {
+              store.append(trace(i));
+            }
+          });
+    }
+    producers.shutdown();
+    Assertions.assertTrue(producers.awaitTermination(30, TimeUnit.SECONDS));
+
+    Assertions.assertEquals(8000, store.snapshot().count());
+    Assertions.assertEquals(8000, store.stats().size());
+  }
+
+  @Test
+  public void oldestTracesAreDroppedAndCounted() {
+    TraceStore store = new TraceStore(config(100, 10, OverflowPolicy.DROP_OLDEST, null), MAPPER);
+    for (int i = 0; i < 1000; i++) {
+      store.append(trace(i));
+    }
+
+    TraceStoreStats stats = store.stats();
+    Assertions.assertTrue(stats.size() <= 100 + 10, "Too many traces kept : " + stats.size());
+    Assertions.assertEquals(1000, stats.size() + stats.dropped());
+    List<Trace> kept = store.snapshot().toList();
+    Assertions.assertEquals("client-999", kept.getLast().clientId());
+    Assertions.assertEquals("client-" + stats.dropped(), kept.getFirst().clientId());
+  }
+
+  @Test
+  public void evictedTracesAreSpilledToDisk() throws IOException {
+    TraceStore store = new TraceStore(config(20, 10, OverflowPolicy.SPILL, tmp), MAPPER);
+    for (int i = 0; i < 100; i++) {
+      store.append(trace(i));
+    }
+    store.close();
+
+    TraceStoreStats stats = store.stats();
+    Assertions.assertEquals(0, stats.dropped());
+    Assertions.assertEquals(100, stats.size() + stats.spilled());
+    try (Stream<Path> files = Files.list(tmp)) {
+      long spilledLines =
+          files
+              .mapToLong(
+                  f -> {
+                    try {
+                      return Files.readAllLines(f).stream().filter(l -> !l.isBlank()).count();
+                    } catch (IOException e) {
+                      throw new IllegalStateException(e);
+                    }
+                  })
+              .sum();
+      Assertions.assertEquals(stats.spilled(), spilledLines);
+    }
+  }
+
+  @Test
+  public void rangeQueryOnlyReturnsTracesOfTheWindow() {
+    TraceStore store = new TraceStore(config(100_000, 16, OverflowPolicy.DROP_OLDEST, null), MAPPER);
+    final OffsetDateTime origin = OffsetDateTime.now().minusDays(1);
+    for (int i = 0; i < 600; i++) {
+      // une trace toutes les 10 secondes pendant 100 minutes.
+      store.append(trace(i, origin.plusSeconds(10L * i)));
+    }
+
+    List<Trace> window =
+        store.range(origin.plusMinutes(30).minusNanos(1), origin.plusMinutes(35)).toList();
+
+    Assertions.assertEquals(30, window.size());
+    Assertions.assertEquals("client-180", window.getFirst().clientId());
+    Assertions.assertEquals("client-209", window.getLast().clientId());
+    Assertions.assertEquals(0, store.range(origin.plusDays(1), origin.minusDays(1)).count());
+  }
+
+  @Test
+  public void pagesCoverTheWindowWithoutOverlap() {
+    TraceStore store = new TraceStore(config(100_000, 16, OverflowPolicy.DROP_OLDEST, null), MAPPER);
+    final OffsetDateTime origin = OffsetDateTime.now().minusDays(1);
+    for (int i = 0; i < 600; i++) {
+      store.append(trace(i, origin.plusSeconds(10L * i)));
+    }
+    final OffsetDateTime after = origin.plusMinutes(10).minusNanos(1);
+    final OffsetDateTime before = origin.plusMinutes(60);
+
+    List<Trace> paged = new ArrayList<>();
+    TraceCursor cursor = null;
+    int pages = 0;
+    do {
+      TracePage<Trace> page = store.page(after, before, TraceQuery.ALL, cursor, 7);
+      Assertions.assertTrue(page.traces().size() <= 7);
+      paged.addAll(page.traces());
+      cursor = page.next() == null ? null : TraceCursor.decode(page.next().encode());
+      pages++;
+    } while (cursor != null);
+
+    Assertions.assertEquals(store.range(after, before).toList(), paged);
+    Assertions.assertEquals(300, paged.size());
+    Assertions.assertEquals(43, pages);
+  }
+
+  @Test
+  public void cursorWithANegativeSlotIsRejected() {
+    TraceStore store = new TraceStore(config(100_000, 16, OverflowPolicy.DROP_OLDEST, null), MAPPER);
+    final OffsetDateTime origin = OffsetDateTime.now().minusDays(1);
+    for (int i = 0; i < 50; i++) {
+      store.append(trace(i, origin.plusSeconds(i)));
+    }
+    final OffsetDateTime after = origin.minusSeconds(1);
+    final OffsetDateTime before = origin.plusHours(1);
+    final TraceCursor next = store.page(after, before, TraceQuery.ALL, null, 7).next();
+
+    final TraceCursor tampered = new TraceCursor(next.major(), next.minor() >>> 32 << 32 | 0xFFFFFFF0L);
+    Assertions.assertThrows(
+        FunctionalError.class, () -> store.page(after, before, TraceQuery.ALL, tampered, 7));
+  }
+
+  @Test
+  public void filteredQueryOnlyReturnsMatchingTraces() {
+    TraceStore store = new TraceStore(config(100_000, 16, OverflowPolicy.DROP_OLDEST, null), MAPPER);
+    final OffsetDateTime origin = OffsetDateTime.now().minusDays(1);
+    for (int i = 0; i < 600; i++) {
+      store.append(
+          new Trace(
+              i % 3 == 0 ? TraceType.CONNECT_FAILURE : TraceType.DISCONNECT,
+              "client-" + (i % 10),
+              "899700218896",
+              "127.0.0.1",
+              List.of(8080),
+              "session-" + i,
+              "state",
+              null,
+              origin.plusSeconds(i),
+              null));
+    }
+    final OffsetDateTime after = origin.minusSeconds(1);
+    final OffsetDateTime before = origin.plusHours(1);
+
+    List<Trace> failures =
+        store
+            .range(after, before, new TraceQuery("client-3", null, TraceType.CONNECT_FAILURE, null, null))
+            .toList();
+    Assertions.assertEquals(20, failures.size());
+    Assertions.assertTrue(
+        failures.stream()
+            .allMatch(t -> "client-3".equals(t.clientId()) && t.type() == TraceType.CONNECT_FAILURE));
+    Assertions.assertEquals(
+        List.of("session-42"),
+        store.range(after, before, new TraceQuery(null, null, null, null, "session-42"))
+            .map(Trace::proxy_id_session)
+            .toList());
+    Assertions.assertEquals(
+        0, store.range(after, before, new TraceQuery("unknown", null, null, null, null)).count());
+
+    TracePage<Trace> page =
+        store.page(after, before, new TraceQuery("client-3", null, null, null, null), null, 50);
+    Assertions.assertEquals(50, page.traces().size());
+    Assertions.assertEquals(
+        10,
+        store.page(after, before, new TraceQuery("client-3", null, null, null, null), page.next(), 50)
+            .traces()
+            .size());
+  }
+
+  @Test
+  public void compactEncodingRestoresTracesUnchanged() {
+    TraceStore store = new TraceStore(config(100_000, 64, OverflowPolicy.DROP_OLDEST, null), MAPPER);
+    final OffsetDateTime origin = OffsetDateTime.of(2025, 3, 14, 9, 26, 53, 589_793_238, ZoneOffset.ofHours(2));
+    final List<Trace> expected = new ArrayList<>();
+    for (int i = 0; i < 200; i++) {
+      expected.add(
+          new Trace(
+              i % 2 == 0 ? TraceType.SEND : TraceType.CONNECT_FAILURE,
+              "client-" + (i % 4),
+              "899700218896",
+              "127.0.0.1",
+              i % 5 == 0 ? List.of(8080, 8443) : List.of(),
+              i % 2 == 0 ? "session-" + (i % 7) : null,
+              i % 2 == 0 ? "state" : null,
+              null,
+              origin.plusNanos(i),
+              i % 2 == 0 ? new Request("api-" + (i % 3), "GET", "/api/path/" + (i % 3)) : null));
+    }
+    expected.forEach(store::append);
+
+    Assertions.assertEquals(expected, store.snapshot().toList());
+    // les chaînes répétées ne sont comptées qu'une fois par segment : moins que les mêmes traces
+    // gardées en objets, capacité allouée des segments comprise.
+    final long asObjects = expected.stream().mapToLong(TraceStoreTest::objectBytes).sum();
+    Assertions.assertTrue(store.stats().estimatedBytes() < asObjects);
+  }
+
+  @Test
+  public void indexPostingsAreCountedInEstimatedBytes() {
+    TraceStore indexed = new TraceStore(config(100_000, 4096, OverflowPolicy.DROP_OLDEST, null), MAPPER);
+    TraceStore unindexed =
+        new TraceStore(config(100_000, 4096, OverflowPolicy.DROP_OLDEST, null), MAPPER);
+    final OffsetDateTime origin = OffsetDateTime.now();
+    for (int i = 0; i < 1000; i++) {
+      // mêmes chaînes dans les deux stockages, dans des champs indexés ou non.
+      indexed.append(sessionTrace("client-" + i, "session-" + i, null, "state", origin.plusNanos(i)));
+      unindexed.append(
+          sessionTrace("client", "session", "client-" + i, "session-" + i, origin.plusNanos(i)));
+    }
+
+    // une carte de bits par client et par session distincts, au moins un mot chacune.
+    Assertions.assertTrue(
+        indexed.stats().estimatedBytes() - unindexed.stats().estimatedBytes()
+            >= 1900 * (TraceSegment.POSTING_OVERHEAD_BYTES + Long.BYTES),
+        "Mémoire estimée : "
+            + indexed.stats().estimatedBytes()
+            + " avec index, "
+            + unindexed.stats().estimatedBytes()
+            + " sans.");
+  }
+
+  private static Trace sessionTrace(
+      String clientId, String session, String dn, String state, OffsetDateTime timestamp) {
+    return new Trace(
+        TraceType.SEND,
+        clientId,
+        "899700218896",
+        "127.0.0.1",
+        List.of(8080),
+        session,
+        state,
+        dn,
+        timestamp,
+        new Request("api", "GET", "/api/path"));
+  }
+
+  /** Estimation d'une trace conservée en objet, avant le stockage en colonnes. */
+  private static long objectBytes(Trace trace) {
+    long chars =
+        length(trace.clientId())
+            + length(trace.IdRPPS())
+            + length(trace.ipAddress())
+            + length(trace.proxy_id_session())
+            + length(trace.session_state())
+            + length(trace.dn());
+    final Request request = trace.apiRequest();
+    if (request != null) {
+      chars += length(request.nomApiPsc()) + length(request.methode()) + length(request.path());
+    }
+    final int ports = trace.ports() == null ? 0 : trace.ports().size();
+    return 160 + 2 * chars + 16L * ports;
+  }
+
+  private static int length(String value) {
+    return value == null ? 0 : value.length();
+  }
+
+  @Test
+  public void expiredBucketsAreRemovedWhole() {
+    TraceStore store = new TraceStore(config(100_000, 64, OverflowPolicy.DROP_OLDEST, null), MAPPER);
+    final OffsetDateTime origin = OffsetDateTime.of(2025, 3, 1, 8, 0, 0, 0, ZoneOffset.UTC);
+    for (int i = 0; i < 600; i++) {
+      store.append(trace(i, origin.plusSeconds(i)));
+    }
+
+    // une heure de rétention : les tranches antérieures à 8h05 ont expiré.
+    store.enforceRetention(origin.plusMinutes(65).plusSeconds(30).toInstant());
+
+    TraceStoreStats stats = store.stats();
+    Assertions.assertEquals(300, stats.expired());
+    Assertions.assertEquals(300, stats.dropped());
+    Assertions.assertEquals(300, stats.size());
+    Assertions.assertEquals("client-300", store.snapshot().findFirst().orElseThrow().clientId());
+  }
+
+  @Test
+  public void compactedSegmentsAreReadBackAndSmaller() {
+    TraceStore store = new TraceStore(config(100_000, 64, OverflowPolicy.DROP_OLDEST, null), MAPPER);
+    final OffsetDateTime origin = OffsetDateTime.now().minusMinutes(30);
+    for (int i = 0; i < 1000; i++) {
+      store.append(trace(i % 20, origin.plusNanos(i * 1_000_000L)));
+    }
+    final List<Trace> before = store.snapshot().toList();
+    final long bytesBefore = store.stats().estimatedBytes();
+
+    store.enforceRetention(Instant.now());
+
+    Assertions.assertTrue(store.stats().estimatedBytes() < bytesBefore);
+    Assertions.assertEquals(before, store.snapshot().toList());
+    Assertions.assertEquals(
+        50,
+        store
+            .range(
+                origin.minusSeconds(1),
+                origin.plusMinutes(1),
+                new TraceQuery("client-7", null, null, null, null))
+            .count());
+    // une trace tardive est acceptée dans la tranche compactée.
+    store.append(trace(20, origin.plusSeconds(2)));
+    Assertions.assertEquals(1001, store.snapshot().count());
+  }
+
+  private static TraceStoreConfig config(
+      long capacity, int segmentSize, OverflowPolicy overflow, Path spillDirectory) {
+    return new TraceStoreConfig(
+        capacity,
+        DataSize.ofMegabytes(64),
+        segmentSize,
+        overflow,
+        spillDirectory,
+        1024,
+        TraceStoreConfig.PipelineOverflowPolicy.DROP,
+        Duration.ofMillis(5),
+        Duration.ofHours(1),
+        Duration.ofMinutes(10),
+        Duration.ofSeconds(30));
+  }
+
+  private static Trace trace(int i) {
+    return trace(i, OffsetDateTime.now());
+  }
+
+  private static Trace trace(int i, OffsetDateTime timestamp) {
+    return new Trace(
+        TraceType.CONNECT_FAILURE,
+        "client-" + i,
+        "899700218896",
+        "127.0.0.1",
+        List.of(8080),
+        null,
+        null,
+        null,
+        timestamp,
+        null);
+  }
+}